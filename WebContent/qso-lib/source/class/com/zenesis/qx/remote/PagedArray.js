@@ -0,0 +1,202 @@
+/* ************************************************************************
+
+   server-objects - a contrib to the Qooxdoo project (http://qooxdoo.org/)
+
+   http://qooxdoo.org
+
+   Copyright:
+     2010 Zenesis Limited, http://www.zenesis.com
+
+   License:
+     LGPL: http://www.gnu.org/licenses/lgpl.html
+     EPL: http://www.eclipse.org/org/documents/epl-v10.php
+
+     This software is provided under the same licensing terms as Qooxdoo,
+     please see the LICENSE file in the Qooxdoo project's top-level directory
+     for details.
+
+   Authors:
+ * John Spackman (john.spackman@zenesis.com)
+
+ ************************************************************************ */
+
+/**
+ * Client side of com.zenesis.qx.remote.collections.PagedArrayList, which is a list
+ * that is too large to send to the client in one go; the server sends the length
+ * and the first page, and further pages are loaded from the server on demand.
+ *
+ * Elements which have not been loaded yet are returned as null by
+ * <code>getItem()</code>, which loads the page in the background and fires
+ * "change" when it arrives; use <code>getItemAsync()</code> to wait for the
+ * element.
+ */
+qx.Class.define("com.zenesis.qx.remote.PagedArray", {
+  extend: qx.core.Object,
+
+  /**
+   * Constructor.
+   * @param pageSize {Integer} number of elements in each page
+   * @param length {Integer} number of elements in the list
+   * @param firstPage {Object[]?} the elements of the first page
+   */
+  construct(pageSize, length, firstPage) {
+    super();
+    this.__pageSize = pageSize || 100;
+    this.__items = [];
+    this.__pagePromises = {};
+    this.setLength(length || 0);
+    if (firstPage) {
+      firstPage = qx.lang.Type.isArray(firstPage) ? firstPage : firstPage.toArray();
+      firstPage.forEach(function (item, index) {
+        this.__items[index] = item;
+      }, this);
+    }
+  },
+
+  events: {
+    /**
+     * Fired when elements are loaded or changed, data is a map containing:
+     * start {Integer} index of the first element which has changed
+     * end {Integer} index after the last element which has changed
+     */
+    change: "qx.event.type.Data"
+  },
+
+  properties: {
+    /** Number of elements in the list, should never be set explicitly */
+    length: {
+      init: 0,
+      nullable: false,
+      check: "Integer",
+      event: "changeLength"
+    }
+  },
+
+  members: {
+    // Number of elements in each page
+    __pageSize: 0,
+
+    // Loaded elements, indexed by position; undefined if not loaded
+    __items: null,
+
+    // Promises for pages being loaded, indexed by page number
+    __pagePromises: null,
+
+    /**
+     * Returns the number of elements in each page
+     *
+     * @return {Integer}
+     */
+    getPageSize() {
+      return this.__pageSize;
+    },
+
+    /**
+     * Returns an element if it has been loaded, otherwise starts loading it and
+     * returns null
+     *
+     * @param index {Integer}
+     * @return {Object?}
+     */
+    getItem(index) {
+      var item = this.__items[index];
+      if (item === undefined) {
+        if (index >= 0 && index < this.getLength()) {
+          this.__loadPage(Math.floor(index / this.__pageSize));
+        }
+        return null;
+      }
+      return item;
+    },
+
+    /**
+     * Returns an element, loading it if necessary
+     *
+     * @param index {Integer}
+     * @return {qx.Promise} resolves to the element
+     */
+    getItemAsync(index) {
+      var item = this.__items[index];
+      if (item !== undefined || index < 0 || index >= this.getLength()) {
+        return qx.Promise.resolve(item === undefined ? null : item);
+      }
+      return this.__loadPage(Math.floor(index / this.__pageSize)).then(function () {
+        var item = this.__items[index];
+        return item === undefined ? null : item;
+      }, this);
+    },
+
+    /**
+     * Tests whether an element has been loaded
+     *
+     * @param index {Integer}
+     * @return {Boolean}
+     */
+    isLoaded(index) {
+      return this.__items[index] !== undefined;
+    },
+
+    /**
+     * Loads a page from the server
+     *
+     * @param page {Integer}
+     * @return {qx.Promise}
+     */
+    __loadPage(page) {
+      var promise = this.__pagePromises[page];
+      if (promise) {
+        return promise;
+      }
+      promise = this.__pagePromises[page] = this.getPageAsync(page).then(function (result) {
+        // Discarded while loading, eg because elements were inserted
+        if (this.__pagePromises[page] !== promise) {
+          return;
+        }
+        delete this.__pagePromises[page];
+        result = qx.lang.Type.isArray(result) ? result : result.toArray();
+        var start = page * this.__pageSize;
+        result.forEach(function (item, index) {
+          this.__items[start + index] = item;
+        }, this);
+        this.fireDataEvent("change", { start: start, end: start + result.length });
+      }, this);
+      return promise;
+    },
+
+    /**
+     * Applies a change from the server; called by ProxyManager
+     *
+     * @param length {Integer} the new length
+     * @param invalidateFrom {Integer?} index of the first element to discard
+     * @param set {Map[]?} elements to store, each with index and value
+     */
+    _applyPagedChange(length, invalidateFrom, set) {
+      var start = length;
+      var end = Math.max(length, this.__items.length);
+      if (invalidateFrom !== null && invalidateFrom !== undefined) {
+        this.__items.length = Math.min(this.__items.length, invalidateFrom);
+        var firstPage = Math.floor(invalidateFrom / this.__pageSize);
+        for (var page in this.__pagePromises) {
+          if (parseInt(page, 10) >= firstPage) {
+            delete this.__pagePromises[page];
+          }
+        }
+        start = invalidateFrom;
+      }
+      if (this.__items.length > length) {
+        this.__items.length = length;
+      }
+      if (set) {
+        set.forEach(function (entry) {
+          this.__items[entry.index] = entry.value;
+          start = Math.min(start, entry.index);
+          end = Math.max(end, entry.index + 1);
+        }, this);
+      }
+      this.setLength(length);
+      if (start < end) {
+        this.fireDataEvent("change", { start: start, end: end });
+      }
+    }
+  }
+});
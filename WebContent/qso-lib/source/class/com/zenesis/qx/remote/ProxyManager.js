@@ -843,6 +843,15 @@ qx.Class.define("com.zenesis.qx.remote.ProxyManager", {
             t.__setPropertyName = null;
             try {
               elem.data.forEach(function (data) {
+                if (data.paged) {
+                  var set = data.set
+                    ? data.set.map(function (entry) {
+                        return { index: entry.index, value: t.readProxyObject(entry.value, stats) };
+                      })
+                    : null;
+                  serverObject._applyPagedChange(data.size, data.invalidateFrom, set);
+                  return;
+                }
                 if (data.removed) {
                   data.removed.forEach(function (item) {
                     var obj = t.readProxyObject(item, stats);
@@ -855,6 +864,19 @@ qx.Class.define("com.zenesis.qx.remote.ProxyManager", {
                     serverObject.push(obj);
                   });
                 }
+                if (data.moved) {
+                  // Moves are in order of index, and are applied after taking all of
+                  //  the moved items out
+                  var moved = data.moved.map(function (entry) {
+                    return { index: entry.index, value: t.readProxyObject(entry.value, stats) };
+                  });
+                  moved.forEach(function (entry) {
+                    serverObject.remove(entry.value);
+                  });
+                  moved.forEach(function (entry) {
+                    serverObject.insertAt(entry.index, entry.value);
+                  });
+                }
                 if (data.put) {
                   data.put.forEach(function (entry) {
                     var key = t.readProxyObject(entry.key, stats);
@@ -0,0 +1,382 @@
+/**
+ * ************************************************************************
+ * 
+ *    server-objects - a contrib to the Qooxdoo project that makes server 
+ *    and client objects operate seamlessly; like Qooxdoo, server objects 
+ *    have properties, events, and methods all of which can be access from
+ *    either server or client, regardless of where the original object was
+ *    created.
+ * 
+ *    http://qooxdoo.org
+ * 
+ *    Copyright:
+ *      2010 Zenesis Limited, http://www.zenesis.com
+ * 
+ *    License:
+ *      LGPL: http://www.gnu.org/licenses/lgpl.html
+ *      EPL: http://www.eclipse.org/org/documents/epl-v10.php
+ *      
+ *      This software is provided under the same licensing terms as Qooxdoo,
+ *      please see the LICENSE file in the Qooxdoo project's top-level directory 
+ *      for details.
+ * 
+ *    Authors:
+ *      * John Spackman (john.spackman@zenesis.com)
+ * 
+ * ************************************************************************
+ */
+package com.zenesis.qx.event;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.Logger;
+
+import com.zenesis.qx.event.EventManager.BoundListeners;
+
+/**
+ * Delivers events to listeners asynchronously, using an Executor (eg
+ * Executors.newVirtualThreadPerTaskExecutor()); install it with
+ * EventManager.setDispatcher.
+ * 
+ * Each target object has its own queue of pending events, and at most one task
+ * at a time delivers events from that queue, so listeners always see the events
+ * for an object in the order that they were fired; events for different objects
+ * are delivered independently.
+ * 
+ * When the queue for an object is full, the BackPressure policy decides what
+ * happens to the new event.
+ * 
+ * ImmediateEventListeners are not queued, they are called on the thread which
+ * fires the event.
+ * 
+ * @author John Spackman [john.spackman@zenesis.com]
+ */
+public class EventDispatcher {
+
+  private static final Logger log = org.apache.logging.log4j.LogManager.getLogger(EventDispatcher.class);
+
+  /**
+   * What to do when an event is fired and the queue for the target is full
+   */
+  public enum BackPressure {
+    /** Wait until there is room in the queue */
+    BLOCK,
+    /** Discard the oldest pending event for the target */
+    DROP_OLDEST,
+    /**
+     * Replace any pending event for the target with the same name (so that only
+     * the latest value is delivered), even if the queue is not full; if the queue
+     * is still full, discard the oldest pending event
+     */
+    COALESCE
+  }
+
+  /*
+   * An event waiting to be delivered
+   */
+  private static final class PendingEvent {
+    public final Event event;
+    public final long queuedAt;
+
+    public PendingEvent(Event event, long queuedAt) {
+      this.event = event;
+      this.queuedAt = queuedAt;
+    }
+  }
+
+  /*
+   * The queue of events for one target; guarded by the BoundListeners
+   */
+  /* package */ static final class TargetQueue {
+    private final ArrayDeque<PendingEvent> events = new ArrayDeque<PendingEvent>();
+    private boolean scheduled;
+    private Thread deliveringThread;
+  }
+
+  // Runs the delivery tasks
+  private final Executor executor;
+
+  // What to do when a queue is full
+  private volatile BackPressure backPressure = BackPressure.BLOCK;
+
+  // Maximum number of pending events per target
+  private volatile int maxQueuedPerTarget = 1000;
+
+  // Statistics
+  private final AtomicInteger queueDepth = new AtomicInteger();
+  private final AtomicInteger maxQueueDepth = new AtomicInteger();
+  private final AtomicLong numDelivered = new AtomicLong();
+  private final AtomicLong numDropped = new AtomicLong();
+  private final AtomicLong totalLatencyNanos = new AtomicLong();
+  private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+  /**
+   * Constructor
+   * 
+   * @param executor the executor used to deliver events
+   */
+  public EventDispatcher(Executor executor) {
+    super();
+    if (executor == null)
+      throw new IllegalArgumentException("An executor is required");
+    this.executor = executor;
+  }
+
+  /**
+   * Constructor
+   * 
+   * @param executor           the executor used to deliver events
+   * @param backPressure       what to do when the queue for a target is full
+   * @param maxQueuedPerTarget maximum number of pending events per target
+   */
+  public EventDispatcher(Executor executor, BackPressure backPressure, int maxQueuedPerTarget) {
+    this(executor);
+    setBackPressure(backPressure);
+    setMaxQueuedPerTarget(maxQueuedPerTarget);
+  }
+
+  /**
+   * Queues an event for delivery to the listeners
+   * 
+   * @param listeners
+   * @param event
+   */
+  /* package */ void dispatch(final BoundListeners listeners, Event event) {
+    boolean schedule = false;
+    synchronized (listeners) {
+      TargetQueue queue = listeners.getTargetQueue();
+      if (backPressure == BackPressure.COALESCE)
+        coalesce(queue, event.getEventName());
+      while (queue.events.size() >= maxQueuedPerTarget) {
+        if (backPressure != BackPressure.BLOCK || queue.deliveringThread == Thread.currentThread()) {
+          // Never block a listener which is firing events on its own target,
+          // because only that thread can make room in the queue
+          if (backPressure == BackPressure.BLOCK)
+            break;
+          queue.events.poll();
+          queueDepth.decrementAndGet();
+          numDropped.incrementAndGet();
+        } else {
+          try {
+            listeners.wait();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            numDropped.incrementAndGet();
+            return;
+          }
+        }
+      }
+      queue.events.add(new PendingEvent(event, System.nanoTime()));
+      updateMax(maxQueueDepth, queueDepth.incrementAndGet());
+      if (!queue.scheduled)
+        schedule = queue.scheduled = true;
+    }
+
+    if (schedule) {
+      try {
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            deliver(listeners);
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        log.warn("Event executor rejected delivery, delivering on the caller's thread: " + e.getMessage());
+        deliver(listeners);
+      }
+    }
+  }
+
+  /*
+   * Delivers pending events for a target until its queue is empty
+   */
+  private void deliver(BoundListeners listeners) {
+    TargetQueue queue;
+    synchronized (listeners) {
+      queue = listeners.getTargetQueue();
+      queue.deliveringThread = Thread.currentThread();
+    }
+    try {
+      while (true) {
+        PendingEvent pending;
+        synchronized (listeners) {
+          pending = queue.events.poll();
+          if (pending == null) {
+            queue.scheduled = false;
+            return;
+          }
+          queueDepth.decrementAndGet();
+          listeners.notifyAll();
+        }
+        long latency = System.nanoTime() - pending.queuedAt;
+        totalLatencyNanos.addAndGet(latency);
+        updateMax(maxLatencyNanos, latency);
+        try {
+          listeners.fireDeferredNow(pending.event);
+        } catch (RuntimeException e) {
+          log.error("Error while delivering event " + pending.event.getEventName() + " to "
+              + pending.event.getCurrentTarget() + ": " + e.getMessage(), e);
+        }
+        numDelivered.incrementAndGet();
+      }
+    } finally {
+      synchronized (listeners) {
+        queue.deliveringThread = null;
+      }
+    }
+  }
+
+  /*
+   * Removes pending events with the same name
+   */
+  private void coalesce(TargetQueue queue, String eventName) {
+    for (Iterator<PendingEvent> iter = queue.events.iterator(); iter.hasNext();) {
+      if (iter.next().event.getEventName().equals(eventName)) {
+        iter.remove();
+        queueDepth.decrementAndGet();
+        numDropped.incrementAndGet();
+      }
+    }
+  }
+
+  /*
+   * Raises a maximum
+   */
+  private static void updateMax(AtomicInteger max, int value) {
+    int current;
+    while ((current = max.get()) < value && !max.compareAndSet(current, value))
+      ;
+  }
+
+  /*
+   * Raises a maximum
+   */
+  private static void updateMax(AtomicLong max, long value) {
+    long current;
+    while ((current = max.get()) < value && !max.compareAndSet(current, value))
+      ;
+  }
+
+  /**
+   * Returns the number of events waiting to be delivered, for all targets
+   * 
+   * @return
+   */
+  public int getQueueDepth() {
+    return queueDepth.get();
+  }
+
+  /**
+   * Returns the highest number of events which have been waiting to be delivered
+   * at one time
+   * 
+   * @return
+   */
+  public int getMaxQueueDepth() {
+    return maxQueueDepth.get();
+  }
+
+  /**
+   * Returns the number of events delivered
+   * 
+   * @return
+   */
+  public long getNumDelivered() {
+    return numDelivered.get();
+  }
+
+  /**
+   * Returns the number of events discarded because of back pressure
+   * 
+   * @return
+   */
+  public long getNumDropped() {
+    return numDropped.get();
+  }
+
+  /**
+   * Returns the average time between an event being fired and being delivered,
+   * in nanoseconds
+   * 
+   * @return
+   */
+  public long getAverageLatencyNanos() {
+    long delivered = numDelivered.get();
+    return delivered == 0 ? 0 : totalLatencyNanos.get() / delivered;
+  }
+
+  /**
+   * Returns the longest time between an event being fired and being delivered,
+   * in nanoseconds
+   * 
+   * @return
+   */
+  public long getMaxLatencyNanos() {
+    return maxLatencyNanos.get();
+  }
+
+  /**
+   * Resets the statistics (except for the current queue depth)
+   */
+  public void resetStatistics() {
+    maxQueueDepth.set(queueDepth.get());
+    numDelivered.set(0);
+    numDropped.set(0);
+    totalLatencyNanos.set(0);
+    maxLatencyNanos.set(0);
+  }
+
+  /**
+   * Returns the executor
+   * 
+   * @return
+   */
+  public Executor getExecutor() {
+    return executor;
+  }
+
+  /**
+   * Returns what happens when the queue for a target is full
+   * 
+   * @return
+   */
+  public BackPressure getBackPressure() {
+    return backPressure;
+  }
+
+  /**
+   * Sets what happens when the queue for a target is full
+   * 
+   * @param backPressure
+   */
+  public void setBackPressure(BackPressure backPressure) {
+    if (backPressure == null)
+      throw new IllegalArgumentException("A back pressure policy is required");
+    this.backPressure = backPressure;
+  }
+
+  /**
+   * Returns the maximum number of pending events per target
+   * 
+   * @return
+   */
+  public int getMaxQueuedPerTarget() {
+    return maxQueuedPerTarget;
+  }
+
+  /**
+   * Sets the maximum number of pending events per target
+   * 
+   * @param maxQueuedPerTarget
+   */
+  public void setMaxQueuedPerTarget(int maxQueuedPerTarget) {
+    if (maxQueuedPerTarget < 1)
+      throw new IllegalArgumentException("Invalid maximum queue size " + maxQueuedPerTarget);
+    this.maxQueuedPerTarget = maxQueuedPerTarget;
+  }
+}
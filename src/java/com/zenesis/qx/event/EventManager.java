@@ -28,36 +28,36 @@
 package com.zenesis.qx.event;
 
 import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.logging.log4j.Logger;
 
 /**
  * Manages events and listeners on arbitrary objects.
  * 
- * The listeners are stored as Bindings in a LinkedList where the target is the
- * object to listen to and is a WeakReference. The listener is either: a) an
- * instance of NamedEventListener, b) a small array of NamedEventListeners, or
- * c) a HashMap where the key is the name of the event and the value is the
- * listener.
+ * The listeners are stored as Bindings in a map where the key is a
+ * WeakReference to the object to listen to. Each Binding has an array of
+ * NamedEventListeners, one per event name, and each NamedEventListener has an
+ * array of WeakReferences to EventListeners.
  * 
- * The NamedEventListener's listener object is either a small array of
- * EventListener's or a LinkedHashSet of EventListeners.
+ * The arrays are never modified once they have been published - adding or
+ * removing a listener replaces them with a new copy - so firing an event just
+ * iterates over a snapshot without locking or checking what kind of structure
+ * it has. Arrays are used instead of HashMap and LinkedHashSet to keep the
+ * overhead down, because the common case is that an object will have only a few
+ * events listened to, and each event will only be listened to by a single piece
+ * of code.
  * 
- * The reason for using Objects and reflection instead of always using HashMap
- * and LinkedHashSet is to keep the overhead down and support the common use
- * case where an object will have only a few events listened to, and each event
- * will only be listened to by a single piece of code (this is a guess).
- * 
- * Note that Maps cannot be used to track the bindings to a particular object
- * because that means using the target object as a key - and Maps require that
- * the hashCode for keys never changes, but List.hashCode always changes when
- * you change the contents of the list. Instead, LinkedList is used and every
- * time the object is found it is moved half way up the list so it's found
- * faster next time.
+ * Note that the target object cannot be used as the key itself, because Maps
+ * require that the hashCode for keys never changes, but List.hashCode always
+ * changes when you change the contents of the list. Instead, keys use the
+ * identity hash code and compare targets by identity. Bindings are removed when
+ * their target is garbage collected (via a ReferenceQueue) or when their last
+ * listener is removed; looking up a binding to fire an event does not lock.
  * 
  * @author John Spackman [john.spackman@zenesis.com]
  */
@@ -65,266 +65,139 @@ public class EventManager {
 
   private static final Logger log = org.apache.logging.log4j.LogManager.getLogger(EventManager.class);
 
-  /**
-   * The size of arrays (as opposed to HashMaps) for lists of listeners on the
-   * same object
-   */
-  private static final int TINY_ARRAY_SIZE = 5;
-
-  /** How often to compact the bindings (in milliseconds) */
-  private static final long COMPACT_FREQUENCY_MS = 5 * 60 * 1000;
+  // Empty list of listeners
+  private static final WeakReference<EventListener>[] NO_REFS = new WeakReference[0];
 
   /*
-   * Links an event name with a listener; the listener is actually either a) null,
-   * b) an EventListener, c) an array of EventListeners, or d) a ArrayList of
-   * EventListeners.
+   * Links an event name with its listeners; instances are immutable, a new
+   * NamedEventListener is created whenever the listeners change. The listeners
+   * are held weakly, and collected listeners are dropped the next time the list
+   * is changed.
    */
   private static final class NamedEventListener {
     public final String eventName;
-    public Object listenerRef;
+    public final WeakReference<EventListener>[] listeners;
 
-    public NamedEventListener(String eventName, EventListener listener) {
+    public NamedEventListener(String eventName, WeakReference<EventListener>[] listeners) {
       super();
       this.eventName = eventName;
-      this.listenerRef = new WeakReference(listener);
+      this.listeners = listeners;
     }
 
     /**
-     * Adds a listener
+     * Returns a copy with a listener added
      * 
      * @param newListener
      * @throws IllegalArgumentException if the listener is added twice
      */
-    public void addListener(EventListener newListener) throws IllegalArgumentException {
-      final Object listener = listenerRef != null && listenerRef instanceof Reference ? ((Reference) listenerRef).get()
-          : listenerRef;
-
-      // Nothing so far? Easy.
-      if (listener == null) {
-        listenerRef = new WeakReference(newListener);
-        return;
-      }
-
-      final Class clazz = listener.getClass();
-
-      // It's an array - try and use an empty slot
-      if (clazz.isArray()) {
-        WeakReference<EventListener>[] list = (WeakReference<EventListener>[]) listener;
-        for (int i = 0; i < TINY_ARRAY_SIZE; i++)
-          if (list[i] != null && list[i].get() == newListener)
-            throw new IllegalArgumentException("Cannot add the same listener to the same object and eventName twice");
-
-        for (int i = 0; i < TINY_ARRAY_SIZE; i++) {
-          // Free slot? Use it
-          if (list[i] == null || list[i].get() == null) {
-            list[i] = new WeakReference(newListener);
-            return;
-          }
-        }
-
-        // No room so upgrade to a ArrayList
-        ArrayList<WeakReference<EventListener>> set = new ArrayList<WeakReference<EventListener>>();
-        for (int i = 0; i < TINY_ARRAY_SIZE; i++) {
-          if (list[i] != null && list[i].get() != null)
-            set.add(list[i]);
-        }
-        set.add(new WeakReference(newListener));
-        this.listenerRef = set;
-
-        // Already a ArrayList - add to it
-      } else if (clazz == ArrayList.class) {
-        ArrayList<WeakReference<EventListener>> set = (ArrayList<WeakReference<EventListener>>) listener;
-        int pos = -1;
-        for (int i = 0; i < set.size(); i++) {
-          WeakReference<EventListener> tmpRef = set.get(i);
-          EventListener tmp = tmpRef != null ? tmpRef.get() : null;
-          if (tmp == null && pos == -1)
-            pos = i;
-          else if (tmp == newListener)
-            throw new IllegalArgumentException("Cannot add the same listener to the same object and eventName twice");
-        }
-        if (pos != -1)
-          set.set(pos, new WeakReference(newListener));
-        else
-          set.add(new WeakReference(newListener));
-
-        // Must be an EventListener instance, convert to an array
-      } else {
-        assert (EventListener.class.isAssignableFrom(clazz));
-        if (listener == newListener)
+    public NamedEventListener withListener(EventListener newListener) throws IllegalArgumentException {
+      int numLive = 0;
+      for (WeakReference<EventListener> ref : listeners) {
+        EventListener tmp = ref.get();
+        if (tmp == newListener)
           throw new IllegalArgumentException("Cannot add the same listener to the same object and eventName twice");
-        WeakReference<EventListener>[] list = new WeakReference[TINY_ARRAY_SIZE];
-        list[0] = (WeakReference<EventListener>) listenerRef;
-        list[1] = new WeakReference(newListener);
-        this.listenerRef = list;
+        if (tmp != null)
+          numLive++;
       }
+      WeakReference<EventListener>[] result = new WeakReference[numLive + 1];
+      int index = 0;
+      for (WeakReference<EventListener> ref : listeners)
+        if (ref.get() != null)
+          result[index++] = ref;
+      result[index] = new WeakReference<EventListener>(newListener);
+      return new NamedEventListener(eventName, result);
     }
 
     /**
-     * Removes a listener
+     * Returns a copy with a listener removed
      * 
      * @param oldListener
-     * @return true if the listener existed and was removed
+     * @return the copy, or this if the listener was not found
      */
-    public boolean removeListener(EventListener oldListener) {
-      final Object listener = listenerRef != null && listenerRef instanceof Reference ? ((Reference) listenerRef).get()
-          : listenerRef;
-      if (listener == null)
-        return false;
-
-      final Class clazz = listener.getClass();
-
-      // It's an array - find it and remove it
-      if (clazz.isArray()) {
-        WeakReference<EventListener>[] list = (WeakReference<EventListener>[]) listener;
-        for (int i = 0; i < TINY_ARRAY_SIZE; i++) {
-          if (list[i] != null && list[i].get() == oldListener) {
-            list[i] = null;
-            return true;
-          }
-        }
-        return false;
+    public NamedEventListener withoutListener(EventListener oldListener) {
+      if (!hasListener(oldListener))
+        return this;
+      ArrayList<WeakReference<EventListener>> result = new ArrayList<WeakReference<EventListener>>(listeners.length);
+      for (WeakReference<EventListener> ref : listeners) {
+        EventListener tmp = ref.get();
+        if (tmp != null && tmp != oldListener)
+          result.add(ref);
       }
-
-      // Already a ArrayList
-      if (clazz == ArrayList.class) {
-        ArrayList<WeakReference<EventListener>> set = (ArrayList<WeakReference<EventListener>>) listener;
-        for (int i = 0; i < set.size(); i++) {
-          WeakReference<EventListener> tmp = set.get(i);
-          if (tmp != null && tmp.get() == oldListener) {
-            set.set(i, null);
-            return true;
-          }
-        }
-        return false;
-      }
-
-      // Must be an EventListener instance
-      assert (EventListener.class.isAssignableFrom(clazz));
-      if (listener != oldListener)
-        return false;
-
-      listenerRef = null;
-      return true;
+      return new NamedEventListener(eventName, result.toArray(new WeakReference[result.size()]));
     }
 
     /**
-     * Removes a listener
+     * Detects whether a listener is present
      * 
-     * @param oldListener
-     * @return true if the listener existed and was removed
+     * @param listener
+     * @return
      */
-    public boolean hasListener(EventListener oldListener) {
-      final Object listener = listenerRef != null && listenerRef instanceof Reference ? ((Reference) listenerRef).get()
-          : listenerRef;
-      if (listener == null)
-        return false;
-
-      final Class clazz = listener.getClass();
-
-      // It's an array - find it and remove it
-      if (clazz.isArray()) {
-        WeakReference<EventListener>[] list = (WeakReference<EventListener>[]) listener;
-        for (int i = 0; i < TINY_ARRAY_SIZE; i++)
-          if (list[i] != null && list[i].get() == oldListener)
-            return true;
-        return false;
-      }
-
-      // Already a ArrayList
-      if (clazz == ArrayList.class) {
-        ArrayList<WeakReference<EventListener>> set = (ArrayList<WeakReference<EventListener>>) listener;
-        for (WeakReference<EventListener> tmp : set)
-          if (tmp != null && tmp.get() == oldListener)
-            return true;
-        return false;
-      }
-
-      // Must be an EventListener instance
-      assert (clazz == EventListener.class);
-      if (listener != oldListener)
-        return false;
-      return true;
+    public boolean hasListener(EventListener listener) {
+      for (WeakReference<EventListener> ref : listeners)
+        if (ref.get() == listener)
+          return true;
+      return false;
     }
 
     /**
      * Fires an event on the listener(s)
      */
     public void fireEvent(Event event) {
-      final Object listener = listenerRef != null && listenerRef instanceof Reference ? ((Reference) listenerRef).get()
-          : listenerRef;
-
-      if (listener == null)
-        return;
-
-      final Class clazz = listener.getClass();
-
-      // It's an array - find it and remove it
-      if (clazz.isArray()) {
-        WeakReference<EventListener>[] list = (WeakReference<EventListener>[]) listener;
-        for (int i = 0; i < TINY_ARRAY_SIZE; i++)
-          if (list[i] != null) {
-            EventListener entry = list[i].get();
-            if (entry != null)
-              entry.handleEvent(event);
-          }
-        return;
+      for (WeakReference<EventListener> ref : listeners) {
+        EventListener entry = ref.get();
+        if (entry != null)
+          entry.handleEvent(event);
       }
-
-      // Already a ArrayList
-      if (clazz == ArrayList.class) {
-        ArrayList<WeakReference<EventListener>> set = (ArrayList<WeakReference<EventListener>>) listener;
-        for (WeakReference<EventListener> ref : set) {
-          if (ref != null) {
-            EventListener entry = ref.get();
-            if (entry != null)
-              entry.handleEvent(event);
-          }
-        }
-        return;
-      }
-
-      // Must be an EventListener instance, convert to an array
-      assert (EventListener.class.isAssignableFrom(clazz));
-      EventListener entry = (EventListener) listener;
-      entry.handleEvent(event);
     }
 
-    public boolean isEmpty() {
-      final Object listener = listenerRef != null && listenerRef instanceof Reference ? ((Reference) listenerRef).get()
-          : listenerRef;
-
-      if (listener == null)
-        return true;
-
-      final Class clazz = listener.getClass();
-
-      // It's an array
-      if (clazz.isArray()) {
-        WeakReference<EventListener>[] list = (WeakReference<EventListener>[]) listener;
-        for (int i = 0; i < TINY_ARRAY_SIZE; i++)
-          if (list[i] != null && list[i].get() != null)
-            return false;
-        return true;
+    /**
+     * Fires an event on the ImmediateEventListeners only
+     * 
+     * @return true if there are other listeners, which still need the event
+     */
+    public boolean fireImmediate(Event event) {
+      boolean deferred = false;
+      for (WeakReference<EventListener> ref : listeners) {
+        EventListener entry = ref.get();
+        if (entry instanceof ImmediateEventListener)
+          entry.handleEvent(event);
+        else if (entry != null)
+          deferred = true;
       }
+      return deferred;
+    }
 
-      // Already a ArrayList
-      if (clazz == ArrayList.class) {
-        ArrayList<WeakReference<EventListener>> set = (ArrayList<WeakReference<EventListener>>) listener;
-        for (WeakReference<EventListener> ref : set)
-          if (ref != null && ref.get() != null)
-            return false;
-        return true;
+    /**
+     * Fires an event on the listeners which are not ImmediateEventListeners
+     */
+    public void fireDeferred(Event event) {
+      for (WeakReference<EventListener> ref : listeners) {
+        EventListener entry = ref.get();
+        if (entry != null && !(entry instanceof ImmediateEventListener))
+          entry.handleEvent(event);
       }
+    }
 
-      // Must be an EventListener instance
-      assert (EventListener.class.isAssignableFrom(clazz));
-      return listener == null;
+    public boolean isEmpty() {
+      for (WeakReference<EventListener> ref : listeners)
+        if (ref.get() != null)
+          return false;
+      return true;
     }
   }
 
+  /**
+   * The listeners for an object; changes replace the array of NamedEventListeners
+   * (and the affected NamedEventListener) with a new copy, so that events can be
+   * fired without locking while listeners are being added or removed.
+   */
   public static class BoundListeners {
-    public Object listener;
+    private static final NamedEventListener[] NO_LISTENERS = new NamedEventListener[0];
+
+    private volatile NamedEventListener[] events = NO_LISTENERS;
+
+    // Events waiting for asynchronous delivery, created when first needed
+    private EventDispatcher.TargetQueue targetQueue;
 
     /**
      * Adds an event listener
@@ -335,144 +208,47 @@ public class EventManager {
      * @return true if the event was added
      */
     public synchronized boolean addListener(String eventName, EventListener newListener) {
-      // If the object is not yet known, then create a new NEL and return
-      if (listener == null) {
-        NamedEventListener nel = new NamedEventListener(eventName, newListener);
-        listener = nel;
-        return true;
-      }
-
-      final Class clazz = listener.getClass();
-
-      // A NamedEventListener? Then we've found it
-      if (clazz == NamedEventListener.class) {
-        NamedEventListener nel = (NamedEventListener) listener;
-        if (nel.eventName.equals(eventName))
-          nel.addListener(newListener);
-        else {
-          NamedEventListener[] nels = new NamedEventListener[TINY_ARRAY_SIZE];
-          nels[0] = nel;
-          nels[1] = new NamedEventListener(eventName, newListener);
-          listener = nels;
-        }
-        return true;
-      }
-
-      // If there is an array, it's an array of NamedEventListeners
-      if (clazz.isArray()) {
-        NamedEventListener[] nels = (NamedEventListener[]) listener;
-
-        // Look for a NamedEventListener for the eventName, or a free slot in the array
-        int index = 0;
-        int freeIndex = -1;
-        while (index < TINY_ARRAY_SIZE) {
-          if (nels[index] == null) {
-            if (freeIndex < 0)
-              freeIndex = index;
-          } else if (nels[index].eventName.equals(eventName))
-            break;
-          index++;
-        }
-
-        // Found a NamedEventListener?
-        if (index < TINY_ARRAY_SIZE) {
-          nels[index].addListener(newListener);
-
-          // Found a free slot?
-        } else if (freeIndex > -1) {
-          NamedEventListener nel = nels[freeIndex] = new NamedEventListener(eventName, null);
-          nel.addListener(newListener);
-
-          // The array is full - convert to a HashMap
-        } else {
-          // Convert to a map
-          HashMap<String, NamedEventListener> map = new HashMap<String, NamedEventListener>();
-          for (int i = 0; i < TINY_ARRAY_SIZE; i++)
-            map.put(nels[i].eventName, nels[i]);
-
-          // Add the new NamedEventListener
-          map.put(eventName, new NamedEventListener(eventName, newListener));
-
-          // Replace the array with the map
-          listener = map;
-        }
-
-        return true;
+      NamedEventListener[] events = this.events;
+      int index = indexOf(events, eventName);
+      if (index > -1) {
+        NamedEventListener[] result = events.clone();
+        result[index] = events[index].withListener(newListener);
+        this.events = result;
+      } else {
+        NamedEventListener[] result = new NamedEventListener[events.length + 1];
+        System.arraycopy(events, 0, result, 0, events.length);
+        result[events.length] = new NamedEventListener(eventName, NO_REFS).withListener(newListener);
+        this.events = result;
       }
-
-      // By elimination, it must be a HashMap
-      assert (listener.getClass() == HashMap.class);
-      HashMap<String, NamedEventListener> map = (HashMap<String, NamedEventListener>) listener;
-      NamedEventListener nel = map.get(eventName);
-      if (nel == null)
-        map.put(eventName, new NamedEventListener(eventName, newListener));
-      else
-        nel.addListener(newListener);
-
       return true;
     }
 
     /**
      * Removes a listener
      * 
-     * @param eventName   name of the event to remove
+     * @param eventName   name of the event to remove, if null the listener is
+     *                    removed from all events
      * @param oldListener if null, all listeners are removed
      * @return true if a listener was removed
      */
     public synchronized boolean removeListener(String eventName, EventListener oldListener) {
-      if (listener == null)
-        return false;
-
-      final Class clazz = listener.getClass();
-
-      // A NamedEventListener? Then check the eventName
-      if (clazz == NamedEventListener.class) {
-        NamedEventListener nel = (NamedEventListener) listener;
-        if (eventName != null && !nel.eventName.equals(eventName))
-          return false;
-        if (oldListener == null) {
-          listener = null;
-          return true;
+      NamedEventListener[] events = this.events;
+      ArrayList<NamedEventListener> result = new ArrayList<NamedEventListener>(events.length);
+      boolean removed = false;
+      for (NamedEventListener nel : events) {
+        if (eventName != null && !eventName.equals(nel.eventName)) {
+          result.add(nel);
+          continue;
         }
-        return nel.removeListener(oldListener);
+        NamedEventListener tmp = oldListener == null ? null : nel.withoutListener(oldListener);
+        if (tmp != nel)
+          removed = true;
+        if (tmp != null && !tmp.isEmpty())
+          result.add(tmp);
       }
-
-      // If there is an array, it's an array of NamedEventListeners
-      if (clazz.isArray()) {
-        NamedEventListener[] nels = (NamedEventListener[]) listener;
-        boolean removed = false;
-
-        // Look for a NamedEventListener for the eventName
-        for (int i = 0; i < TINY_ARRAY_SIZE; i++)
-          if (nels[i] != null)
-            if (eventName == null || nels[i].eventName.equals(eventName)) {
-              if (oldListener == null) {
-                nels[i] = null;
-                removed = true;
-              } else if (nels[i].removeListener(oldListener))
-                removed = true;
-            }
-
-        return removed;
-      }
-
-      // By elimination, it must be a HashMap
-      assert (listener.getClass() == HashMap.class);
-      HashMap<String, NamedEventListener> map = (HashMap<String, NamedEventListener>) listener;
-      if (eventName == null) {
-        boolean removed = false;
-        for (NamedEventListener nel : map.values())
-          if (nel.removeListener(oldListener))
-            removed = true;
-        return removed;
-      }
-      if (oldListener == null)
-        return map.remove(eventName) != null;
-
-      NamedEventListener nel = map.get(eventName);
-      if (nel == null)
-        return false;
-      return nel.removeListener(oldListener);
+      if (removed)
+        this.events = result.isEmpty() ? NO_LISTENERS : result.toArray(new NamedEventListener[result.size()]);
+      return removed;
     }
 
     /**
@@ -483,46 +259,14 @@ public class EventManager {
      *                    instance is in use
      * @return true if found
      */
-    public synchronized boolean hasListener(String eventName, EventListener newListener) {
-      if (listener == null)
-        return false;
-
-      final Class clazz = listener.getClass();
-
-      // A NamedEventListener? Then check the eventName
-      if (clazz == NamedEventListener.class) {
-        NamedEventListener nel = (NamedEventListener) listener;
-        if (!nel.eventName.equals(eventName))
-          return false;
-        if (newListener == null)
-          return true;
-        return nel.hasListener(newListener);
-      }
-
-      // If there is an array, it's an array of NamedEventListeners
-      if (clazz.isArray()) {
-        NamedEventListener[] nels = (NamedEventListener[]) listener;
-
-        // Look for a NamedEventListener for the eventName
-        for (int i = 0; i < TINY_ARRAY_SIZE; i++)
-          if (nels[i].eventName.equals(eventName)) {
-            if (newListener == null)
-              return true;
-            return nels[i].hasListener(newListener);
-          }
-
-        return false;
-      }
-
-      // By elimination, it must be a HashMap
-      assert (listener.getClass() == HashMap.class);
-      HashMap<String, NamedEventListener> map = (HashMap<String, NamedEventListener>) listener;
-      NamedEventListener nel = map.get(eventName);
-      if (nel == null)
+    public boolean hasListener(String eventName, EventListener newListener) {
+      NamedEventListener[] events = this.events;
+      int index = indexOf(events, eventName);
+      if (index < 0)
         return false;
       if (newListener == null)
         return true;
-      return nel.hasListener(newListener);
+      return events[index].hasListener(newListener);
     }
 
     /**
@@ -530,94 +274,101 @@ public class EventManager {
      * 
      * @return true if there are listeners
      */
-    public synchronized boolean isEmpty() {
-      if (listener == null)
-        return true;
-
-      final Class clazz = listener.getClass();
-
-      // A NamedEventListener? Then check the eventName
-      if (clazz == NamedEventListener.class)
-        return ((NamedEventListener) listener).isEmpty();
-
-      // If there is an array, it's an array of NamedEventListeners
-      if (clazz.isArray()) {
-        NamedEventListener[] nels = (NamedEventListener[]) listener;
-
-        // Look for a NamedEventListener for the eventName
-        for (int i = 0; i < TINY_ARRAY_SIZE; i++)
-          if (nels[i] != null && !nels[i].isEmpty())
-            return false;
-
-        return true;
-      }
-
-      // By elimination, it must be a HashMap
-      assert (listener.getClass() == HashMap.class);
-      HashMap<String, NamedEventListener> map = (HashMap<String, NamedEventListener>) listener;
-      if (map.isEmpty())
-        return true;
-      for (NamedEventListener nel : map.values())
+    public boolean isEmpty() {
+      for (NamedEventListener nel : events)
         if (!nel.isEmpty())
           return false;
       return true;
     }
 
     /**
-     * Fires an event on all listeners
+     * Fires an event on all listeners, using the global EventManager's dispatcher
+     * (if there is one)
      * 
      * @param event
      */
     public void fireDataEvent(Event event) {
-      if (listener == null)
-        return;
-
-      final Class clazz = listener.getClass();
+      fireDataEvent(event, EventManager.getInstance().getDispatcher());
+    }
 
-      // A NamedEventListener? Then check the eventName
-      if (clazz == NamedEventListener.class) {
-        NamedEventListener nel = (NamedEventListener) listener;
-        if (!nel.eventName.equals(event.getEventName()))
-          return;
-        nel.fireEvent(event);
+    /**
+     * Fires an event on all listeners
+     * 
+     * @param event
+     * @param dispatcher if null, the listeners are called immediately; otherwise
+     *                   only ImmediateEventListeners are called immediately
+     */
+    public void fireDataEvent(Event event, EventDispatcher dispatcher) {
+      if (dispatcher == null) {
+        fireDataEventNow(event);
         return;
       }
+      NamedEventListener[] events = this.events;
+      int index = indexOf(events, event.getEventName());
+      if (index > -1 && events[index].fireImmediate(event))
+        dispatcher.dispatch(this, event);
+    }
 
-      // If there is an array, it's an array of NamedEventListeners
-      if (clazz.isArray()) {
-        NamedEventListener[] nels = (NamedEventListener[]) listener;
+    /**
+     * Calls the listeners for an event on this thread
+     * 
+     * @param event
+     */
+    public void fireDataEventNow(Event event) {
+      NamedEventListener[] events = this.events;
+      int index = indexOf(events, event.getEventName());
+      if (index > -1)
+        events[index].fireEvent(event);
+    }
 
-        // Look for a NamedEventListener for the eventName
-        for (int i = 0; i < TINY_ARRAY_SIZE; i++)
-          if (nels[i] != null && nels[i].eventName.equals(event.getEventName()))
-            nels[i].fireEvent(event);
+    /**
+     * Calls the listeners for an event which are not ImmediateEventListeners on
+     * this thread; used by EventDispatcher, the immediate listeners have already
+     * been called when the event was fired
+     * 
+     * @param event
+     */
+    /* package */ void fireDeferredNow(Event event) {
+      NamedEventListener[] events = this.events;
+      int index = indexOf(events, event.getEventName());
+      if (index > -1)
+        events[index].fireDeferred(event);
+    }
 
-        return;
+    /**
+     * Returns the queue of events waiting for asynchronous delivery; must be
+     * called while synchronized on this
+     * 
+     * @return
+     */
+    /* package */ EventDispatcher.TargetQueue getTargetQueue() {
+      if (targetQueue == null)
+        targetQueue = new EventDispatcher.TargetQueue();
+      return targetQueue;
+    }
 
+    /*
+     * Finds the NamedEventListener for an event name
+     */
+    private static int indexOf(NamedEventListener[] events, String eventName) {
+      for (int i = 0; i < events.length; i++) {
+        String tmp = events[i].eventName;
+        if (tmp == eventName || tmp.equals(eventName))
+          return i;
       }
-
-      // By elimination, it must be a HashMap
-      assert (listener.getClass() == HashMap.class);
-      HashMap<String, NamedEventListener> map = (HashMap<String, NamedEventListener>) listener;
-      NamedEventListener nel = map.get(event.getEventName());
-      if (nel == null)
-        return;
-      nel.fireEvent(event);
+      return -1;
     }
-
   }
 
   /*
-   * Records the binding between a target object and the listeners; listener is
-   * either a NamedEventListener, an array of NamedEventListeners, or a Map
-   * indexed by name
+   * Records the binding between a target object and the listeners
    */
   private static final class Binding extends BoundListeners {
-    public WeakReference targetRef;
+    public final TargetRef targetRef;
 
-    public Binding(Object target) {
+    public Binding(TargetRef targetRef) {
       super();
-      this.targetRef = new WeakReference(target);
+      this.targetRef = targetRef;
     }
 
     public Object getTarget() {
@@ -625,6 +376,63 @@ public class EventManager {
     }
   }
 
+  /*
+   * Key for the bindings map, which refers weakly to the target; once the target
+   * has been collected, the key is only equal to itself
+   */
+  private static final class TargetRef extends WeakReference<Object> {
+    private final int hashCode;
+
+    public TargetRef(Object target, ReferenceQueue<Object> queue) {
+      super(target, queue);
+      this.hashCode = System.identityHashCode(target);
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (obj == this)
+        return true;
+      Object target = get();
+      if (target == null)
+        return false;
+      if (obj instanceof TargetRef)
+        return ((TargetRef) obj).get() == target;
+      if (obj instanceof TargetKey)
+        return ((TargetKey) obj).target == target;
+      return false;
+    }
+  }
+
+  /*
+   * Key used to look up the binding for a target
+   */
+  private static final class TargetKey {
+    private final Object target;
+
+    public TargetKey(Object target) {
+      this.target = target;
+    }
+
+    @Override
+    public int hashCode() {
+      return System.identityHashCode(target);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (obj instanceof TargetRef)
+        return ((TargetRef) obj).get() == target;
+      if (obj instanceof TargetKey)
+        return ((TargetKey) obj).target == target;
+      return false;
+    }
+  }
+
   /*
    * Can be passed with changeXxxx events
    */
@@ -647,13 +455,14 @@ public class EventManager {
     }
   }
 
-  // Linked list of bindings - note this cannot be a map because maps require the
-  // target to be immutable (Collections change their hashCode as they are
-  // modified)
-  private LinkedList<Binding> bindings = new LinkedList<Binding>();
+  // Bindings, indexed by TargetRef (or TargetKey when looking up)
+  private final ConcurrentHashMap<Object, Binding> bindings = new ConcurrentHashMap<Object, Binding>();
 
-  // When the bindings were last compacted
-  private long lastCompacted;
+  // Keys whose targets have been garbage collected
+  private final ReferenceQueue<Object> collectedTargets = new ReferenceQueue<Object>();
+
+  // Delivers events asynchronously, null to call listeners on the firing thread
+  private volatile EventDispatcher dispatcher;
 
   private static EventManager s_instance;
 
@@ -710,13 +519,14 @@ public class EventManager {
     if (!supportsEvent(keyObject, eventName))
       return false;
 
+    expungeCollected();
     Binding binding = getBinding(keyObject);
 
     // If the object is not yet known, then create a new NEL and return
     if (binding == null) {
-      binding = new Binding(keyObject);
+      binding = new Binding(new TargetRef(keyObject, collectedTargets));
       binding.addListener(eventName, listener);
-      bindings.push(binding);
+      bindings.put(binding.targetRef, binding);
       return true;
     }
 
@@ -755,7 +565,7 @@ public class EventManager {
 
     boolean removed = binding.removeListener(eventName, listener);
     if (binding.isEmpty()) {
-      bindings.remove(binding);
+      bindings.remove(binding.targetRef);
     }
     return removed;
   }
@@ -860,30 +670,19 @@ public class EventManager {
     if (binding == null)
       return;
 
-    binding.fireDataEvent(event);
+    binding.fireDataEvent(event, dispatcher);
   }
 
   /**
-   * Finds the binding for an object, and moves it forward in the list if found
+   * Finds the binding for an object
    * 
    * @param target
    * @return
    */
-  private synchronized Binding getBinding(Object target) {
-    if (System.currentTimeMillis() - COMPACT_FREQUENCY_MS > lastCompacted)
-      compact();
-
-    for (int index = 0; index < bindings.size(); index++) {
-      Binding bind = bindings.get(index);
-      if (bind.getTarget() == target) {
-        if (index > 1) {
-          bindings.remove(index);
-          bindings.add(index / 2, bind);
-        }
-        return bind;
-      }
-    }
-    return null;
+  private Binding getBinding(Object target) {
+    if (target == null)
+      return null;
+    return bindings.get(new TargetKey(target));
   }
 
   /**
@@ -893,12 +692,18 @@ public class EventManager {
    * @return
    */
   private boolean removeBinding(Object target) {
-    for (Binding bind : bindings)
-      if (bind.getTarget() == target) {
-        bindings.remove(bind);
-        return true;
-      }
-    return false;
+    if (target == null)
+      return false;
+    return bindings.remove(new TargetKey(target)) != null;
+  }
+
+  /**
+   * Removes the bindings for targets which have been garbage collected
+   */
+  private void expungeCollected() {
+    Reference<?> ref;
+    while ((ref = collectedTargets.poll()) != null)
+      bindings.remove(ref);
   }
 
   /**
@@ -908,22 +713,42 @@ public class EventManager {
    * @return
    */
   public synchronized boolean compact() {
-    Binding[] values = bindings.toArray(new Binding[bindings.size()]);
-    for (int i = 0; i < values.length; i++) {
-      Binding binding = values[i];
+    expungeCollected();
+    for (Iterator<Binding> iter = bindings.values().iterator(); iter.hasNext();) {
+      Binding binding = iter.next();
 
       if (binding.getTarget() == null || binding.isEmpty()) {
-        bindings.remove(binding);
+        iter.remove();
       }
     }
-    lastCompacted = System.currentTimeMillis();
     return bindings.isEmpty();
   }
 
-  public synchronized int size() {
+  public int size() {
+    expungeCollected();
     return bindings.size();
   }
 
+  /**
+   * Returns the dispatcher used to deliver events asynchronously
+   * 
+   * @return null if events are delivered on the thread which fires them
+   */
+  public EventDispatcher getDispatcher() {
+    return dispatcher;
+  }
+
+  /**
+   * Sets the dispatcher used to deliver events asynchronously; by default there
+   * is no dispatcher and listeners are called on the thread which fires the
+   * event
+   * 
+   * @param dispatcher
+   */
+  public void setDispatcher(EventDispatcher dispatcher) {
+    this.dispatcher = dispatcher;
+  }
+
   /**
    * Returns the default global instance
    * 
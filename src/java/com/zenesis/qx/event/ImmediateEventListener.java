@@ -0,0 +1,41 @@
+/**
+ * ************************************************************************
+ * 
+ *    server-objects - a contrib to the Qooxdoo project that makes server 
+ *    and client objects operate seamlessly; like Qooxdoo, server objects 
+ *    have properties, events, and methods all of which can be access from
+ *    either server or client, regardless of where the original object was
+ *    created.
+ * 
+ *    http://qooxdoo.org
+ * 
+ *    Copyright:
+ *      2010 Zenesis Limited, http://www.zenesis.com
+ * 
+ *    License:
+ *      LGPL: http://www.gnu.org/licenses/lgpl.html
+ *      EPL: http://www.eclipse.org/org/documents/epl-v10.php
+ *      
+ *      This software is provided under the same licensing terms as Qooxdoo,
+ *      please see the LICENSE file in the Qooxdoo project's top-level directory 
+ *      for details.
+ * 
+ *    Authors:
+ *      * John Spackman (john.spackman@zenesis.com)
+ * 
+ * ************************************************************************
+ */
+package com.zenesis.qx.event;
+
+/**
+ * An EventListener which is always called on the thread which fires the event,
+ * even when EventManager has a dispatcher for asynchronous delivery; this is for
+ * listeners which depend on the state of the firing thread, eg ProxyManager
+ * which queues the event for the session selected on that thread. Listeners
+ * like this must be quick and must not block.
+ * 
+ * @author John Spackman [john.spackman@zenesis.com]
+ */
+public interface ImmediateEventListener extends EventListener {
+
+}
@@ -32,14 +32,23 @@ public abstract class AbstractProxyType implements ProxyType {
 
   /* package */ void serialize(JsonGenerator gen, SerializerProvider sp, Remote.Array array) throws IOException {
     try {
-      ProxySessionTracker tracker = ((ProxyObjectMapper) gen.getCodec()).getTracker();
+      // Capturing a definition for the cache, in which case this is a reference
+      // from another type
+      Object target = gen.getOutputTarget();
+      if (target instanceof ProxyTypeDefinition.Capture) {
+        ((ProxyTypeDefinition.Capture) target).addReference(gen, this, array);
+        return;
+      }
 
-      Class<?> clazz = getClazz();
-      Set<ProxyType> interfaces = getInterfaces();
-      ProxyMethod[] methods = getMethods();
-      Map<String, ProxyProperty> properties = getProperties();
-      Map<String, ProxyEvent> events = getEvents();
-      Set<String> propertyEventNames = createPropertyEventNames();
+      ProxySessionTracker tracker = ProxyObjectMapper.getTracker(gen, sp);
+
+      // Use the shared definition, unless the output is being indented
+      if (ProxyTypeManager.isCacheDefinitions() && gen.getPrettyPrinter() == null) {
+        StringBuilder sb = new StringBuilder();
+        appendDefinition(sb, tracker, array);
+        gen.writeRawValue(sb.toString());
+        return;
+      }
 
       String className = getClassName();
       if (array == Array.NATIVE)
@@ -55,46 +64,84 @@ public abstract class AbstractProxyType implements ProxyType {
       tracker.setTypeDelivered(this);
       gen.writeStartObject();
       gen.writeStringField("className", className);
-      if (clazz != null && clazz.isInterface())
-        gen.writeBooleanField("isInterface", true);
-      if (getSuperType() != null)
-        gen.writeObjectField("extend", getSuperType());
-      else if (getQooxdooExtend() != null)
-        gen.writeObjectField("extend", getQooxdooExtend());
-      if (!interfaces.isEmpty()) {
-        gen.writeArrayFieldStart("interfaces");
-        for (ProxyType type : interfaces)
-          gen.writeObject(type);
-        gen.writeEndArray();
-      }
-      if (methods.length > 0) {
-        gen.writeObjectFieldStart("methods");
-        for (ProxyMethod method : methods)
-          gen.writeObjectField(method.getName(), method);
+      writeDefinition(gen);
+      gen.writeEndObject();
+    } catch (IOException e) {
+      throw new ProxyTypeSerialisationException(e);
+    }
+  }
+
+  /**
+   * Appends the JSON for this type to sb, using the definition cached by
+   * ProxyTypeManager; if the type has already been delivered, only the class
+   * name is appended
+   * 
+   * @param sb
+   * @param tracker
+   * @param array
+   * @throws IOException
+   */
+  /* package */ void appendDefinition(StringBuilder sb, ProxySessionTracker tracker, Remote.Array array)
+      throws IOException {
+    ProxyTypeDefinition definition = ProxyTypeManager.INSTANCE.getDefinition(this);
+    if (tracker.isTypeDelivered(this)) {
+      definition.appendClassName(sb, array);
+      return;
+    }
+    tracker.setTypeDelivered(this);
+    definition.append(sb, tracker, array);
+  }
+
+  /**
+   * Writes the fields of the type definition, except for the class name
+   * 
+   * @param gen
+   * @throws IOException
+   */
+  /* package */ void writeDefinition(JsonGenerator gen) throws IOException {
+    Class<?> clazz = getClazz();
+    Set<ProxyType> interfaces = getInterfaces();
+    ProxyMethod[] methods = getMethods();
+    Map<String, ProxyProperty> properties = getProperties();
+    Map<String, ProxyEvent> events = getEvents();
+    Set<String> propertyEventNames = createPropertyEventNames();
+
+    if (clazz != null && clazz.isInterface())
+      gen.writeBooleanField("isInterface", true);
+    if (getSuperType() != null)
+      gen.writeObjectField("extend", getSuperType());
+    else if (getQooxdooExtend() != null)
+      gen.writeObjectField("extend", getQooxdooExtend());
+    if (!interfaces.isEmpty()) {
+      gen.writeArrayFieldStart("interfaces");
+      for (ProxyType type : interfaces)
+        gen.writeObject(type);
+      gen.writeEndArray();
+    }
+    if (methods.length > 0) {
+      gen.writeObjectFieldStart("methods");
+      for (ProxyMethod method : methods)
+        gen.writeObjectField(method.getName(), method);
+      gen.writeEndObject();
+    }
+
+    if (clazz == null || !clazz.isInterface()) {
+      if (properties != null && !properties.isEmpty()) {
+        gen.writeObjectFieldStart("properties");
+        for (ProxyProperty property : properties.values())
+          gen.writeObjectField(property.getName(), property);
         gen.writeEndObject();
       }
-
-      if (clazz == null || !clazz.isInterface()) {
-        if (properties != null && !properties.isEmpty()) {
-          gen.writeObjectFieldStart("properties");
-          for (ProxyProperty property : properties.values())
-            gen.writeObjectField(property.getName(), property);
-          gen.writeEndObject();
-        }
-        if (events != null && !events.isEmpty()) {
-          gen.writeObjectFieldStart("events");
-          for (ProxyEvent event : events.values()) {
-            gen.writeObjectFieldStart(event.getName());
-            if (propertyEventNames.contains(event.getName()))
-              gen.writeBooleanField("isProperty", true);
-            gen.writeEndObject();
-          }
+      if (events != null && !events.isEmpty()) {
+        gen.writeObjectFieldStart("events");
+        for (ProxyEvent event : events.values()) {
+          gen.writeObjectFieldStart(event.getName());
+          if (propertyEventNames.contains(event.getName()))
+            gen.writeBooleanField("isProperty", true);
           gen.writeEndObject();
         }
+        gen.writeEndObject();
       }
-      gen.writeEndObject();
-    } catch (IOException e) {
-      throw new ProxyTypeSerialisationException(e);
     }
   }
 
@@ -0,0 +1,237 @@
+/**
+ * ************************************************************************
+ *
+ *    server-objects - a contrib to the Qooxdoo project that makes server
+ *    and client objects operate seamlessly; like Qooxdoo, server objects
+ *    have properties, events, and methods all of which can be access from
+ *    either server or client, regardless of where the original object was
+ *    created.
+ *
+ *    http://qooxdoo.org
+ *
+ *    Copyright:
+ *      2010 Zenesis Limited, http://www.zenesis.com
+ *
+ *    License:
+ *      LGPL: http://www.gnu.org/licenses/lgpl.html
+ *      EPL: http://www.eclipse.org/org/documents/epl-v10.php
+ *
+ *      This software is provided under the same licensing terms as Qooxdoo,
+ *      please see the LICENSE file in the Qooxdoo project's top-level directory
+ *      for details.
+ *
+ *    Authors:
+ *      * John Spackman (john.spackman@zenesis.com)
+ *
+ * ************************************************************************
+ */
+package com.zenesis.qx.remote;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import org.apache.logging.log4j.Logger;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * A persistent, bidirectional connection to the client (eg a WebSocket) which
+ * carries the same command JSON as an HTTP request; this class is independent
+ * of the transport, which only has to pass incoming frames to receive() and
+ * implement send().
+ *
+ * Each frame from the client is an object with the request index and the
+ * commands, exactly as they would be posted:
+ *
+ * <pre>
+ * { "requestIndex": 12, "commands": [ { "cmd": "call", ... }, ... ] }
+ * </pre>
+ *
+ * and the reply to each frame is:
+ *
+ * <pre>
+ * { "requestIndex": 12, "data": [ ... ] }
+ * </pre>
+ *
+ * where data is omitted if there is nothing in the queue. Frames are processed
+ * in the session's mailbox (see SessionMailbox), so they are ordered by request
+ * index and never run at the same time as an HTTP request for the same session.
+ * When anything is queued for the client outside of a request, the queue is
+ * pushed as a frame without a request index, ie <code>{ "data": [ ... ] }</code>.
+ *
+ * @author John Spackman
+ *
+ */
+public abstract class CommandChannel {
+
+  private static final Logger log = org.apache.logging.log4j.LogManager.getLogger(CommandChannel.class);
+
+  // The request body used to flush the queue
+  private static final String POLL_REQUEST = "{ \"cmd\": \"poll\" }";
+
+  // Pushes are run after any requests which are waiting
+  private static final int PUSH_REQUEST_INDEX = Integer.MAX_VALUE;
+
+  // The session
+  protected final ProxySessionTracker tracker;
+
+  // Whether a push is waiting in the mailbox, guarded by this
+  private boolean pushPending;
+
+  // Whether the channel has been closed
+  private volatile boolean closed;
+
+  // Sends anything in the queue to the client
+  private final SessionMailbox.Request pusher = new SessionMailbox.Request() {
+    @Override
+    public void run() throws Exception {
+      synchronized (CommandChannel.this) {
+        pushPending = false;
+      }
+      if (closed || !tracker.hasDataToFlush())
+        return;
+      StringWriter sw = new StringWriter();
+      new RequestHandler(tracker).processRequestImpl(new StringReader(POLL_REQUEST), sw, getRequestId(-1));
+      if (sw.getBuffer().length() > 0)
+        send("{\"data\":" + sw + "}");
+    }
+  };
+
+  /**
+   * Constructor
+   *
+   * @param tracker
+   */
+  public CommandChannel(ProxySessionTracker tracker) {
+    super();
+    this.tracker = tracker;
+  }
+
+  /**
+   * Called by the transport when the connection is open; the channel replaces
+   * any previous channel for the session
+   */
+  public void open() {
+    CommandChannel previous = tracker.setCommandChannel(this);
+    if (previous != null && previous != this)
+      previous.close();
+    if (tracker.hasDataToFlush())
+      dataQueued();
+  }
+
+  /**
+   * Called by the transport when the connection has closed, or to close it
+   */
+  public void close() {
+    if (closed)
+      return;
+    closed = true;
+    tracker.clearCommandChannel(this);
+  }
+
+  /**
+   * Detects whether the channel has been closed
+   *
+   * @return
+   */
+  public boolean isClosed() {
+    return closed;
+  }
+
+  /**
+   * Called by the transport when a frame is received from the client; the frame
+   * is queued in the session's mailbox and the reply is sent when it has been
+   * processed
+   *
+   * @param frame
+   * @throws IOException
+   */
+  public void receive(String frame) throws IOException {
+    final JsonParser jp = tracker.getObjectMapper().getFactory().createParser(frame);
+    final int requestIndex = readRequestIndex(jp);
+    if (requestIndex < 0)
+      throw new IllegalArgumentException("Invalid requestIndex sent from client, found " + requestIndex +
+          ", sessionId=" + tracker.getSessionId());
+    if (requestIndex < tracker.getHighestRequestIndex() - 2)
+      throw new IllegalArgumentException("Request sent from client is too old, requestIndex=" + requestIndex +
+          ", sessionId=" + tracker.getSessionId());
+    tracker.getMailbox().submit(requestIndex, new SessionMailbox.Request() {
+      @Override
+      public void run() throws Exception {
+        try {
+          process(jp, requestIndex);
+        } catch (Exception e) {
+          log.error("Exception while processing request " + requestIndex + " for " + tracker + ": " + e.getMessage(), e);
+          throw e;
+        }
+      }
+    });
+  }
+
+  /**
+   * Called when something has been added to the queue; schedules a push, unless
+   * one is already waiting
+   */
+  public void dataQueued() {
+    synchronized (this) {
+      if (pushPending || closed)
+        return;
+      pushPending = true;
+    }
+    tracker.getMailbox().submit(PUSH_REQUEST_INDEX, pusher);
+  }
+
+  /**
+   * Sends a frame to the client; this is only called by the session's mailbox,
+   * so never concurrently
+   *
+   * @param frame
+   * @throws IOException
+   */
+  protected abstract void send(String frame) throws IOException;
+
+  /*
+   * Processes the commands in a frame and sends the reply
+   */
+  private void process(JsonParser jp, int requestIndex) throws Exception {
+    if (closed)
+      return;
+    StringWriter sw = new StringWriter();
+    new RequestHandler(tracker).processRequestImpl(jp, sw, getRequestId(requestIndex));
+    jp.close();
+    if (sw.getBuffer().length() > 0)
+      send("{\"requestIndex\":" + requestIndex + ",\"data\":" + sw + "}");
+    else
+      send("{\"requestIndex\":" + requestIndex + "}");
+  }
+
+  /*
+   * Reads the start of a frame, up to and including the "commands" field name,
+   * and returns the request index
+   */
+  private int readRequestIndex(JsonParser jp) throws IOException {
+    if (jp.nextToken() != JsonToken.START_OBJECT)
+      throw new IllegalArgumentException("Expected an object but found " + jp.getCurrentToken());
+    int requestIndex = -1;
+    while (jp.nextToken() == JsonToken.FIELD_NAME) {
+      String name = jp.getCurrentName();
+      if (name.equals("commands"))
+        return requestIndex;
+      jp.nextToken();
+      if (name.equals("requestIndex"))
+        requestIndex = jp.getIntValue();
+      else
+        jp.skipChildren();
+    }
+    throw new IllegalArgumentException("Cannot find commands in frame from client");
+  }
+
+  /*
+   * Returns an ID for logging
+   */
+  private String getRequestId(int requestIndex) {
+    return tracker.getSessionId().replace(':', '_') + "/channel-" + (requestIndex < 0 ? "push" : requestIndex);
+  }
+}
@@ -52,15 +52,31 @@ public class CommandId {
   public final Object object;
   public final String name;
 
+  // Whether a later command with the same type, object and name replaces this
+  // one in the queue; if false, the command is only ever equal to itself
+  public final boolean coalesce;
+
   /**
    * @param object
    * @param propertyName
    */
   public CommandId(CommandType type, Object object, String propertyName) {
+    this(type, object, propertyName, true);
+  }
+
+  /**
+   * @param type
+   * @param object
+   * @param propertyName
+   * @param coalesce     false if every command must be sent, eg function
+   *                     return values
+   */
+  public CommandId(CommandType type, Object object, String propertyName, boolean coalesce) {
     super();
     this.type = type;
     this.object = object;
     this.name = propertyName;
+    this.coalesce = coalesce;
   }
 
   /*
@@ -70,8 +86,10 @@ public class CommandId {
    */
   @Override
   public boolean equals(Object obj) {
+    if (!coalesce)
+      return obj == this;
     CommandId that = (CommandId) obj;
-    return that.type == type && that.object == object &&
+    return that.coalesce && that.type == type && that.object == object &&
         ((name == null && that.name == null) || (name != null && that.name != null && that.name.equals(name)));
   }
 
@@ -84,7 +102,7 @@ public class CommandId {
   public int hashCode() {
     int hash = type.hashCode();
     if (object != null)
-      hash ^= object.hashCode();
+      hash ^= System.identityHashCode(object);
     if (name != null)
       hash ^= name.hashCode();
     return hash;
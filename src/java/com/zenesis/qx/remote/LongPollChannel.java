@@ -0,0 +1,313 @@
+/**
+ * ************************************************************************
+ *
+ *    server-objects - a contrib to the Qooxdoo project that makes server
+ *    and client objects operate seamlessly; like Qooxdoo, server objects
+ *    have properties, events, and methods all of which can be access from
+ *    either server or client, regardless of where the original object was
+ *    created.
+ *
+ *    http://qooxdoo.org
+ *
+ *    Copyright:
+ *      2010 Zenesis Limited, http://www.zenesis.com
+ *
+ *    License:
+ *      LGPL: http://www.gnu.org/licenses/lgpl.html
+ *      EPL: http://www.eclipse.org/org/documents/epl-v10.php
+ *
+ *      This software is provided under the same licensing terms as Qooxdoo,
+ *      please see the LICENSE file in the Qooxdoo project's top-level directory
+ *      for details.
+ *
+ *    Authors:
+ *      * John Spackman (john.spackman@zenesis.com)
+ *
+ * ************************************************************************
+ */
+package com.zenesis.qx.remote;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.Logger;
+
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Holds a parked long-poll request for a session, and completes it when there
+ * is something in the session's queue for the client; the response is the same
+ * as the response to a "poll" command, ie whatever is in the queue, or an empty
+ * body if the request timed out with nothing to send.
+ *
+ * Changes are coalesced for a short time (see setCoalesceDelay) so that a burst
+ * of changes is sent in one response, except for properties with
+ * Remote.Sync.IMMEDIATE which complete the request straight away. Only one
+ * request is parked per session; if the client sends another, the previous one
+ * is completed.
+ *
+ * See ProxyManager.handleLongPoll
+ *
+ * @author John Spackman
+ *
+ */
+public class LongPollChannel {
+
+  private static final Logger log = org.apache.logging.log4j.LogManager.getLogger(LongPollChannel.class);
+
+  // The request body used to flush the queue
+  private static final String POLL_REQUEST = "{ \"cmd\": \"poll\" }";
+
+  // How long to wait for more changes before completing the request, in
+  // milliseconds
+  private static int s_coalesceDelay = 50;
+
+  // How long a request is parked for, in milliseconds
+  private static int s_timeout = 30 * 1000;
+
+  // Schedules completion after the coalescing delay; the responses are written
+  // by the container (see AsyncContext.start)
+  private static final ScheduledExecutorService s_scheduler = Executors
+      .newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "LongPollChannel");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  // The session
+  private final ProxySessionTracker tracker;
+
+  // The parked request, guarded by this
+  private AsyncContext parked;
+
+  // Scheduled completion of the parked request, guarded by this
+  private ScheduledFuture<?> scheduled;
+
+  // Completes the parked request
+  private final Runnable flusher = new Runnable() {
+    @Override
+    public void run() {
+      final AsyncContext async;
+      synchronized (LongPollChannel.this) {
+        async = parked;
+        parked = null;
+        scheduled = null;
+      }
+      if (async != null) {
+        async.start(new Runnable() {
+          @Override
+          public void run() {
+            complete(async);
+          }
+        });
+      }
+    }
+  };
+
+  /**
+   * Constructor
+   *
+   * @param tracker
+   */
+  public LongPollChannel(ProxySessionTracker tracker) {
+    super();
+    this.tracker = tracker;
+  }
+
+  /**
+   * Parks a request until there is something to send to the client; the request
+   * must support asynchronous processing
+   *
+   * @param request
+   * @throws ServletException
+   */
+  public void park(HttpServletRequest request) throws ServletException {
+    if (!request.isAsyncSupported())
+      throw new ServletException("Long polling requires a servlet which supports asynchronous requests");
+    final AsyncContext async = request.startAsync();
+    async.setTimeout(s_timeout);
+    async.addListener(new AsyncListener() {
+      @Override
+      public void onTimeout(AsyncEvent event) throws IOException {
+        if (unpark(async))
+          complete(async);
+      }
+
+      @Override
+      public void onError(AsyncEvent event) throws IOException {
+        unpark(async);
+      }
+
+      @Override
+      public void onStartAsync(AsyncEvent event) throws IOException {
+        // Nothing
+      }
+
+      @Override
+      public void onComplete(AsyncEvent event) throws IOException {
+        unpark(async);
+      }
+    });
+
+    AsyncContext previous;
+    synchronized (this) {
+      previous = parked;
+      parked = async;
+      if (scheduled != null) {
+        scheduled.cancel(false);
+        scheduled = null;
+      }
+    }
+    if (previous != null)
+      complete(previous);
+    if (tracker.hasDataToFlush())
+      dataQueued(false);
+  }
+
+  /**
+   * Called when something has been added to the session's queue
+   *
+   * @param immediate whether to complete the parked request without waiting for
+   *                  further changes
+   */
+  public void dataQueued(boolean immediate) {
+    synchronized (this) {
+      if (parked == null)
+        return;
+      if (immediate) {
+        if (scheduled != null) {
+          if (scheduled.getDelay(TimeUnit.MILLISECONDS) <= 0)
+            return;
+          scheduled.cancel(false);
+        }
+        scheduled = s_scheduler.schedule(flusher, 0, TimeUnit.MILLISECONDS);
+      } else if (scheduled == null)
+        scheduled = s_scheduler.schedule(flusher, s_coalesceDelay, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Completes any parked request, eg because the session is being discarded
+   */
+  public void close() {
+    AsyncContext async;
+    synchronized (this) {
+      async = parked;
+      parked = null;
+      if (scheduled != null) {
+        scheduled.cancel(false);
+        scheduled = null;
+      }
+    }
+    if (async != null)
+      async.complete();
+  }
+
+  /**
+   * Detects whether a request is parked
+   *
+   * @return
+   */
+  public synchronized boolean isParked() {
+    return parked != null;
+  }
+
+  /*
+   * Removes the request if it is still the parked request
+   */
+  private boolean unpark(AsyncContext async) {
+    synchronized (this) {
+      if (parked != async)
+        return false;
+      parked = null;
+      if (scheduled != null) {
+        scheduled.cancel(false);
+        scheduled = null;
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Writes whatever is in the queue to the request and completes it
+   *
+   * @param async
+   */
+  protected void complete(AsyncContext async) {
+    try {
+      HttpServletRequest request = (HttpServletRequest) async.getRequest();
+      HttpServletResponse response = (HttpServletResponse) async.getResponse();
+      boolean select = ProxyManager.getTracker() != tracker;
+      if (select)
+        ProxyManager.selectTracker(tracker);
+      try {
+        Writer writer = new OutputStreamWriter(
+            new ResponseCompression.ResponseOutputStream(response, request.getHeader("Accept-Encoding")),
+            StandardCharsets.UTF_8);
+        new RequestHandler(tracker).processRequestImpl(new StringReader(POLL_REQUEST), writer, "long-poll");
+        writer.close();
+      } finally {
+        if (select)
+          ProxyManager.deselectTracker(tracker);
+      }
+    } catch (Exception e) {
+      log.error("Exception while completing long poll for " + tracker + ": " + e.getMessage(), e);
+    } finally {
+      async.complete();
+    }
+  }
+
+  /**
+   * Returns how long to wait for more changes before completing the request, in
+   * milliseconds
+   *
+   * @return
+   */
+  public static int getCoalesceDelay() {
+    return s_coalesceDelay;
+  }
+
+  /**
+   * Sets how long to wait for more changes before completing the request, in
+   * milliseconds; changes to Remote.Sync.IMMEDIATE properties are not delayed
+   *
+   * @param coalesceDelay
+   */
+  public static void setCoalesceDelay(int coalesceDelay) {
+    LongPollChannel.s_coalesceDelay = coalesceDelay;
+  }
+
+  /**
+   * Returns how long a request is parked for, in milliseconds
+   *
+   * @return
+   */
+  public static int getTimeout() {
+    return s_timeout;
+  }
+
+  /**
+   * Sets how long a request is parked for, in milliseconds
+   *
+   * @param timeout
+   */
+  public static void setTimeout(int timeout) {
+    LongPollChannel.s_timeout = timeout;
+  }
+}
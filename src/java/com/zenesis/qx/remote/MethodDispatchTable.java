@@ -0,0 +1,203 @@
+/**
+ * ************************************************************************
+ *
+ *    server-objects - a contrib to the Qooxdoo project that makes server
+ *    and client objects operate seamlessly; like Qooxdoo, server objects
+ *    have properties, events, and methods all of which can be access from
+ *    either server or client, regardless of where the original object was
+ *    created.
+ *
+ *    http://qooxdoo.org
+ *
+ *    Copyright:
+ *      2010 Zenesis Limited, http://www.zenesis.com
+ *
+ *    License:
+ *      LGPL: http://www.gnu.org/licenses/lgpl.html
+ *      EPL: http://www.eclipse.org/org/documents/epl-v10.php
+ *
+ *      This software is provided under the same licensing terms as Qooxdoo,
+ *      please see the LICENSE file in the Qooxdoo project's top-level directory
+ *      for details.
+ *
+ *    Authors:
+ *      * John Spackman (john.spackman@zenesis.com)
+ *
+ * ************************************************************************
+ */
+package com.zenesis.qx.remote;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Maps the method names which the client can call on a ProxyType (including the
+ * methods of its super types) to the code which handles them, so that a call
+ * from the client is one hash lookup and a direct invocation.
+ *
+ * Client calls to getXxx/setXxx where xxx is a property are handled as property
+ * accessors, and take precedence over methods of the same name; methods are
+ * bound as method handles, with the parameter types resolved in advance and a
+ * ParameterDecoder chosen for each parameter.
+ *
+ * @author John Spackman
+ *
+ */
+/* package */ class MethodDispatchTable {
+
+  private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+  // Type of all method invokers, ie (Object self, Object[] args)Object
+  private static final MethodType INVOKER_TYPE = MethodType.methodType(Object.class, Object.class, Object[].class);
+
+  /*
+   * A method which can be called by the client
+   */
+  public static final class MethodInvoker {
+    public final ProxyMethod proxyMethod;
+    public final Method method;
+    public final Class[] parameterTypes;
+    public final ParameterDecoder[] decoders;
+    private final MethodHandle handle;
+
+    public MethodInvoker(ProxyMethod proxyMethod) {
+      this.proxyMethod = proxyMethod;
+      this.method = proxyMethod.getMethod();
+      this.parameterTypes = method.getParameterTypes();
+      this.decoders = ParameterDecoder.forTypes(parameterTypes);
+      try {
+        method.setAccessible(true);
+        MethodHandle handle = LOOKUP.unreflect(method).asFixedArity();
+        if (Modifier.isStatic(method.getModifiers()))
+          handle = MethodHandles.dropArguments(handle, 0, Object.class);
+        this.handle = handle.asSpreader(Object[].class, parameterTypes.length).asType(INVOKER_TYPE);
+      } catch (IllegalAccessException e) {
+        throw new IllegalStateException("Cannot access " + method + ": " + e.getMessage(), e);
+      }
+    }
+
+    /**
+     * Calls the method
+     *
+     * @param self   the object, null for static methods
+     * @param values the parameters, which must already match parameterTypes
+     * @return the return value, null if the method is void
+     * @throws Throwable whatever the method throws
+     */
+    public Object invoke(Object self, Object[] values) throws Throwable {
+      return (Object) handle.invokeExact(self, values);
+    }
+  }
+
+  /*
+   * A property get or set accessor which can be called by the client
+   */
+  public static final class PropertyAccessor {
+    public final ProxyProperty property;
+    public final boolean isSet;
+    public final Class[] parameterTypes;
+    public final ParameterDecoder[] decoders;
+
+    // Other properties in the same group, loaded at the same time
+    public final ProxyProperty[] group;
+
+    public PropertyAccessor(ProxyProperty property, boolean isSet, ProxyProperty[] group) {
+      this.property = property;
+      this.isSet = isSet;
+      this.parameterTypes = isSet ? new Class[] { property.getPropertyClass().getJavaType() } : null;
+      this.decoders = ParameterDecoder.forTypes(parameterTypes);
+      this.group = group;
+    }
+  }
+
+  // Methods, indexed by name
+  private final HashMap<String, MethodInvoker> methods = new HashMap<String, MethodInvoker>();
+
+  // Property accessors, indexed by the name of the get or set method
+  private final HashMap<String, PropertyAccessor> accessors = new HashMap<String, PropertyAccessor>();
+
+  /**
+   * Constructor
+   *
+   * @param type
+   */
+  public MethodDispatchTable(ProxyType type) {
+    super();
+    for (ProxyType tmp = type; tmp != null; tmp = tmp.getSuperType()) {
+      // Methods in derived types take precedence
+      ProxyMethod[] proxyMethods = tmp.getMethods();
+      if (proxyMethods != null)
+        for (ProxyMethod proxyMethod : proxyMethods)
+          if (!methods.containsKey(proxyMethod.getName()))
+            methods.put(proxyMethod.getName(), new MethodInvoker(proxyMethod));
+
+      Map<String, ProxyProperty> properties = tmp.getProperties();
+      if (properties != null)
+        for (ProxyProperty property : properties.values()) {
+          String name = property.getName();
+          // The client's getXxx/setXxx is mapped back to xxx by lower casing the
+          // first character, so a property starting with upper case cannot be
+          // reached that way
+          if (name.length() == 0 || Character.isUpperCase(name.charAt(0)))
+            continue;
+          char first = name.charAt(0);
+          String upname = Character.toUpperCase(first) + name.substring(1);
+          ProxyProperty[] group = getGroup(type, property);
+          addAccessor("get" + upname, new PropertyAccessor(property, false, group));
+          addAccessor("set" + upname, new PropertyAccessor(property, true, group));
+          if (!upname.equals(name)) {
+            addAccessor("get" + name, new PropertyAccessor(property, false, group));
+            addAccessor("set" + name, new PropertyAccessor(property, true, group));
+          }
+        }
+    }
+  }
+
+  /*
+   * Adds an accessor, unless a derived type already has one
+   */
+  private void addAccessor(String methodName, PropertyAccessor accessor) {
+    if (!accessors.containsKey(methodName))
+      accessors.put(methodName, accessor);
+  }
+
+  /*
+   * Finds the properties in the same group as property
+   */
+  private static ProxyProperty[] getGroup(ProxyType type, ProxyProperty property) {
+    if (property.getGroup() == null)
+      return null;
+    ArrayList<ProxyProperty> result = new ArrayList<ProxyProperty>();
+    for (ProxyType tmp = type; tmp != null; tmp = tmp.getSuperType())
+      for (ProxyProperty prop : tmp.getProperties().values())
+        if (prop.getGroup() != null && prop.getGroup().equals(property.getGroup()) && !result.contains(prop))
+          result.add(prop);
+    return result.toArray(new ProxyProperty[result.size()]);
+  }
+
+  /**
+   * Returns the property accessor for a method name
+   *
+   * @param methodName
+   * @return null if the name is not a property accessor
+   */
+  public PropertyAccessor getAccessor(String methodName) {
+    return accessors.get(methodName);
+  }
+
+  /**
+   * Returns the method for a method name
+   *
+   * @param methodName
+   * @return null if there is no such method
+   */
+  public MethodInvoker getMethod(String methodName) {
+    return methods.get(methodName);
+  }
+}
@@ -0,0 +1,256 @@
+/**
+ * ************************************************************************
+ *
+ *    server-objects - a contrib to the Qooxdoo project that makes server
+ *    and client objects operate seamlessly; like Qooxdoo, server objects
+ *    have properties, events, and methods all of which can be access from
+ *    either server or client, regardless of where the original object was
+ *    created.
+ *
+ *    http://qooxdoo.org
+ *
+ *    Copyright:
+ *      2010 Zenesis Limited, http://www.zenesis.com
+ *
+ *    License:
+ *      LGPL: http://www.gnu.org/licenses/lgpl.html
+ *      EPL: http://www.eclipse.org/org/documents/epl-v10.php
+ *
+ *      This software is provided under the same licensing terms as Qooxdoo,
+ *      please see the LICENSE file in the Qooxdoo project's top-level directory
+ *      for details.
+ *
+ *    Authors:
+ *      * John Spackman (john.spackman@zenesis.com)
+ *
+ * ************************************************************************
+ */
+package com.zenesis.qx.remote;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.bson.Document;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Decodes a single parameter of a server method call from JSON; decoders are
+ * chosen once per parameter type (see MethodDispatchTable) so that reading the
+ * parameters of a call does not need to examine the parameter classes again.
+ *
+ * The common types (int, long, double, boolean, String, Proxied and enums)
+ * are read directly from the parser's current token; anything unusual, eg a
+ * number passed as a string, falls back to RequestHandler.readSimpleValue so
+ * that the result is always the same as reading the value generically.
+ *
+ * @author John Spackman
+ *
+ */
+/* package */ abstract class ParameterDecoder {
+
+  /**
+   * Reads the value at the parser's current token, leaving the current token on
+   * the last token of the value
+   *
+   * @param handler the request being processed
+   * @param jp      the parser
+   * @return the value, boxed if necessary
+   * @throws IOException
+   */
+  public abstract Object decode(RequestHandler handler, JsonParser jp) throws IOException;
+
+  /**
+   * Returns the decoder for a parameter type
+   *
+   * @param clazz the parameter type, null for Object
+   * @return
+   */
+  public static ParameterDecoder forType(Class clazz) {
+    if (clazz == null || clazz == Object.class)
+      return OBJECT;
+    if (clazz == int.class || clazz == Integer.class)
+      return INT;
+    if (clazz == long.class || clazz == Long.class)
+      return LONG;
+    if (clazz == double.class || clazz == Double.class)
+      return DOUBLE;
+    if (clazz == boolean.class || clazz == Boolean.class)
+      return BOOLEAN;
+    if (clazz == String.class)
+      return STRING;
+    if (Document.class.isAssignableFrom(clazz))
+      return DOCUMENT;
+    if (clazz.isArray())
+      return new ArrayDecoder(clazz.getComponentType());
+    if (Proxied.class.isAssignableFrom(clazz))
+      return PROXIED;
+    if (clazz.isEnum())
+      return new EnumDecoder(clazz);
+    return new GenericDecoder(clazz);
+  }
+
+  /**
+   * Returns the decoders for a list of parameter types
+   *
+   * @param types
+   * @return null if types is null
+   */
+  public static ParameterDecoder[] forTypes(Class[] types) {
+    if (types == null)
+      return null;
+    ParameterDecoder[] decoders = new ParameterDecoder[types.length];
+    for (int i = 0; i < types.length; i++)
+      decoders[i] = forType(types[i]);
+    return decoders;
+  }
+
+  /*
+   * Reads any value via RequestHandler.readSimpleValue
+   */
+  private static class GenericDecoder extends ParameterDecoder {
+    protected final Class clazz;
+
+    public GenericDecoder(Class clazz) {
+      this.clazz = clazz;
+    }
+
+    @Override
+    public Object decode(RequestHandler handler, JsonParser jp) throws IOException {
+      return handler.readSimpleValue(jp, clazz);
+    }
+  }
+
+  private static final ParameterDecoder OBJECT = new GenericDecoder(Object.class);
+
+  private static final ParameterDecoder INT = new GenericDecoder(Integer.class) {
+    @Override
+    public Object decode(RequestHandler handler, JsonParser jp) throws IOException {
+      JsonToken token = jp.getCurrentToken();
+      if (token == JsonToken.VALUE_NUMBER_INT || token == JsonToken.VALUE_NUMBER_FLOAT)
+        return jp.getIntValue();
+      return super.decode(handler, jp);
+    }
+  };
+
+  private static final ParameterDecoder LONG = new GenericDecoder(Long.class) {
+    @Override
+    public Object decode(RequestHandler handler, JsonParser jp) throws IOException {
+      JsonToken token = jp.getCurrentToken();
+      if (token == JsonToken.VALUE_NUMBER_INT || token == JsonToken.VALUE_NUMBER_FLOAT)
+        return jp.getLongValue();
+      return super.decode(handler, jp);
+    }
+  };
+
+  private static final ParameterDecoder DOUBLE = new GenericDecoder(Double.class) {
+    @Override
+    public Object decode(RequestHandler handler, JsonParser jp) throws IOException {
+      JsonToken token = jp.getCurrentToken();
+      if (token == JsonToken.VALUE_NUMBER_INT || token == JsonToken.VALUE_NUMBER_FLOAT)
+        return jp.getDoubleValue();
+      return super.decode(handler, jp);
+    }
+  };
+
+  private static final ParameterDecoder BOOLEAN = new GenericDecoder(Boolean.class) {
+    @Override
+    public Object decode(RequestHandler handler, JsonParser jp) throws IOException {
+      JsonToken token = jp.getCurrentToken();
+      if (token == JsonToken.VALUE_TRUE)
+        return Boolean.TRUE;
+      if (token == JsonToken.VALUE_FALSE)
+        return Boolean.FALSE;
+      return super.decode(handler, jp);
+    }
+  };
+
+  private static final ParameterDecoder STRING = new GenericDecoder(String.class) {
+    @Override
+    public Object decode(RequestHandler handler, JsonParser jp) throws IOException {
+      // Strings with the server objects prefix are dates etc and are left to
+      // readSimpleValue
+      if (jp.getCurrentToken() == JsonToken.VALUE_STRING) {
+        String str = jp.getText();
+        if (!str.startsWith(RequestHandler.PREFIX))
+          return str;
+      }
+      return super.decode(handler, jp);
+    }
+  };
+
+  private static final ParameterDecoder DOCUMENT = new ParameterDecoder() {
+    @Override
+    public Object decode(RequestHandler handler, JsonParser jp) throws IOException {
+      return handler.readBsonDocument(jp);
+    }
+  };
+
+  /*
+   * Resolves the server ID of a Proxied object
+   */
+  private static final ParameterDecoder PROXIED = new ParameterDecoder() {
+    @Override
+    public Object decode(RequestHandler handler, JsonParser jp) throws IOException {
+      JsonToken token = jp.getCurrentToken();
+      if (token == JsonToken.VALUE_NULL)
+        return null;
+      int id = token == JsonToken.VALUE_NUMBER_INT ? jp.getIntValue() : jp.readValueAs(Integer.class);
+      return handler.getProxied(id);
+    }
+  };
+
+  /*
+   * Reads native arrays
+   */
+  private static class ArrayDecoder extends ParameterDecoder {
+    private final Class componentType;
+
+    public ArrayDecoder(Class componentType) {
+      this.componentType = componentType;
+    }
+
+    @Override
+    public Object decode(RequestHandler handler, JsonParser jp) throws IOException {
+      JsonToken token = jp.getCurrentToken();
+      if (token == JsonToken.VALUE_NULL)
+        return null;
+      if (token != JsonToken.START_ARRAY)
+        throw new IllegalStateException("Expected array but found " + token);
+      return handler.readArray(jp, ArrayList.class, componentType);
+    }
+  }
+
+  /*
+   * Looks up enum values by their serialised names
+   */
+  private static class EnumDecoder extends GenericDecoder {
+    private final HashMap<String, Enum> values = new HashMap<String, Enum>();
+
+    public EnumDecoder(Class clazz) {
+      super(clazz);
+      // Only names which Helpers.deserialiseEnum maps back to the same constant
+      // are indexed, anything else is left to readSimpleValue
+      for (Object obj : clazz.getEnumConstants()) {
+        Enum value = (Enum) obj;
+        String str = Helpers.serialiseEnum(value);
+        if (value.name().equals(Helpers.deserialiseEnum(str)))
+          values.put(str, value);
+        if (value.name().equals(Helpers.deserialiseEnum(value.name())))
+          values.put(value.name(), value);
+      }
+    }
+
+    @Override
+    public Object decode(RequestHandler handler, JsonParser jp) throws IOException {
+      if (jp.getCurrentToken() == JsonToken.VALUE_STRING) {
+        Enum value = values.get(jp.getText());
+        if (value != null)
+          return value;
+      }
+      return super.decode(handler, jp);
+    }
+  }
+}
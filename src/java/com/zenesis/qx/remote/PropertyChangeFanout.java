@@ -0,0 +1,543 @@
+/**
+ * ************************************************************************
+ *
+ *    server-objects - a contrib to the Qooxdoo project that makes server
+ *    and client objects operate seamlessly; like Qooxdoo, server objects
+ *    have properties, events, and methods all of which can be access from
+ *    either server or client, regardless of where the original object was
+ *    created.
+ *
+ *    http://qooxdoo.org
+ *
+ *    Copyright:
+ *      2010 Zenesis Limited, http://www.zenesis.com
+ *
+ *    License:
+ *      LGPL: http://www.gnu.org/licenses/lgpl.html
+ *      EPL: http://www.eclipse.org/org/documents/epl-v10.php
+ *
+ *      This software is provided under the same licensing terms as Qooxdoo,
+ *      please see the LICENSE file in the Qooxdoo project's top-level directory
+ *      for details.
+ *
+ *    Authors:
+ *      * John Spackman (john.spackman@zenesis.com)
+ *
+ * ************************************************************************
+ */
+package com.zenesis.qx.remote;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.Logger;
+
+import com.zenesis.qx.remote.collections.ChangeData;
+
+/**
+ * Delivers changes to objects to the synchronised trackers (see
+ * ProxyManager.addSyncTracker) in the background, so that the thread which
+ * makes the change does not have to visit every session; only the trackers
+ * which have sent the object to their client (see SubscriberIndex) are updated.
+ *
+ * Changes are published into a bounded ring buffer; a dispatcher thread takes
+ * them off in batches, drops property changes which are overwritten by a later
+ * change to the same property in the same batch, and applies the batch to the
+ * trackers. The trackers are split between a small pool of workers, and each
+ * tracker's share of the batch is applied while holding the tracker's queue so
+ * that it cannot be flushed half way through. Batches are applied in order, so
+ * every tracker sees changes in the order that they were made.
+ *
+ * If the ring buffer is full, the caller waits until there is space, so that
+ * changes are never applied out of order; the caller must therefore not hold
+ * any tracker's queue while making changes.
+ *
+ * @author John Spackman
+ *
+ */
+public class PropertyChangeFanout {
+
+  private static final Logger log = org.apache.logging.log4j.LogManager.getLogger(PropertyChangeFanout.class);
+
+  /*
+   * A change to be applied to every tracker
+   */
+  private static final class Change {
+    static final int PROPERTY = 0;
+    static final int COLLECTION = 1;
+    static final int EXPIRE = 2;
+    static final int INVALIDATE_PROPERTY = 3;
+    static final int INVALIDATE_CACHE = 4;
+
+    final int type;
+    final ProxySessionTracker source;
+    final Proxied keyObject;
+    final ProxyProperty property;
+    final Object newValue;
+    final Object oldValue;
+    final ChangeData change;
+    boolean superseded;
+
+    Change(int type, ProxySessionTracker source, Proxied keyObject, ProxyProperty property, Object newValue,
+        Object oldValue, ChangeData change) {
+      this.type = type;
+      this.source = source;
+      this.keyObject = keyObject;
+      this.property = property;
+      this.newValue = newValue;
+      this.oldValue = oldValue;
+      this.change = change;
+    }
+
+    /*
+     * Applies the change to a tracker
+     */
+    void apply(ProxySessionTracker tracker) {
+      switch (type) {
+      case PROPERTY:
+        tracker.propertyChanged(keyObject, property, newValue, oldValue);
+        break;
+
+      case COLLECTION:
+        tracker.collectionChanged(keyObject, change);
+        break;
+
+      case EXPIRE:
+        tracker.expireProperty(keyObject, property);
+        break;
+
+      case INVALIDATE_PROPERTY:
+        tracker.invalidateProperty(keyObject, property);
+        break;
+
+      case INVALIDATE_CACHE:
+        tracker.invalidateCache(keyObject);
+        break;
+      }
+    }
+  }
+
+  /*
+   * Identifies a property of an object, by identity
+   */
+  private static final class PropertyKey {
+    final Proxied keyObject;
+    final ProxyProperty property;
+
+    PropertyKey(Proxied keyObject, ProxyProperty property) {
+      this.keyObject = keyObject;
+      this.property = property;
+    }
+
+    @Override
+    public int hashCode() {
+      return System.identityHashCode(keyObject) * 31 + System.identityHashCode(property);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      PropertyKey that = (PropertyKey) obj;
+      return that.keyObject == keyObject && that.property == property;
+    }
+  }
+
+  // Whether changes are delivered in the background
+  private static boolean s_enabled;
+
+  // Number of worker threads which apply changes to trackers
+  private static int s_numberOfWorkers = 2;
+
+  // Size of the ring buffer
+  private static int s_capacity = 16 * 1024;
+
+  // Maximum number of changes applied as one batch
+  private static int s_maxBatchSize = 1024;
+
+  // The running instance, null until first used
+  private static PropertyChangeFanout s_instance;
+
+  // Changes waiting to be dispatched
+  private final ArrayBlockingQueue<Change> ring;
+
+  // Workers which apply changes to trackers
+  private final ExecutorService workers;
+
+  // The dispatcher thread
+  private final Thread dispatcher;
+
+  // Number of changes which have been published but not yet applied
+  private int pending;
+
+  // Whether shutdown has been called
+  private volatile boolean shutdown;
+
+  /**
+   * Constructor
+   */
+  private PropertyChangeFanout() {
+    ring = new ArrayBlockingQueue<Change>(s_capacity);
+    final int numberOfWorkers = s_numberOfWorkers;
+    workers = Executors.newFixedThreadPool(numberOfWorkers, new ThreadFactory() {
+      private int index;
+
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "PropertyChangeFanout-worker-" + (index++));
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    dispatcher = new Thread("PropertyChangeFanout-dispatcher") {
+      @Override
+      public void run() {
+        dispatch(numberOfWorkers);
+      }
+    };
+    dispatcher.setDaemon(true);
+    dispatcher.start();
+  }
+
+  /**
+   * Returns the running instance, creating it if necessary
+   *
+   * @return
+   */
+  private static synchronized PropertyChangeFanout getInstance() {
+    if (s_instance == null)
+      s_instance = new PropertyChangeFanout();
+    return s_instance;
+  }
+
+  /**
+   * Queues a property change for all synchronised trackers except source
+   *
+   * @param source      the tracker which has already been updated, may be null
+   * @param keyObject
+   * @param property
+   * @param newValue
+   * @param oldValue
+   */
+  public static void propertyChanged(ProxySessionTracker source, Proxied keyObject, ProxyProperty property,
+      Object newValue, Object oldValue) {
+    publish(new Change(Change.PROPERTY, source, keyObject, property, newValue, oldValue, null));
+  }
+
+  /**
+   * Queues a collection change for all synchronised trackers except source
+   *
+   * @param source    the tracker which has already been updated, may be null
+   * @param keyObject
+   * @param change
+   */
+  public static void collectionChanged(ProxySessionTracker source, Proxied keyObject, ChangeData change) {
+    publish(new Change(Change.COLLECTION, source, keyObject, null, null, null, change));
+  }
+
+  /**
+   * Queues the expiry of an on-demand property for all synchronised trackers
+   * except source
+   *
+   * @param source    the tracker which has already been updated, may be null
+   * @param keyObject
+   * @param property
+   */
+  public static void expireProperty(ProxySessionTracker source, Proxied keyObject, ProxyProperty property) {
+    publish(new Change(Change.EXPIRE, source, keyObject, property, null, null, null));
+  }
+
+  /**
+   * Queues the invalidation of an on-demand property for all synchronised
+   * trackers except source
+   *
+   * @param source    the tracker which has already been updated, may be null
+   * @param keyObject
+   * @param property
+   */
+  public static void invalidateProperty(ProxySessionTracker source, Proxied keyObject, ProxyProperty property) {
+    publish(new Change(Change.INVALIDATE_PROPERTY, source, keyObject, property, null, null, null));
+  }
+
+  /**
+   * Queues the invalidation of an object's client cache for all synchronised
+   * trackers except source
+   *
+   * @param source    the tracker which has already been updated, may be null
+   * @param keyObject
+   */
+  public static void invalidateCache(ProxySessionTracker source, Proxied keyObject) {
+    publish(new Change(Change.INVALIDATE_CACHE, source, keyObject, null, null, null, null));
+  }
+
+  /**
+   * Waits until all changes published so far have been applied
+   *
+   * @param timeout maximum time to wait, in milliseconds
+   * @return true if all changes were applied, false if the timeout expired
+   * @throws InterruptedException
+   */
+  public static boolean waitForIdle(long timeout) throws InterruptedException {
+    PropertyChangeFanout fanout;
+    synchronized (PropertyChangeFanout.class) {
+      fanout = s_instance;
+    }
+    if (fanout == null)
+      return true;
+    long end = System.currentTimeMillis() + timeout;
+    synchronized (fanout) {
+      while (fanout.pending > 0) {
+        long remaining = end - System.currentTimeMillis();
+        if (remaining <= 0)
+          return false;
+        fanout.wait(remaining);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Stops the background threads; changes which have not been applied yet are
+   * discarded. Changes published afterwards will start new threads if the
+   * fanout is still enabled.
+   */
+  public static void shutdown() {
+    PropertyChangeFanout fanout;
+    synchronized (PropertyChangeFanout.class) {
+      fanout = s_instance;
+      s_instance = null;
+    }
+    if (fanout != null) {
+      fanout.shutdown = true;
+      fanout.dispatcher.interrupt();
+      fanout.workers.shutdownNow();
+      synchronized (fanout) {
+        fanout.pending = 0;
+        fanout.notifyAll();
+      }
+    }
+  }
+
+  /*
+   * Publishes a change, waiting for space if the ring buffer is full; the change
+   * is discarded if the fanout is shut down while waiting
+   */
+  private static void publish(Change change) {
+    PropertyChangeFanout fanout = getInstance();
+    synchronized (fanout) {
+      fanout.pending++;
+    }
+    if (fanout.ring.offer(change))
+      return;
+    log.warn("Property change ring buffer is full, waiting for changes to be applied");
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          if (fanout.ring.offer(change, 100, TimeUnit.MILLISECONDS))
+            return;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+        if (fanout.shutdown)
+          return;
+      }
+    } finally {
+      if (interrupted)
+        Thread.currentThread().interrupt();
+    }
+  }
+
+  /*
+   * Dispatcher thread main loop
+   */
+  private void dispatch(int numberOfWorkers) {
+    ArrayList<Change> batch = new ArrayList<Change>();
+    while (!shutdown) {
+      try {
+        batch.add(ring.take());
+        ring.drainTo(batch, s_maxBatchSize - 1);
+        applyBatch(batch, numberOfWorkers);
+      } catch (InterruptedException e) {
+        if (shutdown)
+          return;
+      } catch (Exception e) {
+        log.error("Error while delivering property changes: " + e.getMessage(), e);
+      }
+      applied(batch.size());
+      batch.clear();
+    }
+  }
+
+  /*
+   * Applies a batch of changes to the trackers which have the objects
+   */
+  private void applyBatch(ArrayList<Change> batch, int numberOfWorkers) throws InterruptedException {
+    // Drop property changes which are overwritten later in the batch
+    HashSet<PropertyKey> seen = new HashSet<PropertyKey>();
+    for (int i = batch.size() - 1; i >= 0; i--) {
+      Change change = batch.get(i);
+      if (change.type == Change.PROPERTY && !seen.add(new PropertyKey(change.keyObject, change.property)))
+        change.superseded = true;
+    }
+
+    // Collect the changes for each tracker, in order
+    IdentityHashMap<ProxySessionTracker, ArrayList<Change>> byTracker =
+        new IdentityHashMap<ProxySessionTracker, ArrayList<Change>>();
+    for (Change change : batch) {
+      if (change.superseded)
+        continue;
+      for (ProxySessionTracker tracker : SubscriberIndex.INSTANCE.getSubscribers(change.keyObject)) {
+        if (tracker == change.source)
+          continue;
+        ArrayList<Change> changes = byTracker.get(tracker);
+        if (changes == null)
+          byTracker.put(tracker, changes = new ArrayList<Change>());
+        changes.add(change);
+      }
+    }
+    if (byTracker.isEmpty())
+      return;
+
+    // Share the trackers out between the workers
+    final ProxySessionTracker[] trackers = byTracker.keySet().toArray(new ProxySessionTracker[byTracker.size()]);
+    final Change[][] changes = new Change[trackers.length][];
+    for (int i = 0; i < trackers.length; i++) {
+      ArrayList<Change> list = byTracker.get(trackers[i]);
+      changes[i] = list.toArray(new Change[list.size()]);
+    }
+    int numTasks = Math.min(numberOfWorkers, trackers.length);
+    if (numTasks == 1) {
+      for (int i = 0; i < trackers.length; i++)
+        applyTo(trackers[i], changes[i]);
+      return;
+    }
+    ArrayList<Callable<Object>> tasks = new ArrayList<Callable<Object>>(numTasks);
+    for (int w = 0; w < numTasks; w++) {
+      final int first = w;
+      final int step = numTasks;
+      tasks.add(new Callable<Object>() {
+        @Override
+        public Object call() throws Exception {
+          for (int i = first; i < trackers.length; i += step)
+            applyTo(trackers[i], changes[i]);
+          return null;
+        }
+      });
+    }
+    workers.invokeAll(tasks);
+  }
+
+  /*
+   * Applies changes to a tracker
+   */
+  private void applyTo(ProxySessionTracker tracker, Change[] changes) {
+    CommandQueue queue = tracker.getQueue();
+    synchronized (queue) {
+      for (Change change : changes) {
+        try {
+          change.apply(tracker);
+        } catch (Exception e) {
+          log.error("Error while applying property change to " + tracker + ": " + e.getMessage(), e);
+        }
+      }
+    }
+  }
+
+  /*
+   * Records that changes have been applied
+   */
+  private synchronized void applied(int numChanges) {
+    pending -= numChanges;
+    if (pending <= 0) {
+      pending = 0;
+      notifyAll();
+    }
+  }
+
+  /**
+   * Returns whether changes are delivered to other sessions in the background
+   *
+   * @return
+   */
+  public static boolean isEnabled() {
+    return s_enabled;
+  }
+
+  /**
+   * Sets whether changes are delivered to other sessions in the background;
+   * when disabled, changes are delivered on the thread which makes them
+   *
+   * @param enabled
+   */
+  public static void setEnabled(boolean enabled) {
+    s_enabled = enabled;
+  }
+
+  /**
+   * Returns the number of threads which apply changes to trackers
+   *
+   * @return
+   */
+  public static int getNumberOfWorkers() {
+    return s_numberOfWorkers;
+  }
+
+  /**
+   * Sets the number of threads which apply changes to trackers; takes effect
+   * when the background threads are next started
+   *
+   * @param numberOfWorkers
+   */
+  public static void setNumberOfWorkers(int numberOfWorkers) {
+    if (numberOfWorkers < 1)
+      throw new IllegalArgumentException("Invalid number of workers " + numberOfWorkers);
+    s_numberOfWorkers = numberOfWorkers;
+  }
+
+  /**
+   * Returns the size of the ring buffer
+   *
+   * @return
+   */
+  public static int getCapacity() {
+    return s_capacity;
+  }
+
+  /**
+   * Sets the size of the ring buffer; takes effect when the background threads
+   * are next started
+   *
+   * @param capacity
+   */
+  public static void setCapacity(int capacity) {
+    if (capacity < 1)
+      throw new IllegalArgumentException("Invalid capacity " + capacity);
+    s_capacity = capacity;
+  }
+
+  /**
+   * Returns the maximum number of changes which are applied as one batch
+   *
+   * @return
+   */
+  public static int getMaxBatchSize() {
+    return s_maxBatchSize;
+  }
+
+  /**
+   * Sets the maximum number of changes which are applied as one batch
+   *
+   * @param maxBatchSize
+   */
+  public static void setMaxBatchSize(int maxBatchSize) {
+    if (maxBatchSize < 1)
+      throw new IllegalArgumentException("Invalid batch size " + maxBatchSize);
+    s_maxBatchSize = maxBatchSize;
+  }
+}
@@ -0,0 +1,116 @@
+/**
+ * ************************************************************************
+ *
+ *    server-objects - a contrib to the Qooxdoo project that makes server
+ *    and client objects operate seamlessly; like Qooxdoo, server objects
+ *    have properties, events, and methods all of which can be access from
+ *    either server or client, regardless of where the original object was
+ *    created.
+ *
+ *    http://qooxdoo.org
+ *
+ *    Copyright:
+ *      2010 Zenesis Limited, http://www.zenesis.com
+ *
+ *    License:
+ *      LGPL: http://www.gnu.org/licenses/lgpl.html
+ *      EPL: http://www.eclipse.org/org/documents/epl-v10.php
+ *
+ *      This software is provided under the same licensing terms as Qooxdoo,
+ *      please see the LICENSE file in the Qooxdoo project's top-level directory
+ *      for details.
+ *
+ *    Authors:
+ *      * John Spackman (john.spackman@zenesis.com)
+ *
+ * ************************************************************************
+ */
+package com.zenesis.qx.remote;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Assigns a number to each property of a ProxyType (including the properties
+ * of its super types), so that per-object property state can be held in a
+ * bitset; ordinal 0 is reserved for the object as a whole (ie a null property
+ * name).
+ *
+ * Ordinals are normally looked up by ProxyProperty identity; names which are
+ * not properties of the type are given new ordinals on demand, so that the
+ * ordinal for a name never changes.
+ *
+ * @author John Spackman
+ *
+ */
+/* package */ class PropertyOrdinals {
+
+  // Ordinals indexed by property, never changes after construction
+  private final IdentityHashMap<ProxyProperty, Integer> byProperty = new IdentityHashMap<ProxyProperty, Integer>();
+
+  // Ordinals indexed by property name
+  private final ConcurrentHashMap<String, Integer> byName = new ConcurrentHashMap<String, Integer>();
+
+  // Next ordinal to allocate
+  private int nextOrdinal = 1;
+
+  /**
+   * Constructor
+   *
+   * @param type
+   */
+  public PropertyOrdinals(ProxyType type) {
+    super();
+    for (ProxyType tmp = type; tmp != null; tmp = tmp.getSuperType()) {
+      Map<String, ProxyProperty> properties = tmp.getProperties();
+      if (properties == null)
+        continue;
+      for (ProxyProperty prop : properties.values()) {
+        if (byProperty.containsKey(prop))
+          continue;
+        Integer ordinal = byName.get(prop.getName());
+        if (ordinal == null) {
+          ordinal = nextOrdinal++;
+          byName.put(prop.getName(), ordinal);
+        }
+        byProperty.put(prop, ordinal);
+      }
+    }
+  }
+
+  /**
+   * Returns the ordinal for a property
+   *
+   * @param prop
+   * @return
+   */
+  public int getOrdinal(ProxyProperty prop) {
+    Integer ordinal = byProperty.get(prop);
+    if (ordinal != null)
+      return ordinal;
+    return getOrdinal(prop.getName());
+  }
+
+  /**
+   * Returns the ordinal for a property name; null is the object itself
+   *
+   * @param propertyName
+   * @return
+   */
+  public int getOrdinal(String propertyName) {
+    if (propertyName == null)
+      return 0;
+    Integer ordinal = byName.get(propertyName);
+    if (ordinal != null)
+      return ordinal;
+    synchronized (this) {
+      ordinal = byName.get(propertyName);
+      if (ordinal == null) {
+        ordinal = nextOrdinal++;
+        byName.put(propertyName, ordinal);
+      }
+      return ordinal;
+    }
+  }
+}
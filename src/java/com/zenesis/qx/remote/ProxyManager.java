@@ -49,8 +49,9 @@ import org.apache.logging.log4j.Logger;
 
 import com.zenesis.core.HasUuid;
 import com.zenesis.qx.event.Event;
-import com.zenesis.qx.event.EventListener;
+import com.zenesis.qx.event.ImmediateEventListener;
 import com.zenesis.qx.remote.CommandId.CommandType;
+import com.zenesis.qx.remote.ResponseCompression.CompressedPayload;
 import com.zenesis.qx.remote.collections.ChangeData;
 import com.zenesis.qx.remote.collections.OnDemandReference;
 import com.zenesis.qx.remote.collections.OnDemandReferenceFactory;
@@ -66,7 +67,7 @@ import jakarta.servlet.http.HttpSession;
  * @author John Spackman
  *
  */
-public class ProxyManager implements EventListener {
+public class ProxyManager implements ImmediateEventListener {
 
   private static final Logger log = org.apache.logging.log4j.LogManager.getLogger(ProxyManager.class);
 
@@ -190,6 +191,61 @@ public class ProxyManager implements EventListener {
     }
   }
 
+  /**
+   * Helper method that handles a long poll request; the request is parked until
+   * there is something to send to the client (see LongPollChannel). The session
+   * must already have a tracker, ie the client must have bootstrapped via
+   * handleRequest, and the servlet must support asynchronous requests.
+   *
+   * @param request
+   * @param response
+   * @param appName
+   * @throws ServletException
+   * @throws IOException
+   */
+  public static void handleLongPoll(HttpServletRequest request, HttpServletResponse response, String appName)
+      throws ServletException, IOException {
+    HttpSession session = request.getSession(false);
+    ProxySessionTracker tracker = session != null ? (ProxySessionTracker) session.getAttribute(appName) : null;
+    if (tracker == null) {
+      response.sendError(HttpServletResponse.SC_NOT_FOUND, "No session for " + appName);
+      return;
+    }
+    tracker.getLongPoll().park(request);
+  }
+
+  /**
+   * Helper method that writes the class definition for a Proxied class, for
+   * clients which load class definitions separately (eg when precompiled types
+   * are used); the definition is generated and compressed only once, and is
+   * compressed if the client accepts it
+   *
+   * @param request
+   * @param response
+   * @param className
+   * @throws ServletException
+   * @throws IOException
+   */
+  public static void writeClassCode(HttpServletRequest request, HttpServletResponse response, String className)
+      throws ServletException, IOException {
+    // The class name comes from the request, so the class is not initialised
+    // until it is known to be Proxied
+    Class clazz;
+    try {
+      clazz = Class.forName(className, false, ProxyManager.class.getClassLoader());
+    } catch (ClassNotFoundException e) {
+      throw new ServletException("Unknown class " + className);
+    }
+    if (!Proxied.class.isAssignableFrom(clazz))
+      throw new ServletException("Class " + className + " is not Proxied");
+    ProxyType type = ProxyTypeManager.INSTANCE.getProxyType(clazz);
+    if (!(type instanceof AbstractProxyType))
+      throw new ServletException("Cannot write class definition for " + className);
+    CompressedPayload payload = ProxyTypeManager.INSTANCE.getClassCode((AbstractProxyType) type);
+    response.setContentType("application/javascript; charset=UTF-8");
+    payload.writeTo(response, request.getHeader("Accept-Encoding"));
+  }
+
   /**
    * Selects the tracker; must be called before (de)serialisation
    *
@@ -245,6 +301,7 @@ public class ProxyManager implements EventListener {
             throw new IllegalArgumentException("Cannot add tracker more than once, tracker=" + tracker);
           if (tmp == null) {
             current.set(i, tracker);
+            tracker.setSynced(true);
             return;
           }
         }
@@ -258,6 +315,7 @@ public class ProxyManager implements EventListener {
       if (s_syncedTrackers == null)
         s_syncedTrackers = new AtomicReference<AtomicReferenceArray<ProxySessionTracker>>();
       s_syncedTrackers.set(arr);
+      tracker.setSynced(true);
     } finally {
       mutex.unlock();
     }
@@ -279,6 +337,7 @@ public class ProxyManager implements EventListener {
         ProxySessionTracker tmp = current.get(i);
         if (tmp == tracker) {
           current.set(i, null);
+          tracker.setSynced(false);
           return;
         }
       }
@@ -469,15 +528,13 @@ public class ProxyManager implements EventListener {
     ProxySessionTracker tracker = getTracker();
     if (tracker != null)
       tracker.propertyChanged(keyObject, property, newValue, oldValue);
-    AtomicReferenceArray<ProxySessionTracker> trackers = s_syncedTrackers != null ? s_syncedTrackers.get() : null;
-    if (trackers != null) {
-      for (int i = 0; i < trackers.length(); i++) {
-        ProxySessionTracker tmp = trackers.get(i);
-        if (tmp != null && tmp != tracker) {
+    ProxySessionTracker[] subscribers = SubscriberIndex.INSTANCE.getSubscribers(keyObject);
+    if (subscribers.length != 0 && PropertyChangeFanout.isEnabled())
+      PropertyChangeFanout.propertyChanged(tracker, keyObject, property, newValue, oldValue);
+    else
+      for (ProxySessionTracker tmp : subscribers)
+        if (tmp != tracker)
           tmp.propertyChanged(keyObject, property, newValue, oldValue);
-        }
-      }
-    }
     if (property.isAutoPublish()) {
       publish((HasUuid) keyObject, property.getName(), newValue);
     }
@@ -514,14 +571,13 @@ public class ProxyManager implements EventListener {
     ProxySessionTracker tracker = getTracker();
     if (tracker != null)
       tracker.collectionChanged(keyObject, change);
-    AtomicReferenceArray<ProxySessionTracker> trackers = s_syncedTrackers != null ? s_syncedTrackers.get() : null;
-    if (trackers != null)
-      for (int i = 0; i < trackers.length(); i++) {
-        ProxySessionTracker tmp = trackers.get(i);
-        if (tmp != null && tmp != tracker) {
+    ProxySessionTracker[] subscribers = SubscriberIndex.INSTANCE.getSubscribers(keyObject);
+    if (subscribers.length != 0 && PropertyChangeFanout.isEnabled())
+      PropertyChangeFanout.collectionChanged(tracker, keyObject, change);
+    else
+      for (ProxySessionTracker tmp : subscribers)
+        if (tmp != tracker)
           tmp.collectionChanged(keyObject, change);
-        }
-      }
   }
 
   /**
@@ -534,8 +590,8 @@ public class ProxyManager implements EventListener {
    * @param newValue
    */
   public static void allPropertiesChanged(Proxied keyObject) {
-    AtomicReferenceArray<ProxySessionTracker> trackers = s_syncedTrackers != null ? s_syncedTrackers.get() : null;
-    if (trackers != null) {
+    if (s_syncedTrackers != null) {
+      ProxySessionTracker[] subscribers = SubscriberIndex.INSTANCE.getSubscribers(keyObject);
       ProxyType type = ProxyTypeManager.INSTANCE.getProxyType(keyObject.getClass());
       while (type != null) {
         for (ProxyProperty prop : type.getProperties().values()) {
@@ -544,11 +600,12 @@ public class ProxyManager implements EventListener {
             Object value = prop.getValue(keyObject);
             if (tracker != null)
               tracker.propertyChanged(keyObject, prop, value, null);
-            for (int i = 0; i < trackers.length(); i++) {
-              ProxySessionTracker tmp = trackers.get(i);
-              if (tmp != null && tmp != tracker)
-                tmp.propertyChanged(keyObject, prop, value, null);
-            }
+            if (subscribers.length != 0 && PropertyChangeFanout.isEnabled())
+              PropertyChangeFanout.propertyChanged(tracker, keyObject, prop, value, null);
+            else
+              for (ProxySessionTracker tmp : subscribers)
+                if (tmp != tracker)
+                  tmp.propertyChanged(keyObject, prop, value, null);
           } catch (ProxyException e) {
             log.error("Error while calling getValue on " + prop + " for " + keyObject + ": " + e.getMessage(), e);
           }
@@ -618,14 +675,13 @@ public class ProxyManager implements EventListener {
     ProxySessionTracker tracker = getTracker();
     if (tracker != null)
       tracker.expireProperty(keyObject, property);
-    AtomicReferenceArray<ProxySessionTracker> trackers = s_syncedTrackers != null ? s_syncedTrackers.get() : null;
-    if (trackers != null)
-      for (int i = 0; i < trackers.length(); i++) {
-        ProxySessionTracker tmp = trackers.get(i);
-        if (tmp != null && tmp != tracker) {
+    ProxySessionTracker[] subscribers = SubscriberIndex.INSTANCE.getSubscribers(keyObject);
+    if (subscribers.length != 0 && PropertyChangeFanout.isEnabled())
+      PropertyChangeFanout.expireProperty(tracker, keyObject, property);
+    else
+      for (ProxySessionTracker tmp : subscribers)
+        if (tmp != tracker)
           tmp.expireProperty(keyObject, property);
-        }
-      }
   }
 
   /**
@@ -651,14 +707,13 @@ public class ProxyManager implements EventListener {
     ProxySessionTracker tracker = getTracker();
     if (tracker != null)
       tracker.invalidateProperty(keyObject, property);
-    AtomicReferenceArray<ProxySessionTracker> trackers = s_syncedTrackers != null ? s_syncedTrackers.get() : null;
-    if (trackers != null)
-      for (int i = 0; i < trackers.length(); i++) {
-        ProxySessionTracker tmp = trackers.get(i);
-        if (tmp != null && tmp != tracker) {
+    ProxySessionTracker[] subscribers = SubscriberIndex.INSTANCE.getSubscribers(keyObject);
+    if (subscribers.length != 0 && PropertyChangeFanout.isEnabled())
+      PropertyChangeFanout.invalidateProperty(tracker, keyObject, property);
+    else
+      for (ProxySessionTracker tmp : subscribers)
+        if (tmp != tracker)
           tmp.invalidateProperty(keyObject, property);
-        }
-      }
   }
 
   /**
@@ -807,14 +862,7 @@ public class ProxyManager implements EventListener {
     ProxySessionTracker tracker = getTracker();
     if (tracker != null)
       tracker.invalidateCache(keyObject);
-    AtomicReferenceArray<ProxySessionTracker> trackers = s_syncedTrackers != null ? s_syncedTrackers.get() : null;
-    if (trackers != null)
-      for (int i = 0; i < trackers.length(); i++) {
-        ProxySessionTracker tmp = trackers.get(i);
-        if (tmp != null && tmp != tracker) {
-          tmp.invalidateCache(keyObject);
-        }
-      }
+    invalidateSubscribers(tracker, keyObject);
   }
 
   /**
@@ -828,15 +876,8 @@ public class ProxyManager implements EventListener {
       for (Proxied obj : keyObjects)
         tracker.invalidateCache(obj);
     }
-    AtomicReferenceArray<ProxySessionTracker> trackers = s_syncedTrackers != null ? s_syncedTrackers.get() : null;
-    if (trackers != null)
-      for (int i = 0; i < trackers.length(); i++) {
-        ProxySessionTracker tmp = trackers.get(i);
-        if (tmp != null && tmp != tracker) {
-          for (Proxied obj : keyObjects)
-            tmp.invalidateCache(obj);
-        }
-      }
+    for (Proxied obj : keyObjects)
+      invalidateSubscribers(tracker, obj);
   }
 
   /**
@@ -853,18 +894,25 @@ public class ProxyManager implements EventListener {
           tracker.invalidateCache((Proxied) obj);
       }
     }
-    AtomicReferenceArray<ProxySessionTracker> trackers = s_syncedTrackers != null ? s_syncedTrackers.get() : null;
-    if (trackers != null)
-      for (int i = 0; i < trackers.length(); i++) {
-        ProxySessionTracker tmp = trackers.get(i);
-        if (tmp != null && tmp != tracker) {
-          for (Iterator iter = list.iterator(); iter.hasNext();) {
-            Object obj = iter.next();
-            if (obj instanceof Proxied)
-              tmp.invalidateCache((Proxied) obj);
-          }
-        }
-      }
+    for (Iterator iter = list.iterator(); iter.hasNext();) {
+      Object obj = iter.next();
+      if (obj instanceof Proxied)
+        invalidateSubscribers(tracker, (Proxied) obj);
+    }
+  }
+
+  /*
+   * Invalidates the client cache for the object in the synchronised trackers
+   * which have it, other than the current tracker
+   */
+  private static void invalidateSubscribers(ProxySessionTracker tracker, Proxied keyObject) {
+    ProxySessionTracker[] subscribers = SubscriberIndex.INSTANCE.getSubscribers(keyObject);
+    if (subscribers.length != 0 && PropertyChangeFanout.isEnabled())
+      PropertyChangeFanout.invalidateCache(tracker, keyObject);
+    else
+      for (ProxySessionTracker tmp : subscribers)
+        if (tmp != tracker)
+          tmp.invalidateCache(keyObject);
   }
 
   /**
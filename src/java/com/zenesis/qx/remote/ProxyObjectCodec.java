@@ -0,0 +1,204 @@
+/**
+ * ************************************************************************
+ *
+ *    server-objects - a contrib to the Qooxdoo project that makes server
+ *    and client objects operate seamlessly; like Qooxdoo, server objects
+ *    have properties, events, and methods all of which can be access from
+ *    either server or client, regardless of where the original object was
+ *    created.
+ *
+ *    http://qooxdoo.org
+ *
+ *    Copyright:
+ *      2010 Zenesis Limited, http://www.zenesis.com
+ *
+ *    License:
+ *      LGPL: http://www.gnu.org/licenses/lgpl.html
+ *      EPL: http://www.eclipse.org/org/documents/epl-v10.php
+ *
+ *      This software is provided under the same licensing terms as Qooxdoo,
+ *      please see the LICENSE file in the Qooxdoo project's top-level directory
+ *      for details.
+ *
+ *    Authors:
+ *      * John Spackman (john.spackman@zenesis.com)
+ *
+ * ************************************************************************
+ */
+package com.zenesis.qx.remote;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Iterator;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.ObjectCodec;
+import com.fasterxml.jackson.core.TreeNode;
+import com.fasterxml.jackson.core.Version;
+import com.fasterxml.jackson.core.type.ResolvedType;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+/**
+ * Codec used to write JSON for a particular session; values are written with an
+ * ObjectWriter which carries the ProxySessionTracker as an attribute, so that
+ * the ObjectMapper itself does not need to know about the session and can be
+ * shared.
+ *
+ * Jackson serialises nested values (eg JsonGenerator.writeObject) via the
+ * generator's codec, so generators are created with this codec to make sure
+ * that the attribute is available at every level.
+ *
+ * @author John Spackman
+ *
+ */
+public class ProxyObjectCodec extends ObjectCodec {
+
+  // The mapper, possibly shared between sessions
+  private final ObjectMapper objectMapper;
+
+  // Writer which passes the tracker as an attribute
+  private final ObjectWriter objectWriter;
+
+  /**
+   * Constructor
+   *
+   * @param objectMapper
+   * @param tracker
+   */
+  public ProxyObjectCodec(ObjectMapper objectMapper, ProxySessionTracker tracker) {
+    super();
+    this.objectMapper = objectMapper;
+    this.objectWriter = objectMapper.writer().withAttribute(ProxyObjectMapper.TRACKER_ATTRIBUTE, tracker);
+  }
+
+  /**
+   * Writes a value to writer, closing the writer afterwards (in the same way
+   * as ObjectMapper.writeValue)
+   *
+   * @param writer
+   * @param value
+   * @throws IOException
+   */
+  public void writeValue(Writer writer, Object value) throws IOException {
+    JsonGenerator gen = createGenerator(writer);
+    try {
+      writeValue(gen, value);
+    } finally {
+      gen.close();
+    }
+  }
+
+  /**
+   * Creates a generator which uses this codec
+   *
+   * @param writer
+   * @return
+   * @throws IOException
+   */
+  public JsonGenerator createGenerator(Writer writer) throws IOException {
+    JsonGenerator gen = objectMapper.getFactory().createGenerator(writer);
+    gen.setCodec(this);
+    if (objectMapper.isEnabled(SerializationFeature.INDENT_OUTPUT))
+      gen.useDefaultPrettyPrinter();
+    return gen;
+  }
+
+  /**
+   * Returns the ObjectWriter, which passes the tracker as an attribute
+   *
+   * @return
+   */
+  public ObjectWriter getObjectWriter() {
+    return objectWriter;
+  }
+
+  /**
+   * Returns the ObjectMapper
+   *
+   * @return
+   */
+  public ObjectMapper getObjectMapper() {
+    return objectMapper;
+  }
+
+  @Override
+  public void writeValue(JsonGenerator gen, Object value) throws IOException {
+    objectWriter.writeValue(gen, value);
+  }
+
+  @Override
+  public Version version() {
+    return objectMapper.version();
+  }
+
+  @Override
+  public JsonFactory getFactory() {
+    return objectMapper.getFactory();
+  }
+
+  @Override
+  public <T> T readValue(JsonParser p, Class<T> valueType) throws IOException {
+    return objectMapper.readValue(p, valueType);
+  }
+
+  @Override
+  public <T> T readValue(JsonParser p, TypeReference<?> valueTypeRef) throws IOException {
+    return objectMapper.readValue(p, valueTypeRef);
+  }
+
+  @Override
+  public <T> T readValue(JsonParser p, ResolvedType valueType) throws IOException {
+    return objectMapper.readValue(p, valueType);
+  }
+
+  @Override
+  public <T> Iterator<T> readValues(JsonParser p, Class<T> valueType) throws IOException {
+    return objectMapper.readValues(p, valueType);
+  }
+
+  @Override
+  public <T> Iterator<T> readValues(JsonParser p, TypeReference<?> valueTypeRef) throws IOException {
+    return objectMapper.readValues(p, valueTypeRef);
+  }
+
+  @Override
+  public <T> Iterator<T> readValues(JsonParser p, ResolvedType valueType) throws IOException {
+    return objectMapper.readValues(p, valueType);
+  }
+
+  @Override
+  public <T extends TreeNode> T readTree(JsonParser p) throws IOException {
+    return objectMapper.readTree(p);
+  }
+
+  @Override
+  public void writeTree(JsonGenerator gen, TreeNode tree) throws IOException {
+    objectMapper.writeTree(gen, tree);
+  }
+
+  @Override
+  public TreeNode createObjectNode() {
+    return objectMapper.createObjectNode();
+  }
+
+  @Override
+  public TreeNode createArrayNode() {
+    return objectMapper.createArrayNode();
+  }
+
+  @Override
+  public JsonParser treeAsTokens(TreeNode n) {
+    return objectMapper.treeAsTokens(n);
+  }
+
+  @Override
+  public <T> T treeToValue(TreeNode n, Class<T> valueType) throws JsonProcessingException {
+    return objectMapper.treeToValue(n, valueType);
+  }
+}
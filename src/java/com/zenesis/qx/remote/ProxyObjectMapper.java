@@ -34,6 +34,7 @@ import java.text.SimpleDateFormat;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Locale;
 
 import org.apache.logging.log4j.Logger;
@@ -41,6 +42,7 @@ import org.bson.Document;
 
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.ObjectCodec;
 import com.fasterxml.jackson.databind.JsonSerializer;
 import com.fasterxml.jackson.databind.SerializerProvider;
 import com.fasterxml.jackson.databind.module.SimpleModule;
@@ -165,6 +167,12 @@ public class ProxyObjectMapper extends BasicObjectMapper {
     }
   }
 
+  /** the attribute used to pass the tracker to serialisers, see ProxyObjectCodec */
+  public static final String TRACKER_ATTRIBUTE = ProxySessionTracker.class.getName();
+
+  /** mappers which are shared between sessions, indexed by indent and rootDir */
+  private static final HashMap<String, ProxyObjectMapper> s_sharedMappers = new HashMap<String, ProxyObjectMapper>();
+
   /** the tracker */
   private final ProxySessionTracker tracker;
 
@@ -215,4 +223,44 @@ public class ProxyObjectMapper extends BasicObjectMapper {
   public ProxySessionTracker getTracker() {
     return tracker;
   }
+
+  /**
+   * Returns the tracker for a serialiser; this is the tracker attribute if
+   * there is one (ie the mapper is shared between sessions), otherwise the
+   * tracker is taken from the mapper
+   *
+   * @param gen
+   * @param sp
+   * @return
+   */
+  public static ProxySessionTracker getTracker(JsonGenerator gen, SerializerProvider sp) {
+    ProxySessionTracker tracker = (ProxySessionTracker) sp.getAttribute(TRACKER_ATTRIBUTE);
+    if (tracker != null)
+      return tracker;
+    ObjectCodec codec = gen.getCodec();
+    if (codec instanceof ProxyObjectMapper)
+      return ((ProxyObjectMapper) codec).getTracker();
+    return null;
+  }
+
+  /**
+   * Returns a mapper which is not tied to a session and can be shared by all
+   * sessions; the tracker is passed to serialisers as an attribute by
+   * ProxyObjectCodec
+   *
+   * @param indent  whether to indent JSON
+   * @param rootDir root directory to serialise all File's as relative to
+   * @return
+   */
+  public static ProxyObjectMapper getSharedMapper(boolean indent, File rootDir) {
+    String key = indent + ":" + (rootDir == null ? "" : rootDir.getAbsolutePath());
+    synchronized (s_sharedMappers) {
+      ProxyObjectMapper mapper = s_sharedMappers.get(key);
+      if (mapper == null) {
+        mapper = new ProxyObjectMapper(null, indent, rootDir);
+        s_sharedMappers.put(key, mapper);
+      }
+      return mapper;
+    }
+  }
 }
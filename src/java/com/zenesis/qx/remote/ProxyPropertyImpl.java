@@ -1,15 +1,22 @@
 package com.zenesis.qx.remote;
 
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.math.BigDecimal;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -43,6 +50,8 @@ public class ProxyPropertyImpl extends AbstractProxyProperty {
 
   private static final Class[] NO_CLASSES = {};
 
+  private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
   // The class the property belongs to
   private final Class clazz;
 
@@ -58,6 +67,21 @@ public class ProxyPropertyImpl extends AbstractProxyProperty {
   private Method expireMethod;
   private boolean isAutoPublish;
 
+  // Accessors and translators bound as method handles, where every parameter and
+  // the return type is Object; bound once when the accessors are found, so that
+  // getValue/setValue etc do not use reflection
+  private MethodHandle getHandle;
+  private MethodHandle setMethodHandle;
+  private MethodHandle setFieldHandle;
+
+  // Get and set methods compiled into lambdas, which the JIT can inline; null if
+  // the method is not public (in which case the method handle is used)
+  private Function<Object, Object> getFunction;
+  private BiConsumer<Object, Object> setFunction;
+  private MethodHandle serializeHandle;
+  private MethodHandle deserializeHandle;
+  private MethodHandle expireHandle;
+
   // Annotation
   private final Property anno;
 
@@ -115,6 +139,9 @@ public class ProxyPropertyImpl extends AbstractProxyProperty {
       deserializeMethod = findMethod(anno.deserialize(), new Class[] { ProxyProperty.class, Object.class });
     if (anno.expire().length() > 0)
       expireMethod = findMethod(anno.expire(), new Class[] { ProxyProperty.class });
+    serializeHandle = bind(serializeMethod);
+    deserializeHandle = bind(deserializeMethod);
+    expireHandle = bind(expireMethod);
     getAccessors();
   }
 
@@ -135,6 +162,113 @@ public class ProxyPropertyImpl extends AbstractProxyProperty {
     }
   }
 
+  /**
+   * Binds a method as a method handle which takes the object followed by the
+   * method's parameters, all as Object, and returns Object (null for void
+   * methods)
+   *
+   * @param method
+   * @return the handle, or null if method is null
+   */
+  private MethodHandle bind(Method method) {
+    if (method == null)
+      return null;
+    try {
+      MethodHandle handle = LOOKUP.unreflect(method);
+      if (Modifier.isStatic(method.getModifiers()))
+        handle = MethodHandles.dropArguments(handle, 0, clazz);
+      return handle.asType(MethodType.genericMethodType(method.getParameterCount() + 1));
+    } catch (IllegalAccessException e) {
+      throw new IllegalStateException("Cannot access " + method + " for property " + this + ": " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Detects whether a method can be called by a lambda generated here, ie without
+   * setAccessible
+   *
+   * @param method
+   * @return
+   */
+  private static boolean isPublic(Method method) {
+    if (!Modifier.isPublic(method.getModifiers()) || Modifier.isStatic(method.getModifiers()))
+      return false;
+    for (Class tmp = method.getDeclaringClass(); tmp != null; tmp = tmp.getEnclosingClass())
+      if (!Modifier.isPublic(tmp.getModifiers()))
+        return false;
+    return true;
+  }
+
+  /**
+   * Generates a Function which calls a get method
+   *
+   * @param method
+   * @return the function, or null if the method cannot be called that way
+   */
+  @SuppressWarnings("unchecked")
+  private Function<Object, Object> generateGetFunction(Method method) {
+    if (!isPublic(method))
+      return null;
+    try {
+      MethodHandle impl = LOOKUP.unreflect(method);
+      return (Function<Object, Object>) LambdaMetafactory
+          .metafactory(LOOKUP, "apply", MethodType.methodType(Function.class), MethodType.genericMethodType(1), impl,
+              MethodType.methodType(method.getReturnType(), clazz).wrap())
+          .getTarget().invoke();
+    } catch (Throwable e) {
+      log.warn("Cannot generate get function for " + this + ", using method handle instead: " + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Generates a BiConsumer which calls a set method
+   *
+   * @param method
+   * @return the consumer, or null if the method cannot be called that way
+   */
+  @SuppressWarnings("unchecked")
+  private BiConsumer<Object, Object> generateSetFunction(Method method) {
+    if (!isPublic(method))
+      return null;
+    try {
+      MethodHandle impl = LOOKUP.unreflect(method);
+      return (BiConsumer<Object, Object>) LambdaMetafactory
+          .metafactory(LOOKUP, "accept", MethodType.methodType(BiConsumer.class),
+              MethodType.methodType(void.class, Object.class, Object.class), impl,
+              MethodType.methodType(void.class, clazz, method.getParameterTypes()[0]).wrap().changeReturnType(void.class))
+          .getTarget().invoke();
+    } catch (Throwable e) {
+      log.warn("Cannot generate set function for " + this + ", using method handle instead: " + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Binds the getter and setter for the field and/or methods
+   */
+  private void bindAccessors() {
+    try {
+      if (getMethod != null) {
+        getHandle = bind(getMethod);
+        getFunction = generateGetFunction(getMethod);
+      } else if (field != null)
+        getHandle = LOOKUP.unreflectGetter(field).asType(MethodType.genericMethodType(1));
+      if (setMethod != null) {
+        setMethodHandle = bind(setMethod);
+        setFunction = generateSetFunction(setMethod);
+      }
+    } catch (IllegalAccessException e) {
+      throw new IllegalStateException("Cannot access accessors for property " + this + ": " + e.getMessage(), e);
+    }
+    if (field != null)
+      try {
+        setFieldHandle = LOOKUP.unreflectSetter(field).asType(MethodType.genericMethodType(2));
+      } catch (IllegalAccessException e) {
+        // Static final fields cannot be written; setFieldHandle stays null
+      }
+  }
+
   @Override
   protected Spec analyse() {
     getAccessors();
@@ -264,6 +398,7 @@ public class ProxyPropertyImpl extends AbstractProxyProperty {
     }
 
     // Finish up
+    bindAccessors();
     if (sendExceptions == null)
       sendExceptions = false;
     if (readOnly == null) {
@@ -286,26 +421,21 @@ public class ProxyPropertyImpl extends AbstractProxyProperty {
   public Object getValue(Proxied proxied) throws ProxyException {
     getAccessors();
     Object result = null;
-    try {
-      if (field != null)
-        result = field.get(proxied);
-      else if (getMethod != null)
-        result = getMethod.invoke(proxied);
-      else
-        log.error("Cannot get value for " + this + " because there is no accessor");
+    if (getHandle != null) {
+      try {
+        if (getFunction != null)
+          result = getFunction.apply(proxied);
+        else
+          result = (Object) getHandle.invokeExact((Object) proxied);
+      } catch (Throwable t) {
+        log.error("Exception while getting value for " + this + " on " + proxied + ": " + t.getMessage(), t);
+        throw new ProxyException(proxied,
+            "Cannot read property " + name + " in class " + clazz + " in object " + proxied + ": " + t.getMessage(), t);
+      }
+    } else
+      log.error("Cannot get value for " + this + " because there is no accessor");
 
-      result = serialize(proxied, result);
-    } catch (InvocationTargetException e) {
-      Throwable t = e.getTargetException();
-      log.error("Exception while getting value for " + this + " on " + proxied + ": " + t.getMessage(), t);
-      throw new ProxyException(proxied,
-          "Cannot read property " + name + " in class " + clazz + " in object " + proxied + ": " + t.getMessage(), t);
-    } catch (IllegalAccessException e) {
-      log.error("Exception while getting value for " + this + " on " + proxied + ": " + e.getMessage(), e);
-      throw new ProxyException(proxied,
-          "Cannot read property " + name + " in class " + clazz + " in object " + proxied + ": " + e.getMessage(), e);
-    }
-    return result;
+    return serialize(proxied, result);
   }
 
   /**
@@ -355,9 +485,9 @@ public class ProxyPropertyImpl extends AbstractProxyProperty {
               throw new IllegalStateException("Cannot set the value on a read only property " + this);
             }
             if (setMethod != null)
-              setMethod.invoke(proxied, coll);
+              invokeSetter(setMethodHandle, setFunction, setMethod.getParameterTypes()[0], proxied, coll);
             else
-              field.set(proxied, value);
+              invokeSetter(setFieldHandle, null, field.getType(), proxied, value);
           }
           changedValue(proxied, value, oldValue);
           return;
@@ -368,13 +498,13 @@ public class ProxyPropertyImpl extends AbstractProxyProperty {
         // If it's not a collection then we don't try to handle it because we want Java
         // autoboxing to handle conversions between primitive types
         if (value == null || !propertyClass.isCollection()) {
-          setMethod.invoke(proxied, value);
+          invokeSetter(setMethodHandle, setFunction, setMethod.getParameterTypes()[0], proxied, value);
           changedValue(proxied, value, oldValue);
           return;
         }
         Class type = setMethod.getParameterTypes()[0];
         if (type.isAssignableFrom(value.getClass())) {
-          setMethod.invoke(proxied, value);
+          invokeSetter(setMethodHandle, setFunction, setMethod.getParameterTypes()[0], proxied, value);
           changedValue(proxied, value, oldValue);
           return;
         }
@@ -382,7 +512,7 @@ public class ProxyPropertyImpl extends AbstractProxyProperty {
 
       if (field != null) {
         if (!readOnly) {
-          field.set(proxied, value);
+          invokeSetter(setFieldHandle, null, field.getType(), proxied, value);
           changedValue(proxied, value, oldValue);
           return;
         }
@@ -415,6 +545,133 @@ public class ProxyPropertyImpl extends AbstractProxyProperty {
     }
   }
 
+  /**
+   * Calls a setter handle, checking and widening the value in the same way as
+   * Method.invoke and Field.set
+   *
+   * @param handle   the setter, null if the field cannot be written
+   * @param function the setter compiled as a lambda, if available
+   * @param type     the type of the property in the setter
+   * @param proxied
+   * @param value
+   * @throws InvocationTargetException if the setter throws an exception
+   * @throws IllegalAccessException if there is no setter
+   * @throws IllegalArgumentException if the value is not compatible with the type
+   */
+  private void invokeSetter(MethodHandle handle, BiConsumer<Object, Object> function, Class type, Proxied proxied,
+      Object value) throws InvocationTargetException, IllegalAccessException {
+    if (handle == null)
+      throw new IllegalAccessException("Cannot write final field " + field);
+    value = coerce(type, value);
+    try {
+      if (function != null) {
+        function.accept(proxied, value);
+      } else {
+        Object unused = (Object) handle.invokeExact((Object) proxied, value);
+      }
+    } catch (Throwable t) {
+      throw new InvocationTargetException(t);
+    }
+  }
+
+  /**
+   * Checks that a value can be passed as a parameter of type, applying the
+   * primitive widening conversions that reflection allows (eg Integer to long)
+   *
+   * @param type
+   * @param value
+   * @return
+   * @throws IllegalArgumentException if the value is not compatible
+   */
+  private static Object coerce(Class type, Object value) throws IllegalArgumentException {
+    if (!type.isPrimitive()) {
+      if (value != null && !type.isInstance(value))
+        throw new IllegalArgumentException("argument type mismatch, expected " + type.getName() + " but found " +
+            value.getClass().getName());
+      return value;
+    }
+    if (value == null)
+      throw new IllegalArgumentException("Cannot set null to primitive type " + type.getName());
+    if (MethodType.methodType(type).wrap().returnType().isInstance(value))
+      return value;
+    if (type != boolean.class && type != char.class) {
+      // Widening, eg Integer to long; char to short is not widening, but both have
+      // the same rank
+      int srcRank = primitiveRank(value);
+      if (srcRank > 0 && srcRank < primitiveRank(type)) {
+        Number num = value instanceof Character ? Integer.valueOf((Character) value) : (Number) value;
+        if (type == short.class)
+          return num.shortValue();
+        if (type == int.class)
+          return num.intValue();
+        if (type == long.class)
+          return num.longValue();
+        if (type == float.class)
+          return num.floatValue();
+        if (type == double.class)
+          return num.doubleValue();
+      }
+    }
+    throw new IllegalArgumentException("argument type mismatch, expected " + type.getName() + " but found " +
+        value.getClass().getName());
+  }
+
+  /*
+   * Orders the numeric primitive types for widening conversions; 0 if not numeric
+   */
+  private static int primitiveRank(Object value) {
+    if (value instanceof Byte)
+      return 1;
+    if (value instanceof Short || value instanceof Character)
+      return 2;
+    if (value instanceof Integer)
+      return 3;
+    if (value instanceof Long)
+      return 4;
+    if (value instanceof Float)
+      return 5;
+    if (value instanceof Double)
+      return 6;
+    return 0;
+  }
+
+  /*
+   * Orders the numeric primitive types for widening conversions; 0 if not numeric
+   */
+  private static int primitiveRank(Class type) {
+    if (type == byte.class)
+      return 1;
+    if (type == short.class || type == char.class)
+      return 2;
+    if (type == int.class)
+      return 3;
+    if (type == long.class)
+      return 4;
+    if (type == float.class)
+      return 5;
+    if (type == double.class)
+      return 6;
+    return 0;
+  }
+
+  /**
+   * Calls a (de-)serialiser handle
+   *
+   * @param handle
+   * @param proxied
+   * @param value
+   * @return
+   * @throws InvocationTargetException if the method throws an exception
+   */
+  private Object invokeTranslator(MethodHandle handle, Proxied proxied, Object value)
+      throws InvocationTargetException {
+    try {
+      return (Object) handle.invokeExact((Object) proxied, (Object) this, value);
+    } catch (Throwable t) {
+      throw new InvocationTargetException(t);
+    }
+  }
+
   /**
    * Called when setValue has just changed the value of a property
    *
@@ -437,20 +694,13 @@ public class ProxyPropertyImpl extends AbstractProxyProperty {
   @Override
   public void expire(Proxied proxied) {
     getAccessors();
-    if (expireMethod != null)
+    if (expireHandle != null)
       try {
-        expireMethod.invoke(proxied, this);
-      } catch (InvocationTargetException e) {
-        Throwable t = e.getTargetException();
+        Object unused = (Object) expireHandle.invokeExact((Object) proxied, (Object) this);
+      } catch (Throwable t) {
         throw new IllegalArgumentException(
             "Cannot write property " + name + " in class " + clazz + " in object " + proxied + ": " + t.getMessage(),
             t);
-      } catch (IllegalAccessException e) {
-        throw new IllegalArgumentException(
-            "Cannot write property " + name + " in class " + clazz + " in object " + proxied + ": " + e.getMessage(),
-            e);
-      } catch (IllegalArgumentException e) {
-        throw new IllegalArgumentException("Failed to expire value for property " + name + " in class " + clazz, e);
       }
   }
 
@@ -464,18 +714,12 @@ public class ProxyPropertyImpl extends AbstractProxyProperty {
   @Override
   public Object serialize(Proxied proxied, Object value) {
     try {
-      if (serializeMethod != null)
-        value = serializeMethod.invoke(proxied, this, value);
+      if (serializeHandle != null)
+        value = invokeTranslator(serializeHandle, proxied, value);
     } catch (InvocationTargetException e) {
       Throwable t = e.getTargetException();
       throw new IllegalArgumentException(
           "Cannot write property " + name + " in class " + clazz + " in object " + proxied + ": " + t.getMessage(), t);
-    } catch (IllegalAccessException e) {
-      throw new IllegalArgumentException(
-          "Cannot write property " + name + " in class " + clazz + " in object " + proxied + ": " + e.getMessage(), e);
-    } catch (IllegalArgumentException e) {
-      throw new IllegalArgumentException(
-          "Failed to set value for property " + name + " in class " + clazz + " to value " + value, e);
     }
     if (value instanceof Date && dateValues == DateValues.DATE) {
       value = new SimpleDateFormat("yyyy-MM-dd").format((Date) value);
@@ -524,15 +768,12 @@ public class ProxyPropertyImpl extends AbstractProxyProperty {
               proxied + " because value '" + value + "' is not compatible");
         }
       }
-      if (deserializeMethod != null)
-        value = deserializeMethod.invoke(proxied, this, value);
+      if (deserializeHandle != null)
+        value = invokeTranslator(deserializeHandle, proxied, value);
     } catch (InvocationTargetException e) {
       Throwable t = e.getTargetException();
       throw new IllegalArgumentException(
           "Cannot write property " + name + " in class " + clazz + " in object " + proxied + ": " + t.getMessage(), t);
-    } catch (IllegalAccessException e) {
-      throw new IllegalArgumentException(
-          "Cannot write property " + name + " in class " + clazz + " in object " + proxied + ": " + e.getMessage(), e);
     } catch (IllegalArgumentException e) {
       throw new IllegalArgumentException(
           "Failed to set value for property " + name + " in class " + clazz + " to value " + value, e);
@@ -36,10 +36,12 @@ import java.io.Writer;
 import java.lang.ref.WeakReference;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.UUID;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -53,8 +55,10 @@ import com.fasterxml.jackson.databind.JsonSerializable;
 import com.fasterxml.jackson.databind.SerializerProvider;
 import com.fasterxml.jackson.databind.jsontype.TypeSerializer;
 import com.zenesis.qx.event.EventManager;
+import com.zenesis.qx.remote.annotations.Remote;
 import com.zenesis.qx.remote.collections.ChangeData;
-import com.zenesis.qx.utils.ArrayUtils;
+import com.zenesis.qx.remote.collections.ChangeLog;
+import com.zenesis.qx.utils.IdentityRegistry;
 
 /**
  * This class tracks the uses of Proxies and ProxyTypes for a particular
@@ -340,41 +344,19 @@ public class ProxySessionTracker implements UploadInterceptor {
   }
 
   /*
-   * Class used to identify a property
+   * State of the properties of an object, held as two bits per property ordinal
+   * (see PropertyOrdinals)
    */
-  private static final class PropertyId {
-    private final Proxied proxied;
-    private final String propertyName;
+  private static final class PropertyFlags {
+    private static final int ON_DEMAND = 0;
+    private static final int MUTATING = 1;
 
-    public PropertyId(Proxied proxied, String propertyName) {
-      super();
-      this.proxied = proxied;
-      this.propertyName = propertyName;
-    }
+    private final PropertyOrdinals ordinals;
+    private final BitSet bits = new BitSet();
 
-    /*
-     * (non-Javadoc)
-     *
-     * @see java.lang.Object#hashCode()
-     */
-    @Override
-    public int hashCode() {
-      if (propertyName == null)
-        return proxied.hashCode();
-      return proxied.hashCode() ^ propertyName.hashCode();
-    }
-
-    /*
-     * (non-Javadoc)
-     *
-     * @see java.lang.Object#equals(java.lang.Object)
-     */
-    @Override
-    public boolean equals(Object obj) {
-      PropertyId that = (PropertyId) obj;
-      if (propertyName == null)
-        return that.proxied == proxied && that.propertyName == null;
-      return that.proxied == proxied && propertyName.equals(that.propertyName);
+    public PropertyFlags(PropertyOrdinals ordinals) {
+      super();
+      this.ordinals = ordinals;
     }
   }
 
@@ -382,13 +364,15 @@ public class ProxySessionTracker implements UploadInterceptor {
   private final HashSet<ProxyType> deliveredTypes = new HashSet<ProxyType>();
 
   // Mapping all objects that the client knows about against the ID we assigned to
-  // them
-  private final HashMap<Integer, Proxied> objectsById = new HashMap<Integer, Proxied>();
-  private final HashMap<Proxied, Integer> objectIds = new HashMap<Proxied, Integer>();
+  // them; objects are compared by identity, and lookups do not lock
+  private final IdentityRegistry<Proxied> objects = new IdentityRegistry<Proxied>();
+  // Whether this is a synchronised tracker, in which case objects are also
+  // recorded in the SubscriberIndex
+  private volatile boolean synced;
   private HashSet<Integer> disposedObjectIds;
   private final HashSet<Proxied> invalidObjects = new HashSet<Proxied>();
-  private final HashSet<PropertyId> knownOnDemandProperties = new HashSet<ProxySessionTracker.PropertyId>();
-  private final HashSet<PropertyId> mutatingProperties = new HashSet<ProxySessionTracker.PropertyId>();
+  // On-demand values known by the client and properties being mutated, by object
+  private final IdentityHashMap<Proxied, PropertyFlags> propertyFlags = new IdentityHashMap<Proxied, PropertyFlags>();
   private final HashSet<String> subscriptions = new HashSet<>();
   private int highestRequestIndex;
 
@@ -398,6 +382,12 @@ public class ProxySessionTracker implements UploadInterceptor {
   // The Object mapper
   private ProxyObjectMapper objectMapper;
 
+  // Codec used to write JSON for this session
+  private ProxyObjectCodec objectCodec;
+
+  // Whether to use an object mapper which is shared between all sessions
+  private static boolean s_sharedObjectMapper;
+
   // Server IDs are assigned incrementally from 0
   private int nextServerId;
 
@@ -415,6 +405,9 @@ public class ProxySessionTracker implements UploadInterceptor {
   private static int s_serialNo;
   private Date lastClientTime;
   private final Lock requestLock = new ReentrantLock();
+  private SessionMailbox mailbox;
+  private volatile LongPollChannel longPoll;
+  private volatile CommandChannel commandChannel;
   private boolean disposed;
 
   /**
@@ -447,6 +440,7 @@ public class ProxySessionTracker implements UploadInterceptor {
     super();
     this.bootstrapClass = bootstrapClass;
     objectMapper = createObjectMapper(rootDir);
+    objectCodec = new ProxyObjectCodec(objectMapper, this);
     synchronized (this) {
       serialNo = ++s_serialNo;
     }
@@ -457,11 +451,14 @@ public class ProxySessionTracker implements UploadInterceptor {
   }
 
   /**
-   * Creates an object mapper
+   * Creates an object mapper; if shared object mappers are enabled, the same
+   * mapper is returned for every session
    *
    * @return
    */
   protected ProxyObjectMapper createObjectMapper(File rootDir) {
+    if (s_sharedObjectMapper)
+      return ProxyObjectMapper.getSharedMapper(log.isDebugEnabled(), rootDir);
     return new ProxyObjectMapper(this, log.isDebugEnabled(), rootDir);
   }
 
@@ -472,8 +469,14 @@ public class ProxySessionTracker implements UploadInterceptor {
     resetBootstrap();
     queue = null;
     deliveredTypes.clear();
-    objectsById.clear();
-    objectIds.clear();
+    synchronized (this) {
+      if (synced)
+        SubscriberIndex.INSTANCE.removeAll(objects.values(), this);
+      objects.clear();
+    }
+    synchronized (propertyFlags) {
+      propertyFlags.clear();
+    }
     nextServerId = 0;
     highestRequestIndex = 0;
   }
@@ -483,6 +486,32 @@ public class ProxySessionTracker implements UploadInterceptor {
    */
   public void dispose() {
     disposed = true;
+    setSynced(false);
+    LongPollChannel longPoll = this.longPoll;
+    if (longPoll != null)
+      longPoll.close();
+    CommandChannel commandChannel = this.commandChannel;
+    if (commandChannel != null)
+      commandChannel.close();
+  }
+
+  /**
+   * Called by ProxyManager when the tracker is added to or removed from the
+   * synchronised trackers, so that the SubscriberIndex can route changes to
+   * objects to this tracker
+   *
+   * @param synced
+   */
+  /* package */ synchronized void setSynced(boolean synced) {
+    if (this.synced == synced)
+      return;
+    this.synced = synced;
+    for (Proxied proxied : objects.values()) {
+      if (synced)
+        SubscriberIndex.INSTANCE.add(proxied, this);
+      else
+        SubscriberIndex.INSTANCE.remove(proxied, this);
+    }
   }
 
   /**
@@ -576,6 +605,60 @@ public class ProxySessionTracker implements UploadInterceptor {
     return requestLock;
   }
 
+  /**
+   * Returns the queue of requests waiting to be processed, created on demand
+   *
+   * @return the mailbox
+   */
+  public synchronized SessionMailbox getMailbox() {
+    if (mailbox == null)
+      mailbox = new SessionMailbox(this);
+    return mailbox;
+  }
+
+  /**
+   * Returns the channel which holds a parked long poll request, created on
+   * demand
+   *
+   * @return the long poll channel
+   */
+  public synchronized LongPollChannel getLongPoll() {
+    if (longPoll == null)
+      longPoll = new LongPollChannel(this);
+    return longPoll;
+  }
+
+  /**
+   * Returns the persistent connection to the client, if there is one
+   *
+   * @return the channel, or null
+   */
+  public CommandChannel getCommandChannel() {
+    return commandChannel;
+  }
+
+  /**
+   * Called by CommandChannel when it opens
+   *
+   * @param commandChannel
+   * @return the previous channel, if any
+   */
+  /* package */ synchronized CommandChannel setCommandChannel(CommandChannel commandChannel) {
+    CommandChannel previous = this.commandChannel;
+    this.commandChannel = commandChannel;
+    return previous;
+  }
+
+  /**
+   * Called by CommandChannel when it closes
+   *
+   * @param commandChannel
+   */
+  /* package */ synchronized void clearCommandChannel(CommandChannel commandChannel) {
+    if (this.commandChannel == commandChannel)
+      this.commandChannel = null;
+  }
+
   /**
    * @return the lastClientTime
    */
@@ -609,8 +692,8 @@ public class ProxySessionTracker implements UploadInterceptor {
       return null;
 
     // See if it's an object the client already knows about
-    Integer serverId = objectIds.get(obj);
-    if (serverId != null) {
+    int serverId = objects.getId(obj);
+    if (serverId != IdentityRegistry.NO_ID) {
       if (invalidObjects.remove(obj)) {
         ProxyType type = getProxyType(obj);
         return new Proxy(obj, serverId, type, true);
@@ -625,8 +708,9 @@ public class ProxySessionTracker implements UploadInterceptor {
     serverId = nextServerId++;
 
     // Store mappings for ID and Proxied object
-    objectsById.put(serverId, obj);
-    objectIds.put(obj, serverId);
+    objects.put(obj, serverId);
+    if (synced)
+      SubscriberIndex.INSTANCE.add(obj, this);
 
     // Return the information for the client
     return new Proxy(obj, serverId, type, true);
@@ -654,7 +738,7 @@ public class ProxySessionTracker implements UploadInterceptor {
    * @param obj
    */
   public synchronized void invalidateCache(Proxied proxied) {
-    if (objectIds.containsKey(proxied))
+    if (objects.contains(proxied))
       invalidObjects.add(proxied);
   }
 
@@ -664,11 +748,14 @@ public class ProxySessionTracker implements UploadInterceptor {
    * @param proxied
    */
   public synchronized void forget(Proxied proxied) {
-    Integer id = objectIds.get(proxied);
-    if (id != null) {
-      objectIds.remove(proxied);
-      objectsById.remove(id);
+    int id = objects.remove(proxied);
+    synchronized (propertyFlags) {
+      propertyFlags.remove(proxied);
+    }
+    if (id != IdentityRegistry.NO_ID) {
       invalidObjects.remove(proxied);
+      if (synced)
+        SubscriberIndex.INSTANCE.remove(proxied, this);
       if (log.isDebugEnabled()) {
         if (disposedObjectIds == null)
           disposedObjectIds = new HashSet();
@@ -683,11 +770,14 @@ public class ProxySessionTracker implements UploadInterceptor {
    * @param proxied
    */
   public synchronized void forget(int serverId) {
-    Proxied proxied = objectsById.get(serverId);
+    Proxied proxied = objects.remove(serverId);
     if (proxied != null) {
-      objectIds.remove(proxied);
-      objectsById.remove(serverId);
+      synchronized (propertyFlags) {
+        propertyFlags.remove(proxied);
+      }
       invalidObjects.remove(proxied);
+      if (synced)
+        SubscriberIndex.INSTANCE.remove(proxied, this);
       if (log.isDebugEnabled()) {
         if (disposedObjectIds == null)
           disposedObjectIds = new HashSet();
@@ -704,15 +794,16 @@ public class ProxySessionTracker implements UploadInterceptor {
    * @return the new ID for the object
    */
   public synchronized int addClientObject(Proxied proxied) {
-    if (objectIds.containsKey(proxied))
+    if (objects.contains(proxied))
       throw new IllegalArgumentException("Cannot add an existing server object as a client object");
 
     // Get an ID
     int serverId = nextServerId++;
 
     // Store mappings for ID and Proxied object
-    objectsById.put(serverId, proxied);
-    objectIds.put(proxied, serverId);
+    objects.put(proxied, serverId);
+    if (synced)
+      SubscriberIndex.INSTANCE.add(proxied, this);
 
     return serverId;
   }
@@ -723,24 +814,29 @@ public class ProxySessionTracker implements UploadInterceptor {
    * @param id the ID that was originally passed to the client
    * @return the object, or null
    */
-  public synchronized Proxied getProxied(int id) {
+  public Proxied getProxied(int id) {
     Proxied proxied = null;
     if (id < 0) {
-      if (clientObjects != null) {
-        WeakReference<Proxied> ref = clientObjects.get(id);
-        if (ref != null) {
-          proxied = ref.get();
-          if (proxied == null)
-            clientObjects.remove(id);
+      synchronized (this) {
+        if (clientObjects != null) {
+          WeakReference<Proxied> ref = clientObjects.get(id);
+          if (ref != null) {
+            proxied = ref.get();
+            if (proxied == null)
+              clientObjects.remove(id);
+          }
         }
       }
     } else
-      proxied = objectsById.get(id);
+      proxied = objects.get(id);
     if (proxied == null) {
-      if (log.isDebugEnabled() && disposedObjectIds != null)
-        if (disposedObjectIds.contains(id))
-          throw new IllegalArgumentException(
-              "Cannot find Proxied instance for invalid proxied ID " + id + " - object already disposed");
+      if (log.isDebugEnabled()) {
+        synchronized (this) {
+          if (disposedObjectIds != null && disposedObjectIds.contains(id))
+            throw new IllegalArgumentException(
+                "Cannot find Proxied instance for invalid proxied ID " + id + " - object already disposed");
+        }
+      }
       throw new IllegalArgumentException("Cannot find Proxied instance for invalid proxied ID " + id);
     }
     return proxied;
@@ -752,9 +848,8 @@ public class ProxySessionTracker implements UploadInterceptor {
    * @param proxied
    * @return
    */
-  public synchronized boolean hasProxied(Proxied proxied) {
-    Integer serverId = objectIds.get(proxied);
-    return serverId != null;
+  public boolean hasProxied(Proxied proxied) {
+    return objects.contains(proxied);
   }
   
   /**
@@ -763,9 +858,9 @@ public class ProxySessionTracker implements UploadInterceptor {
    * @param proxied
    * @return the server id, null if not sent to the client yet
    */
-  public synchronized Integer getServerId(Proxied proxied) {
-    Integer serverId = objectIds.get(proxied);
-    return serverId;
+  public Integer getServerId(Proxied proxied) {
+    int serverId = objects.getId(proxied);
+    return serverId == IdentityRegistry.NO_ID ? null : serverId;
   }
 
   /**
@@ -821,10 +916,14 @@ public class ProxySessionTracker implements UploadInterceptor {
    * @param propertyName
    */
   public void beginMutate(Proxied proxied, String propertyName) {
-    PropertyId id = new PropertyId(proxied, propertyName);
-    if (mutatingProperties.contains(id))
-      throw new IllegalArgumentException("Property " + id + " is already being mutated");
-    mutatingProperties.add(id);
+    synchronized (propertyFlags) {
+      PropertyFlags flags = getPropertyFlags(proxied, true);
+      int bit = flags.ordinals.getOrdinal(propertyName) * 2 + PropertyFlags.MUTATING;
+      if (flags.bits.get(bit))
+        throw new IllegalArgumentException(
+            "Property " + propertyName + " of " + proxied + " is already being mutated");
+      flags.bits.set(bit);
+    }
   }
 
   /**
@@ -834,9 +933,13 @@ public class ProxySessionTracker implements UploadInterceptor {
    * @param propertyName
    */
   public void endMutate(Proxied proxied, String propertyName) {
-    PropertyId id = new PropertyId(proxied, propertyName);
-    if (!mutatingProperties.remove(id))
-      throw new IllegalArgumentException("Property " + id + " is not being mutated");
+    synchronized (propertyFlags) {
+      PropertyFlags flags = getPropertyFlags(proxied, false);
+      int bit = flags == null ? -1 : flags.ordinals.getOrdinal(propertyName) * 2 + PropertyFlags.MUTATING;
+      if (flags == null || !flags.bits.get(bit))
+        throw new IllegalArgumentException("Property " + propertyName + " of " + proxied + " is not being mutated");
+      clearPropertyFlag(proxied, flags, bit);
+    }
   }
 
   /**
@@ -846,8 +949,58 @@ public class ProxySessionTracker implements UploadInterceptor {
    * @param propertyName
    */
   public boolean isMutating(Proxied proxied, String propertyName) {
-    PropertyId id = new PropertyId(proxied, propertyName);
-    return mutatingProperties.contains(id);
+    synchronized (propertyFlags) {
+      PropertyFlags flags = getPropertyFlags(proxied, false);
+      if (flags == null)
+        return false;
+      return flags.bits.get(flags.ordinals.getOrdinal(propertyName) * 2 + PropertyFlags.MUTATING);
+    }
+  }
+
+  /**
+   * Detects whether a property is being mutated by the client
+   *
+   * @param proxied
+   * @param prop
+   */
+  public boolean isMutatingProperty(Proxied proxied, ProxyProperty prop) {
+    synchronized (propertyFlags) {
+      PropertyFlags flags = getPropertyFlags(proxied, false);
+      if (flags == null)
+        return false;
+      return flags.bits.get(flags.ordinals.getOrdinal(prop) * 2 + PropertyFlags.MUTATING);
+    }
+  }
+
+  /**
+   * Returns the property state for an object
+   *
+   * @param proxied
+   * @param create whether to create the state if it does not exist yet
+   * @return
+   */
+  private PropertyFlags getPropertyFlags(Proxied proxied, boolean create) {
+    PropertyFlags flags = propertyFlags.get(proxied);
+    if (flags == null && create) {
+      flags = new PropertyFlags(ProxyTypeManager.INSTANCE.getPropertyOrdinals(getProxyType(proxied)));
+      propertyFlags.put(proxied, flags);
+    }
+    return flags;
+  }
+
+  /**
+   * Clears a bit in the property state, discarding the state once no bits are set
+   * so that objects are not held on to; must be called while propertyFlags is
+   * locked
+   *
+   * @param proxied
+   * @param flags
+   * @param bit
+   */
+  private void clearPropertyFlag(Proxied proxied, PropertyFlags flags, int bit) {
+    flags.bits.clear(bit);
+    if (flags.bits.isEmpty())
+      propertyFlags.remove(proxied);
   }
 
   public int getHighestRequestIndex() {
@@ -898,14 +1051,20 @@ public class ProxySessionTracker implements UploadInterceptor {
    */
   public void propertyChanged(Proxied keyObject, ProxyProperty property, Object newValue, Object oldValue) {
     CommandQueue queue = getQueue();
-    if (!doesClientHaveObject(keyObject) || isMutating(keyObject, property.getName()))
+    if (!doesClientHaveObject(keyObject) || isMutatingProperty(keyObject, property))
       return;
     if (property.isOnDemand() && !doesClientHaveValue(keyObject, property))
       return; // queue.queueCommand(CommandId.CommandType.EXPIRE, keyObject, propertyName,
               // null);
-    else
+    else {
       queue.queueCommand(CommandId.CommandType.SET_VALUE, keyObject, property.getName(),
           property.serialize(keyObject, newValue));
+      if (property.getSync() == Remote.Sync.IMMEDIATE) {
+        LongPollChannel longPoll = this.longPoll;
+        if (longPoll != null)
+          longPoll.dataQueued(true);
+      }
+    }
     if (property.getEvent() != null) {
       EventManager.fireDataEvent(keyObject, property.getEvent().getName(), newValue);
     }
@@ -923,9 +1082,16 @@ public class ProxySessionTracker implements UploadInterceptor {
     CommandQueue queue = getQueue();
     if (!doesClientHaveObject(keyObject) || isMutating(keyObject, null))
       return;
-    Object[] current = (Object[]) queue.getCommand(CommandId.CommandType.EDIT_ARRAY, keyObject, null);
-    current = ArrayUtils.addToObjectArray(current, change);
-    queue.queueCommand(CommandId.CommandType.EDIT_ARRAY, keyObject, null, current);
+    // Changes are appended to a log which is compacted when it is sent, rather
+    // than copying the array of changes each time
+    synchronized (queue) {
+      ChangeLog log = (ChangeLog) queue.getCommand(CommandId.CommandType.EDIT_ARRAY, keyObject, null);
+      if (log == null) {
+        log = new ChangeLog();
+        queue.queueCommand(CommandId.CommandType.EDIT_ARRAY, keyObject, null, log);
+      }
+      log.add(change);
+    }
   }
 
   /**
@@ -1010,8 +1176,15 @@ public class ProxySessionTracker implements UploadInterceptor {
    * @return
    */
   public boolean expireOnDemandProperty(Proxied proxied, String propertyName) {
-    boolean existed = knownOnDemandProperties.remove(new PropertyId(proxied, propertyName));
-    return existed;
+    synchronized (propertyFlags) {
+      PropertyFlags flags = getPropertyFlags(proxied, false);
+      if (flags == null)
+        return false;
+      int bit = flags.ordinals.getOrdinal(propertyName) * 2 + PropertyFlags.ON_DEMAND;
+      boolean existed = flags.bits.get(bit);
+      clearPropertyFlag(proxied, flags, bit);
+      return existed;
+    }
   }
 
   /**
@@ -1037,12 +1210,16 @@ public class ProxySessionTracker implements UploadInterceptor {
    * @return
    */
   public boolean doesClientHaveValue(Proxied proxied, ProxyProperty prop) {
-    if (!objectIds.containsKey(proxied))
+    if (!objects.contains(proxied))
       return false;
     if (!prop.isOnDemand())
       return true;
-    boolean existed = knownOnDemandProperties.contains(new PropertyId(proxied, prop.getName()));
-    return existed;
+    synchronized (propertyFlags) {
+      PropertyFlags flags = getPropertyFlags(proxied, false);
+      if (flags == null)
+        return false;
+      return flags.bits.get(flags.ordinals.getOrdinal(prop) * 2 + PropertyFlags.ON_DEMAND);
+    }
   }
 
   /**
@@ -1052,9 +1229,12 @@ public class ProxySessionTracker implements UploadInterceptor {
    * @param prop
    */
   public void setClientHasValue(Proxied proxied, ProxyProperty prop) {
-    if (!objectIds.containsKey(proxied) || !prop.isOnDemand())
+    if (!objects.contains(proxied) || !prop.isOnDemand())
       return;
-    knownOnDemandProperties.add(new PropertyId(proxied, prop.getName()));
+    synchronized (propertyFlags) {
+      PropertyFlags flags = getPropertyFlags(proxied, true);
+      flags.bits.set(flags.ordinals.getOrdinal(prop) * 2 + PropertyFlags.ON_DEMAND);
+    }
   }
 
   /**
@@ -1067,7 +1247,7 @@ public class ProxySessionTracker implements UploadInterceptor {
    * @return
    */
   public boolean doesClientHaveObject(Proxied proxied) {
-    return objectIds.containsKey(proxied);
+    return objects.contains(proxied);
   }
 
   /**
@@ -1085,8 +1265,22 @@ public class ProxySessionTracker implements UploadInterceptor {
    * @return
    */
   public CommandQueue getQueue() {
-    if (queue == null)
+    if (queue == null) {
       queue = createQueue();
+      if (queue instanceof SimpleQueue) {
+        ((SimpleQueue) queue).setListener(new Runnable() {
+          @Override
+          public void run() {
+            LongPollChannel longPoll = ProxySessionTracker.this.longPoll;
+            if (longPoll != null)
+              longPoll.dataQueued(false);
+            CommandChannel commandChannel = ProxySessionTracker.this.commandChannel;
+            if (commandChannel != null)
+              commandChannel.dataQueued();
+          }
+        });
+      }
+    }
     return queue;
   }
 
@@ -1134,7 +1328,7 @@ public class ProxySessionTracker implements UploadInterceptor {
     if (!(obj instanceof Proxied))
       obj = new POJO(obj);
 
-    objectMapper.writeValue(writer, obj);
+    objectCodec.writeValue(writer, obj);
   }
 
   /**
@@ -1177,6 +1371,38 @@ public class ProxySessionTracker implements UploadInterceptor {
     return objectMapper;
   }
 
+  /**
+   * Returns the codec used to write JSON for this session; this must be used
+   * instead of writing with the ObjectMapper directly, because the mapper may be
+   * shared between sessions
+   *
+   * @return
+   */
+  public ProxyObjectCodec getObjectCodec() {
+    return objectCodec;
+  }
+
+  /**
+   * Returns whether new sessions use an object mapper which is shared between
+   * all sessions
+   *
+   * @return
+   */
+  public static boolean isSharedObjectMapper() {
+    return s_sharedObjectMapper;
+  }
+
+  /**
+   * Sets whether new sessions use an object mapper which is shared between all
+   * sessions, instead of creating an object mapper (and its serializer caches)
+   * for every session
+   *
+   * @param sharedObjectMapper
+   */
+  public static void setSharedObjectMapper(boolean sharedObjectMapper) {
+    s_sharedObjectMapper = sharedObjectMapper;
+  }
+
   public int getNextRequestIndex() {
     return requestIndex++;
   }
@@ -0,0 +1,194 @@
+/**
+ * ************************************************************************
+ *
+ *    server-objects - a contrib to the Qooxdoo project that makes server
+ *    and client objects operate seamlessly; like Qooxdoo, server objects
+ *    have properties, events, and methods all of which can be access from
+ *    either server or client, regardless of where the original object was
+ *    created.
+ *
+ *    http://qooxdoo.org
+ *
+ *    Copyright:
+ *      2010 Zenesis Limited, http://www.zenesis.com
+ *
+ *    License:
+ *      LGPL: http://www.gnu.org/licenses/lgpl.html
+ *      EPL: http://www.eclipse.org/org/documents/epl-v10.php
+ *
+ *      This software is provided under the same licensing terms as Qooxdoo,
+ *      please see the LICENSE file in the Qooxdoo project's top-level directory
+ *      for details.
+ *
+ *    Authors:
+ *      * John Spackman (john.spackman@zenesis.com)
+ *
+ * ************************************************************************
+ */
+package com.zenesis.qx.remote;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.zenesis.qx.remote.annotations.Remote;
+
+/**
+ * The JSON definition of an AbstractProxyType, serialised once and shared
+ * between all sessions.
+ *
+ * Most of a type definition is the same for every session, but wherever another
+ * ProxyType is referenced (eg superclass, interfaces, method return types) the
+ * output depends on whether that type has already been delivered to the client;
+ * the definition is therefore held as fragments of raw JSON separated by
+ * references to other types, which are expanded for each session by append().
+ *
+ * @author John Spackman
+ *
+ */
+/* package */ class ProxyTypeDefinition {
+
+  /*
+   * A reference to another ProxyType, embedded in the definition
+   */
+  private static final class TypeReference {
+    public final AbstractProxyType type;
+    public final Remote.Array array;
+
+    public TypeReference(AbstractProxyType type, Remote.Array array) {
+      super();
+      this.type = type;
+      this.array = array;
+    }
+  }
+
+  /*
+   * Writer used to capture the definition; references to other types are
+   * recorded by calling addReference, when the type is serialised
+   */
+  /* package */ static final class Capture extends Writer {
+
+    private final StringBuilder sb = new StringBuilder();
+    private final ArrayList<String> fragments = new ArrayList<String>();
+    private final ArrayList<TypeReference> references = new ArrayList<TypeReference>();
+
+    /**
+     * Records a reference to another type; a null is written as a placeholder so
+     * that the generator adds separators as normal, and then removed
+     *
+     * @param gen
+     * @param type
+     * @param array
+     * @throws IOException
+     */
+    public void addReference(JsonGenerator gen, AbstractProxyType type, Remote.Array array) throws IOException {
+      gen.writeNull();
+      gen.flush();
+      sb.setLength(sb.length() - 4);
+      fragments.add(sb.toString());
+      sb.setLength(0);
+      references.add(new TypeReference(type, array));
+    }
+
+    /**
+     * Discards everything written so far
+     *
+     * @param gen
+     * @throws IOException
+     */
+    public void discard(JsonGenerator gen) throws IOException {
+      gen.flush();
+      sb.setLength(0);
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+      sb.append(cbuf, off, len);
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+      sb.append(str, off, off + len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+      // Nothing
+    }
+
+    @Override
+    public void close() throws IOException {
+      // Nothing
+    }
+  }
+
+  // The class name, quoted as a JSON string
+  private final String quotedClassName;
+
+  // Raw JSON which follows the class name; there is always one more fragment
+  // than there are references
+  private final String[] fragments;
+
+  // The types referenced between each fragment
+  private final TypeReference[] references;
+
+  /**
+   * Serialises the definition of a type
+   *
+   * @param mapper the mapper to serialise with; must not indent
+   * @param type
+   * @throws IOException
+   */
+  public ProxyTypeDefinition(ProxyObjectMapper mapper, AbstractProxyType type) throws IOException {
+    super();
+    quotedClassName = mapper.writeValueAsString(type.getClassName());
+
+    Capture capture = new Capture();
+    JsonGenerator gen = mapper.getFactory().createGenerator(capture);
+    gen.writeStartObject();
+    gen.writeStringField("className", type.getClassName());
+    capture.discard(gen);
+    type.writeDefinition(gen);
+    gen.writeEndObject();
+    gen.close();
+    capture.fragments.add(capture.sb.toString());
+
+    fragments = capture.fragments.toArray(new String[capture.fragments.size()]);
+    references = capture.references.toArray(new TypeReference[capture.references.size()]);
+  }
+
+  /**
+   * Appends the class name, as a JSON string, suitable for the given array type
+   *
+   * @param sb
+   * @param array
+   */
+  public void appendClassName(StringBuilder sb, Remote.Array array) {
+    if (array == Remote.Array.NATIVE)
+      sb.append(quotedClassName, 0, quotedClassName.length() - 1).append("[]\"");
+    else if (array == Remote.Array.WRAP)
+      sb.append(quotedClassName, 0, quotedClassName.length() - 1).append("[wrap]\"");
+    else
+      sb.append(quotedClassName);
+  }
+
+  /**
+   * Appends the definition for a session, expanding references to other types
+   * according to whether they have already been delivered
+   *
+   * @param sb
+   * @param tracker
+   * @param array
+   * @throws IOException
+   */
+  public void append(StringBuilder sb, ProxySessionTracker tracker, Remote.Array array) throws IOException {
+    sb.append("{\"className\":");
+    appendClassName(sb, array);
+    for (int i = 0; i < references.length; i++) {
+      sb.append(fragments[i]);
+      references[i].type.appendDefinition(sb, tracker, references[i].array);
+    }
+    sb.append(fragments[references.length]);
+  }
+}
@@ -27,13 +27,18 @@
  */
 package com.zenesis.qx.remote;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.logging.log4j.Logger;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.zenesis.qx.event.EventManager;
+import com.zenesis.qx.remote.ResponseCompression.CompressedPayload;
 
 /**
  * This class is responsible for creating JSON proxy definitions for the client
@@ -64,6 +69,25 @@ public class ProxyTypeManager {
   // Cache of known type factories
   private final HashMap<Class, ProxyTypeFactory> factories = new HashMap<Class, ProxyTypeFactory>();
 
+  // Cache of class definitions (as written by ClassWriter), ready to send to the
+  // client
+  private final ConcurrentHashMap<ProxyType, CompressedPayload> classCode = new ConcurrentHashMap<ProxyType, CompressedPayload>();
+
+  // Whether JSON type definitions are serialised once and shared between sessions
+  private static boolean s_cacheDefinitions = true;
+
+  // Cache of JSON type definitions, shared between all sessions
+  private final ConcurrentHashMap<ProxyType, ProxyTypeDefinition> definitions = new ConcurrentHashMap<ProxyType, ProxyTypeDefinition>();
+
+  // Mapper used to serialise definitions for the cache
+  private final ProxyObjectMapper definitionMapper = new ProxyObjectMapper(null, false);
+
+  // Property ordinals, indexed by type
+  private final ConcurrentHashMap<ProxyType, PropertyOrdinals> propertyOrdinals = new ConcurrentHashMap<ProxyType, PropertyOrdinals>();
+
+  // Methods and property accessors which the client can call, indexed by type
+  private final ConcurrentHashMap<ProxyType, MethodDispatchTable> dispatchTables = new ConcurrentHashMap<ProxyType, MethodDispatchTable>();
+
   /**
    * Constructor; also creates a default EventManager if one has not been set yet
    */
@@ -219,12 +243,93 @@ public class ProxyTypeManager {
     return (T) clazz.getAnnotation(annotationClass);
   }
 
+  /**
+   * Returns the class definition for a type, as written by ClassWriter; the code
+   * is generated (and compressed, when first requested) only once
+   * 
+   * @param type
+   * @return
+   * @throws JsonProcessingException
+   */
+  public CompressedPayload getClassCode(AbstractProxyType type) throws JsonProcessingException {
+    CompressedPayload payload = classCode.get(type);
+    if (payload == null) {
+      String code = type.write().getClassCode();
+      payload = new CompressedPayload(code.getBytes(StandardCharsets.UTF_8));
+      CompressedPayload existing = classCode.putIfAbsent(type, payload);
+      if (existing != null)
+        payload = existing;
+    }
+    return payload;
+  }
+
+  /**
+   * Returns the JSON definition of a type, which is serialised only once and
+   * shared between all sessions
+   * 
+   * @param type
+   * @return
+   * @throws IOException
+   */
+  /* package */ ProxyTypeDefinition getDefinition(AbstractProxyType type) throws IOException {
+    ProxyTypeDefinition definition = definitions.get(type);
+    if (definition == null) {
+      definition = new ProxyTypeDefinition(definitionMapper, type);
+      ProxyTypeDefinition existing = definitions.putIfAbsent(type, definition);
+      if (existing != null)
+        definition = existing;
+    }
+    return definition;
+  }
+
+  /**
+   * Returns the property ordinals for a type, used to index per-object property
+   * state
+   * 
+   * @param type
+   * @return
+   */
+  /* package */ PropertyOrdinals getPropertyOrdinals(ProxyType type) {
+    PropertyOrdinals ordinals = propertyOrdinals.get(type);
+    if (ordinals == null) {
+      ordinals = new PropertyOrdinals(type);
+      PropertyOrdinals existing = propertyOrdinals.putIfAbsent(type, ordinals);
+      if (existing != null)
+        ordinals = existing;
+    }
+    return ordinals;
+  }
+
+  /**
+   * Returns the table used to dispatch method calls from the client to objects
+   * of a type
+   * 
+   * @param type
+   * @return
+   */
+  /* package */ MethodDispatchTable getDispatchTable(ProxyType type) {
+    MethodDispatchTable table = dispatchTables.get(type);
+    if (table == null) {
+      table = new MethodDispatchTable(type);
+      MethodDispatchTable existing = dispatchTables.putIfAbsent(type, table);
+      if (existing != null)
+        table = existing;
+    }
+    return table;
+  }
+
   /**
    * Flushes the type cache
    */
   public void flushProxyTypeCache(Class<? extends Proxied> clazz) {
     synchronized (this) {
-      proxyTypes.remove(clazz);
+      ProxyType type = proxyTypes.remove(clazz);
+      if (type != null) {
+        classCode.remove(type);
+        definitions.remove(type);
+        propertyOrdinals.remove(type);
+        dispatchTables.remove(type);
+      }
     }
   }
 
@@ -234,6 +339,30 @@ public class ProxyTypeManager {
   public void flushProxyTypeCache() {
     synchronized (this) {
       proxyTypes.clear();
+      classCode.clear();
+      definitions.clear();
+      propertyOrdinals.clear();
+      dispatchTables.clear();
     }
   }
+
+  /**
+   * Returns whether JSON type definitions are serialised once and shared between
+   * all sessions, instead of being serialised for every session
+   * 
+   * @return
+   */
+  public static boolean isCacheDefinitions() {
+    return s_cacheDefinitions;
+  }
+
+  /**
+   * Sets whether JSON type definitions are serialised once and shared between
+   * all sessions
+   * 
+   * @param cacheDefinitions
+   */
+  public static void setCacheDefinitions(boolean cacheDefinitions) {
+    s_cacheDefinitions = cacheDefinitions;
+  }
 }
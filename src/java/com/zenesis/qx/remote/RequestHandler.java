@@ -29,6 +29,7 @@ package com.zenesis.qx.remote;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Reader;
@@ -42,6 +43,7 @@ import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.time.Instant;
 import java.time.LocalDateTime;
@@ -53,7 +55,10 @@ import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.logging.log4j.Logger;
 import org.bson.Document;
@@ -61,13 +66,14 @@ import org.bson.Document;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.JsonSerializable;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.zenesis.qx.event.EventManager;
 import com.zenesis.qx.remote.CommandId.CommandType;
 import com.zenesis.qx.remote.annotations.EnclosingThisMethod;
 import com.zenesis.qx.utils.ArrayUtils;
 import com.zenesis.qx.utils.DiagUtils;
+import com.zenesis.qx.utils.DigestWriter;
 
+import jakarta.servlet.AsyncContext;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
@@ -117,6 +123,14 @@ public class RequestHandler {
   // Maximum time to wait for a lock on the response
   private static int s_requestLockTimeout = 2 * 60 * 1000;
 
+  // Whether requests are parsed from, and responses written to, the servlet
+  // streams directly instead of being buffered as Strings
+  private static boolean s_streaming = false;
+
+  // Whether requests are queued in the session's mailbox instead of each request
+  // waiting for the request lock
+  private static boolean s_sessionMailbox = false;
+
   // This class is sent as data by cmdBootstrap
   public static final class Bootstrap {
     public final Proxied bootstrap;
@@ -199,6 +213,10 @@ public class RequestHandler {
   // Where I/O log files go to, null means that they are disabled
   private static File s_temporaryDir = null;
 
+  // Indexes of the per-thread digests used for requests and responses
+  private static final int SHA1_REQUEST = 0;
+  private static final int SHA1_RESPONSE = 1;
+
   /**
    * @param tracker
    */
@@ -245,6 +263,52 @@ public class RequestHandler {
     RequestHandler.s_requestLockTimeout = requestLockTimeout;
   }
 
+  /**
+   * Returns whether requests and responses are streamed rather than buffered
+   *
+   * @return
+   */
+  public static boolean isStreaming() {
+    return s_streaming;
+  }
+
+  /**
+   * Sets whether requests and responses are streamed; when true, the JSON parser
+   * reads directly from the request's InputStream and the queue is written
+   * directly to the response's OutputStream, instead of the body and the response
+   * being copied into Strings first. Trace logging (see setTemporaryDir) and
+   * requests which have a SHA1 always use the buffered mode because they need the
+   * whole body before any commands are run.
+   *
+   * @param streaming
+   */
+  public static void setStreaming(boolean streaming) {
+    RequestHandler.s_streaming = streaming;
+  }
+
+  /**
+   * Returns whether requests are queued in the session's mailbox
+   *
+   * @return
+   */
+  public static boolean isSessionMailbox() {
+    return s_sessionMailbox;
+  }
+
+  /**
+   * Sets whether requests are queued in the session's mailbox (see
+   * SessionMailbox) and processed one at a time in request index order, instead
+   * of each request blocking a container thread while it waits for the session's
+   * request lock. Asynchronous servlet requests release the container thread
+   * until the request has been processed; otherwise the container thread parks
+   * until then, which is cheap if the container uses virtual threads.
+   *
+   * @param sessionMailbox
+   */
+  public static void setSessionMailbox(boolean sessionMailbox) {
+    RequestHandler.s_sessionMailbox = sessionMailbox;
+  }
+
   /**
    * Returns the headers
    *
@@ -270,16 +334,26 @@ public class RequestHandler {
    * @throws IOException
    */
   protected String getBody(HttpServletRequest request) throws IOException {
-    StringWriter sw = null;
-    sw = new StringWriter();
+    StringWriter sw = new StringWriter();
+    readBody(request, sw);
+    return sw.toString();
+  }
+
+  /**
+   * Copies the body to a writer; pass a DigestWriter which writes through to a
+   * buffer to calculate the SHA1 as the body is read
+   *
+   * @param request
+   * @param writer
+   * @throws IOException
+   */
+  protected void readBody(HttpServletRequest request, Writer writer) throws IOException {
     Reader reader = request.getReader();
     char[] buffer = new char[32 * 1024];
     int length;
     while ((length = reader.read(buffer)) > 0) {
-      sw.write(buffer, 0, length);
+      writer.write(buffer, 0, length);
     }
-
-    return sw.toString();
   }
 
   /**
@@ -296,21 +370,13 @@ public class RequestHandler {
     for (String key : headers.keySet())
       response.setHeader(key, headers.get(key));
 
-    OutputStream os = response.getOutputStream();
-    /*
-     * if (acceptEncoding != null && body.length() > 25 * 1024) {
-     * if (acceptEncoding.indexOf("gzip") != -1) {
-     * acceptEncoding = acceptEncoding.indexOf("x-gzip") != -1 ? "x-gzip" : "gzip";
-     * response.addHeader("Content-Encoding", acceptEncoding);
-     * os = new GZIPOutputStream(os);
-     * }
-     * }
-     */
+    // Compressed if the client accepts it and the body is big enough
+    OutputStream os = new ResponseCompression.ResponseOutputStream(response, acceptEncoding);
 
     Writer outputWriter = new OutputStreamWriter(os);
 
     outputWriter.write(body);
-    outputWriter.flush();
+    outputWriter.close();
   }
 
   protected void checkSessionId(String sessionId) {
@@ -356,6 +422,20 @@ public class RequestHandler {
     }
   }
 
+  /**
+   * Checks the SHA1 of a body which has been passed through a digest
+   *
+   * @param expectedSha
+   * @param digest
+   */
+  protected void checkSha(String expectedSha, DigestWriter digest) {
+    if (expectedSha != null) {
+      String hash = digest.getHash();
+      if (!hash.equals(expectedSha))
+        onShaMismatch(expectedSha, hash);
+    }
+  }
+
   protected String calcRequestId(int requestIndex) {
     int actualIndex = tracker.getNextRequestIndex();
     String str = tracker.getSessionId().replace(':', '_') + "/" +
@@ -374,7 +454,9 @@ public class RequestHandler {
    * server object ID ... except that the slow response has not completed yet and
    * therefore the fast response has not told the client about the server object.
    *
-   * The same is true for client IDs
+   * The same is true for client IDs; if the session mailbox is enabled (see
+   * setSessionMailbox) the request is queued and processed by the session's
+   * drainer instead of waiting for the request lock
    *
    * @param request
    * @param response
@@ -385,6 +467,112 @@ public class RequestHandler {
    */
   public void processRequest(HttpServletRequest request, HttpServletResponse response)
       throws ServletException, IOException {
+    if (!s_sessionMailbox) {
+      processRequestNow(request, response);
+      return;
+    }
+
+    int requestIndex = -1;
+    try {
+      requestIndex = Integer.parseInt(request.getHeader(HEADER_INDEX));
+    } catch (NumberFormatException e) {
+      // Nothing - processRequestNow will reject it
+    }
+    if (request.isAsyncSupported())
+      processRequestAsync(request, requestIndex);
+    else
+      processRequestQueued(request, response, requestIndex);
+  }
+
+  /**
+   * Queues the request in the session's mailbox and parks the current thread
+   * until it has been processed
+   *
+   * @param request
+   * @param response
+   * @param requestIndex
+   * @throws ServletException
+   * @throws IOException
+   */
+  protected void processRequestQueued(final HttpServletRequest request, final HttpServletResponse response,
+      int requestIndex) throws ServletException, IOException {
+    SessionMailbox mailbox = tracker.getMailbox();
+    CompletableFuture<Void> future = mailbox.submit(requestIndex, new SessionMailbox.Request() {
+      @Override
+      public void run() throws Exception {
+        processRequestNow(request, response);
+      }
+    });
+    try {
+      try {
+        future.get(s_requestLockTimeout, TimeUnit.MILLISECONDS);
+      } catch (TimeoutException e) {
+        // Give up if it has not started yet, otherwise wait for it to finish as
+        // if we held the request lock
+        if (mailbox.cancel(future))
+          throw new ServletException("Timeout while waiting in the session mailbox for request " + requestIndex);
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      mailbox.cancel(future);
+      throw new ServletException(
+          "Exception while waiting in the session mailbox for request " + requestIndex + ": " + e.getMessage());
+    } catch (ExecutionException e) {
+      Throwable t = e.getCause();
+      if (t instanceof ServletException)
+        throw (ServletException) t;
+      if (t instanceof IOException)
+        throw (IOException) t;
+      if (t instanceof RuntimeException)
+        throw (RuntimeException) t;
+      if (t instanceof Error)
+        throw (Error) t;
+      throw new ServletException("Exception while processing request " + requestIndex + ": " + t.getMessage(), t);
+    }
+  }
+
+  /**
+   * Queues the request in the session's mailbox and returns immediately; the
+   * response is completed when the request has been processed. Requests which
+   * have waited longer than the request lock timeout are rejected when they reach
+   * the front of the queue.
+   *
+   * @param request
+   * @param requestIndex
+   */
+  protected void processRequestAsync(HttpServletRequest request, final int requestIndex) {
+    final AsyncContext async = request.startAsync();
+    async.setTimeout(0);
+    final long queuedAt = System.currentTimeMillis();
+    tracker.getMailbox().submit(requestIndex, new SessionMailbox.Request() {
+      @Override
+      public void run() throws Exception {
+        HttpServletResponse response = (HttpServletResponse) async.getResponse();
+        try {
+          if (System.currentTimeMillis() - queuedAt > s_requestLockTimeout)
+            throw new ServletException("Timeout while waiting in the session mailbox for request " + requestIndex);
+          processRequestNow((HttpServletRequest) async.getRequest(), response);
+        } catch (Exception e) {
+          log.error("Exception while processing request " + requestIndex + ": " + e.getMessage(), e);
+          if (!response.isCommitted())
+            response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+        } finally {
+          async.complete();
+        }
+      }
+    });
+  }
+
+  /**
+   * Processes the request on the current thread
+   *
+   * @param request
+   * @param response
+   * @throws ServletException
+   * @throws IOException
+   */
+  protected void processRequestNow(HttpServletRequest request, HttpServletResponse response)
+      throws ServletException, IOException {
     HashMap<String, String> headers = getHeaders(request);
 
     String str = headers.get(RequestHandler.HEADER_INDEX);
@@ -419,13 +607,25 @@ public class RequestHandler {
       log.error("Cannot parse client time " + strClientTime + " for " + requestId);
     }
 
-    String body = getBody(request);
+    // The SHA1 must be checked before any commands are run, so those requests are
+    // buffered
+    if (s_streaming && expectedSha == null && !(s_temporaryDir != null && log.isTraceEnabled())) {
+      processStreamingRequest(request, response, requestIndex, retryIndex, sessionId, requestId);
+      return;
+    }
+
+    StringWriter bodyWriter = new StringWriter();
+    DigestWriter requestDigest = expectedSha != null
+        ? new DigestWriter(bodyWriter, DiagUtils.getSha1Digest(SHA1_REQUEST))
+        : null;
+    readBody(request, requestDigest != null ? requestDigest : bodyWriter);
+    String body = bodyWriter.toString();
 
     log.trace("Received sessionId=" + sessionId + ", tracker.sessionId=" + tracker.getSessionId() + ", requestIndex="
         + requestIndex);
     checkSessionId(sessionId);
 
-    Writer writer = new StringWriter();
+    StringWriter sw = new StringWriter();
     if (s_temporaryDir != null && log.isTraceEnabled()) {
       Object obj = tracker.getObjectMapper().readValue(body, Object.class);
       String out = tracker.getObjectMapper().writerWithDefaultPrettyPrinter().writeValueAsString(obj);
@@ -433,10 +633,12 @@ public class RequestHandler {
     }
 
     if (expectedSha != null)
-      checkSha(expectedSha, body);
+      checkSha(expectedSha, requestDigest);
 
-    processRequestImpl(new StringReader(body), writer, requestId);
-    String out = writer.toString();
+    DigestWriter responseDigest = expectedSha != null ? new DigestWriter(sw, DiagUtils.getSha1Digest(SHA1_RESPONSE))
+        : null;
+    processRequestImpl(new StringReader(body), responseDigest != null ? responseDigest : sw, requestId);
+    String out = sw.toString();
 
     HashMap<String, String> respHeaders = new HashMap<String, String>();
 
@@ -449,9 +651,8 @@ public class RequestHandler {
     if (retryIndex > -1)
       respHeaders.put(HEADER_RETRY, Integer.toString(retryIndex));
 
-    String hash = DiagUtils.getSha1(out);
     if (expectedSha != null)
-      respHeaders.put(HEADER_SHA1, hash);
+      respHeaders.put(HEADER_SHA1, responseDigest.getHash());
 
     try {
       writeResponse(response, respHeaders, out, request.getHeader("Accept-Encoding"));
@@ -460,8 +661,68 @@ public class RequestHandler {
     }
   }
 
+  /**
+   * Handles the request in streaming mode; the body is parsed directly from the
+   * request's InputStream and the response is written directly to the response's
+   * OutputStream, compressed on the fly if the client accepts it and it is large
+   * enough (see ResponseCompression). Requests with a SHA1 are not streamed, see
+   * setStreaming.
+   *
+   * @param request
+   * @param response
+   * @param requestIndex
+   * @param retryIndex
+   * @param sessionId
+   * @param requestId
+   * @throws ServletException
+   * @throws IOException
+   */
+  protected void processStreamingRequest(HttpServletRequest request, HttpServletResponse response, int requestIndex,
+      int retryIndex, String sessionId, String requestId) throws ServletException, IOException {
+    log.trace("Received sessionId=" + sessionId + ", tracker.sessionId=" + tracker.getSessionId() + ", requestIndex="
+        + requestIndex + " (streaming)");
+    checkSessionId(sessionId);
+
+    InputStream is = request.getInputStream();
+
+    response.setHeader(HEADER_INDEX, Integer.toString(requestIndex));
+    if (sessionId != null && !tracker.getSessionId().equals(sessionId))
+      response.setHeader(HEADER_SESSION_ID, tracker.getSessionId());
+    if (retryIndex > -1)
+      response.setHeader(HEADER_RETRY, Integer.toString(retryIndex));
+
+    String acceptEncoding = request.getHeader("Accept-Encoding");
+    OutputStream os = new ResponseCompression.ResponseOutputStream(response, acceptEncoding);
+    try {
+      processRequestImpl(is, os, requestId);
+    } finally {
+      os.close();
+    }
+  }
+
+  /**
+   * Processes a request which is read from a stream and writes the response to a
+   * stream; both are expected to be UTF-8
+   *
+   * @param request
+   * @param response
+   * @param requestId
+   * @throws ServletException
+   * @throws IOException
+   */
+  public void processRequestImpl(InputStream request, OutputStream response, String requestId)
+      throws ServletException, IOException {
+    Writer writer = new OutputStreamWriter(response, StandardCharsets.UTF_8);
+    processRequestImpl(tracker.getObjectMapper().getFactory().createParser(request), writer, requestId);
+  }
+
   public void processRequestImpl(Reader request, Writer response, String requestId)
       throws ServletException, IOException {
+    processRequestImpl(tracker.getObjectMapper().getFactory().createParser(request), response, requestId);
+  }
+
+  protected void processRequestImpl(JsonParser jp, Writer response, String requestId)
+      throws ServletException, IOException {
     try {
       if (!tracker.getRequestLock().tryLock(s_requestLockTimeout, TimeUnit.MILLISECONDS))
         throw new ServletException("Timeout while waiting for request lock for " + requestId);
@@ -470,9 +731,8 @@ public class RequestHandler {
     }
     try {
       s_currentHandler.set(this);
-      ObjectMapper objectMapper = tracker.getObjectMapper();
+      ProxyObjectCodec objectCodec = tracker.getObjectCodec();
       try {
-        JsonParser jp = objectMapper.getJsonFactory().createJsonParser(request);
         if (jp.nextToken() == JsonToken.START_ARRAY) {
           while (jp.nextToken() != JsonToken.END_ARRAY)
             processCommand(jp);
@@ -485,13 +745,13 @@ public class RequestHandler {
           data = queue.getDataToFlush();
         }
         if (data != null)
-          objectMapper.writeValue(response, data);
+          objectCodec.writeValue(response, data);
 
       } catch (ProxyTypeSerialisationException e) {
         log.fatal("Unable to serialise type information to client for " + requestId + ": " + e.getMessage(), e);
 
       } catch (ProxyException e) {
-        handleException(response, objectMapper, e);
+        handleException(response, objectCodec, e);
 
       } catch (Exception e) {
         log.error("Exception during callback for " + requestId + ": " + e.getMessage(), e);
@@ -503,7 +763,7 @@ public class RequestHandler {
           data = queue.getDataToFlush();
         }
         if (data != null)
-          objectMapper.writeValue(response, data);
+          objectCodec.writeValue(response, data);
 
       } finally {
         s_currentHandler.set(null);
@@ -517,11 +777,12 @@ public class RequestHandler {
    * Called to handle exceptions during processRequest
    *
    * @param response
-   * @param objectMapper
+   * @param objectCodec
    * @param e
    * @throws IOException
    */
-  protected void handleException(Writer response, ObjectMapper objectMapper, ProxyException e) throws IOException {
+  protected void handleException(Writer response, ProxyObjectCodec objectCodec, ProxyException e)
+      throws IOException {
     Throwable cause = e.getCause();
     tracker.getQueue().queueCommand(CommandType.EXCEPTION, e.getServerObject(), null,
         new ExceptionDetails(cause.getClass().getName(), cause.getMessage()));
@@ -531,7 +792,7 @@ public class RequestHandler {
       data = queue.getDataToFlush();
     }
     if (data != null)
-      objectMapper.writeValue(response, data);
+      objectCodec.writeValue(response, data);
   }
 
   /**
@@ -633,105 +894,66 @@ public class RequestHandler {
     // Onto what should be parameters
     jp.nextToken();
 
-    // Find the method by hand - we have already guaranteed that there will not be
-    // conflicting
-    // method names (ie no overridden methods) but Java needs a list of parameter
-    // types
-    // so we do it ourselves.
+    // Find the method or property accessor - we have already guaranteed that there
+    // will not be conflicting method names (ie no overridden methods), so the name
+    // is enough
     boolean found = false;
+    ProxyType type = serverClass != null ? ProxyTypeManager.INSTANCE.getProxyType(serverClass) : null;
+    MethodDispatchTable table = type != null ? ProxyTypeManager.INSTANCE.getDispatchTable(type) : null;
 
     // Check for property accessors; if serverObject is null then it's static method
-    // call and
-    // properties are not supported
-    if (serverObject != null && methodName.length() > 3 &&
-        (methodName.startsWith("get") || methodName.startsWith("set"))) {
-      String name = methodName.substring(3, 4).toLowerCase();
-      if (methodName.length() > 4)
-        name += methodName.substring(4);
-      ProxyProperty property = null;
-      for (ProxyType type = ProxyTypeManager.INSTANCE.getProxyType(serverClass); type != null; type = type
-          .getSuperType()) {
-        property = type.getProperties().get(name);
-        if (property != null) {
-          found = true;
-          break;
-        }
+    // call and properties are not supported
+    MethodDispatchTable.PropertyAccessor accessor = table != null && serverObject != null
+        ? table.getAccessor(methodName)
+        : null;
+    if (accessor != null) {
+      found = true;
+      ProxyProperty property = accessor.property;
+      Object result = null;
+      if (!accessor.isSet) {
+        readParameters(jp, null);
+        result = property.getValue(serverObject);
+      } else {
+        Object[] values = readParameters(jp, accessor.decoders);
+        property.setValue(serverObject, values[0]);
       }
-      if (found) {
-        Object result = null;
-        if (methodName.startsWith("get")) {
-          readParameters(jp, null);
-          result = property.getValue(serverObject);
-        } else {
-          Object[] values = readParameters(jp, new Class[] { property.getPropertyClass().getJavaType() });
-          property.setValue(serverObject, values[0]);
-        }
-        if (property.getGroup() != null) {
-          for (ProxyType type = ProxyTypeManager.INSTANCE.getProxyType(serverClass); type != null; type = type
-              .getSuperType()) {
-            for (ProxyProperty tmp : type.getProperties().values()) {
-              if (tmp.getGroup() != null && tmp.getGroup().equals(property.getGroup())) {
-                if (!tracker.doesClientHaveValue(serverObject, tmp)) {
-                  Object value = tmp.getValue(serverObject);
-                  tracker.setClientHasValue(serverObject, tmp);
-                  tracker.getQueue().queueCommand(CommandId.CommandType.SET_VALUE, serverObject, tmp.getName(),
-                      tmp.serialize(serverObject, value));
-                }
-              }
-            }
+      if (accessor.group != null) {
+        for (ProxyProperty tmp : accessor.group) {
+          if (!tracker.doesClientHaveValue(serverObject, tmp)) {
+            Object value = tmp.getValue(serverObject);
+            tracker.setClientHasValue(serverObject, tmp);
+            tracker.getQueue().queueCommand(CommandId.CommandType.SET_VALUE, serverObject, tmp.getName(),
+                tmp.serialize(serverObject, value));
           }
         }
-        if (property.isOnDemand())
-          tracker.setClientHasValue(serverObject, property);
-        CommandId id = new CommandId(CommandId.CommandType.FUNCTION_RETURN, serverObject, null) {
-          @Override
-          public boolean equals(Object obj) {
-            return false;
-          }
-        };
-        tracker.getQueue().queueCommand(id, new FunctionReturn(asyncId, result));
       }
+      if (property.isOnDemand())
+        tracker.setClientHasValue(serverObject, property);
+      CommandId id = new CommandId(CommandId.CommandType.FUNCTION_RETURN, serverObject, null, false);
+      tracker.getQueue().queueCommand(id, new FunctionReturn(asyncId, result));
     }
 
-    if (!found) {
-      for (ProxyType type = ProxyTypeManager.INSTANCE.getProxyType(serverClass); type != null &&
-          !found; type = type.getSuperType()) {
-        ProxyMethod[] methods = type.getMethods();
-        for (int i = 0; i < methods.length; i++)
-          if (methods[i].getName().equals(methodName)) {
-            Method method = methods[i].getMethod();
+    MethodDispatchTable.MethodInvoker invoker = !found && table != null ? table.getMethod(methodName) : null;
+    if (invoker != null) {
+      Method method = invoker.method;
 
-            // Call the method
-            Object[] values = null;
-            try {
-              values = readParameters(jp, method.getParameterTypes());
-              Object result = method.invoke(serverObject, values);
-              CommandId id = new CommandId(CommandId.CommandType.FUNCTION_RETURN, serverObject, null) {
-                @Override
-                public boolean equals(Object obj) {
-                  return false;
-                }
-              };
-              tracker.getQueue().queueCommand(id, new FunctionReturn(asyncId, result));
-            } catch (InvocationTargetException e) {
-              Throwable t = e.getCause();
-              log.error("Exception while invoking " + method + "(" + Helpers.toString(values) + ") on " + serverObject +
-                  ": " + t.getMessage(), t);
-              throw new ProxyException(serverObject,
-                  "Exception while invoking " + method + " on " + serverObject + ": " + t.getMessage(), t);
-            } catch (RuntimeException e) {
-              log.error("Exception while invoking " + method + "(" + Helpers.toString(values) + ") on " + serverObject +
-                  ": " + e.getMessage(), e);
-              throw new ProxyException(serverObject,
-                  "Exception while invoking " + method + " on " + serverObject + ": " + e.getMessage(), e);
-            } catch (IllegalAccessException e) {
-              throw new ServletException(
-                  "Exception while running " + method + "(" + Helpers.toString(values) + "): " + e.getMessage(), e);
-            }
-            found = true;
-            break;
-          }
+      // Call the method; errors reading the request are passed on, but anything
+      // else is reported to the client
+      Object[] values;
+      try {
+        values = readParameters(jp, invoker.decoders);
+      } catch (RuntimeException e) {
+        throw invocationFailed(serverObject, method, null, e);
+      }
+      Object result;
+      try {
+        result = invoker.invoke(serverObject, values);
+      } catch (Throwable t) {
+        throw invocationFailed(serverObject, method, values, t);
       }
+      CommandId id = new CommandId(CommandId.CommandType.FUNCTION_RETURN, serverObject, null, false);
+      tracker.getQueue().queueCommand(id, new FunctionReturn(asyncId, result));
+      found = true;
     }
 
     if (!found)
@@ -741,32 +963,49 @@ public class RequestHandler {
     jp.nextToken();
   }
 
-  private Object[] readParameters(JsonParser jp, Class[] types) throws IOException {
-    if (types == null) {
+  /*
+   * Logs an exception thrown while calling a server method, and wraps it so that
+   * it is reported to the client
+   */
+  private ProxyException invocationFailed(Proxied serverObject, Method method, Object[] values, Throwable t) {
+    log.error("Exception while invoking " + method + "(" + Helpers.toString(values) + ") on " + serverObject + ": " +
+        t.getMessage(), t);
+    return new ProxyException(serverObject,
+        "Exception while invoking " + method + " on " + serverObject + ": " + t.getMessage(), t);
+  }
+
+  /**
+   * Reads the parameters of a method call, using the decoder for each parameter;
+   * parameters which the client does not send are null, and extra parameters are
+   * ignored
+   *
+   * @param jp
+   * @param decoders the decoders, one per parameter, or null to skip the parameters
+   * @return
+   * @throws IOException
+   */
+  private Object[] readParameters(JsonParser jp, ParameterDecoder[] decoders) throws IOException {
+    if (decoders == null) {
       // Check for parameters
       if (jp.getCurrentToken() == JsonToken.FIELD_NAME && jp.getCurrentName().equals("parameters") &&
           jp.nextToken() == JsonToken.START_ARRAY) {
-        while (jp.nextToken() != JsonToken.END_ARRAY)
-          ;
+        jp.skipChildren();
       }
       return null;
     }
-    Object[] values = new Object[types.length];
-    Object[] params = null;
+    Object[] values = new Object[decoders.length];
 
     // Check for parameters
     if (jp.getCurrentToken() == JsonToken.FIELD_NAME && jp.getCurrentName().equals("parameters") &&
         jp.nextToken() == JsonToken.START_ARRAY) {
-
-      params = readArray(jp, types);
+      for (int paramIndex = 0; jp.nextToken() != JsonToken.END_ARRAY; paramIndex++) {
+        if (paramIndex < decoders.length)
+          values[paramIndex] = decoders[paramIndex].decode(this, jp);
+        else
+          jp.skipChildren();
+      }
     }
 
-    for (int i = 0; i < values.length; i++)
-      if (i < params.length)
-        values[i] = params[i];
-      else
-        values[i] = null;
-
     return values;
   }
 
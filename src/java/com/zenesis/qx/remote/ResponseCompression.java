@@ -0,0 +1,522 @@
+/**
+ * ************************************************************************
+ *
+ *    server-objects - a contrib to the Qooxdoo project that makes server
+ *    and client objects operate seamlessly; like Qooxdoo, server objects
+ *    have properties, events, and methods all of which can be access from
+ *    either server or client, regardless of where the original object was
+ *    created.
+ *
+ *    http://qooxdoo.org
+ *
+ *    Copyright:
+ *      2010 Zenesis Limited, http://www.zenesis.com
+ *
+ *    License:
+ *      LGPL: http://www.gnu.org/licenses/lgpl.html
+ *      EPL: http://www.eclipse.org/org/documents/epl-v10.php
+ *
+ *      This software is provided under the same licensing terms as Qooxdoo,
+ *      please see the LICENSE file in the Qooxdoo project's top-level directory
+ *      for details.
+ *
+ *    Authors:
+ *      * John Spackman (john.spackman@zenesis.com)
+ *
+ * ************************************************************************
+ */
+package com.zenesis.qx.remote;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Negotiates and applies Content-Encoding for responses sent to the client.
+ * The encoding is chosen from the Accept-Encoding request header (gzip is
+ * preferred over deflate), and is only used if the response is longer than
+ * getThreshold() bytes; because the length of a streamed response is not
+ * known in advance, ResponseOutputStream holds back the first getThreshold()
+ * bytes until it knows whether compression is worthwhile.
+ *
+ * Static payloads (eg class definitions) can be compressed once and cached as
+ * a CompressedPayload.
+ *
+ * Counters are kept of the number of bytes before and after compression, so
+ * that the bandwidth saved can be monitored.
+ *
+ * @author John Spackman
+ */
+public class ResponseCompression {
+
+  public static final String ENCODING_GZIP = "gzip";
+  public static final String ENCODING_X_GZIP = "x-gzip";
+  public static final String ENCODING_DEFLATE = "deflate";
+
+  // Whether compression is enabled at all
+  private static boolean s_enabled = true;
+
+  // Minimum size of a response before it is compressed, in bytes
+  private static int s_threshold = 25 * 1024;
+
+  // Compression level, 0-9 (or -1 for the default)
+  private static int s_level = Deflater.DEFAULT_COMPRESSION;
+
+  // Statistics
+  private static final AtomicLong s_rawBytes = new AtomicLong();
+  private static final AtomicLong s_sentBytes = new AtomicLong();
+  private static final AtomicLong s_compressedRawBytes = new AtomicLong();
+  private static final AtomicLong s_compressedSentBytes = new AtomicLong();
+  private static final AtomicLong s_compressedResponses = new AtomicLong();
+  private static final AtomicLong s_uncompressedResponses = new AtomicLong();
+
+  /**
+   * Counts the bytes which are written through it
+   */
+  private static final class CountingOutputStream extends FilterOutputStream {
+    private long count;
+
+    public CountingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      count += len;
+    }
+  }
+
+  /**
+   * OutputStream which writes to the response, compressing if the client accepts
+   * it and enough data is written to make it worthwhile; the response headers
+   * are not changed until the decision is made, so this must be created before
+   * the response is committed. close() must be called to complete the response.
+   */
+  public static class ResponseOutputStream extends OutputStream {
+
+    private final HttpServletResponse response;
+    private final String encoding;
+    private byte[] buffer;
+    private int length;
+    private CountingOutputStream counter;
+    private OutputStream out;
+    private boolean compressed;
+    private long rawBytes;
+    private boolean closed;
+
+    /**
+     * Constructor
+     *
+     * @param response       the response to write to
+     * @param acceptEncoding the Accept-Encoding header from the client, may be null
+     */
+    public ResponseOutputStream(HttpServletResponse response, String acceptEncoding) throws IOException {
+      super();
+      this.response = response;
+      this.encoding = negotiate(acceptEncoding);
+      if (encoding == null)
+        start(false);
+      else {
+        response.addHeader("Vary", "Accept-Encoding");
+        buffer = new byte[Math.max(s_threshold, 1)];
+      }
+    }
+
+    /**
+     * Starts writing to the response
+     *
+     * @param compress whether to compress
+     * @throws IOException
+     */
+    private void start(boolean compress) throws IOException {
+      counter = new CountingOutputStream(response.getOutputStream());
+      if (compress) {
+        response.setHeader("Content-Encoding", encoding);
+        out = createCompressor(encoding, counter);
+        compressed = true;
+      } else
+        out = counter;
+      if (buffer != null) {
+        out.write(buffer, 0, length);
+        buffer = null;
+      }
+    }
+
+    /**
+     * Returns the negotiated encoding, null if compression is not possible
+     *
+     * @return
+     */
+    public String getEncoding() {
+      return encoding;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      if (out == null && length == buffer.length)
+        start(true);
+      if (out != null)
+        out.write(b);
+      else
+        buffer[length++] = (byte) b;
+      rawBytes++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (out == null && length + len > buffer.length)
+        start(true);
+      if (out != null)
+        out.write(b, off, len);
+      else {
+        System.arraycopy(b, off, buffer, length, len);
+        length += len;
+      }
+      rawBytes += len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+      // Until we know whether to compress, there is nothing to flush
+      if (out != null)
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (closed)
+        return;
+      closed = true;
+      if (out == null)
+        start(false);
+      try {
+        out.close();
+      } finally {
+        recordResponse(rawBytes, counter.count, compressed);
+      }
+    }
+  }
+
+  /**
+   * A payload which is sent to clients unchanged (eg a class definition), where
+   * the compressed versions are calculated once and kept
+   */
+  public static final class CompressedPayload {
+    private final byte[] raw;
+    private byte[] gzip;
+    private byte[] deflate;
+
+    /**
+     * Constructor
+     *
+     * @param raw the uncompressed payload
+     */
+    public CompressedPayload(byte[] raw) {
+      super();
+      this.raw = raw;
+    }
+
+    /**
+     * Returns the uncompressed payload
+     *
+     * @return
+     */
+    public byte[] getRaw() {
+      return raw;
+    }
+
+    /**
+     * Returns the payload, encoded with the given content encoding
+     *
+     * @param encoding one of the ENCODING_* constants, or null for the raw payload
+     * @return
+     * @throws IOException
+     */
+    public synchronized byte[] getBytes(String encoding) throws IOException {
+      if (encoding == null)
+        return raw;
+      if (encoding.equals(ENCODING_DEFLATE)) {
+        if (deflate == null)
+          deflate = compress(raw, encoding);
+        return deflate;
+      }
+      if (gzip == null)
+        gzip = compress(raw, encoding);
+      return gzip;
+    }
+
+    /**
+     * Writes the payload to the response, compressed if the client accepts it
+     *
+     * @param response
+     * @param acceptEncoding the Accept-Encoding header from the client, may be null
+     * @throws IOException
+     */
+    public void writeTo(HttpServletResponse response, String acceptEncoding) throws IOException {
+      String encoding = negotiate(acceptEncoding);
+      if (encoding != null) {
+        response.addHeader("Vary", "Accept-Encoding");
+        if (raw.length <= s_threshold)
+          encoding = null;
+        else
+          response.setHeader("Content-Encoding", encoding);
+      }
+      byte[] bytes = getBytes(encoding);
+      response.setContentLength(bytes.length);
+      OutputStream os = response.getOutputStream();
+      os.write(bytes);
+      os.flush();
+      recordResponse(raw.length, bytes.length, encoding != null);
+    }
+  }
+
+  /**
+   * Chooses the content encoding to use from the Accept-Encoding header; the
+   * encoding with the highest q-value is used, and gzip is preferred if they are
+   * equal
+   *
+   * @param acceptEncoding the header value, may be null
+   * @return the encoding, or null if the response should not be compressed
+   */
+  public static String negotiate(String acceptEncoding) {
+    if (!s_enabled || acceptEncoding == null)
+      return null;
+    String gzip = null;
+    double gzipQ = 0;
+    double deflateQ = 0;
+    for (String token : acceptEncoding.split(",")) {
+      String[] parts = token.split(";");
+      String name = parts[0].trim().toLowerCase();
+      double q = getQuality(parts);
+      if (q <= 0)
+        continue;
+      if ((name.equals(ENCODING_GZIP) || name.equals(ENCODING_X_GZIP)) && q > gzipQ) {
+        gzip = name;
+        gzipQ = q;
+      } else if (name.equals(ENCODING_DEFLATE) && q > deflateQ)
+        deflateQ = q;
+    }
+    if (gzip != null && gzipQ >= deflateQ)
+      return gzip;
+    if (deflateQ > 0)
+      return ENCODING_DEFLATE;
+    return null;
+  }
+
+  /*
+   * Returns the q-value from the parameters of an Accept-Encoding entry (after
+   * the name in parts[0]), 1 if there is none, or 0 if it cannot be parsed
+   */
+  private static double getQuality(String[] parts) {
+    for (int i = 1; i < parts.length; i++) {
+      String param = parts[i].replace(" ", "");
+      if (param.startsWith("q=")) {
+        try {
+          return Double.parseDouble(param.substring(2));
+        } catch (NumberFormatException e) {
+          return 0;
+        }
+      }
+    }
+    return 1;
+  }
+
+  /**
+   * Creates a stream which compresses onto another stream
+   *
+   * @param encoding one of the ENCODING_* constants
+   * @param os       the stream to write the compressed data to
+   * @return
+   * @throws IOException
+   */
+  private static OutputStream createCompressor(String encoding, OutputStream os) throws IOException {
+    final int level = s_level;
+    if (encoding.equals(ENCODING_DEFLATE)) {
+      return new DeflaterOutputStream(os, new Deflater(level), 8192) {
+        @Override
+        public void close() throws IOException {
+          try {
+            super.close();
+          } finally {
+            def.end();
+          }
+        }
+      };
+    }
+    return new GZIPOutputStream(os, 8192) {
+      {
+        def.setLevel(level);
+      }
+    };
+  }
+
+  /**
+   * Compresses a byte array
+   *
+   * @param raw
+   * @param encoding one of the ENCODING_* constants
+   * @return
+   * @throws IOException
+   */
+  public static byte[] compress(byte[] raw, String encoding) throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream(raw.length / 4 + 64);
+    OutputStream os = createCompressor(encoding, baos);
+    os.write(raw);
+    os.close();
+    return baos.toByteArray();
+  }
+
+  /**
+   * Updates the statistics
+   *
+   * @param rawBytes   bytes before compression
+   * @param sentBytes  bytes sent
+   * @param compressed whether the response was compressed
+   */
+  private static void recordResponse(long rawBytes, long sentBytes, boolean compressed) {
+    s_rawBytes.addAndGet(rawBytes);
+    s_sentBytes.addAndGet(sentBytes);
+    if (compressed) {
+      s_compressedRawBytes.addAndGet(rawBytes);
+      s_compressedSentBytes.addAndGet(sentBytes);
+      s_compressedResponses.incrementAndGet();
+    } else
+      s_uncompressedResponses.incrementAndGet();
+  }
+
+  /**
+   * Whether compression is enabled
+   *
+   * @return
+   */
+  public static boolean isEnabled() {
+    return s_enabled;
+  }
+
+  /**
+   * Sets whether compression is enabled
+   *
+   * @param enabled
+   */
+  public static void setEnabled(boolean enabled) {
+    s_enabled = enabled;
+  }
+
+  /**
+   * Returns the minimum size of a response before it is compressed, in bytes
+   *
+   * @return
+   */
+  public static int getThreshold() {
+    return s_threshold;
+  }
+
+  /**
+   * Sets the minimum size of a response before it is compressed, in bytes
+   *
+   * @param threshold
+   */
+  public static void setThreshold(int threshold) {
+    s_threshold = threshold;
+  }
+
+  /**
+   * Returns the compression level
+   *
+   * @return
+   */
+  public static int getLevel() {
+    return s_level;
+  }
+
+  /**
+   * Sets the compression level, 0 (none) to 9 (best), or -1 for the default
+   *
+   * @param level
+   */
+  public static void setLevel(int level) {
+    if ((level < 0 || level > 9) && level != Deflater.DEFAULT_COMPRESSION)
+      throw new IllegalArgumentException("Invalid compression level " + level);
+    s_level = level;
+  }
+
+  /**
+   * Returns the total number of bytes in all responses, before compression
+   *
+   * @return
+   */
+  public static long getRawBytes() {
+    return s_rawBytes.get();
+  }
+
+  /**
+   * Returns the total number of bytes sent for all responses, after compression
+   *
+   * @return
+   */
+  public static long getSentBytes() {
+    return s_sentBytes.get();
+  }
+
+  /**
+   * Returns the number of bytes in compressed responses, before compression
+   *
+   * @return
+   */
+  public static long getCompressedRawBytes() {
+    return s_compressedRawBytes.get();
+  }
+
+  /**
+   * Returns the number of bytes sent for compressed responses
+   *
+   * @return
+   */
+  public static long getCompressedSentBytes() {
+    return s_compressedSentBytes.get();
+  }
+
+  /**
+   * Returns the number of responses which were compressed
+   *
+   * @return
+   */
+  public static long getCompressedResponses() {
+    return s_compressedResponses.get();
+  }
+
+  /**
+   * Returns the number of responses which were not compressed
+   *
+   * @return
+   */
+  public static long getUncompressedResponses() {
+    return s_uncompressedResponses.get();
+  }
+
+  /**
+   * Resets the statistics
+   */
+  public static void resetStatistics() {
+    s_rawBytes.set(0);
+    s_sentBytes.set(0);
+    s_compressedRawBytes.set(0);
+    s_compressedSentBytes.set(0);
+    s_compressedResponses.set(0);
+    s_uncompressedResponses.set(0);
+  }
+}
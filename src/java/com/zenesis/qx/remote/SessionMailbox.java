@@ -0,0 +1,224 @@
+/**
+ * ************************************************************************
+ *
+ *    server-objects - a contrib to the Qooxdoo project that makes server
+ *    and client objects operate seamlessly; like Qooxdoo, server objects
+ *    have properties, events, and methods all of which can be access from
+ *    either server or client, regardless of where the original object was
+ *    created.
+ *
+ *    http://qooxdoo.org
+ *
+ *    Copyright:
+ *      2010 Zenesis Limited, http://www.zenesis.com
+ *
+ *    License:
+ *      LGPL: http://www.gnu.org/licenses/lgpl.html
+ *      EPL: http://www.eclipse.org/org/documents/epl-v10.php
+ *
+ *      This software is provided under the same licensing terms as Qooxdoo,
+ *      please see the LICENSE file in the Qooxdoo project's top-level directory
+ *      for details.
+ *
+ *    Authors:
+ *      * John Spackman (john.spackman@zenesis.com)
+ *
+ * ************************************************************************
+ */
+package com.zenesis.qx.remote;
+
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Queue of requests waiting to be processed for a session; requests are run one
+ * at a time, in order of request index, by a single drainer task per session
+ * which is only scheduled while there is something in the queue.
+ *
+ * The thread which submits a request does not hold any lock while it waits; it
+ * either parks on the returned future (which is cheap on a virtual thread) or,
+ * for an asynchronous servlet request, returns to the container straight away
+ * and lets the request complete the response. See
+ * RequestHandler.setSessionMailbox.
+ *
+ * @author John Spackman
+ *
+ */
+public class SessionMailbox {
+
+  private static final Logger log = org.apache.logging.log4j.LogManager.getLogger(SessionMailbox.class);
+
+  /*
+   * A request to be processed
+   */
+  public interface Request {
+    public void run() throws Exception;
+  }
+
+  /*
+   * A queued request
+   */
+  private static final class Entry implements Comparable<Entry> {
+    private final int requestIndex;
+    private final long serialNo;
+    private final Request request;
+    private final CompletableFuture<Void> future = new CompletableFuture<Void>();
+
+    public Entry(int requestIndex, long serialNo, Request request) {
+      this.requestIndex = requestIndex;
+      this.serialNo = serialNo;
+      this.request = request;
+    }
+
+    @Override
+    public int compareTo(Entry that) {
+      if (requestIndex != that.requestIndex)
+        return requestIndex < that.requestIndex ? -1 : 1;
+      return Long.compare(serialNo, that.serialNo);
+    }
+  }
+
+  // Runs the drainers; the default is a virtual thread per drainer
+  private static Executor s_executor = Executors.newVirtualThreadPerTaskExecutor();
+
+  // The session
+  private final ProxySessionTracker tracker;
+
+  // Requests waiting to be run, guarded by this
+  private final PriorityQueue<Entry> pending = new PriorityQueue<Entry>();
+
+  // Whether a drainer is scheduled or running, guarded by this
+  private boolean draining;
+
+  // Used to keep requests with the same index in the order they were submitted
+  private long nextSerialNo;
+
+  // Drains the queue
+  private final Runnable drainer = new Runnable() {
+    @Override
+    public void run() {
+      drain();
+    }
+  };
+
+  /**
+   * Constructor
+   *
+   * @param tracker
+   */
+  public SessionMailbox(ProxySessionTracker tracker) {
+    super();
+    this.tracker = tracker;
+  }
+
+  /**
+   * Queues a request to be run after any pending requests with a lower request
+   * index
+   *
+   * @param requestIndex
+   * @param request
+   * @return future which completes when the request has been run
+   */
+  public CompletableFuture<Void> submit(int requestIndex, Request request) {
+    Entry entry;
+    boolean schedule;
+    synchronized (this) {
+      entry = new Entry(requestIndex, nextSerialNo++, request);
+      pending.add(entry);
+      schedule = !draining;
+      draining = true;
+    }
+    if (schedule) {
+      try {
+        s_executor.execute(drainer);
+      } catch (RejectedExecutionException e) {
+        log.warn("Cannot schedule drainer for " + tracker + ", running on the caller's thread: " + e.getMessage());
+        drain();
+      }
+    }
+    return entry.future;
+  }
+
+  /**
+   * Removes a request which has not yet started to run
+   *
+   * @param future the future returned by submit
+   * @return true if the request was removed, false if it has already started
+   */
+  public synchronized boolean cancel(CompletableFuture<Void> future) {
+    for (Iterator<Entry> iter = pending.iterator(); iter.hasNext();) {
+      Entry entry = iter.next();
+      if (entry.future == future) {
+        iter.remove();
+        future.cancel(false);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the number of requests waiting to be run
+   *
+   * @return
+   */
+  public synchronized int size() {
+    return pending.size();
+  }
+
+  /*
+   * Runs requests until the queue is empty
+   */
+  private void drain() {
+    for (;;) {
+      Entry entry;
+      synchronized (this) {
+        entry = pending.poll();
+        if (entry == null) {
+          draining = false;
+          return;
+        }
+      }
+      // The tracker is already selected if we are running on the caller's thread
+      boolean select = ProxyManager.getTracker() != tracker;
+      if (select)
+        ProxyManager.selectTracker(tracker);
+      try {
+        entry.request.run();
+        entry.future.complete(null);
+      } catch (Throwable t) {
+        entry.future.completeExceptionally(t);
+      } finally {
+        if (select)
+          ProxyManager.deselectTracker(tracker);
+      }
+    }
+  }
+
+  /**
+   * Returns the executor used to run the drainers
+   *
+   * @return
+   */
+  public static Executor getExecutor() {
+    return s_executor;
+  }
+
+  /**
+   * Sets the executor used to run the drainers; the default creates a virtual
+   * thread for each drainer
+   *
+   * @param executor
+   */
+  public static void setExecutor(Executor executor) {
+    if (executor == null)
+      throw new IllegalArgumentException("Executor cannot be null");
+    SessionMailbox.s_executor = executor;
+  }
+}
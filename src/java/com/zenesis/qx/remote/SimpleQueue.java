@@ -28,7 +28,7 @@
 package com.zenesis.qx.remote;
 
 import java.io.IOException;
-import java.util.LinkedHashMap;
+import java.util.HashMap;
 
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonProcessingException;
@@ -38,15 +38,50 @@ import com.fasterxml.jackson.databind.jsontype.TypeSerializer;
 import com.zenesis.qx.remote.CommandId.CommandType;
 
 /**
- * Simplistic but functional QueueWriter; all property values are sent first,
- * followed by events. Duplicates are merged.
+ * Simplistic but functional QueueWriter; commands are sent in the order they
+ * were first queued, except that a bootstrap is always sent first. Duplicates
+ * are merged, ie queueing a command with the same type, object and name as one
+ * which is already queued replaces the data of the earlier command in place.
+ *
+ * Commands are held in an append-only log; commands which can be merged are
+ * also indexed by their CommandId, and commands which cannot (see
+ * CommandId.coalesce) are only appended. Flushing hands the log over to the
+ * serialiser and starts a new one, so the serialiser can walk it without
+ * locking or modifying it.
  *
  * @author John Spackman [john.spackman@zenesis.com]
  */
 public class SimpleQueue implements CommandQueue {
 
+  // Initial capacity of the log
+  private static final int INITIAL_CAPACITY = 16;
+
   private boolean needsFlush;
-  private LinkedHashMap<CommandId, Object> values = new LinkedHashMap<CommandId, Object>();
+
+  // The log of commands, in the order they were queued
+  private CommandId[] ids = new CommandId[INITIAL_CAPACITY];
+  private Object[] data = new Object[INITIAL_CAPACITY];
+  private int size;
+
+  // Position in the log of commands which can be merged, created on demand
+  private HashMap<CommandId, Integer> index;
+
+  // The bootstrap, which is sent before anything else
+  private CommandId bootstrapId;
+  private Object bootstrapData;
+
+  // Notified whenever a command is queued
+  private Runnable listener;
+
+  /**
+   * Sets a callback which is run whenever a command is queued (eg to wake up a
+   * long poll); it is called while the queue is locked, so must not block
+   *
+   * @param listener
+   */
+  public synchronized void setListener(Runnable listener) {
+    this.listener = listener;
+  }
 
   /*
    * (non-Javadoc)
@@ -68,20 +103,54 @@ public class SimpleQueue implements CommandQueue {
    */
   @Override
   public synchronized void queueCommand(CommandId id, Object data) {
-    if (id.type == CommandType.BOOTSTRAP && !values.isEmpty()) {
-      LinkedHashMap<CommandId, Object> tmp = new LinkedHashMap<CommandId, Object>();
-      tmp.put(id, data);
-      tmp.putAll(values);
-      values = tmp;
+    if (id.type == CommandType.BOOTSTRAP) {
+      bootstrapId = id;
+      bootstrapData = data;
+
+    } else if (!id.coalesce) {
+      append(id, data);
+
     } else {
-      values.put(id, data);
+      if (index == null)
+        index = new HashMap<CommandId, Integer>();
+      Integer pos = index.get(id);
+      if (pos != null)
+        this.data[pos] = data;
+      else {
+        index.put(id, size);
+        append(id, data);
+      }
     }
+    if (listener != null)
+      listener.run();
+  }
+
+  /*
+   * Adds a command to the end of the log
+   */
+  private void append(CommandId id, Object data) {
+    if (size == ids.length) {
+      int capacity = size * 2;
+      CommandId[] ids = new CommandId[capacity];
+      Object[] values = new Object[capacity];
+      System.arraycopy(this.ids, 0, ids, 0, size);
+      System.arraycopy(this.data, 0, values, 0, size);
+      this.ids = ids;
+      this.data = values;
+    }
+    ids[size] = id;
+    this.data[size] = data;
+    size++;
   }
 
   @Override
   public synchronized Object getCommand(CommandType type, Object object, String propertyName) {
-    CommandId id = new CommandId(type, object, propertyName);
-    return values.get(id);
+    if (type == CommandType.BOOTSTRAP)
+      return bootstrapData;
+    if (index == null)
+      return null;
+    Integer pos = index.get(new CommandId(type, object, propertyName));
+    return pos != null ? data[pos] : null;
   }
 
   /*
@@ -91,25 +160,38 @@ public class SimpleQueue implements CommandQueue {
    */
   @Override
   public synchronized boolean hasDataToFlush() {
-    return !values.isEmpty();
+    return size != 0 || bootstrapId != null;
   }
 
   @Override
   public synchronized JsonSerializable getDataToFlush() {
-    if (values.isEmpty())
+    if (size == 0 && bootstrapId == null)
       return null;
     needsFlush = false;
-    return new QueueSerializable(values);
+    QueueSerializable result = new QueueSerializable(bootstrapId, bootstrapData, ids, data, size);
+    ids = new CommandId[INITIAL_CAPACITY];
+    data = new Object[INITIAL_CAPACITY];
+    size = 0;
+    index = null;
+    bootstrapId = null;
+    bootstrapData = null;
+    return result;
   }
 
   private static final class QueueSerializable implements JsonSerializable {
 
-    private final LinkedHashMap<CommandId, Object> values;
+    private final CommandId bootstrapId;
+    private final Object bootstrapData;
+    private final CommandId[] ids;
+    private final Object[] data;
+    private final int size;
 
-    public QueueSerializable(LinkedHashMap<CommandId, Object> values) {
-      this.values = new LinkedHashMap<CommandId, Object>();
-      this.values.putAll(values);
-      values.clear();
+    public QueueSerializable(CommandId bootstrapId, Object bootstrapData, CommandId[] ids, Object[] data, int size) {
+      this.bootstrapId = bootstrapId;
+      this.bootstrapData = bootstrapData;
+      this.ids = ids;
+      this.data = data;
+      this.size = size;
     }
 
     /*
@@ -120,33 +202,38 @@ public class SimpleQueue implements CommandQueue {
      * JsonGenerator, org.codehaus.jackson.map.SerializerProvider)
      */
     @Override
-    public synchronized void serialize(JsonGenerator gen, SerializerProvider sp)
-        throws IOException, JsonProcessingException {
+    public void serialize(JsonGenerator gen, SerializerProvider sp) throws IOException, JsonProcessingException {
       gen.writeStartArray();
-      while (!values.isEmpty()) {
-        CommandId id = values.keySet().iterator().next();
-        Object data = values.remove(id);
-
-        if (id.type == CommandType.DEFINE) {
-          ProxyType type = (ProxyType) id.object;
-          ProxySessionTracker tracker = ((ProxyObjectMapper) gen.getCodec()).getTracker();
-          if (tracker.isTypeDelivered(type))
-            continue;
-        }
-
-        gen.writeStartObject();
-        gen.writeStringField("type", id.type.remoteId);
-        if (id.object != null)
-          gen.writeObjectField("object", id.object);
-        if (id.name != null)
-          gen.writeObjectField("name", id.name);
-        if (data != null)
-          gen.writeObjectField("data", data);
-        gen.writeEndObject();
-      }
+      if (bootstrapId != null)
+        writeCommand(gen, sp, bootstrapId, bootstrapData);
+      for (int i = 0; i < size; i++)
+        writeCommand(gen, sp, ids[i], data[i]);
       gen.writeEndArray();
     }
 
+    /*
+     * Writes a single command
+     */
+    private void writeCommand(JsonGenerator gen, SerializerProvider sp, CommandId id, Object data)
+        throws IOException, JsonProcessingException {
+      if (id.type == CommandType.DEFINE) {
+        ProxyType type = (ProxyType) id.object;
+        ProxySessionTracker tracker = ProxyObjectMapper.getTracker(gen, sp);
+        if (tracker.isTypeDelivered(type))
+          return;
+      }
+
+      gen.writeStartObject();
+      gen.writeStringField("type", id.type.remoteId);
+      if (id.object != null)
+        gen.writeObjectField("object", id.object);
+      if (id.name != null)
+        gen.writeObjectField("name", id.name);
+      if (data != null)
+        gen.writeObjectField("data", data);
+      gen.writeEndObject();
+    }
+
     /*
      * (non-Javadoc)
      *
@@ -156,7 +243,7 @@ public class SimpleQueue implements CommandQueue {
      * com.fasterxml.jackson.databind.jsontype.TypeSerializer)
      */
     @Override
-    public synchronized void serializeWithType(JsonGenerator gen, SerializerProvider sp, TypeSerializer ts)
+    public void serializeWithType(JsonGenerator gen, SerializerProvider sp, TypeSerializer ts)
         throws IOException, JsonProcessingException {
       serialize(gen, sp);
     }
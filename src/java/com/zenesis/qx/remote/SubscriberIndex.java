@@ -0,0 +1,154 @@
+/**
+ * ************************************************************************
+ *
+ *    server-objects - a contrib to the Qooxdoo project that makes server
+ *    and client objects operate seamlessly; like Qooxdoo, server objects
+ *    have properties, events, and methods all of which can be access from
+ *    either server or client, regardless of where the original object was
+ *    created.
+ *
+ *    http://qooxdoo.org
+ *
+ *    Copyright:
+ *      2010 Zenesis Limited, http://www.zenesis.com
+ *
+ *    License:
+ *      LGPL: http://www.gnu.org/licenses/lgpl.html
+ *      EPL: http://www.eclipse.org/org/documents/epl-v10.php
+ *
+ *      This software is provided under the same licensing terms as Qooxdoo,
+ *      please see the LICENSE file in the Qooxdoo project's top-level directory
+ *      for details.
+ *
+ *    Authors:
+ *      * John Spackman (john.spackman@zenesis.com)
+ *
+ * ************************************************************************
+ */
+package com.zenesis.qx.remote;
+
+import java.util.IdentityHashMap;
+
+/**
+ * Index of which synchronised trackers have sent each object to their client,
+ * so that a change to an object only has to visit the sessions which can see
+ * it rather than every synchronised session (see ProxyManager.addSyncTracker).
+ *
+ * The index is maintained by ProxySessionTracker as objects are sent to and
+ * forgotten by the client. Objects are compared by identity; the arrays of
+ * trackers are never modified once published, so callers can iterate them
+ * without locking.
+ *
+ * @author John Spackman
+ *
+ */
+/* package */ class SubscriberIndex {
+
+  public static final SubscriberIndex INSTANCE = new SubscriberIndex();
+
+  // Returned when there are no subscribers
+  private static final ProxySessionTracker[] NO_TRACKERS = new ProxySessionTracker[0];
+
+  // Number of stripes, must be a power of 2
+  private static final int NUM_STRIPES = 16;
+
+  // Trackers indexed by object; each stripe is locked independently
+  private final IdentityHashMap<Proxied, ProxySessionTracker[]>[] stripes;
+
+  /**
+   * Constructor
+   */
+  @SuppressWarnings("unchecked")
+  private SubscriberIndex() {
+    super();
+    stripes = new IdentityHashMap[NUM_STRIPES];
+    for (int i = 0; i < NUM_STRIPES; i++)
+      stripes[i] = new IdentityHashMap<Proxied, ProxySessionTracker[]>();
+  }
+
+  /**
+   * Returns the trackers which have sent an object to their client
+   *
+   * @param proxied
+   * @return the trackers, never null; the array must not be modified
+   */
+  public ProxySessionTracker[] getSubscribers(Proxied proxied) {
+    IdentityHashMap<Proxied, ProxySessionTracker[]> stripe = getStripe(proxied);
+    synchronized (stripe) {
+      ProxySessionTracker[] trackers = stripe.get(proxied);
+      return trackers != null ? trackers : NO_TRACKERS;
+    }
+  }
+
+  /**
+   * Records that a tracker has sent an object to its client
+   *
+   * @param proxied
+   * @param tracker
+   */
+  public void add(Proxied proxied, ProxySessionTracker tracker) {
+    IdentityHashMap<Proxied, ProxySessionTracker[]> stripe = getStripe(proxied);
+    synchronized (stripe) {
+      ProxySessionTracker[] trackers = stripe.get(proxied);
+      if (trackers == null) {
+        stripe.put(proxied, new ProxySessionTracker[] { tracker });
+        return;
+      }
+      for (ProxySessionTracker tmp : trackers)
+        if (tmp == tracker)
+          return;
+      ProxySessionTracker[] result = new ProxySessionTracker[trackers.length + 1];
+      System.arraycopy(trackers, 0, result, 0, trackers.length);
+      result[trackers.length] = tracker;
+      stripe.put(proxied, result);
+    }
+  }
+
+  /**
+   * Records that a tracker's client no longer has an object
+   *
+   * @param proxied
+   * @param tracker
+   */
+  public void remove(Proxied proxied, ProxySessionTracker tracker) {
+    IdentityHashMap<Proxied, ProxySessionTracker[]> stripe = getStripe(proxied);
+    synchronized (stripe) {
+      ProxySessionTracker[] trackers = stripe.get(proxied);
+      if (trackers == null)
+        return;
+      for (int i = 0; i < trackers.length; i++) {
+        if (trackers[i] == tracker) {
+          if (trackers.length == 1) {
+            stripe.remove(proxied);
+          } else {
+            ProxySessionTracker[] result = new ProxySessionTracker[trackers.length - 1];
+            System.arraycopy(trackers, 0, result, 0, i);
+            System.arraycopy(trackers, i + 1, result, i, result.length - i);
+            stripe.put(proxied, result);
+          }
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Removes a tracker from all of the given objects
+   *
+   * @param objects
+   * @param tracker
+   */
+  public void removeAll(Iterable<Proxied> objects, ProxySessionTracker tracker) {
+    for (Proxied proxied : objects)
+      remove(proxied, tracker);
+  }
+
+  /*
+   * Returns the stripe for an object
+   */
+  private IdentityHashMap<Proxied, ProxySessionTracker[]> getStripe(Proxied proxied) {
+    int h = System.identityHashCode(proxied);
+    h ^= h >>> 16;
+    return stripes[h & (NUM_STRIPES - 1)];
+  }
+}
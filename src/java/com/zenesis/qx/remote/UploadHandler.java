@@ -148,7 +148,7 @@ public class UploadHandler {
         data = queue.getDataToFlush();
       }
       if (data != null)
-        tracker.getObjectMapper().writeValue(response.getWriter(), data);
+        tracker.getObjectCodec().writeValue(response.getWriter(), data);
     }
   }
 
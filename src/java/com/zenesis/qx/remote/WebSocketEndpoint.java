@@ -0,0 +1,168 @@
+/**
+ * ************************************************************************
+ *
+ *    server-objects - a contrib to the Qooxdoo project that makes server
+ *    and client objects operate seamlessly; like Qooxdoo, server objects
+ *    have properties, events, and methods all of which can be access from
+ *    either server or client, regardless of where the original object was
+ *    created.
+ *
+ *    http://qooxdoo.org
+ *
+ *    Copyright:
+ *      2010 Zenesis Limited, http://www.zenesis.com
+ *
+ *    License:
+ *      LGPL: http://www.gnu.org/licenses/lgpl.html
+ *      EPL: http://www.eclipse.org/org/documents/epl-v10.php
+ *
+ *      This software is provided under the same licensing terms as Qooxdoo,
+ *      please see the LICENSE file in the Qooxdoo project's top-level directory
+ *      for details.
+ *
+ *    Authors:
+ *      * John Spackman (john.spackman@zenesis.com)
+ *
+ * ************************************************************************
+ */
+package com.zenesis.qx.remote;
+
+import java.io.IOException;
+
+import org.apache.logging.log4j.Logger;
+
+import jakarta.servlet.http.HttpSession;
+import jakarta.websocket.CloseReason;
+import jakarta.websocket.Endpoint;
+import jakarta.websocket.EndpointConfig;
+import jakarta.websocket.HandshakeResponse;
+import jakarta.websocket.MessageHandler;
+import jakarta.websocket.Session;
+import jakarta.websocket.server.HandshakeRequest;
+import jakarta.websocket.server.ServerEndpointConfig;
+
+/**
+ * WebSocket endpoint which carries the command protocol over a CommandChannel;
+ * the connection is attached to the ProxySessionTracker in the HTTP session,
+ * so the client must have made at least one request via ProxyManager.handleRequest
+ * before it connects; the socket is refused if there is no tracker.
+ *
+ * Register the endpoint with the container's ServerContainer, eg:
+ *
+ * <pre>
+ * serverContainer.addEndpoint(WebSocketEndpoint.createConfig("/qso/socket", "myApp"));
+ * </pre>
+ *
+ * @author John Spackman
+ *
+ */
+public class WebSocketEndpoint extends Endpoint {
+
+  private static final Logger log = org.apache.logging.log4j.LogManager.getLogger(WebSocketEndpoint.class);
+
+  // The user property which the tracker is stored in during the handshake
+  public static final String TRACKER_PROPERTY = ProxySessionTracker.class.getName();
+
+  /*
+   * Finds the tracker in the HTTP session during the handshake
+   */
+  public static class TrackerConfigurator extends ServerEndpointConfig.Configurator {
+    private final String appName;
+
+    public TrackerConfigurator(String appName) {
+      this.appName = appName;
+    }
+
+    @Override
+    public void modifyHandshake(ServerEndpointConfig sec, HandshakeRequest request, HandshakeResponse response) {
+      HttpSession session = (HttpSession) request.getHttpSession();
+      Object tracker = session != null ? session.getAttribute(appName) : null;
+      if (tracker instanceof ProxySessionTracker)
+        sec.getUserProperties().put(TRACKER_PROPERTY, tracker);
+    }
+  }
+
+  /*
+   * Channel which sends frames on the socket
+   */
+  private static final class SessionChannel extends CommandChannel {
+    private final Session session;
+
+    public SessionChannel(ProxySessionTracker tracker, Session session) {
+      super(tracker);
+      this.session = session;
+    }
+
+    @Override
+    protected void send(String frame) throws IOException {
+      session.getBasicRemote().sendText(frame);
+    }
+
+    @Override
+    public void close() {
+      if (isClosed())
+        return;
+      super.close();
+      if (session.isOpen()) {
+        try {
+          session.close();
+        } catch (IOException e) {
+          log.warn("Error while closing socket for " + tracker + ": " + e.getMessage());
+        }
+      }
+    }
+  }
+
+  // The channel for this connection
+  private SessionChannel channel;
+
+  /**
+   * Creates the configuration to register the endpoint
+   *
+   * @param path    the path of the endpoint
+   * @param appName the name of the session attribute which holds the tracker,
+   *                as passed to ProxyManager.handleRequest
+   * @return
+   */
+  public static ServerEndpointConfig createConfig(String path, String appName) {
+    return ServerEndpointConfig.Builder.create(WebSocketEndpoint.class, path)
+        .configurator(new TrackerConfigurator(appName)).build();
+  }
+
+  @Override
+  public void onOpen(Session session, EndpointConfig config) {
+    ProxySessionTracker tracker = (ProxySessionTracker) config.getUserProperties().get(TRACKER_PROPERTY);
+    if (tracker == null) {
+      try {
+        session.close(new CloseReason(CloseReason.CloseCodes.VIOLATED_POLICY, "No session"));
+      } catch (IOException e) {
+        log.warn("Error while closing socket without a session: " + e.getMessage());
+      }
+      return;
+    }
+    final SessionChannel channel = this.channel = new SessionChannel(tracker, session);
+    session.addMessageHandler(new MessageHandler.Whole<String>() {
+      @Override
+      public void onMessage(String message) {
+        try {
+          channel.receive(message);
+        } catch (Exception e) {
+          log.error("Invalid frame from client for " + channel.tracker + ": " + e.getMessage(), e);
+          channel.close();
+        }
+      }
+    });
+    channel.open();
+  }
+
+  @Override
+  public void onClose(Session session, CloseReason closeReason) {
+    if (channel != null)
+      channel.close();
+  }
+
+  @Override
+  public void onError(Session session, Throwable t) {
+    log.error("Error on socket for " + (channel != null ? channel.tracker : null) + ": " + t.getMessage(), t);
+  }
+}
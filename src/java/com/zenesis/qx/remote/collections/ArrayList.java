@@ -1,10 +1,14 @@
 package com.zenesis.qx.remote.collections;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.ConcurrentModificationException;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.Map;
 
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
@@ -41,6 +45,16 @@ public class ArrayList<T> extends java.util.AbstractList<T> implements Proxied,
   private boolean sorting;
   private transient Object[] elementData;
   private int size;
+  // Number of nulls in elementData, maintained as the array is modified
+  private int nullCount;
+  // Whether to index the elements by UUID
+  private boolean indexUuids;
+  // Position of the first element with each UUID; null if not indexing or if
+  // the index needs to be rebuilt
+  private transient java.util.HashMap<String, Integer> uuidIndex;
+  // Nesting depth of beginBatch, and the changes made during the batch
+  private int batchDepth;
+  private ChangeLog batch;
   private boolean storeReferences;
   private Object containerObject;
   @Property
@@ -60,9 +74,8 @@ public class ArrayList<T> extends java.util.AbstractList<T> implements Proxied,
     int i = 0;
     while (it.hasNext()) {
       Object value = it.next();
-      if (detectNulls && value == null) {
-        new IllegalArgumentException("Adding null value to protected array");
-      }
+      if (value == null)
+        nullCount++;
       elementData[i++] = value;
     }
   }
@@ -77,6 +90,8 @@ public class ArrayList<T> extends java.util.AbstractList<T> implements Proxied,
   }
 
   public void setDetectNulls(boolean detectNulls) {
+    if (detectNulls && nullCount > 0)
+      throw new IllegalStateException("Cannot protect an array which already contains nulls");
     this.detectNulls = detectNulls;
   }
 
@@ -88,59 +103,144 @@ public class ArrayList<T> extends java.util.AbstractList<T> implements Proxied,
     this.detectDuplicates = detectDuplicates;
   }
 
+  public boolean isIndexUuids() {
+    return indexUuids;
+  }
+
+  /**
+   * Enables an index of elements by UUID, so that findByUuid, containsUuid,
+   * contains and indexOf do not have to scan the array; the index costs a hash
+   * map entry per element, so it is only worth enabling for larger lists. The
+   * UUIDs of elements must not change while they are in the list.
+   *
+   * @param indexUuids
+   */
+  public void setIndexUuids(boolean indexUuids) {
+    this.indexUuids = indexUuids;
+    uuidIndex = null;
+  }
+
   /**
    * Scans the array looking for duplicates;
    *
    * @return
    */
   public boolean detectDuplicates() {
+    HashSet<String> uuids = new HashSet<String>();
+    IdentityHashMap<Object, Boolean> elements = new IdentityHashMap<Object, Boolean>();
     for (int i = 0; i < size; i++) {
-      Object check = elementData[i];
-      OnDemandReference checkRef = (check instanceof OnDemandReference) ? (OnDemandReference) check : null;
-      String checkUuid = checkRef != null ? checkRef.getUuid()
-          : check instanceof HasUuid ? ((HasUuid) check).getUuid() : null;
-      for (int j = i + 1; j < size; j++) {
-        Object element = elementData[j];
-        OnDemandReference elementRef = (element instanceof OnDemandReference) ? (OnDemandReference) element : null;
-        String elementUuid = elementRef != null ? elementRef.getUuid()
-            : element instanceof HasUuid ? ((HasUuid) element).getUuid() : null;
-
-        if (checkUuid != null && elementUuid != null) {
-          if (checkUuid.equalsIgnoreCase(elementUuid)) {
-            System.out.println("Duplicate detected!");
-            return true;
-          }
-        }
-        if (element == check) {
-          System.out.println("Duplicate detected!");
-          return true;
-        }
+      Object element = elementData[i];
+      String uuid = getUuid(element);
+      if ((uuid != null && !uuids.add(uuid.toLowerCase())) || elements.put(element, Boolean.TRUE) != null) {
+        System.out.println("Duplicate detected!");
+        return true;
       }
     }
     return false;
   }
 
+  /*
+   * Returns the UUID of an element, or null if it does not have one
+   */
+  private static String getUuid(Object element) {
+    if (element instanceof HasUuid)
+      return ((HasUuid) element).getUuid();
+    return null;
+  }
+
+  /*
+   * Builds an index of the position of the first element with each UUID
+   */
+  private java.util.HashMap<String, Integer> buildUuidIndex() {
+    java.util.HashMap<String, Integer> index = new java.util.HashMap<String, Integer>(size * 2);
+    for (int i = 0; i < size; i++) {
+      String uuid = getUuid(elementData[i]);
+      if (uuid != null && !index.containsKey(uuid))
+        index.put(uuid, i);
+    }
+    return index;
+  }
+
+  /*
+   * Returns the position of the first element with a UUID, using the index; only
+   * valid if indexUuids is true
+   */
+  private int indexOfUuid(String uuid) {
+    for (int pass = 0; pass < 2; pass++) {
+      if (uuidIndex == null)
+        uuidIndex = buildUuidIndex();
+      Integer pos = uuidIndex.get(uuid);
+      if (pos == null)
+        return -1;
+      if (uuid.equals(getUuid(elementData[pos])))
+        return pos;
+
+      // The element's UUID has changed since it was indexed
+      uuidIndex = null;
+    }
+    return -1;
+  }
+
+  /*
+   * Updates the index after an element has been inserted at index, moving the
+   * elements after it up by one; works downwards so that an element is not moved
+   * twice when it is followed by another with the same UUID
+   */
+  private void indexInserted(int index) {
+    for (int i = size - 1; i > index; i--) {
+      String uuid = getUuid(elementData[i]);
+      if (uuid != null) {
+        Integer pos = uuidIndex.get(uuid);
+        if (pos != null && pos.intValue() == i - 1)
+          uuidIndex.put(uuid, i);
+      }
+    }
+    String uuid = getUuid(elementData[index]);
+    if (uuid != null) {
+      Integer pos = uuidIndex.get(uuid);
+      if (pos == null || pos.intValue() > index)
+        uuidIndex.put(uuid, index);
+    }
+  }
+
+  /*
+   * Updates the index after the element at index has been removed, moving the
+   * elements after it down by one; if the removed element was the first with its
+   * UUID, the next element with that UUID (if any) takes its place
+   */
+  private void indexRemoved(int index, String removedUuid) {
+    if (removedUuid != null) {
+      Integer pos = uuidIndex.get(removedUuid);
+      if (pos != null && pos.intValue() == index)
+        uuidIndex.remove(removedUuid);
+    }
+    for (int i = index; i < size; i++) {
+      String uuid = getUuid(elementData[i]);
+      if (uuid != null) {
+        Integer pos = uuidIndex.get(uuid);
+        if (pos == null || pos.intValue() == i + 1)
+          uuidIndex.put(uuid, i);
+      }
+    }
+  }
+
   /**
-   * Scans the array looking for nulls; raises an exception if it finds one and
-   * `detectNulls` is true
+   * Checks whether the array contains nulls; raises an exception if it does and
+   * `detectNulls` is true. The number of nulls is maintained as the array is
+   * modified, so this does not need to scan the array
    *
    * @return
    */
   public boolean detectNulls() {
-    for (int i = 0; i < size; i++) {
-      Object element = elementData[i];
-      if (element == null) {
-        if (detectNulls)
-          throw new IllegalStateException("Detected null in protected array");
-        return true;
-      }
-    }
-    return false;
+    if (nullCount == 0)
+      return false;
+    if (detectNulls)
+      throw new IllegalStateException("Detected null in protected array");
+    return true;
   }
 
   @Override
   public boolean contains(Object obj) {
-    detectNulls();
     String uuid;
     T target = null;
     OnDemandReference<T> ref = null;
@@ -153,6 +253,19 @@ public class ArrayList<T> extends java.util.AbstractList<T> implements Proxied,
     } else
       return super.contains(obj);
 
+    if (indexUuids && uuid != null) {
+      int pos = indexOfUuid(uuid);
+      if (pos < 0)
+        return false;
+      Object element = elementData[pos];
+      if (element instanceof OnDemandReference)
+        return true;
+      if (target == null && ref != null)
+        target = ref.get();
+      if (element == target || element.equals(target))
+        return true;
+    }
+
     for (int i = 0; i < size; i++) {
       Object element = elementData[i];
       if (element instanceof OnDemandReference) {
@@ -180,7 +293,6 @@ public class ArrayList<T> extends java.util.AbstractList<T> implements Proxied,
    * @return ArrayList containing all UUIDs
    */
   public ArrayList<String> getUuids() {
-    detectNulls();
     ArrayList<String> uuids = new ArrayList<String>();
     for (T obj : this) {
       if (obj instanceof OnDemandReference<?>) {
@@ -194,7 +306,6 @@ public class ArrayList<T> extends java.util.AbstractList<T> implements Proxied,
 
   @Override
   public int indexOf(Object obj) {
-    detectNulls();
     String uuid;
     T target = null;
     OnDemandReference<T> ref = null;
@@ -207,6 +318,19 @@ public class ArrayList<T> extends java.util.AbstractList<T> implements Proxied,
     } else
       return super.indexOf(obj);
 
+    if (indexUuids && uuid != null) {
+      int pos = indexOfUuid(uuid);
+      if (pos < 0)
+        return -1;
+      Object element = elementData[pos];
+      if (element instanceof OnDemandReference)
+        return pos;
+      if (target == null && ref != null)
+        target = ref.get();
+      if (element == target || element.equals(target))
+        return pos;
+    }
+
     for (int i = 0; i < size; i++) {
       Object element = elementData[i];
 
@@ -231,7 +355,6 @@ public class ArrayList<T> extends java.util.AbstractList<T> implements Proxied,
 
   @Override
   public T get(int index) {
-    detectNulls();
     if (index < 0 || index > size)
       throw new IndexOutOfBoundsException("Index " + size + " out of bounds, max=" + size);
     Object obj = elementData[index];
@@ -250,7 +373,10 @@ public class ArrayList<T> extends java.util.AbstractList<T> implements Proxied,
    * @return
    */
   public T findByUuid(String uuid) {
-    detectNulls();
+    if (indexUuids && uuid != null) {
+      int pos = indexOfUuid(uuid);
+      return pos < 0 ? null : get(pos);
+    }
     for (int i = 0; i < size; i++) {
       Object obj = elementData[i];
       if (obj instanceof OnDemandReference<?>) {
@@ -280,7 +406,8 @@ public class ArrayList<T> extends java.util.AbstractList<T> implements Proxied,
    * @return
    */
   public boolean containsUuid(String uuid) {
-    detectNulls();
+    if (indexUuids && uuid != null)
+      return indexOfUuid(uuid) > -1;
     for (int i = 0; i < size; i++) {
       Object obj = elementData[i];
       if (obj instanceof OnDemandReference<?>) {
@@ -336,16 +463,21 @@ public class ArrayList<T> extends java.util.AbstractList<T> implements Proxied,
         uuid = ((OnDemandReference) element).getUuid();
       else if (element instanceof HasUuid)
         uuid = ((HasUuid) element).getUuid();
-      for (int i = 0; i < size; i++) {
-        Object obj = elementData[i];
-        if (obj instanceof OnDemandReference<?>) {
-          OnDemandReference<T> odr = (OnDemandReference<T>) obj;
-          if (odr.getUuid().equals(uuid)) {
-            System.out.println("Adding a duplicate");
-          }
-        } else if (obj instanceof HasUuid) {
-          if (((HasUuid) obj).getUuid().equals(uuid)) {
-            System.out.println("Adding a duplicate");
+      if (indexUuids && uuid != null) {
+        if (indexOfUuid(uuid) > -1)
+          System.out.println("Adding a duplicate");
+      } else {
+        for (int i = 0; i < size; i++) {
+          Object obj = elementData[i];
+          if (obj instanceof OnDemandReference<?>) {
+            OnDemandReference<T> odr = (OnDemandReference<T>) obj;
+            if (odr.getUuid().equals(uuid)) {
+              System.out.println("Adding a duplicate");
+            }
+          } else if (obj instanceof HasUuid) {
+            if (((HasUuid) obj).getUuid().equals(uuid)) {
+              System.out.println("Adding a duplicate");
+            }
           }
         }
       }
@@ -353,7 +485,6 @@ public class ArrayList<T> extends java.util.AbstractList<T> implements Proxied,
     if (detectDuplicates && detectDuplicates()) {
       System.out.println("detected duplicates before adding");
     }
-    detectNulls();
     if (detectNulls && element == null) {
       throw new IllegalArgumentException("Adding null not allowed, index=" + index);
     }
@@ -368,7 +499,11 @@ public class ArrayList<T> extends java.util.AbstractList<T> implements Proxied,
         elementData, index + 1,
         size - index);
     elementData[index] = getValueToStore(null, element);
+    if (element == null)
+      nullCount++;
     size++;
+    if (uuidIndex != null)
+      indexInserted(index);
     fire(new ArrayChangeData().add(element));
     if (detectDuplicates && detectDuplicates()) {
       System.out.println("detected duplicates after adding");
@@ -389,13 +524,22 @@ public class ArrayList<T> extends java.util.AbstractList<T> implements Proxied,
       System.out.println("detected duplicates before removing");
     }
     T result = get(index);
+    boolean copied = hasCopy(index);
+    if (elementData[index] == null)
+      nullCount--;
+    String removedUuid = uuidIndex != null ? getUuid(elementData[index]) : null;
     if (index < size - 1) {
       System.arraycopy(elementData, index + 1, elementData, index, size - index - 1);
     }
     elementData[size - 1] = null;
     size--;
+    if (uuidIndex != null)
+      indexRemoved(index, removedUuid);
 
-    fire(new ArrayChangeData().remove(result));
+    ArrayChangeData event = new ArrayChangeData().remove(result);
+    if (copied)
+      event.copied(result);
+    fire(event);
     if (detectDuplicates && detectDuplicates()) {
       System.out.println("detected duplicates after removing");
     }
@@ -414,13 +558,26 @@ public class ArrayList<T> extends java.util.AbstractList<T> implements Proxied,
     if (detectDuplicates && detectDuplicates()) {
       System.out.println("detected duplicates before setting");
     }
-    detectNulls();
     if (detectNulls && element == null) {
       throw new IllegalArgumentException("Setting null not allowed, index=" + index);
     }
+    boolean copied = hasCopy(index);
+    if (elementData[index] == null)
+      nullCount--;
+    if (element == null)
+      nullCount++;
+    String oldUuid = getUuid(elementData[index]);
     elementData[index] = getValueToStore(elementData[index], element);
+    if (uuidIndex != null) {
+      String uuid = getUuid(elementData[index]);
+      if (uuid == null ? oldUuid != null : !uuid.equals(oldUuid))
+        uuidIndex = null;
+    }
 
-    fire(new ArrayChangeData().remove(result).add(element));
+    ArrayChangeData event = new ArrayChangeData().remove(result).add(element);
+    if (copied)
+      event.copied(result);
+    fire(event);
     if (detectDuplicates && detectDuplicates()) {
       System.out.println("detected duplicates after setting");
     }
@@ -553,18 +710,19 @@ public class ArrayList<T> extends java.util.AbstractList<T> implements Proxied,
   }
 
   /**
-   * Replaces the contents of the array with another
+   * Replaces the contents of the array with another; only the elements which are
+   * removed, added, or moved are sent to the client
    *
    * @param collection
    */
   public void replace(Collection<? extends T> collection) {
-    clear();
-    for (T element : collection) {
-      if (detectNulls && element == null) {
-        throw new IllegalArgumentException("Adding null not allowed");
-      }
-      add(element);
+    Object[] values = collection.toArray();
+    if (detectNulls) {
+      for (Object element : values)
+        if (element == null)
+          throw new IllegalArgumentException("Adding null not allowed");
     }
+    replaceContents(values);
     if (detectDuplicates && detectDuplicates()) {
       System.out.println("detected duplicates after replace");
     }
@@ -613,23 +771,236 @@ public class ArrayList<T> extends java.util.AbstractList<T> implements Proxied,
     // This is often too big, but is a worse case for when we're adding as well as
     //  matching the order
     Object[] newElementData = new Object[requiredOrder.size() + size()];
+    // Lookups for the current and reordered elements, so that matching is linear
+    java.util.HashMap<String, Integer> uuids = indexUuids && uuidIndex != null ? uuidIndex : buildUuidIndex();
+    IdentityHashMap<Object, Boolean> elements = new IdentityHashMap<Object, Boolean>();
+    for (int i = 0; i < size(); i++)
+      elements.put(elementData[i], Boolean.TRUE);
+    IdentityHashMap<Object, Boolean> placed = new IdentityHashMap<Object, Boolean>();
     int pos = 0;
     for (Object obj : requiredOrder) {
-      newElementData[pos++] = findOriginal(obj);
+      Object original = findOriginal(obj, uuids, elements);
+      newElementData[pos++] = original;
+      placed.put(original, Boolean.TRUE);
     }
     for (int i = 0; i < size(); i++) {
-      if (!isIn(newElementData, elementData[i])) {
+      if (!placed.containsKey(elementData[i])) {
         newElementData[pos++] = elementData[i];
       }
     }
     Object[] trimmedElementData = new Object[pos];
     System.arraycopy(newElementData, 0, trimmedElementData, 0, pos);
-    elementData = trimmedElementData;
-    size = pos;
+    replaceContents(trimmedElementData);
+    detectNulls();
+  }
+
+  /**
+   * Replaces the contents of the array, and fires a single change which has the
+   * elements which were removed, the elements which were added, and the elements
+   * which must be moved to put the client's copy in the same order.
+   *
+   * Elements are matched by identity, and on demand references are also matched
+   * by UUID (in which case the existing reference is kept). The client appends
+   * added elements and then applies the moves, so the elements which are not
+   * moved are the longest run of elements which are already in the right
+   * relative order.
+   *
+   * @param values the new contents
+   */
+  private void replaceContents(Object[] values) {
+    int newSize = values.length;
+
+    // Current positions of each element
+    IdentityHashMap<Object, ArrayDeque<Integer>> byIdentity = new IdentityHashMap<Object, ArrayDeque<Integer>>();
+    java.util.HashMap<Object, ArrayDeque<Integer>> byUuid = new java.util.HashMap<Object, ArrayDeque<Integer>>();
+    boolean duplicates = false;
+    for (int i = 0; i < size; i++) {
+      Object raw = elementData[i];
+      if (addPosition(byIdentity, raw, i))
+        duplicates = true;
+      if (raw instanceof OnDemandReference) {
+        String uuid = ((OnDemandReference) raw).getUuid();
+        if (uuid != null)
+          addPosition(byUuid, uuid, i);
+      }
+    }
+
+    // Match the new contents to the current contents
+    Object[] newData = new Object[Math.max(newSize, 5)];
+    int[] oldIndexes = new int[newSize];
+    int[] newIndexes = new int[size];
+    boolean[] kept = new boolean[size];
+    IdentityHashMap<Object, Boolean> seen = new IdentityHashMap<Object, Boolean>();
+    for (int j = 0; j < newSize; j++) {
+      Object value = values[j];
+      if (seen.put(value, Boolean.TRUE) != null)
+        duplicates = true;
+      int index = nextPosition(byIdentity.get(value), kept);
+      if (index < 0) {
+        String uuid = getUuid(value);
+        if (uuid != null)
+          index = nextPosition(byUuid.get(uuid), kept);
+      }
+      oldIndexes[j] = index;
+      if (index > -1) {
+        kept[index] = true;
+        newIndexes[index] = j;
+        newData[j] = elementData[index];
+      } else
+        newData[j] = getValueToStore(null, value);
+    }
+
     ArrayChangeData event = new ArrayChangeData();
-    for (Object o : this)
-      event.order(o);
-    fire(event);
+    if (duplicates) {
+      // The client removes elements by value, which is ambiguous when an element
+      // appears more than once, so everything is replaced
+      for (int i = 0; i < size; i++) {
+        Object value = resolve(elementData[i]);
+        addTo(event, false, value);
+        event.copied(value);
+      }
+      for (int j = 0; j < newSize; j++)
+        addTo(event, true, values[j]);
+    } else {
+      for (int i = 0; i < size; i++)
+        if (!kept[i])
+          addTo(event, false, resolve(elementData[i]));
+
+      // The order of the client's copy after removing and appending, as indexes
+      // into the new contents
+      int[] sequence = new int[newSize];
+      int pos = 0;
+      for (int i = 0; i < size; i++)
+        if (kept[i])
+          sequence[pos++] = newIndexes[i];
+      for (int j = 0; j < newSize; j++)
+        if (oldIndexes[j] < 0) {
+          addTo(event, true, values[j]);
+          sequence[pos++] = j;
+        }
+
+      boolean[] inOrder = longestIncreasing(sequence);
+      boolean[] moved = new boolean[newSize];
+      for (int i = 0; i < newSize; i++)
+        if (!inOrder[i])
+          moved[sequence[i]] = true;
+      for (int j = 0; j < newSize; j++)
+        if (moved[j]) {
+          if (event.moved == null)
+            event.moved = new java.util.ArrayList<MoveEntry>();
+          event.moved.add(new MoveEntry(j, oldIndexes[j] < 0 ? values[j] : resolve(newData[j])));
+        }
+    }
+
+    elementData = newData;
+    size = newSize;
+    uuidIndex = null;
+    nullCount = 0;
+    for (int i = 0; i < size; i++)
+      if (elementData[i] == null)
+        nullCount++;
+    if (event.added != null || event.removed != null || event.moved != null)
+      fire(event);
+  }
+
+  /*
+   * Records the position of an element, returns true if it was already recorded
+   */
+  private static boolean addPosition(Map<Object, ArrayDeque<Integer>> positions, Object key, int index) {
+    ArrayDeque<Integer> list = positions.get(key);
+    if (list == null) {
+      list = new ArrayDeque<Integer>(1);
+      positions.put(key, list);
+    }
+    list.add(index);
+    return list.size() > 1;
+  }
+
+  /*
+   * Returns the next recorded position which has not been matched yet, or -1
+   */
+  private static int nextPosition(ArrayDeque<Integer> positions, boolean[] kept) {
+    if (positions != null) {
+      while (!positions.isEmpty()) {
+        int index = positions.poll();
+        if (!kept[index])
+          return index;
+      }
+    }
+    return -1;
+  }
+
+  /*
+   * Detects whether the list has another copy of the element at index; on
+   * demand references are also matched by UUID
+   */
+  private boolean hasCopy(int index) {
+    Object raw = elementData[index];
+    String uuid = raw instanceof OnDemandReference ? ((OnDemandReference) raw).getUuid() : null;
+    for (int i = 0; i < size; i++) {
+      Object element = elementData[i];
+      if (i == index)
+        continue;
+      if (element == raw)
+        return true;
+      if (uuid != null && element instanceof OnDemandReference && uuid.equals(((OnDemandReference) element).getUuid()))
+        return true;
+    }
+    return false;
+  }
+
+  /*
+   * Adds to the added or removed list of a change, without the search which
+   * ArrayChangeData.add and remove use to cancel changes out
+   */
+  private static void addTo(ArrayChangeData event, boolean added, Object value) {
+    if (added) {
+      if (event.added == null)
+        event.added = new java.util.ArrayList();
+      event.added.add(value);
+    } else {
+      if (event.removed == null)
+        event.removed = new java.util.ArrayList();
+      event.removed.add(value);
+    }
+  }
+
+  /*
+   * Returns the value of a stored element, loading on demand references
+   */
+  private static Object resolve(Object raw) {
+    if (raw instanceof OnDemandReference<?>)
+      return ((OnDemandReference) raw).get();
+    return raw;
+  }
+
+  /*
+   * Finds a longest strictly increasing subsequence, returning which entries of
+   * the sequence are in it
+   */
+  private static boolean[] longestIncreasing(int[] sequence) {
+    int length = 0;
+    int[] tails = new int[sequence.length];
+    int[] previous = new int[sequence.length];
+    for (int i = 0; i < sequence.length; i++) {
+      int lo = 0;
+      int hi = length;
+      while (lo < hi) {
+        int mid = (lo + hi) >>> 1;
+        if (sequence[tails[mid]] < sequence[i])
+          lo = mid + 1;
+        else
+          hi = mid;
+      }
+      previous[i] = lo > 0 ? tails[lo - 1] : -1;
+      tails[lo] = i;
+      if (lo == length)
+        length++;
+    }
+    boolean[] result = new boolean[sequence.length];
+    for (int i = length > 0 ? tails[length - 1] : -1; i > -1; i = previous[i])
+      result[i] = true;
+    return result;
   }
   
   /**
@@ -639,52 +1010,27 @@ public class ArrayList<T> extends java.util.AbstractList<T> implements Proxied,
    * DocumentRef
    * 
    * @param value
+   * @param uuids position of the first element with each UUID
+   * @param elements the elements in elementData
    * @return 
    */
-  private Object findOriginal(Object value) {
+  private Object findOriginal(Object value, java.util.HashMap<String, Integer> uuids, IdentityHashMap<Object, Boolean> elements) {
     if (value instanceof HasUuid) {
       String valueUuid = ((HasUuid)value).getUuid();
       if (valueUuid == null)
         return value;
       
-      for (int i = 0; i < size(); i++) {
-        if (elementData[i] instanceof HasUuid) {
-          String matchUuid = ((HasUuid)elementData[i]).getUuid();
-          if (matchUuid != null && matchUuid.equals(valueUuid)) {
-            return elementData[i];
-          }
-        }
-      }
+      Integer pos = uuids.get(valueUuid);
+      if (pos != null && valueUuid.equals(getUuid(elementData[pos])))
+        return elementData[pos];
       
       return value;  
-    } else {
-      for (int i = 0; i < size(); i++) {
-        if (elementData[i] == value) {
-          return value;
-        }
-      }
+    } else if (elements.containsKey(value)) {
+      return value;
     }
     
     return null;
   }
-  
-  private static boolean isIn(Object[] arr, Object value) {
-    String valueUuid = null;
-    if (value instanceof HasUuid) {
-      valueUuid = ((HasUuid)value).getUuid();
-    }
-    for (int i = 0; i < arr.length; i++) {
-      if (arr[i] instanceof HasUuid) {
-        String matchUuid = ((HasUuid)arr[i]).getUuid();
-        if (valueUuid != null && matchUuid != null && value.equals(matchUuid)) {
-          return true;
-        }
-      }
-      if (arr[i] == value)
-        return true;
-    }
-    return false;
-  }
 
   /*
    * (non-Javadoc)
@@ -693,22 +1039,15 @@ public class ArrayList<T> extends java.util.AbstractList<T> implements Proxied,
    */
   @Override
   public boolean addAll(Collection c) {
-    boolean result = super.addAll(c);
+    boolean result;
+    beginBatch();
+    try {
+      result = super.addAll(c);
+    } finally {
+      endBatch();
+    }
     if (!result)
       return false;
-    if (detectDuplicates && detectDuplicates()) {
-      System.out.println("detected duplicates before addAll");
-    }
-    detectNulls();
-    ArrayChangeData event = new ArrayChangeData();
-    for (Object element : c) {
-      if (detectNulls && element == null) {
-        throw new IllegalArgumentException("Adding null not allowed");
-      }
-      event.add(element);
-    }
-    // Already fired by addAll calling add
-    //fire(event);
     if (detectDuplicates && detectDuplicates()) {
       System.out.println("detected duplicates after addAll");
     }
@@ -723,20 +1062,15 @@ public class ArrayList<T> extends java.util.AbstractList<T> implements Proxied,
    */
   @Override
   public boolean addAll(int index, Collection c) {
-    boolean result = super.addAll(index, c);
+    boolean result;
+    beginBatch();
+    try {
+      result = super.addAll(index, c);
+    } finally {
+      endBatch();
+    }
     if (!result)
       return false;
-    if (detectDuplicates && detectDuplicates()) {
-      System.out.println("detected duplicates before addAll(i,c)");
-    }
-    ArrayChangeData event = new ArrayChangeData();
-    for (Object element : c) {
-      if (detectNulls && element == null) {
-        throw new IllegalArgumentException("Adding null not allowed, index=" + index);
-      }
-      event.add(element);
-    }
-    fire(event);
     if (detectDuplicates && detectDuplicates()) {
       System.out.println("detected duplicates after addAll(i,c)");
     }
@@ -753,11 +1087,12 @@ public class ArrayList<T> extends java.util.AbstractList<T> implements Proxied,
   public void clear() {
     if (size() == 0)
       return;
-    ArrayChangeData event = new ArrayChangeData();
-    for (Object o : this)
-      event.remove(o);
-    super.clear();
-    fire(event);
+    beginBatch();
+    try {
+      super.clear();
+    } finally {
+      endBatch();
+    }
   }
 
   /*
@@ -775,11 +1110,12 @@ public class ArrayList<T> extends java.util.AbstractList<T> implements Proxied,
     if (toIndex == fromIndex)
       return;
 
-    ArrayChangeData event = new ArrayChangeData();
-    for (int i = fromIndex; i < toIndex; i++)
-      event.remove(this.get(i));
-    super.removeRange(fromIndex, toIndex);
-    fire(event);
+    beginBatch();
+    try {
+      super.removeRange(fromIndex, toIndex);
+    } finally {
+      endBatch();
+    }
     if (detectDuplicates && detectDuplicates()) {
       System.out.println("detected duplicates after removeRange");
     }
@@ -798,12 +1134,13 @@ public class ArrayList<T> extends java.util.AbstractList<T> implements Proxied,
     if (detectDuplicates && detectDuplicates()) {
       System.out.println("detected duplicates before removeAll");
     }
-    ArrayChangeData event = new ArrayChangeData<T>();
-    for (Object o : c)
-      if (contains(o))
-        event.remove(o);
-    boolean result = super.removeAll(c);
-    fire(event);
+    boolean result;
+    beginBatch();
+    try {
+      result = super.removeAll(c);
+    } finally {
+      endBatch();
+    }
     if (detectDuplicates && detectDuplicates()) {
       System.out.println("detected duplicates after removeAll");
     }
@@ -823,12 +1160,13 @@ public class ArrayList<T> extends java.util.AbstractList<T> implements Proxied,
     if (detectDuplicates && detectDuplicates()) {
       System.out.println("detected duplicates before retainAll");
     }
-    ArrayChangeData event = new ArrayChangeData<T>();
-    for (Object o : this)
-      if (!c.contains(o))
-        event.remove(o);
-    boolean result = super.retainAll(c);
-    fire(event);
+    boolean result;
+    beginBatch();
+    try {
+      result = super.retainAll(c);
+    } finally {
+      endBatch();
+    }
     if (detectDuplicates && detectDuplicates()) {
       System.out.println("detected duplicates after retainAll");
     }
@@ -849,11 +1187,48 @@ public class ArrayList<T> extends java.util.AbstractList<T> implements Proxied,
   }
 
   /**
-   * Fires an event
+   * Starts a batch of changes; until the matching call to endBatch, changes to
+   * the list are collected instead of being fired, and are then fired as a
+   * single net change. Batches can be nested, and endBatch must always be called
+   * (eg in a finally block)
+   */
+  public void beginBatch() {
+    if (batchDepth++ == 0)
+      batch = new ChangeLog();
+  }
+
+  /**
+   * Ends a batch of changes started by beginBatch, and fires the net change if
+   * this is the outermost batch
+   */
+  public void endBatch() {
+    if (batchDepth == 0)
+      throw new IllegalStateException("endBatch called without beginBatch");
+    if (--batchDepth > 0)
+      return;
+    ChangeLog log = batch;
+    batch = null;
+    for (ChangeData change : log.compact())
+      fire((ArrayChangeData) change);
+  }
+
+  /**
+   * @return true if changes are being collected by beginBatch
+   */
+  public boolean isBatching() {
+    return batchDepth > 0;
+  }
+
+  /**
+   * Fires an event, or adds it to the current batch
    *
    * @param event
    */
   private void fire(ArrayChangeData event) {
+    if (batch != null) {
+      batch.add(event);
+      return;
+    }
     if (eventsEnabled())
       EventManager.fireDataEvent(this, "change", event);
     ProxyManager.collectionChanged(this, event);
@@ -864,10 +1239,36 @@ public class ArrayList<T> extends java.util.AbstractList<T> implements Proxied,
    *
    * @param <T>
    */
+  public static class MoveEntry {
+    private final int index;
+    private final Object value;
+
+    public MoveEntry(int index, Object value) {
+      super();
+      this.index = index;
+      this.value = value;
+    }
+
+    public int getIndex() {
+      return index;
+    }
+
+    public Object getValue() {
+      return value;
+    }
+  }
+
   public static class ArrayChangeData<T> extends ChangeData {
     public java.util.ArrayList<T> added;
     public java.util.ArrayList<T> removed;
     public java.util.ArrayList<T> order;
+    // Elements to move to an index, after removing and adding; in order of index
+    public java.util.ArrayList<MoveEntry> moved;
+    // Removed elements which the list had another copy of; the client removes
+    // the first copy, which may not be the one which was added last, so
+    // ChangeLog does not cancel these against earlier adds. Not sent to the
+    // client
+    java.util.ArrayList<Object> copies;
 
     public ArrayChangeData add(T o) {
       if (removed == null || !removed.remove(o)) {
@@ -893,6 +1294,26 @@ public class ArrayList<T> extends java.util.AbstractList<T> implements Proxied,
       order.add(o);
       return this;
     }
+
+    /*
+     * Records that the list had another copy of a removed element
+     */
+    void copied(Object o) {
+      if (copies == null)
+        copies = new java.util.ArrayList<Object>(1);
+      copies.add(o);
+    }
+
+    /*
+     * Detects whether the list had another copy of a removed element
+     */
+    boolean isCopied(Object o) {
+      if (copies != null)
+        for (Object copy : copies)
+          if (copy == o)
+            return true;
+      return false;
+    }
   }
 
   /**
@@ -901,7 +1322,6 @@ public class ArrayList<T> extends java.util.AbstractList<T> implements Proxied,
   private final class ValueIterator implements Iterator<T> {
 
     private final Iterator<T> iterator;
-    private T last;
 
     public ValueIterator() {
       iterator = superIterator();
@@ -914,13 +1334,13 @@ public class ArrayList<T> extends java.util.AbstractList<T> implements Proxied,
 
     @Override
     public T next() {
-      return last = iterator.next();
+      return iterator.next();
     }
 
     @Override
     public void remove() {
+      // Fired by ArrayList.remove(int)
       iterator.remove();
-      fire(new ArrayChangeData().remove(last));
     }
 
   }
@@ -0,0 +1,262 @@
+package com.zenesis.qx.remote.collections;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializable;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.jsontype.TypeSerializer;
+import com.zenesis.qx.remote.collections.ArrayList.ArrayChangeData;
+import com.zenesis.qx.remote.collections.HashMap.MapChangeData;
+import com.zenesis.qx.remote.collections.HashMap.MapChangeEntry;
+
+/**
+ * The changes to a single collection which are waiting in the queue to be sent
+ * to the client; changes are appended as they happen, and are compacted into the
+ * net change when the log is serialised.
+ *
+ * Compaction merges each run of ArrayChangeData into one change; the client
+ * removes elements by value and appends added elements to the end, so an add
+ * which is followed by a remove of the same element (compared by identity)
+ * cancels out, and the remaining adds are sent in the order that they were
+ * added. If the collection had another copy of the element when it was removed
+ * the client may remove a different copy, so the changes are not merged across
+ * that remove instead. A remove which is followed by an add is always sent, because the
+ * element moves to the end of the array. Each run of MapChangeData is merged so
+ * that only the last put or remove of each key is sent. Array changes which move
+ * elements depend on the positions at the time of the change, so they are sent
+ * unchanged, as is any other ChangeData.
+ *
+ * This is not thread safe; the log is only modified while the queue is locked
+ * (see ProxySessionTracker.collectionChanged), and is only serialised after it
+ * has been flushed from the queue.
+ *
+ */
+public class ChangeLog implements JsonSerializable {
+
+  // Initial capacity of the log
+  private static final int INITIAL_CAPACITY = 8;
+
+  // Marks an add which has been cancelled by a later remove
+  private static final Object CANCELLED = new Object();
+
+  // The changes, in the order they happened
+  private ChangeData[] changes = new ChangeData[INITIAL_CAPACITY];
+  private int size;
+
+  /**
+   * Adds a change to the end of the log
+   *
+   * @param change
+   */
+  public void add(ChangeData change) {
+    if (size == changes.length) {
+      ChangeData[] tmp = new ChangeData[size * 2];
+      System.arraycopy(changes, 0, tmp, 0, size);
+      changes = tmp;
+    }
+    changes[size++] = change;
+  }
+
+  /**
+   * Returns the number of changes in the log, before compaction
+   *
+   * @return
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns the net changes
+   *
+   * @return
+   */
+  public ChangeData[] compact() {
+    java.util.ArrayList<ChangeData> result = new java.util.ArrayList<ChangeData>();
+    int start = 0;
+    while (start < size) {
+      ChangeData first = changes[start];
+      int end = start + 1;
+      if (isMergeable(first)) {
+        while (end < size && isMergeable(changes[end]))
+          end++;
+        end = compactArrayChanges(start, end, result);
+      } else if (first instanceof MapChangeData) {
+        while (end < size && changes[end] instanceof MapChangeData)
+          end++;
+        MapChangeData change = end - start > 1 ? compactMapChanges(start, end) : (MapChangeData) first;
+        if (!change.isEmpty())
+          result.add(change);
+      } else
+        result.add(first);
+      start = end;
+    }
+    return result.toArray(new ChangeData[result.size()]);
+  }
+
+  /*
+   * Merges a run of array changes into the net change, which is added to result
+   * unless it does nothing; returns the end of the changes which were merged,
+   * which is before end if a change removes a copy of an element which was added
+   * earlier in the run
+   */
+  private int compactArrayChanges(int start, int end, java.util.List<ChangeData> result) {
+    if (end - start == 1) {
+      ArrayChangeData change = (ArrayChangeData) changes[start];
+      if (!isEmpty(change))
+        result.add(change);
+      return end;
+    }
+
+    // Elements added during the run, in order; cancelled adds are replaced by
+    // CANCELLED
+    java.util.ArrayList<Object> added = new java.util.ArrayList<Object>();
+    // Positions in added of each element's adds which have not been cancelled yet
+    IdentityHashMap<Object, ArrayDeque<Integer>> positions = new IdentityHashMap<Object, ArrayDeque<Integer>>();
+    ArrayChangeData merged = new ArrayChangeData();
+    int i = start;
+    for (; i < end; i++) {
+      ArrayChangeData change = (ArrayChangeData) changes[i];
+      if (removesCopy(change, positions))
+        break;
+      // The client processes removes before adds in each change
+      if (change.removed != null)
+        for (Object o : change.removed) {
+          // The client removes the first occurrence, so that is the add which is
+          // cancelled
+          ArrayDeque<Integer> queue = positions.get(o);
+          if (queue != null && !queue.isEmpty())
+            added.set(queue.poll(), CANCELLED);
+          else {
+            if (merged.removed == null)
+              merged.removed = new java.util.ArrayList();
+            merged.removed.add(o);
+            if (change.isCopied(o))
+              merged.copied(o);
+          }
+        }
+      if (change.added != null)
+        for (Object o : change.added) {
+          ArrayDeque<Integer> queue = positions.get(o);
+          if (queue == null)
+            positions.put(o, queue = new ArrayDeque<Integer>());
+          queue.add(added.size());
+          added.add(o);
+        }
+      if (change.order != null)
+        merged.order = change.order;
+    }
+
+    for (Object o : added) {
+      if (o != CANCELLED) {
+        if (merged.added == null)
+          merged.added = new java.util.ArrayList();
+        merged.added.add(o);
+      }
+    }
+    if (!isEmpty(merged))
+      result.add(merged);
+    return i;
+  }
+
+  /*
+   * Detects whether a change removes an element which has been added earlier in
+   * the run while the collection had another copy of it; the client could remove
+   * either copy, depending on what it had before the run
+   */
+  private static boolean removesCopy(ArrayChangeData change, Map<Object, ArrayDeque<Integer>> positions) {
+    if (change.removed == null || change.copies == null)
+      return false;
+    for (Object o : change.removed) {
+      ArrayDeque<Integer> queue = positions.get(o);
+      if (queue != null && !queue.isEmpty() && change.isCopied(o))
+        return true;
+    }
+    return false;
+  }
+
+  /*
+   * Merges a run of map changes so that only the last change to each key is kept
+   */
+  private MapChangeData compactMapChanges(int start, int end) {
+    // The last change to each key; a MapChangeEntry for a put, or null for a
+    // remove
+    LinkedHashMap<Object, MapChangeEntry> last = new LinkedHashMap<Object, MapChangeEntry>();
+    for (int i = start; i < end; i++) {
+      MapChangeData change = (MapChangeData) changes[i];
+      // The client processes removes before puts in each change
+      if (change.removed != null)
+        for (Object key : change.removed) {
+          last.remove(key);
+          last.put(key, null);
+        }
+      if (change.put != null)
+        for (MapChangeEntry entry : change.put) {
+          last.remove(entry.getKey());
+          last.put(entry.getKey(), entry);
+        }
+    }
+
+    MapChangeData result = new MapChangeData();
+    for (Map.Entry<Object, MapChangeEntry> entry : last.entrySet()) {
+      if (entry.getValue() != null) {
+        if (result.put == null)
+          result.put = new java.util.ArrayList<MapChangeEntry>();
+        result.put.add(entry.getValue());
+      } else {
+        if (result.removed == null)
+          result.removed = new java.util.ArrayList();
+        result.removed.add(entry.getKey());
+      }
+    }
+    return result;
+  }
+
+  /*
+   * Detects whether a change is an array change which can be merged with others
+   */
+  private static boolean isMergeable(ChangeData change) {
+    return change instanceof ArrayChangeData && ((ArrayChangeData) change).moved == null;
+  }
+
+  /*
+   * Detects whether an array change does nothing
+   */
+  private static boolean isEmpty(ArrayChangeData change) {
+    return (change.added == null || change.added.isEmpty()) && (change.removed == null || change.removed.isEmpty()) &&
+        change.order == null;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see com.fasterxml.jackson.databind.JsonSerializable#serialize(com.fasterxml.
+   * jackson.core.JsonGenerator,
+   * com.fasterxml.jackson.databind.SerializerProvider)
+   */
+  @Override
+  public void serialize(JsonGenerator gen, SerializerProvider sp) throws IOException {
+    gen.writeStartArray();
+    for (ChangeData change : compact())
+      gen.writeObject(change);
+    gen.writeEndArray();
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see com.fasterxml.jackson.databind.JsonSerializable#serializeWithType(com.
+   * fasterxml.jackson.core.JsonGenerator,
+   * com.fasterxml.jackson.databind.SerializerProvider,
+   * com.fasterxml.jackson.databind.jsontype.TypeSerializer)
+   */
+  @Override
+  public void serializeWithType(JsonGenerator gen, SerializerProvider sp, TypeSerializer ts) throws IOException {
+    serialize(gen, sp);
+  }
+}
@@ -38,6 +38,9 @@ public class HashMap<K, V> extends java.util.HashMap<K, V>
   private Proxied container;
   private ProxyProperty property;
   private final EventStore eventStore = new EventStore(this);
+  // Nesting depth of beginBatch, and the changes made during the batch
+  private int batchDepth;
+  private transient ChangeLog batch;
 
   public HashMap() {
     super();
@@ -229,11 +232,48 @@ public class HashMap<K, V> extends java.util.HashMap<K, V>
   }
 
   /**
-   * Fires an event
+   * Starts a batch of changes; until the matching call to endBatch, changes to
+   * the map are collected instead of being fired, and are then fired as a single
+   * net change. Batches can be nested, and endBatch must always be called (eg in
+   * a finally block)
+   */
+  public void beginBatch() {
+    if (batchDepth++ == 0)
+      batch = new ChangeLog();
+  }
+
+  /**
+   * Ends a batch of changes started by beginBatch, and fires the net change if
+   * this is the outermost batch
+   */
+  public void endBatch() {
+    if (batchDepth == 0)
+      throw new IllegalStateException("endBatch called without beginBatch");
+    if (--batchDepth > 0)
+      return;
+    ChangeLog log = batch;
+    batch = null;
+    for (ChangeData change : log.compact())
+      fire((MapChangeData) change);
+  }
+
+  /**
+   * @return true if changes are being collected by beginBatch
+   */
+  public boolean isBatching() {
+    return batchDepth > 0;
+  }
+
+  /**
+   * Fires an event, or adds it to the current batch
    * 
    * @param event
    */
   private void fire(MapChangeData event) {
+    if (batch != null) {
+      batch.add(event);
+      return;
+    }
     if (!event.isEmpty()) {
       EventManager.fireDataEvent(this, "change", event);
       ProxyManager.collectionChanged(this, event);
@@ -0,0 +1,416 @@
+package com.zenesis.qx.remote.collections;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.WeakHashMap;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.zenesis.qx.remote.Proxied;
+import com.zenesis.qx.remote.ProxyManager;
+import com.zenesis.qx.remote.ProxySessionTracker;
+import com.zenesis.qx.remote.annotations.Method;
+import com.zenesis.qx.remote.annotations.Properties;
+import com.zenesis.qx.remote.annotations.Remote;
+import com.zenesis.qx.remote.annotations.SerializeConstructorArgs;
+
+/**
+ * A list for very large collections, which only sends the size and the first
+ * page of elements when it is sent to the client; the client loads further pages
+ * on demand (see com.zenesis.qx.remote.PagedArray on the client).
+ *
+ * The list records which pages each session has loaded, so that changes only
+ * send elements for pages which the client has; changes which move elements
+ * (inserting or removing anywhere other than the end) tell the client to discard
+ * its copies of the elements from that point on, which it then reloads when it
+ * needs them.
+ *
+ * Unlike ArrayList this is not a java.util.Collection, because properties which
+ * are collections are always sent to the client in full.
+ *
+ * @author John Spackman
+ */
+@Properties(extend = "com.zenesis.qx.remote.PagedArray")
+public class PagedArrayList<T> implements Proxied, Iterable<T> {
+
+  // Default number of elements in each page
+  private static int s_defaultPageSize = 100;
+
+  private final int hashCode;
+  private final int pageSize;
+  private final java.util.ArrayList<T> elements;
+
+  // Held while changing the list and queueing the changes, so that changes reach
+  // the queues in the order that they were made; see Changes
+  private final Object sendLock = new Object();
+
+  // Pages which have been sent to each session
+  private final WeakHashMap<ProxySessionTracker, BitSet> loadedPages = new WeakHashMap<ProxySessionTracker, BitSet>();
+
+  public PagedArrayList() {
+    this(s_defaultPageSize);
+  }
+
+  public PagedArrayList(int pageSize) {
+    if (pageSize < 1)
+      throw new IllegalArgumentException("Invalid page size " + pageSize);
+    hashCode = new Object().hashCode();
+    this.pageSize = pageSize;
+    elements = new java.util.ArrayList<T>();
+  }
+
+  public PagedArrayList(Collection<? extends T> c) {
+    this(s_defaultPageSize);
+    elements.addAll(c);
+  }
+
+  /**
+   * @return the number of elements in each page
+   */
+  public int getPageSize() {
+    return pageSize;
+  }
+
+  public synchronized int size() {
+    return elements.size();
+  }
+
+  public synchronized boolean isEmpty() {
+    return elements.isEmpty();
+  }
+
+  public synchronized T get(int index) {
+    return elements.get(index);
+  }
+
+  public synchronized int indexOf(Object o) {
+    return elements.indexOf(o);
+  }
+
+  public boolean contains(Object o) {
+    return indexOf(o) > -1;
+  }
+
+  /**
+   * Appends an element
+   *
+   * @param element
+   */
+  public void add(T element) {
+    synchronized (sendLock) {
+      Changes changes;
+      synchronized (this) {
+        elements.add(element);
+        changes = appended(elements.size() - 1);
+      }
+      changes.send();
+    }
+  }
+
+  /**
+   * Inserts an element
+   *
+   * @param index
+   * @param element
+   */
+  public void add(int index, T element) {
+    synchronized (sendLock) {
+      Changes changes;
+      synchronized (this) {
+        elements.add(index, element);
+        if (index == elements.size() - 1)
+          changes = appended(index);
+        else
+          changes = invalidated(index);
+      }
+      changes.send();
+    }
+  }
+
+  /**
+   * Appends elements
+   *
+   * @param c
+   */
+  public void addAll(Collection<? extends T> c) {
+    if (c.isEmpty())
+      return;
+    synchronized (sendLock) {
+      Changes changes;
+      synchronized (this) {
+        int start = elements.size();
+        elements.addAll(c);
+        changes = appended(start);
+      }
+      changes.send();
+    }
+  }
+
+  /**
+   * Replaces an element
+   *
+   * @param index
+   * @param element
+   * @return the previous element
+   */
+  public T set(int index, T element) {
+    T result;
+    synchronized (sendLock) {
+      Changes changes = new Changes();
+      synchronized (this) {
+        result = elements.set(index, element);
+        int page = index / pageSize;
+        for (Map.Entry<ProxySessionTracker, BitSet> entry : loadedPages.entrySet()) {
+          if (entry.getValue().get(page)) {
+            PagedChangeData change = changes.add(entry.getKey(), elements.size());
+            change.set(index, element);
+          }
+        }
+      }
+      changes.send();
+    }
+    return result;
+  }
+
+  /**
+   * Removes an element
+   *
+   * @param index
+   * @return the removed element
+   */
+  public T remove(int index) {
+    T result;
+    synchronized (sendLock) {
+      Changes changes;
+      synchronized (this) {
+        result = elements.remove(index);
+        changes = invalidated(index);
+      }
+      changes.send();
+    }
+    return result;
+  }
+
+  /**
+   * Removes all elements
+   */
+  public void clear() {
+    synchronized (sendLock) {
+      Changes changes;
+      synchronized (this) {
+        if (elements.isEmpty())
+          return;
+        elements.clear();
+        changes = invalidated(0);
+      }
+      changes.send();
+    }
+  }
+
+  /**
+   * Iterates over a copy of the elements
+   */
+  @Override
+  public Iterator<T> iterator() {
+    final Object[] arr;
+    synchronized (this) {
+      arr = elements.toArray();
+    }
+    return new Iterator<T>() {
+      private int index;
+
+      @Override
+      public boolean hasNext() {
+        return index < arr.length;
+      }
+
+      @Override
+      public T next() {
+        if (index >= arr.length)
+          throw new NoSuchElementException();
+        return (T) arr[index++];
+      }
+    };
+  }
+
+  /**
+   * Called by the client to load a page of elements
+   *
+   * @param page
+   * @return the elements, which may be fewer than a page if it is the last page
+   */
+  @Method(array = Remote.Array.NATIVE)
+  public synchronized Object[] getPage(int page) {
+    if (page < 0)
+      throw new IllegalArgumentException("Invalid page " + page);
+    int start = Math.min(page * pageSize, elements.size());
+    int end = Math.min(start + pageSize, elements.size());
+    ProxySessionTracker tracker = ProxyManager.getTracker();
+    if (tracker != null && start < end) {
+      BitSet pages = loadedPages.get(tracker);
+      if (pages == null) {
+        pages = new BitSet();
+        loadedPages.put(tracker, pages);
+      }
+      pages.set(page);
+    }
+    return elements.subList(start, end).toArray();
+  }
+
+  /**
+   * Hook to specify serialisation of the constructor; this sends the page size,
+   * the number of elements, and the first page
+   *
+   * @param jgen
+   * @throws IOException
+   */
+  @SerializeConstructorArgs
+  public void serializeConstructorArgs(JsonGenerator jgen) throws IOException {
+    Object[] arr;
+    int size;
+    synchronized (this) {
+      size = elements.size();
+      ProxySessionTracker tracker = ProxyManager.getTracker();
+      if (tracker != null)
+        loadedPages.put(tracker, new BitSet());
+      arr = getPage(0);
+    }
+    jgen.writeNumber(pageSize);
+    jgen.writeNumber(size);
+    jgen.writeStartArray();
+    for (Object value : arr)
+      jgen.writeObject(value);
+    jgen.writeEndArray();
+  }
+
+  /*
+   * Works out the changes for each session after appending elements from start;
+   * must be called while synchronized
+   */
+  private Changes appended(int start) {
+    Changes changes = new Changes();
+    int size = elements.size();
+    for (Map.Entry<ProxySessionTracker, BitSet> entry : loadedPages.entrySet()) {
+      BitSet pages = entry.getValue();
+      PagedChangeData change = changes.add(entry.getKey(), size);
+      // Only pages which the client has are sent; the last page may only have been
+      // partly filled when it was loaded
+      for (int i = start; i < size; i++)
+        if (pages.get(i / pageSize))
+          change.set(i, elements.get(i));
+    }
+    return changes;
+  }
+
+  /*
+   * Works out the changes for each session after the elements from start have
+   * moved; must be called while synchronized
+   */
+  private Changes invalidated(int start) {
+    Changes changes = new Changes();
+    int size = elements.size();
+    int page = start / pageSize;
+    for (Map.Entry<ProxySessionTracker, BitSet> entry : loadedPages.entrySet()) {
+      BitSet pages = entry.getValue();
+      PagedChangeData change = changes.add(entry.getKey(), size);
+      if (pages.length() > page) {
+        pages.clear(page, pages.length());
+        change.invalidateFrom = start;
+      }
+    }
+    return changes;
+  }
+
+  @Override
+  public int hashCode() {
+    // See ArrayList.hashCode
+    return hashCode;
+  }
+
+  public static int getDefaultPageSize() {
+    return s_defaultPageSize;
+  }
+
+  /**
+   * Sets the number of elements in each page for new lists
+   *
+   * @param defaultPageSize
+   */
+  public static void setDefaultPageSize(int defaultPageSize) {
+    if (defaultPageSize < 1)
+      throw new IllegalArgumentException("Invalid page size " + defaultPageSize);
+    s_defaultPageSize = defaultPageSize;
+  }
+
+  /*
+   * The changes for each session; these are queued once the list is no longer
+   * locked, because the queues are locked while objects (and therefore this
+   * list's constructor arguments) are serialised. The mutators hold sendLock until
+   * the changes are queued, so that one change cannot overtake another; neither
+   * serialisation nor loading pages takes sendLock, so it cannot deadlock
+   */
+  private final class Changes {
+    private final java.util.ArrayList<ProxySessionTracker> trackers = new java.util.ArrayList<ProxySessionTracker>();
+    private final java.util.ArrayList<PagedChangeData> changes = new java.util.ArrayList<PagedChangeData>();
+
+    public PagedChangeData add(ProxySessionTracker tracker, int size) {
+      PagedChangeData change = new PagedChangeData(size);
+      trackers.add(tracker);
+      changes.add(change);
+      return change;
+    }
+
+    public void send() {
+      for (int i = 0; i < trackers.size(); i++)
+        trackers.get(i).collectionChanged(PagedArrayList.this, changes.get(i));
+    }
+  }
+
+  /**
+   * An element at a position in the list
+   */
+  public static class PageEntry {
+    private final int index;
+    private final Object value;
+
+    public PageEntry(int index, Object value) {
+      super();
+      this.index = index;
+      this.value = value;
+    }
+
+    public int getIndex() {
+      return index;
+    }
+
+    public Object getValue() {
+      return value;
+    }
+  }
+
+  /**
+   * Change sent to one session; the client updates the size, discards the
+   * elements from invalidateFrom onwards, and then stores the elements in set
+   */
+  public static class PagedChangeData extends ChangeData {
+    public final boolean paged = true;
+    public final int size;
+    public Integer invalidateFrom;
+    public java.util.ArrayList<PageEntry> set;
+
+    public PagedChangeData(int size) {
+      super();
+      this.size = size;
+    }
+
+    public PagedChangeData set(int index, Object value) {
+      if (set == null)
+        set = new java.util.ArrayList<PageEntry>();
+      set.add(new PageEntry(index, value));
+      return this;
+    }
+  }
+}
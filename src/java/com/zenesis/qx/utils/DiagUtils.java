@@ -56,17 +56,58 @@ public class DiagUtils {
     return buf.toString();
   }
 
+  // SHA-1 digests are reused by each thread, rather than looked up every time
+  private static final int MAX_SHA1_DIGESTS = 2;
+  private static final ThreadLocal<MessageDigest[]> s_sha1 = new ThreadLocal<MessageDigest[]>();
+
+  /**
+   * Returns a SHA-1 digest for use by the current thread; the digest is reset and
+   * must not be used after any other call to this method by the same thread
+   *
+   * @return
+   * @throws IOException
+   */
+  public static MessageDigest getSha1Digest() throws IOException {
+    return getSha1Digest(0);
+  }
+
+  /**
+   * Returns one of the current thread's SHA-1 digests; there are a small number
+   * of them, so that (for example) a request and a response can be digested at
+   * the same time by using different indexes. The digest is reset and must not
+   * be used after any other call to this method with the same index by the same
+   * thread
+   *
+   * @param index
+   * @return
+   * @throws IOException
+   */
+  public static MessageDigest getSha1Digest(int index) throws IOException {
+    MessageDigest[] mds = s_sha1.get();
+    if (mds == null)
+      s_sha1.set(mds = new MessageDigest[MAX_SHA1_DIGESTS]);
+    MessageDigest md = mds[index];
+    if (md == null) {
+      try {
+        md = mds[index] = MessageDigest.getInstance("SHA-1");
+      } catch (NoSuchAlgorithmException e) {
+        throw new IOException(e.getMessage(), e);
+      }
+    } else
+      md.reset();
+    return md;
+  }
+
   public static String getSha1(String str) throws IOException {
-    try {
-      MessageDigest md = MessageDigest.getInstance("SHA-1");
-      byte[] bytes = str.getBytes("UTF-8");
-      md.update(bytes);
-      byte[] sha1hash = md.digest();
-      String hash = DiagUtils.bytesToHex(sha1hash);
-      return hash;
-    } catch (NoSuchAlgorithmException e) {
-      throw new IOException(e.getMessage(), e);
-    }
+    DigestWriter writer = new DigestWriter(null, getSha1Digest());
+    writer.write(str);
+    return writer.getHash();
+  }
+
+  public static String getSha1(byte[] bytes) throws IOException {
+    MessageDigest md = getSha1Digest();
+    md.update(bytes);
+    return DiagUtils.bytesToHex(md.digest());
   }
 
   public static void writeFile(File file, String str) throws IOException {
@@ -0,0 +1,135 @@
+package com.zenesis.qx.utils;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.security.MessageDigest;
+
+/**
+ * Writer which passes everything through to another Writer (if there is one),
+ * updating a MessageDigest with the UTF-8 encoding of the characters as they go
+ * past; this allows a hash to be calculated without encoding the whole String
+ * into a byte array first.
+ *
+ * @author John Spackman
+ */
+public class DigestWriter extends Writer {
+
+  private final Writer writer;
+  private final MessageDigest digest;
+  private final byte[] buffer = new byte[4096];
+  private int length;
+  private char highSurrogate;
+
+  /**
+   * Constructor
+   *
+   * @param writer where to write to, can be null
+   * @param digest the digest to update
+   */
+  public DigestWriter(Writer writer, MessageDigest digest) {
+    super();
+    this.writer = writer;
+    this.digest = digest;
+  }
+
+  @Override
+  public void write(int c) throws IOException {
+    if (writer != null)
+      writer.write(c);
+    encode((char) c);
+  }
+
+  @Override
+  public void write(char[] cbuf, int off, int len) throws IOException {
+    if (writer != null)
+      writer.write(cbuf, off, len);
+    for (int i = off, end = off + len; i < end; i++)
+      encode(cbuf[i]);
+  }
+
+  @Override
+  public void write(String str, int off, int len) throws IOException {
+    if (writer != null)
+      writer.write(str, off, len);
+    for (int i = off, end = off + len; i < end; i++)
+      encode(str.charAt(i));
+  }
+
+  /**
+   * Adds the UTF-8 encoding of a character to the buffer; surrogate pairs can be
+   * split over separate calls to write
+   *
+   * @param c
+   */
+  private void encode(char c) {
+    if (length > buffer.length - 4)
+      drain();
+    if (highSurrogate != 0) {
+      char high = highSurrogate;
+      highSurrogate = 0;
+      if (Character.isLowSurrogate(c)) {
+        int cp = Character.toCodePoint(high, c);
+        buffer[length++] = (byte) (0xF0 | (cp >> 18));
+        buffer[length++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+        buffer[length++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+        buffer[length++] = (byte) (0x80 | (cp & 0x3F));
+        return;
+      }
+      // Unpaired surrogate, which String.getBytes encodes as '?'
+      buffer[length++] = '?';
+      if (length > buffer.length - 4)
+        drain();
+    }
+    if (c < 0x80)
+      buffer[length++] = (byte) c;
+    else if (c < 0x800) {
+      buffer[length++] = (byte) (0xC0 | (c >> 6));
+      buffer[length++] = (byte) (0x80 | (c & 0x3F));
+    } else if (Character.isHighSurrogate(c))
+      highSurrogate = c;
+    else if (Character.isLowSurrogate(c))
+      buffer[length++] = '?';
+    else {
+      buffer[length++] = (byte) (0xE0 | (c >> 12));
+      buffer[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+      buffer[length++] = (byte) (0x80 | (c & 0x3F));
+    }
+  }
+
+  /**
+   * Passes the buffered bytes to the digest
+   */
+  private void drain() {
+    if (length > 0) {
+      digest.update(buffer, 0, length);
+      length = 0;
+    }
+  }
+
+  /**
+   * Completes the digest and returns the hash as a hex string; the digest is
+   * reset afterwards
+   *
+   * @return
+   */
+  public String getHash() {
+    if (highSurrogate != 0) {
+      highSurrogate = 0;
+      buffer[length++] = '?';
+    }
+    drain();
+    return DiagUtils.bytesToHex(digest.digest());
+  }
+
+  @Override
+  public void flush() throws IOException {
+    if (writer != null)
+      writer.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (writer != null)
+      writer.close();
+  }
+}
@@ -0,0 +1,312 @@
+package com.zenesis.qx.utils;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Two way mapping between objects and int IDs; objects are compared by identity
+ * (ie their own equals/hashCode are never called) and IDs are never boxed.
+ *
+ * Reads (get, getId, contains) do not lock; changes are synchronised. Both
+ * directions are held as open addressing hash tables where a slot only ever
+ * changes from empty, to used, to deleted - slots are only reused when the table
+ * is rebuilt, and a rebuilt table is published in one step - so a reader always
+ * sees either the whole of an entry or none of it.
+ *
+ * @author john
+ *
+ */
+public class IdentityRegistry<T> {
+
+  /** Value returned by getId when there is no ID for an object */
+  public static final int NO_ID = Integer.MIN_VALUE;
+
+  // Minimum capacity of a table, must be a power of 2
+  private static final int MIN_CAPACITY = 16;
+
+  // Marks an empty slot in the ID table
+  private static final int EMPTY_ID = Integer.MIN_VALUE;
+
+  // Marks a deleted slot in the ID table
+  private static final int DELETED_ID = Integer.MIN_VALUE + 1;
+
+  // Marks a deleted slot in the object table
+  private static final Object DELETED = new Object();
+
+  /*
+   * A hash table, indexed by ID or by object; all slots, whether used or
+   * deleted, count towards the load
+   */
+  private static final class Table {
+    final AtomicIntegerArray ids;
+    final AtomicReferenceArray<Object> objects;
+    final int mask;
+    int used;
+
+    Table(int capacity) {
+      ids = new AtomicIntegerArray(capacity);
+      objects = new AtomicReferenceArray<Object>(capacity);
+      mask = capacity - 1;
+    }
+
+    boolean isFull() {
+      return used >= (mask + 1) / 2;
+    }
+  }
+
+  // Table indexed by ID, where the ID is in ids and the object in objects
+  private volatile Table byId = newIdTable(MIN_CAPACITY);
+
+  // Table indexed by object, where the object is in objects and the ID in ids
+  private volatile Table byObject = new Table(MIN_CAPACITY);
+
+  // Number of objects in the registry
+  private volatile int size;
+
+  /**
+   * Returns the object for an ID
+   *
+   * @param id
+   * @return the object, or null if there is no object with that ID
+   */
+  @SuppressWarnings("unchecked")
+  public T get(int id) {
+    if (id == EMPTY_ID || id == DELETED_ID)
+      return null;
+    Table table = byId;
+    for (int index = hash(id) & table.mask;; index = (index + 1) & table.mask) {
+      int slotId = table.ids.get(index);
+      if (slotId == id)
+        return (T) table.objects.get(index);
+      if (slotId == EMPTY_ID)
+        return null;
+    }
+  }
+
+  /**
+   * Returns the ID of an object
+   *
+   * @param obj
+   * @return the ID, or NO_ID if the object is not registered
+   */
+  public int getId(T obj) {
+    if (obj == null)
+      return NO_ID;
+    Table table = byObject;
+    for (int index = hash(System.identityHashCode(obj)) & table.mask;; index = (index + 1) & table.mask) {
+      Object slotObj = table.objects.get(index);
+      if (slotObj == obj)
+        return table.ids.get(index);
+      if (slotObj == null)
+        return NO_ID;
+    }
+  }
+
+  /**
+   * Detects whether an object is registered
+   *
+   * @param obj
+   * @return
+   */
+  public boolean contains(T obj) {
+    return getId(obj) != NO_ID;
+  }
+
+  /**
+   * Returns the number of objects in the registry
+   *
+   * @return
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns a snapshot of the objects in the registry
+   *
+   * @return
+   */
+  @SuppressWarnings("unchecked")
+  public ArrayList<T> values() {
+    Table table = byObject;
+    ArrayList<T> result = new ArrayList<T>(size);
+    for (int i = 0; i <= table.mask; i++) {
+      Object obj = table.objects.get(i);
+      if (obj != null && obj != DELETED)
+        result.add((T) obj);
+    }
+    return result;
+  }
+
+  /**
+   * Registers an object with an ID; neither the object nor the ID may already be
+   * registered
+   *
+   * @param obj
+   * @param id
+   */
+  public synchronized void put(T obj, int id) {
+    if (obj == null)
+      throw new IllegalArgumentException("Cannot register a null object");
+    if (id == EMPTY_ID || id == DELETED_ID)
+      throw new IllegalArgumentException("Invalid ID " + id);
+    if (get(id) != null)
+      throw new IllegalArgumentException("ID " + id + " is already registered");
+    if (getId(obj) != NO_ID)
+      throw new IllegalArgumentException("Object " + obj + " is already registered");
+
+    Table table = byId;
+    if (table.isFull())
+      byId = table = rebuildIdTable(table);
+    insertById(table, id, obj);
+
+    table = byObject;
+    if (table.isFull())
+      byObject = table = rebuildObjectTable(table);
+    insertByObject(table, obj, id);
+
+    size++;
+  }
+
+  /**
+   * Removes an object
+   *
+   * @param obj
+   * @return the ID the object had, or NO_ID if it was not registered
+   */
+  public synchronized int remove(T obj) {
+    int id = getId(obj);
+    if (id != NO_ID)
+      removeEntry(obj, id);
+    return id;
+  }
+
+  /**
+   * Removes the object with a given ID
+   *
+   * @param id
+   * @return the object, or null if there was no object with that ID
+   */
+  public synchronized T remove(int id) {
+    T obj = get(id);
+    if (obj != null)
+      removeEntry(obj, id);
+    return obj;
+  }
+
+  /**
+   * Removes all objects
+   */
+  public synchronized void clear() {
+    byId = newIdTable(MIN_CAPACITY);
+    byObject = new Table(MIN_CAPACITY);
+    size = 0;
+  }
+
+  /*
+   * Marks the slots for an entry as deleted; the other half of each slot is left
+   * alone, so that a reader which has matched the slot still sees a consistent
+   * value
+   */
+  private void removeEntry(T obj, int id) {
+    Table table = byId;
+    for (int index = hash(id) & table.mask;; index = (index + 1) & table.mask) {
+      if (table.ids.get(index) == id) {
+        table.objects.set(index, null);
+        table.ids.set(index, DELETED_ID);
+        break;
+      }
+    }
+    table = byObject;
+    for (int index = hash(System.identityHashCode(obj)) & table.mask;; index = (index + 1) & table.mask) {
+      if (table.objects.get(index) == obj) {
+        table.objects.set(index, DELETED);
+        break;
+      }
+    }
+    size--;
+  }
+
+  /*
+   * Adds to the ID table; the object is set before the ID so that a reader
+   * which finds the ID also finds the object
+   */
+  private static void insertById(Table table, int id, Object obj) {
+    int index = hash(id) & table.mask;
+    while (table.ids.get(index) != EMPTY_ID)
+      index = (index + 1) & table.mask;
+    table.objects.set(index, obj);
+    table.ids.set(index, id);
+    table.used++;
+  }
+
+  /*
+   * Adds to the object table; the ID is set before the object so that a reader
+   * which finds the object also finds the ID
+   */
+  private static void insertByObject(Table table, Object obj, int id) {
+    int index = hash(System.identityHashCode(obj)) & table.mask;
+    while (table.objects.get(index) != null)
+      index = (index + 1) & table.mask;
+    table.ids.set(index, id);
+    table.objects.set(index, obj);
+    table.used++;
+  }
+
+  /*
+   * Creates a new ID table, with all slots empty
+   */
+  private static Table newIdTable(int capacity) {
+    Table table = new Table(capacity);
+    for (int i = 0; i < capacity; i++)
+      table.ids.set(i, EMPTY_ID);
+    return table;
+  }
+
+  /*
+   * Copies the live entries into a new table, dropping deleted slots
+   */
+  private Table rebuildIdTable(Table table) {
+    Table result = newIdTable(capacityFor(size + 1));
+    for (int i = 0; i <= table.mask; i++) {
+      int id = table.ids.get(i);
+      if (id != EMPTY_ID && id != DELETED_ID)
+        insertById(result, id, table.objects.get(i));
+    }
+    return result;
+  }
+
+  /*
+   * Copies the live entries into a new table, dropping deleted slots
+   */
+  private Table rebuildObjectTable(Table table) {
+    Table result = new Table(capacityFor(size + 1));
+    for (int i = 0; i <= table.mask; i++) {
+      Object obj = table.objects.get(i);
+      if (obj != null && obj != DELETED)
+        insertByObject(result, obj, table.ids.get(i));
+    }
+    return result;
+  }
+
+  /*
+   * Returns the capacity for a number of entries, so that the table is no more
+   * than a quarter full after rebuilding
+   */
+  private static int capacityFor(int size) {
+    int capacity = MIN_CAPACITY;
+    while (capacity < size * 4)
+      capacity <<= 1;
+    return capacity;
+  }
+
+  /*
+   * Spreads the bits of a hash code, because IDs are sequential and identity hash
+   * codes may be clustered
+   */
+  private static int hash(int h) {
+    h *= 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+}
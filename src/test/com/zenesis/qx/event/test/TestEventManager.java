@@ -29,13 +29,21 @@ package com.zenesis.qx.event.test;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import com.zenesis.qx.event.Event;
+import com.zenesis.qx.event.EventDispatcher;
 import com.zenesis.qx.event.EventListener;
 import com.zenesis.qx.event.EventManager;
 import com.zenesis.qx.event.EventVerifiable;
+import com.zenesis.qx.remote.CommandId;
+import com.zenesis.qx.remote.ProxyManager;
+import com.zenesis.qx.remote.ProxySessionTracker;
 import com.zenesis.qx.remote.collections.ArrayList;
 import com.zenesis.qx.remote.collections.ArrayList.ArrayChangeData;
+import com.zenesis.qx.remote.test.simple.MainTests;
 import com.zenesis.qx.test.AbstractTestCase;
 
 public class TestEventManager extends AbstractTestCase {
@@ -194,6 +202,118 @@ public class TestEventManager extends AbstractTestCase {
         EventManager.removeListener(stringArray, "change", ON_EVENTS_CHANGE);
         assert(size == EventManager.getInstance().size());
 	}
+
+	/**
+	 * Tests that bindings are found by identity and dropped when the target is collected
+	 * @throws Exception
+	 */
+	public void test5() throws Exception {
+		EventManager mgr = new EventManager();
+		EventListener listener = new MyEventListener(null, 0);
+		
+		// Equal but not identical targets have separate bindings
+		String target1 = new String("target");
+		String target2 = new String("target");
+		EventManager.addListener(target1, "myEvent", listener);
+		EventManager.addListener(target2, "myEvent", listener);
+		assertEquals(2, mgr.size());
+		assertTrue(EventManager.removeListener(target1, "myEvent", listener));
+		assertFalse(EventManager.hasListener(target1, "myEvent", listener));
+		assertTrue(EventManager.hasListener(target2, "myEvent", listener));
+		assertEquals(1, mgr.size());
+		
+		target2 = null;
+		for (int i = 0; i < 50 && mgr.size() > 0; i++) {
+			System.gc();
+			Thread.sleep(20);
+		}
+		assertEquals(0, mgr.size());
+	}
+
+	/**
+	 * Tests asynchronous delivery keeps events for each object in order
+	 * @throws Exception
+	 */
+	public void test6() throws Exception {
+		EventManager mgr = new EventManager();
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		EventDispatcher dispatcher = new EventDispatcher(executor, EventDispatcher.BackPressure.BLOCK, 10);
+		mgr.setDispatcher(dispatcher);
+		try {
+			final String[] testObjects = new String[5];
+			final java.util.ArrayList<Integer>[] received = new java.util.ArrayList[testObjects.length];
+			for (int i = 0; i < testObjects.length; i++) {
+				testObjects[i] = new String(Integer.toString(i));
+				received[i] = new java.util.ArrayList<Integer>();
+				final java.util.ArrayList<Integer> list = received[i];
+				EventManager.addListener(testObjects[i], "myEvent", new EventListener() {
+					@Override
+					public void handleEvent(Event event) {
+						synchronized (list) {
+							list.add((Integer)event.getData());
+						}
+					}
+				});
+			}
+			
+			for (int i = 0; i < 1000; i++)
+				for (int j = 0; j < testObjects.length; j++)
+					EventManager.fireDataEvent(testObjects[j], "myEvent", i);
+			
+			executor.shutdown();
+			assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+			for (int j = 0; j < testObjects.length; j++) {
+				synchronized (received[j]) {
+					assertEquals(1000, received[j].size());
+					for (int i = 0; i < 1000; i++)
+						assertEquals(i, received[j].get(i).intValue());
+				}
+			}
+			assertEquals(0, dispatcher.getQueueDepth());
+			assertEquals(5000, dispatcher.getNumDelivered());
+			assertEquals(0, dispatcher.getNumDropped());
+		} finally {
+			mgr.setDispatcher(null);
+		}
+	}
+
+	/**
+	 * Tests that events for the client are queued for the session which fires them,
+	 * even when other listeners are called asynchronously
+	 * @throws Exception
+	 */
+	public void test7() throws Exception {
+		EventManager mgr = new EventManager();
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		mgr.setDispatcher(new EventDispatcher(executor));
+		ProxySessionTracker tracker = new ProxySessionTracker(MainTests.class);
+		ProxyManager.selectTracker(tracker);
+		try {
+			String target = new String("target");
+			final java.util.ArrayList<Object> received = new java.util.ArrayList<Object>();
+			EventManager.addListener(target, "myEvent", ProxyManager.getInstance());
+			EventManager.addListener(target, "myEvent", new EventListener() {
+				@Override
+				public void handleEvent(Event event) {
+					synchronized (received) {
+						received.add(event.getData());
+					}
+				}
+			});
+			EventManager.fireDataEvent(target, "myEvent", "hello");
+			assertEquals("hello", tracker.getQueue().getCommand(CommandId.CommandType.FIRE_EVENT, target, "myEvent"));
+			
+			executor.shutdown();
+			assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+			synchronized (received) {
+				assertEquals(1, received.size());
+				assertEquals("hello", received.get(0));
+			}
+		} finally {
+			ProxyManager.deselectTracker(tracker);
+			mgr.setDispatcher(null);
+		}
+	}
 }
 
 class TestObject implements EventVerifiable {
@@ -0,0 +1,221 @@
+package com.zenesis.qx.remote;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Date;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.zenesis.qx.remote.annotations.Method;
+import com.zenesis.qx.remote.annotations.Property;
+import com.zenesis.qx.remote.test.simple.MainTests;
+import com.zenesis.qx.remote.test.simple.Pippo;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests that the decoders for each parameter type read the same values as
+ * RequestHandler.readSimpleValue; this is in the same package as
+ * ParameterDecoder because the decoders are not public
+ */
+public class TestParameterDecoder extends TestCase {
+
+	public enum Colour {
+		RED, DARK_BLUE, Mixed_Case
+	}
+
+	/*
+	 * Records the parameters it is called with
+	 */
+	public static class Target implements Proxied {
+		@Property
+		private String name = "target";
+		private Object[] values;
+
+		public String getName() {
+			return name;
+		}
+
+		public void setName(String name) {
+			this.name = name;
+		}
+
+		@Method
+		public void record(Integer value, String str) {
+			values = new Object[] { value, str };
+		}
+	}
+
+	private static final String DATE = RequestHandler.PREFIX + "Date(2020-01-02T03:04:05.000Z)" + RequestHandler.SUFFIX;
+	private static final String NUMBER = RequestHandler.PREFIX + "BigNumber(123.45)" + RequestHandler.SUFFIX;
+
+	private ProxySessionTracker tracker;
+	private RequestHandler handler;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		tracker = new ProxySessionTracker(MainTests.class);
+		handler = new RequestHandler(tracker);
+	}
+
+	/*
+	 * Returns a parser positioned on the value
+	 */
+	private JsonParser parse(String json) throws Exception {
+		JsonParser jp = tracker.getObjectMapper().getFactory().createParser("[" + json + "]");
+		jp.nextToken();
+		jp.nextToken();
+		return jp;
+	}
+
+	/*
+	 * Decodes a value with the decoder for clazz, checking that the whole value is
+	 * read; returns the class of the exception if it fails
+	 */
+	private Object decode(Class clazz, String json) throws Exception {
+		JsonParser jp = parse(json);
+		Object value;
+		try {
+			value = ParameterDecoder.forType(clazz).decode(handler, jp);
+		} catch (RuntimeException e) {
+			return e.getClass();
+		}
+		assertEquals(json, JsonToken.END_ARRAY, jp.nextToken());
+		return value;
+	}
+
+	/*
+	 * Reads a value generically; returns the class of the exception if it fails
+	 */
+	private Object readSimpleValue(Class clazz, String json) throws Exception {
+		try {
+			return handler.readSimpleValue(parse(json), clazz);
+		} catch (RuntimeException e) {
+			return e.getClass();
+		}
+	}
+
+	private void assertDecodes(Class clazz, String... values) throws Exception {
+		for (String json : values) {
+			Object expected = readSimpleValue(clazz, json);
+			Object actual = decode(clazz, json);
+			assertEquals(clazz + " " + json, expected, actual);
+			if (expected != null)
+				assertEquals(clazz + " " + json, expected.getClass(), actual.getClass());
+		}
+	}
+
+	private static String quote(String str) {
+		return "\"" + str + "\"";
+	}
+
+	public void testNumbers() throws Exception {
+		assertDecodes(int.class, "12", "-3", "12.7", "\"12\"", "null");
+		assertDecodes(Integer.class, "12", "\"12\"", "null");
+		assertDecodes(long.class, "12345678901", "7", "\"42\"", "null");
+		assertDecodes(Long.class, "12345678901", "\"42\"", "null");
+		assertDecodes(double.class, "1.5", "2", "\"2.5\"", "null");
+		assertDecodes(Double.class, "1.5", "2", "\"2.5\"", "null");
+		assertEquals(12, decode(int.class, "12"));
+		assertEquals(12345678901L, decode(long.class, "12345678901"));
+		assertEquals(2.0, decode(double.class, "2"));
+	}
+
+	public void testBoolean() throws Exception {
+		assertDecodes(boolean.class, "true", "false", "\"true\"", "null");
+		assertDecodes(Boolean.class, "true", "false", "\"false\"", "null");
+		assertSame(Boolean.TRUE, decode(boolean.class, "true"));
+	}
+
+	/**
+	 * Tests that strings with the server objects prefix are still converted
+	 */
+	public void testString() throws Exception {
+		assertDecodes(String.class, "\"abc\"", "\"\"", "12", "null", quote(DATE), quote(NUMBER),
+				quote(RequestHandler.PREFIX + "Other(1)" + RequestHandler.SUFFIX));
+		assertEquals("abc", decode(String.class, "\"abc\""));
+		assertTrue(decode(String.class, quote(DATE)) instanceof Date);
+		assertEquals(new BigDecimal("123.45"), decode(String.class, quote(NUMBER)));
+
+		assertDecodes(Date.class, quote(DATE), "null");
+		assertDecodes(BigDecimal.class, quote(NUMBER), "null");
+		assertDecodes(Object.class, "1", "\"abc\"", quote(DATE), "null");
+	}
+
+	/**
+	 * Tests enums in the form they are serialised to the client, and by name
+	 */
+	public void testEnum() throws Exception {
+		for (Colour colour : Colour.values())
+			assertDecodes(Colour.class, quote(Helpers.serialiseEnum(colour)), quote(colour.name()));
+		assertDecodes(Colour.class, "\"nonsense\"", "null");
+		assertSame(Colour.DARK_BLUE, decode(Colour.class, quote(Helpers.serialiseEnum(Colour.DARK_BLUE))));
+	}
+
+	public void testProxied() throws Exception {
+		Pippo pippo = new Pippo();
+		tracker.getProxy(pippo);
+		int id = tracker.getServerId(pippo);
+		assertNull(decode(Pippo.class, "null"));
+		assertSame(pippo, decode(Pippo.class, Integer.toString(id)));
+		assertSame(pippo, decode(Proxied.class, quote(Integer.toString(id))));
+	}
+
+	public void testArray() throws Exception {
+		Object value = decode(int[].class, "[1, 2, 3]");
+		assertTrue(Arrays.equals(new int[] { 1, 2, 3 }, (int[]) value));
+		value = decode(String[].class, "[\"a\", null, 12]");
+		assertTrue(Arrays.equals(new String[] { "a", null, "12" }, (String[]) value));
+		value = decode(Date[].class, "[" + quote(DATE) + "]");
+		assertEquals(readSimpleValue(Date.class, quote(DATE)), ((Date[]) value)[0]);
+		assertNull(decode(int[].class, "null"));
+		assertEquals(IllegalStateException.class, decode(int[].class, "1"));
+	}
+
+	/**
+	 * Tests that extra parameters are skipped, and missing ones are null
+	 */
+	public void testParameters() throws Exception {
+		Target target = new Target();
+		tracker.getProxy(target);
+		int id = tracker.getServerId(target);
+
+		call(id, "record", "1, \"a\"");
+		assertTrue(Arrays.equals(new Object[] { 1, "a" }, target.values));
+		call(id, "record", "2, \"b\", { \"skip\": [1, { \"a\": 2 }] }, [3, [4]], \"c\"");
+		assertTrue(Arrays.equals(new Object[] { 2, "b" }, target.values));
+		call(id, "record", "3");
+		assertTrue(Arrays.equals(new Object[] { 3, null }, target.values));
+		call(id, "record", "");
+		assertTrue(Arrays.equals(new Object[] { null, null }, target.values));
+
+		// Parameters to a get accessor are skipped
+		String str = call(id, "getName", "{ \"a\": [1, 2] }, 4");
+		assertTrue(str, str.contains("\"result\":\"target\""));
+		call(id, "setName", "\"renamed\", 5, [6]");
+		assertEquals("renamed", target.getName());
+		call(id, "setName", "");
+		assertNull(target.getName());
+	}
+
+	/*
+	 * Calls a method and returns the response without white space
+	 */
+	private String call(int serverId, String methodName, String parameters) throws Exception {
+		String request = "[{ \"cmd\": \"call\", \"serverId\": " + serverId + ", \"methodName\": \"" + methodName +
+				"\", \"asyncId\": 1, \"parameters\": [" + parameters + "] }]";
+		StringWriter sw = new StringWriter();
+		ProxyManager.selectTracker(tracker);
+		try {
+			new RequestHandler(tracker).processRequestImpl(new StringReader(request), sw, "1");
+		} finally {
+			ProxyManager.deselectTracker(tracker);
+		}
+		String str = sw.toString().replaceAll("\\s", "");
+		assertFalse(str, str.contains("\"type\":\"exception\""));
+		return str;
+	}
+}
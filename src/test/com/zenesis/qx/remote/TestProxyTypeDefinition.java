@@ -0,0 +1,158 @@
+package com.zenesis.qx.remote;
+
+import java.util.List;
+
+import com.zenesis.qx.remote.annotations.Method;
+import com.zenesis.qx.remote.annotations.Property;
+import com.zenesis.qx.remote.annotations.Remote;
+import com.zenesis.qx.remote.test.simple.MainTests;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests that type definitions written from the cache shared between sessions
+ * are the same as those serialised for each session; this is in the same
+ * package as ProxyTypeDefinition because the cache is not public
+ */
+public class TestProxyTypeDefinition extends TestCase {
+
+	public interface Named extends Proxied {
+		@Method
+		public String describe();
+	}
+
+	public static class Part implements Proxied {
+		@Property
+		private String name;
+
+		public String getName() {
+			return name;
+		}
+
+		public void setName(String name) {
+			this.name = name;
+		}
+	}
+
+	public static class Base implements Proxied {
+		@Property
+		private Part main;
+
+		public Part getMain() {
+			return main;
+		}
+
+		public void setMain(Part main) {
+			this.main = main;
+		}
+	}
+
+	public static class Widget extends Base implements Named {
+		@Property
+		private Part[] parts;
+		@Property(array = Remote.Array.WRAP, arrayType = Part.class)
+		private List<Part> spares;
+
+		public Part[] getParts() {
+			return parts;
+		}
+
+		public void setParts(Part[] parts) {
+			this.parts = parts;
+		}
+
+		public List<Part> getSpares() {
+			return spares;
+		}
+
+		public void setSpares(List<Part> spares) {
+			this.spares = spares;
+		}
+
+		@Override
+		public String describe() {
+			return "widget";
+		}
+
+		@Method
+		public Part find(String name) {
+			return null;
+		}
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		ProxyTypeManager.setCacheDefinitions(true);
+		super.tearDown();
+	}
+
+	private static String write(ProxySessionTracker tracker, Class clazz) throws Exception {
+		ProxyType type = ProxyTypeManager.INSTANCE.getProxyType(clazz);
+		return new ProxyObjectMapper(tracker, false).writeValueAsString(type);
+	}
+
+	/*
+	 * Serialises the types for two sessions; the second session already has Part
+	 * when Widget is sent
+	 */
+	private static String[] serialise() throws Exception {
+		ProxySessionTracker first = new ProxySessionTracker(MainTests.class);
+		ProxySessionTracker second = new ProxySessionTracker(MainTests.class);
+		return new String[] { write(first, Widget.class), write(first, Widget.class), write(first, Part.class),
+				write(second, Part.class), write(second, Widget.class), write(second, Base.class) };
+	}
+
+	private static void assertSerialised(String[] expected, String[] actual) {
+		assertEquals(expected.length, actual.length);
+		for (int i = 0; i < expected.length; i++)
+			assertEquals("output " + i, expected[i], actual[i]);
+	}
+
+	private static ProxyTypeDefinition getDefinition(Class clazz) throws Exception {
+		return ProxyTypeManager.INSTANCE.getDefinition((AbstractProxyType) ProxyTypeManager.INSTANCE.getProxyType(clazz));
+	}
+
+	public void testDefinitions() throws Exception {
+		ProxyTypeManager.setCacheDefinitions(false);
+		String[] live = serialise();
+		ProxyTypeManager.setCacheDefinitions(true);
+		String[] cached = serialise();
+		assertSerialised(live, cached);
+
+		// The definition refers to the other types, and is expanded differently for
+		// each session
+		String partName = "\"" + Part.class.getName();
+		String str = cached[0];
+		assertTrue(str, str.contains("\"extend\":{\"className\":\"" + Base.class.getName() + "\""));
+		assertTrue(str, str.contains("\"interfaces\":[{\"className\":\"" + Named.class.getName() + "\""));
+		assertTrue(str, str.contains("\"clazz\":{\"className\":" + partName + "\""));
+		assertTrue(str, str.contains("\"returnType\":" + partName + "\""));
+		assertEquals("\"" + Widget.class.getName() + "\"", cached[1]);
+		assertEquals(partName + "\"", cached[2]);
+		assertFalse(cached[0].equals(cached[4]));
+		assertFalse(cached[4].contains("{\"className\":" + partName));
+		assertEquals("\"" + Base.class.getName() + "\"", cached[5]);
+
+		// The same again, now that the definitions are all cached
+		assertSerialised(live, serialise());
+	}
+
+	public void testFlush() throws Exception {
+		String[] cached = serialise();
+		ProxyTypeDefinition widget = getDefinition(Widget.class);
+		ProxyTypeDefinition part = getDefinition(Part.class);
+		assertSame(widget, getDefinition(Widget.class));
+
+		// Only the flushed type is serialised again
+		ProxyTypeManager.INSTANCE.flushProxyTypeCache(Widget.class);
+		assertNotSame(widget, getDefinition(Widget.class));
+		assertSame(part, getDefinition(Part.class));
+		assertSerialised(cached, serialise());
+
+		ProxyType type = ProxyTypeManager.INSTANCE.getProxyType(Part.class);
+		ProxyTypeManager.INSTANCE.flushProxyTypeCache();
+		assertNotSame(part, ProxyTypeManager.INSTANCE.getDefinition((AbstractProxyType) type));
+		assertNotSame(type, ProxyTypeManager.INSTANCE.getProxyType(Part.class));
+		assertSerialised(cached, serialise());
+	}
+}
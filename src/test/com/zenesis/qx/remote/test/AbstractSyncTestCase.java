@@ -0,0 +1,151 @@
+package com.zenesis.qx.remote.test;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.zenesis.qx.remote.Proxied;
+import com.zenesis.qx.remote.ProxyManager;
+import com.zenesis.qx.remote.ProxyProperty;
+import com.zenesis.qx.remote.ProxySessionTracker;
+import com.zenesis.qx.remote.collections.ChangeData;
+import com.zenesis.qx.remote.test.simple.MainTests;
+import com.zenesis.qx.remote.test.simple.Pippo;
+
+import junit.framework.TestCase;
+
+/**
+ * Base for tests of how changes reach the sessions which have an object; the
+ * trackers created by createTracker are synchronised with ProxyManager, and are
+ * removed again after each test.
+ */
+public abstract class AbstractSyncTestCase extends TestCase {
+
+	/**
+	 * Records the property values and collection changes which reach it, instead
+	 * of queueing them; the first change can be held up until the tracker is
+	 * opened
+	 */
+	public static class RecordingTracker extends ProxySessionTracker {
+		private final ArrayList<Object> values = new ArrayList<Object>();
+		private final ArrayList<ChangeData> changes = new ArrayList<ChangeData>();
+		private final AtomicBoolean held = new AtomicBoolean();
+		private final CountDownLatch entered = new CountDownLatch(1);
+		private final CountDownLatch gate;
+
+		public RecordingTracker() {
+			this(false);
+		}
+
+		public RecordingTracker(boolean closed) {
+			super(MainTests.class);
+			gate = new CountDownLatch(closed ? 1 : 0);
+		}
+
+		@Override
+		public void propertyChanged(Proxied keyObject, ProxyProperty property, Object newValue, Object oldValue) {
+			if (hold()) {
+				synchronized (values) {
+					values.add(newValue);
+				}
+			}
+		}
+
+		@Override
+		public void collectionChanged(Proxied keyObject, ChangeData change) {
+			if (hold()) {
+				synchronized (changes) {
+					changes.add(change);
+				}
+			}
+		}
+
+		/*
+		 * Waits for the gate if this is the first change; returns false if the
+		 * thread is interrupted while waiting
+		 */
+		private boolean hold() {
+			if (!held.compareAndSet(false, true))
+				return true;
+			entered.countDown();
+			try {
+				gate.await();
+				return true;
+			} catch (InterruptedException e) {
+				return false;
+			}
+		}
+
+		/**
+		 * Waits for the first change to arrive
+		 */
+		public void awaitEntered() throws InterruptedException {
+			assertTrue(entered.await(5, TimeUnit.SECONDS));
+		}
+
+		/**
+		 * Lets the first change through
+		 */
+		public void open() {
+			gate.countDown();
+		}
+
+		public ArrayList<Object> getValues() {
+			synchronized (values) {
+				return new ArrayList<Object>(values);
+			}
+		}
+
+		public ArrayList<ChangeData> getChanges() {
+			synchronized (changes) {
+				return new ArrayList<ChangeData>(changes);
+			}
+		}
+	}
+
+	private final ArrayList<ProxySessionTracker> synced = new ArrayList<ProxySessionTracker>();
+	protected Pippo pippo;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		pippo = new Pippo();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		for (ProxySessionTracker tracker : synced)
+			ProxyManager.removeSyncTracker(tracker);
+		synced.clear();
+		super.tearDown();
+	}
+
+	/**
+	 * Creates a synchronised tracker
+	 *
+	 * @param closed whether the first change is held up until the tracker is opened
+	 */
+	protected RecordingTracker createTracker(boolean closed) {
+		RecordingTracker tracker = new RecordingTracker(closed);
+		sync(tracker);
+		return tracker;
+	}
+
+	protected void sync(ProxySessionTracker tracker) {
+		ProxyManager.addSyncTracker(tracker);
+		synced.add(tracker);
+	}
+
+	protected void unsync(ProxySessionTracker tracker) {
+		ProxyManager.removeSyncTracker(tracker);
+		synced.remove(tracker);
+	}
+
+	/**
+	 * Tells the synchronised trackers that pippo's name has changed
+	 */
+	protected void changeName(Object value) {
+		ProxyManager.propertyChanged(pippo, "name", value, null);
+	}
+}
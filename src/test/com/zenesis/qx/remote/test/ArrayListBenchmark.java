@@ -0,0 +1,81 @@
+package com.zenesis.qx.remote.test;
+
+import com.zenesis.qx.remote.collections.ArrayList;
+
+/**
+ * Measures reading every element of a com.zenesis.qx.remote.collections.ArrayList
+ * by index, by iterator, and by looking up each element; element access used to
+ * scan the whole array for nulls on every call, which made each of these
+ * quadratic in the size of the list.
+ *
+ * Usage: ArrayListBenchmark [size...]
+ */
+public class ArrayListBenchmark {
+
+	private interface Op {
+		long run(ArrayList<String> list);
+	}
+
+	private static void time(String title, ArrayList<String> list, Op op) {
+		// Warm up
+		op.run(list);
+		long start = System.nanoTime();
+		long result = op.run(list);
+		long nanos = System.nanoTime() - start;
+		System.out.println(title + list.size() + " elements: " + (nanos / 1000000) + " ms (" + (nanos / list.size())
+				+ " ns/element, result=" + result + ")");
+	}
+
+	public static void main(String[] args) {
+		int[] sizes = { 10000, 50000, 100000 };
+		if (args.length > 0) {
+			sizes = new int[args.length];
+			for (int i = 0; i < args.length; i++)
+				sizes[i] = Integer.parseInt(args[i]);
+		}
+
+		for (int size : sizes) {
+			ArrayList<String> list = new ArrayList<String>(size);
+			list.setDetectNulls(true);
+			for (int i = 0; i < size; i++)
+				list.add("item-" + i);
+
+			time("get(i) loop,       ", list, new Op() {
+				@Override
+				public long run(ArrayList<String> list) {
+					long total = 0;
+					for (int i = 0; i < list.size(); i++)
+						total += list.get(i).length();
+					return total;
+				}
+			});
+			time("iterator,          ", list, new Op() {
+				@Override
+				public long run(ArrayList<String> list) {
+					long total = 0;
+					for (String str : list)
+						total += str.length();
+					return total;
+				}
+			});
+			time("toArray,           ", list, new Op() {
+				@Override
+				public long run(ArrayList<String> list) {
+					return list.toArray().length;
+				}
+			});
+			time("sort,              ", list, new Op() {
+				@Override
+				public long run(ArrayList<String> list) {
+					list.disableEvents();
+					try {
+						list.sort();
+					} finally {
+						list.enableEvents();
+					}
+					return list.size();
+				}
+			});
+		}
+	}
+}
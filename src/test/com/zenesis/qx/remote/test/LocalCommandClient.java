@@ -0,0 +1,51 @@
+package com.zenesis.qx.remote.test;
+
+import java.io.IOException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.zenesis.qx.remote.CommandChannel;
+import com.zenesis.qx.remote.ProxySessionTracker;
+
+/**
+ * In-JVM client for a CommandChannel, so that the command protocol can be
+ * tested without a browser or a WebSocket container; frames sent by the server
+ * are collected and can be read in order.
+ */
+public class LocalCommandClient extends CommandChannel {
+
+	private final LinkedBlockingQueue<String> frames = new LinkedBlockingQueue<String>();
+	private int nextRequestIndex;
+
+	public LocalCommandClient(ProxySessionTracker tracker) {
+		super(tracker);
+		open();
+	}
+
+	@Override
+	protected void send(String frame) throws IOException {
+		frames.add(frame);
+	}
+
+	/**
+	 * Sends commands to the server with the next request index
+	 * 
+	 * @param commands the command JSON, as it would be posted
+	 * @return the request index
+	 */
+	public int sendCommands(String commands) throws IOException {
+		int requestIndex = nextRequestIndex++;
+		receive("{ \"requestIndex\": " + requestIndex + ", \"commands\": " + commands + " }");
+		return requestIndex;
+	}
+
+	/**
+	 * Returns the next frame sent by the server
+	 * 
+	 * @param timeout in milliseconds
+	 * @return the frame, or null if none arrived in time
+	 */
+	public String nextFrame(long timeout) throws InterruptedException {
+		return frames.poll(timeout, TimeUnit.MILLISECONDS);
+	}
+}
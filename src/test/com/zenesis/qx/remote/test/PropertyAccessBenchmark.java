@@ -0,0 +1,165 @@
+package com.zenesis.qx.remote.test;
+
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import com.zenesis.qx.remote.Proxied;
+import com.zenesis.qx.remote.ProxyProperty;
+import com.zenesis.qx.remote.ProxyType;
+import com.zenesis.qx.remote.ProxyTypeManager;
+import com.zenesis.qx.remote.annotations.Property;
+
+/**
+ * Compares reading and writing properties via reflection (Field.get/set and
+ * Method.invoke, which is how ProxyPropertyImpl used to access values) with the
+ * method handles and generated lambdas which ProxyPropertyImpl now binds when
+ * the ProxyType is created; both field-based and method-based properties are
+ * measured, followed by the whole of ProxyProperty.getValue/setValue.
+ *
+ * Usage: PropertyAccessBenchmark [iterations]
+ */
+public class PropertyAccessBenchmark {
+
+	public static class Target implements Proxied {
+		@Property
+		public long fieldValue;
+
+		private long methodValue;
+
+		@Property
+		public long getMethodValue() {
+			return methodValue;
+		}
+
+		public void setMethodValue(long methodValue) {
+			this.methodValue = methodValue;
+		}
+	}
+
+	private interface Op {
+		void run(Target target, long value) throws Throwable;
+	}
+
+	private static long time(String title, Target target, int iterations, Op op) throws Throwable {
+		// Warm up
+		for (int i = 0; i < iterations; i++)
+			op.run(target, i);
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++)
+			op.run(target, i);
+		long nanos = System.nanoTime() - start;
+		System.out.println(title + ": " + (nanos / iterations) + " ns/op");
+		return nanos;
+	}
+
+	public static void main(String[] args) throws Throwable {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 5000000;
+		Target target = new Target();
+
+		// The raw accessors, bound in the same way as ProxyPropertyImpl does
+		final Field field = Target.class.getField("fieldValue");
+		final Method getMethod = Target.class.getMethod("getMethodValue");
+		final Method setMethod = Target.class.getMethod("setMethodValue", long.class);
+		MethodHandles.Lookup lookup = MethodHandles.lookup();
+		final MethodHandle fieldGetHandle = lookup.unreflectGetter(field).asType(MethodType.genericMethodType(1));
+		final MethodHandle fieldSetHandle = lookup.unreflectSetter(field).asType(MethodType.genericMethodType(2));
+		final Function<Object, Object> getFunction = (Function<Object, Object>) LambdaMetafactory.metafactory(lookup,
+				"apply", MethodType.methodType(Function.class), MethodType.genericMethodType(1),
+				lookup.unreflect(getMethod), MethodType.methodType(Long.class, Target.class)).getTarget().invoke();
+		final BiConsumer<Object, Object> setFunction = (BiConsumer<Object, Object>) LambdaMetafactory.metafactory(lookup,
+				"accept", MethodType.methodType(BiConsumer.class), MethodType.methodType(void.class, Object.class, Object.class),
+				lookup.unreflect(setMethod), MethodType.methodType(void.class, Target.class, Long.class)).getTarget().invoke();
+
+		ProxyType type = ProxyTypeManager.INSTANCE.getProxyType(Target.class);
+		final ProxyProperty fieldProp = type.getProperties().get("fieldValue");
+		final ProxyProperty methodProp = type.getProperties().get("methodValue");
+
+		time("Field get, Field.get            ", target, iterations, new Op() {
+			@Override
+			public void run(Target target, long value) throws Throwable {
+				field.get(target);
+			}
+		});
+		time("Field get, method handle        ", target, iterations, new Op() {
+			@Override
+			public void run(Target target, long value) throws Throwable {
+				Object result = (Object) fieldGetHandle.invokeExact((Object) target);
+			}
+		});
+		time("Field set, Field.set            ", target, iterations, new Op() {
+			@Override
+			public void run(Target target, long value) throws Throwable {
+				field.set(target, value);
+			}
+		});
+		time("Field set, method handle        ", target, iterations, new Op() {
+			@Override
+			public void run(Target target, long value) throws Throwable {
+				Object result = (Object) fieldSetHandle.invokeExact((Object) target, (Object) Long.valueOf(value));
+			}
+		});
+		time("Method get, Method.invoke       ", target, iterations, new Op() {
+			@Override
+			public void run(Target target, long value) throws Throwable {
+				getMethod.invoke(target);
+			}
+		});
+		time("Method get, lambda              ", target, iterations, new Op() {
+			@Override
+			public void run(Target target, long value) throws Throwable {
+				getFunction.apply(target);
+			}
+		});
+		time("Method set, Method.invoke       ", target, iterations, new Op() {
+			@Override
+			public void run(Target target, long value) throws Throwable {
+				setMethod.invoke(target, value);
+			}
+		});
+		time("Method set, lambda              ", target, iterations, new Op() {
+			@Override
+			public void run(Target target, long value) throws Throwable {
+				setFunction.accept(target, value);
+			}
+		});
+
+		// The whole of getValue/setValue, which includes (de)serialising, reading the
+		// old value and firing change events
+		time("Field, ProxyProperty.getValue   ", target, iterations, new Op() {
+			@Override
+			public void run(Target target, long value) throws Throwable {
+				fieldProp.getValue(target);
+			}
+		});
+		time("Field, ProxyProperty.setValue   ", target, iterations, new Op() {
+			@Override
+			public void run(Target target, long value) throws Throwable {
+				fieldProp.setValue(target, value);
+			}
+		});
+		time("Method, ProxyProperty.getValue  ", target, iterations, new Op() {
+			@Override
+			public void run(Target target, long value) throws Throwable {
+				methodProp.getValue(target);
+			}
+		});
+		time("Method, ProxyProperty.setValue  ", target, iterations, new Op() {
+			@Override
+			public void run(Target target, long value) throws Throwable {
+				methodProp.setValue(target, value);
+			}
+		});
+
+		// setValue widens values in the same way as reflection
+		fieldProp.setValue(target, Integer.valueOf(42));
+		methodProp.setValue(target, Integer.valueOf(43));
+		if (target.fieldValue != 42 || target.getMethodValue() != 43)
+			throw new IllegalStateException("Widening conversion failed");
+	}
+}
@@ -27,10 +27,318 @@
  */
 package com.zenesis.qx.remote.test;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.HashMap;
+
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletInputStream;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+import com.zenesis.qx.remote.Proxied;
+import com.zenesis.qx.remote.ProxySessionTracker;
+import com.zenesis.qx.remote.RequestHandler;
+import com.zenesis.qx.remote.annotations.Property;
+import com.zenesis.qx.remote.test.properties.TestGroups;
+import com.zenesis.qx.utils.DiagUtils;
+
 public class RequestHandlerTest extends AbstractRemoteTestCase {
 
+	/*
+	 * Server methods and a property, which are inherited by Derived
+	 */
+	public static class Base implements Proxied {
+		@Property
+		private String name = "base";
+
+		public String getName() {
+			return name;
+		}
+
+		public void setName(String name) {
+			this.name = name;
+		}
+
+		@com.zenesis.qx.remote.annotations.Method
+		public String describe(int value) {
+			return "base:" + value;
+		}
+
+		@com.zenesis.qx.remote.annotations.Method
+		public static String twice(String value) {
+			return value + value;
+		}
+	}
+
+	public static class Derived extends Base {
+		@com.zenesis.qx.remote.annotations.Method
+		public String greet(String who) {
+			return "hello " + who;
+		}
+
+		@com.zenesis.qx.remote.annotations.Method
+		public String fail() throws IOException {
+			throw new IOException("Cannot write");
+		}
+	}
+
+	/*
+	 * Exposes processing a request on the current thread
+	 */
+	private static class TestRequestHandler extends RequestHandler {
+		public TestRequestHandler(ProxySessionTracker tracker) {
+			super(tracker);
+		}
+
+		public void process(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+			processRequestNow(request, response);
+		}
+	}
+
+	/*
+	 * A response which records the headers and the body
+	 */
+	private static class TestResponse implements InvocationHandler {
+		private final HashMap<String, String> headers = new HashMap<String, String>();
+		private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.equals("setHeader") || name.equals("addHeader"))
+				headers.put((String) args[0], (String) args[1]);
+			else if (name.equals("getHeader"))
+				return headers.get(args[0]);
+			else if (name.equals("getOutputStream")) {
+				return new ServletOutputStream() {
+					@Override
+					public void write(int b) throws IOException {
+						body.write(b);
+					}
+
+					@Override
+					public boolean isReady() {
+						return true;
+					}
+
+					@Override
+					public void setWriteListener(WriteListener writeListener) {
+					}
+				};
+			} else if (method.getReturnType() == boolean.class)
+				return false;
+			else if (method.getReturnType() == int.class)
+				return 0;
+			return null;
+		}
+	}
+
+	/**
+	 * Posts a request through the servlet API, with the headers which the client
+	 * sends
+	 */
+	private TestResponse post(final String body, String sha) throws Exception {
+		final HashMap<String, String> headers = new HashMap<String, String>();
+		headers.put(RequestHandler.HEADER_INDEX, "0");
+		headers.put(RequestHandler.HEADER_CLIENT_TIME, Long.toString(System.currentTimeMillis()));
+		if (sha != null)
+			headers.put(RequestHandler.HEADER_SHA1, sha);
+		HttpServletRequest request = (HttpServletRequest) java.lang.reflect.Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class[] { HttpServletRequest.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						String name = method.getName();
+						if (name.equals("getHeaderNames"))
+							return Collections.enumeration(headers.keySet());
+						if (name.equals("getHeader"))
+							return headers.get(args[0]);
+						if (name.equals("getReader"))
+							return new BufferedReader(new StringReader(body));
+						if (name.equals("getInputStream")) {
+							final ByteArrayInputStream bais = new ByteArrayInputStream(body.getBytes("UTF-8"));
+							return new ServletInputStream() {
+								@Override
+								public int read() throws IOException {
+									return bais.read();
+								}
+
+								@Override
+								public boolean isFinished() {
+									return bais.available() == 0;
+								}
+
+								@Override
+								public boolean isReady() {
+									return true;
+								}
+
+								@Override
+								public void setReadListener(ReadListener readListener) {
+								}
+							};
+						}
+						return null;
+					}
+				});
+		TestResponse result = new TestResponse();
+		HttpServletResponse response = (HttpServletResponse) java.lang.reflect.Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class[] { HttpServletResponse.class }, result);
+		new TestRequestHandler(tracker).process(request, response);
+		return result;
+	}
+
 	public void testBootstrap() throws Exception {
 		String str = postRequest("{ \"cmd\": \"bootstrap\" }");
 		System.out.println(str);
 	}
+
+	/**
+	 * Tests that the body is still processed when the client sends its SHA1
+	 */
+	public void testSha() throws Exception {
+		String body = "[{ \"cmd\": \"bootstrap\", \"asyncId\": 1 }]";
+		TestResponse response = post(body, DiagUtils.getSha1(body));
+		String out = new String(response.body.toByteArray(), "UTF-8");
+		assertTrue(out.replaceAll("\\s", "").contains("\"type\":\"bootstrap\""));
+		assertEquals(DiagUtils.getSha1(out), response.headers.get(RequestHandler.HEADER_SHA1));
+
+		try {
+			post(body, DiagUtils.getSha1(body + " "));
+			fail("Expected a SHA1 mismatch");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	/**
+	 * Tests that in streaming mode the SHA1 is checked before any commands are run
+	 */
+	public void testStreamingSha() throws Exception {
+		String body = "[{ \"cmd\": \"bootstrap\", \"asyncId\": 1 }]";
+		boolean streaming = RequestHandler.isStreaming();
+		RequestHandler.setStreaming(true);
+		try {
+			try {
+				post(body, DiagUtils.getSha1(body + " "));
+				fail("Expected a SHA1 mismatch");
+			} catch (IllegalArgumentException e) {
+				// Expected
+			}
+			assertFalse(tracker.hasBootstrap());
+
+			TestResponse response = post(body, DiagUtils.getSha1(body));
+			String out = new String(response.body.toByteArray(), "UTF-8");
+			assertTrue(tracker.hasBootstrap());
+			assertEquals(DiagUtils.getSha1(out), response.headers.get(RequestHandler.HEADER_SHA1));
+
+			response = post(body, null);
+			assertTrue(new String(response.body.toByteArray(), "UTF-8").replaceAll("\\s", "").contains("\"type\":\"bootstrap\""));
+		} finally {
+			RequestHandler.setStreaming(streaming);
+		}
+	}
+
+	/*
+	 * Calls a method on a server object, or a static method if serverId is a class
+	 * name, and returns the response without white space
+	 */
+	private String call(Object serverId, String methodName, String parameters) throws Exception {
+		String id = serverId instanceof Class ? "\"" + ((Class) serverId).getName() + "\"" : serverId.toString();
+		String str = postRequest("[{ \"cmd\": \"call\", \"serverId\": " + id + ", \"methodName\": \"" + methodName +
+				"\", \"asyncId\": 1, \"parameters\": [" + parameters + "] }]");
+		return str.replaceAll("\\s", "");
+	}
+
+	private int sendObject(Proxied obj) {
+		tracker.getProxy(obj);
+		return tracker.getServerId(obj);
+	}
+
+	/**
+	 * Tests calling methods which are declared by the class, its super class, or
+	 * as static
+	 */
+	public void testCallMethod() throws Exception {
+		int serverId = sendObject(new Derived());
+		String str = call(serverId, "greet", "\"world\"");
+		assertTrue(str, str.contains("\"result\":\"helloworld\""));
+
+		// Inherited from Base
+		str = call(serverId, "describe", "3");
+		assertTrue(str, str.contains("\"result\":\"base:3\""));
+
+		// Extra parameters are ignored, and missing ones are null
+		str = call(serverId, "describe", "4, 5");
+		assertTrue(str, str.contains("\"result\":\"base:4\""));
+		str = call(serverId, "greet", "");
+		assertTrue(str, str.contains("\"result\":\"hellonull\""));
+
+		str = call(Base.class, "twice", "\"abc\"");
+		assertTrue(str, str.contains("\"result\":\"abcabc\""));
+	}
+
+	/**
+	 * Tests that exceptions thrown by a method, including IOExceptions, are
+	 * reported to the client against the object
+	 */
+	public void testCallMethodException() throws Exception {
+		int serverId = sendObject(new Derived());
+		String str = call(serverId, "fail", "");
+		assertTrue(str, str.contains("\"type\":\"exception\",\"object\":{\"serverId\":" + serverId + "}"));
+		assertTrue(str, str.contains("\"exceptionClass\":\"" + IOException.class.getName() + "\""));
+	}
+
+	/**
+	 * Tests calling property accessors, in both the getXxx and getxxx forms
+	 */
+	public void testCallAccessors() throws Exception {
+		Derived derived = new Derived();
+		int serverId = sendObject(derived);
+		String str = call(serverId, "getName", "");
+		assertTrue(str, str.contains("\"result\":\"base\""));
+		call(serverId, "setName", "\"one\"");
+		assertEquals("one", derived.getName());
+
+		str = call(serverId, "getname", "");
+		assertTrue(str, str.contains("\"result\":\"one\""));
+		call(serverId, "setname", "\"two\"");
+		assertEquals("two", derived.getName());
+
+		// Static calls cannot use property accessors
+		str = call(Base.class, "getName", "");
+		assertTrue(str, str.contains("Cannotfindmethod"));
+	}
+
+	/**
+	 * Tests that getting a property also sends the other properties in the same
+	 * group, once
+	 */
+	public void testCallAccessorGroup() throws Exception {
+		TestGroups groups = new TestGroups();
+		int serverId = sendObject(groups);
+		String str = call(serverId, "getBravo", "");
+		assertTrue(str, str.contains("\"result\":\"Bravo\""));
+		assertTrue(str, str.contains("\"name\":\"charlie\",\"data\":\"Charlie\""));
+		assertFalse(str, str.contains("Delta"));
+
+		str = call(serverId, "getCharlie", "");
+		assertTrue(str, str.contains("\"result\":\"Charlie\""));
+		assertFalse(str, str.contains("\"type\":\"set\""));
+
+		call(serverId, "setDelta", "\"D\"");
+		assertEquals("D", groups.getDelta());
+		str = call(serverId, "getEcho", "");
+		assertTrue(str, str.contains("\"result\":\"Echo\""));
+		assertFalse(str, str.contains("\"name\":\"echo\""));
+	}
 }
@@ -0,0 +1,55 @@
+package com.zenesis.qx.remote.test;
+
+import java.util.ArrayList;
+
+import com.zenesis.qx.remote.ProxyManager;
+import com.zenesis.qx.remote.ProxySessionTracker;
+import com.zenesis.qx.remote.test.simple.TestBootstrap;
+
+/**
+ * Measures the heap used by each session, with and without an object mapper
+ * that is shared between sessions; each session serialises its bootstrap object
+ * so that the serializer caches are populated.
+ *
+ * Usage: SessionHeapBenchmark [numberOfSessions]
+ */
+public class SessionHeapBenchmark {
+
+	private static long usedMemory() throws InterruptedException {
+		Runtime rt = Runtime.getRuntime();
+		for (int i = 0; i < 5; i++) {
+			System.gc();
+			Thread.sleep(50);
+		}
+		return rt.totalMemory() - rt.freeMemory();
+	}
+
+	private static void measure(boolean shared, int numSessions) throws Exception {
+		ProxySessionTracker.setSharedObjectMapper(shared);
+		ArrayList<ProxySessionTracker> trackers = new ArrayList<ProxySessionTracker>();
+		long before = usedMemory();
+		for (int i = 0; i < numSessions; i++) {
+			ProxySessionTracker tracker = new ProxySessionTracker(TestBootstrap.class);
+			ProxyManager.selectTracker(tracker);
+			tracker.toJSON(tracker.getBootstrap());
+			ProxyManager.deselectTracker(tracker);
+			trackers.add(tracker);
+		}
+		long after = usedMemory();
+		System.out.println((shared ? "Shared mapper:      " : "Per-session mapper: ") + numSessions + " sessions, "
+				+ ((after - before) / numSessions) + " bytes per session");
+		trackers.clear();
+	}
+
+	public static void main(String[] args) throws Exception {
+		int numSessions = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+
+		// Warm up, so that the ProxyTypes are already loaded
+		measure(false, 10);
+		measure(true, 10);
+
+		measure(false, numSessions);
+		measure(true, numSessions);
+		ProxySessionTracker.setSharedObjectMapper(false);
+	}
+}
@@ -0,0 +1,189 @@
+package com.zenesis.qx.remote.test.unittests;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.zenesis.qx.event.Event;
+import com.zenesis.qx.event.EventListener;
+import com.zenesis.qx.event.EventManager;
+import com.zenesis.qx.remote.collections.ArrayList;
+import com.zenesis.qx.remote.collections.ArrayList.ArrayChangeData;
+import com.zenesis.qx.remote.collections.ChangeData;
+import com.zenesis.qx.remote.collections.ChangeLog;
+import com.zenesis.qx.remote.collections.HashMap.MapChangeData;
+
+import junit.framework.TestCase;
+
+public class TestChangeLog extends TestCase {
+
+	public void testArrayChanges() throws Exception {
+		String a = new String("a");
+		String b = new String("b");
+		String c = new String("c");
+		String a2 = new String("a");
+		ChangeLog log = new ChangeLog();
+		for (int i = 0; i < 1000; i++) {
+			log.add(new ArrayChangeData().add(a));
+			log.add(new ArrayChangeData().remove(a));
+		}
+		log.add(new ArrayChangeData().add(b));
+		log.add(new ArrayChangeData().remove(c));
+		log.add(new ArrayChangeData().add(a2));
+		log.add(new ArrayChangeData().add(b));
+		assertEquals(2004, log.size());
+
+		ChangeData[] changes = log.compact();
+		assertEquals(1, changes.length);
+		ArrayChangeData change = (ArrayChangeData) changes[0];
+		assertEquals(3, change.added.size());
+		assertSame(b, change.added.get(0));
+		assertSame(a2, change.added.get(1));
+		assertSame(b, change.added.get(2));
+		assertEquals(1, change.removed.size());
+		assertSame(c, change.removed.get(0));
+
+		// Changes which cancel out are not sent at all
+		log = new ChangeLog();
+		log.add(new ArrayChangeData().add(a));
+		log.add(new ArrayChangeData().remove(a));
+		assertEquals(0, log.compact().length);
+		assertEquals("[]", new ObjectMapper().writeValueAsString(log));
+	}
+
+	/**
+	 * Tests that the compacted change leaves the client with the same order; the
+	 * client removes by value and appends adds to the end
+	 */
+	public void testArrayOrder() throws Exception {
+		String a = new String("a");
+		String b = new String("b");
+		String x = new String("x");
+
+		// A remove followed by an add moves the element to the end
+		ChangeLog log = new ChangeLog();
+		log.add(new ArrayChangeData().remove(x));
+		log.add(new ArrayChangeData().add(x));
+		ChangeData[] changes = log.compact();
+		assertEquals(1, changes.length);
+		ArrayChangeData change = (ArrayChangeData) changes[0];
+		assertEquals(1, change.removed.size());
+		assertSame(x, change.removed.get(0));
+		assertEquals(1, change.added.size());
+		assertSame(x, change.added.get(0));
+
+		// Re-adding an element puts it after the elements added in between
+		log = new ChangeLog();
+		log.add(new ArrayChangeData().add(a));
+		log.add(new ArrayChangeData().add(b));
+		log.add(new ArrayChangeData().remove(a));
+		log.add(new ArrayChangeData().add(a));
+		change = (ArrayChangeData) log.compact()[0];
+		assertNull(change.removed);
+		assertEquals(2, change.added.size());
+		assertSame(b, change.added.get(0));
+		assertSame(a, change.added.get(1));
+
+		// A remove cancels the first of several adds of the same element
+		log = new ChangeLog();
+		log.add(new ArrayChangeData().add(a));
+		log.add(new ArrayChangeData().add(b));
+		log.add(new ArrayChangeData().add(a));
+		log.add(new ArrayChangeData().remove(a));
+		change = (ArrayChangeData) log.compact()[0];
+		assertNull(change.removed);
+		assertEquals(2, change.added.size());
+		assertSame(b, change.added.get(0));
+		assertSame(a, change.added.get(1));
+	}
+
+	/*
+	 * Makes changes to a list in a batch, and checks that the client's copy ends up
+	 * the same as the list when the changes are applied the way the client does
+	 */
+	private static int assertBatch(ArrayList<String> list, String... changes) {
+		final java.util.ArrayList<ArrayChangeData> events = new java.util.ArrayList<ArrayChangeData>();
+		EventListener listener = new EventListener() {
+			@Override
+			public void handleEvent(Event event) {
+				events.add((ArrayChangeData) event.getData());
+			}
+		};
+		java.util.ArrayList<Object> copy = new java.util.ArrayList<Object>(list);
+		EventManager.addListener(list, "change", listener);
+		list.beginBatch();
+		for (String change : changes) {
+			if (change.startsWith("-"))
+				list.remove(change.substring(1));
+			else
+				list.add(change);
+		}
+		list.endBatch();
+		EventManager.removeListener(list, "change", listener);
+
+		for (ArrayChangeData event : events) {
+			if (event.removed != null)
+				for (Object o : event.removed)
+					copy.remove(o);
+			if (event.added != null)
+				copy.addAll(event.added);
+		}
+		assertEquals(list, copy);
+		return events.size();
+	}
+
+	/**
+	 * Tests that adding and removing an element which the client already has a
+	 * copy of does not cancel out, because the client removes the old copy
+	 */
+	public void testArrayCopies() throws Exception {
+		ArrayList<String> list = new ArrayList<String>();
+		list.add("x");
+		list.add("y");
+
+		// The old copy of x is removed, so x moves to the end
+		assertEquals(2, assertBatch(list, "x", "-x"));
+		assertEquals("y", list.get(0));
+		assertEquals("x", list.get(1));
+		assertEquals(2, assertBatch(list, "z", "x", "y", "-x", "-y"));
+
+		// Adds and removes of elements which the client does not have still cancel
+		list.clear();
+		list.add("y");
+		assertEquals(0, assertBatch(list, "x", "-x"));
+		assertEquals(1, assertBatch(list, "x", "z", "-x", "x"));
+		assertEquals(2, assertBatch(list, "w", "w", "-w"));
+	}
+
+	public void testMapChanges() throws Exception {
+		ChangeLog log = new ChangeLog();
+		log.add(new MapChangeData().put("x", 1, null));
+		log.add(new MapChangeData().put("y", 2, null));
+		log.add(new MapChangeData().put("x", 3, 1));
+		log.add(new MapChangeData().remove("y"));
+		log.add(new MapChangeData().remove("z"));
+		log.add(new MapChangeData().put("z", 4, null));
+
+		ChangeData[] changes = log.compact();
+		assertEquals(1, changes.length);
+		MapChangeData change = (MapChangeData) changes[0];
+		assertEquals(2, change.put.size());
+		assertEquals("x", change.put.get(0).getKey());
+		assertEquals(3, change.put.get(0).getValue());
+		assertEquals("z", change.put.get(1).getKey());
+		assertEquals(1, change.removed.size());
+		assertEquals("y", change.removed.get(0));
+	}
+
+	public void testBarriers() throws Exception {
+		String a = new String("a");
+		ChangeLog log = new ChangeLog();
+		log.add(new ArrayChangeData().add(a));
+		log.add(new MapChangeData().put("x", 1, null));
+		log.add(new ArrayChangeData().remove(a));
+
+		// Changes of different kinds are not merged with each other
+		ChangeData[] changes = log.compact();
+		assertEquals(3, changes.length);
+		assertTrue(changes[0] instanceof ArrayChangeData);
+		assertTrue(changes[1] instanceof MapChangeData);
+		assertTrue(changes[2] instanceof ArrayChangeData);
+	}
+}
@@ -0,0 +1,56 @@
+package com.zenesis.qx.remote.test.unittests;
+
+import com.zenesis.qx.remote.CommandId;
+import com.zenesis.qx.remote.ProxySessionTracker;
+import com.zenesis.qx.remote.test.LocalCommandClient;
+import com.zenesis.qx.remote.test.simple.MainTests;
+
+import junit.framework.TestCase;
+
+public class TestCommandChannel extends TestCase {
+
+	/*
+	 * Waits for the reply to a request, skipping any pushes
+	 */
+	private String awaitReply(LocalCommandClient client, int requestIndex) throws InterruptedException {
+		for (;;) {
+			String frame = client.nextFrame(5000);
+			assertNotNull(frame);
+			if (frame.startsWith("{\"requestIndex\":" + requestIndex))
+				return frame;
+			assertTrue(frame, frame.startsWith("{\"data\":"));
+		}
+	}
+
+	public void testRequestsAndPush() throws Exception {
+		ProxySessionTracker tracker = new ProxySessionTracker(MainTests.class);
+		LocalCommandClient client = new LocalCommandClient(tracker);
+		assertSame(client, tracker.getCommandChannel());
+
+		// Replies carry the request index and the queue
+		assertEquals(0, client.sendCommands("[ { \"cmd\": \"bootstrap\", \"asyncId\": 1 } ]"));
+		String frame = client.nextFrame(5000);
+		assertNotNull(frame);
+		assertTrue(frame, frame.startsWith("{\"requestIndex\":0,\"data\":"));
+		assertTrue(frame, frame.contains("\"bootstrap\""));
+
+		// Bootstrapping queues more for the client, which is sent either as a push or
+		// in the reply to the next request; after that there is nothing left
+		assertEquals(1, client.sendCommands("{ \"cmd\": \"poll\" }"));
+		awaitReply(client, 1);
+		assertEquals(2, client.sendCommands("{ \"cmd\": \"poll\" }"));
+		assertEquals("{\"requestIndex\":2}", awaitReply(client, 2));
+
+		// Anything queued outside of a request is pushed
+		tracker.getQueue().queueCommand(CommandId.CommandType.FIRE_EVENT, null, "pushed", null);
+		frame = client.nextFrame(5000);
+		assertNotNull(frame);
+		assertTrue(frame, frame.startsWith("{\"data\":"));
+		assertTrue(frame, frame.contains("\"pushed\""));
+
+		client.close();
+		assertNull(tracker.getCommandChannel());
+		tracker.getQueue().queueCommand(CommandId.CommandType.FIRE_EVENT, null, "notPushed", null);
+		assertNull(client.nextFrame(200));
+	}
+}
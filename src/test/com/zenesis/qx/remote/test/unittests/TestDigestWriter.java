@@ -0,0 +1,40 @@
+package com.zenesis.qx.remote.test.unittests;
+
+import java.io.StringWriter;
+import java.security.MessageDigest;
+
+import com.zenesis.qx.utils.DiagUtils;
+import com.zenesis.qx.utils.DigestWriter;
+
+import junit.framework.TestCase;
+
+public class TestDigestWriter extends TestCase {
+	
+	private static String sha1(String str) throws Exception {
+		MessageDigest md = MessageDigest.getInstance("SHA-1");
+		return DiagUtils.bytesToHex(md.digest(str.getBytes("UTF-8")));
+	}
+
+	public void testDigest() throws Exception {
+		final String[] TESTS = { "", "{ \"cmd\": \"bootstrap\" }", "café € 😀 end" };
+		for (String str : TESTS) {
+			StringWriter sw = new StringWriter();
+			DigestWriter writer = new DigestWriter(sw, DiagUtils.getSha1Digest());
+			
+			// Write one character at a time so that surrogate pairs are split
+			for (int i = 0; i < str.length(); i++)
+				writer.write(str.charAt(i));
+			assertEquals(str, sw.toString());
+			assertEquals(sha1(str), writer.getHash());
+			assertEquals(sha1(str), DiagUtils.getSha1(str));
+		}
+	}
+	
+	public void testLongString() throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 10000; i++)
+			sb.append((char)(i % 0x7ff + 1));
+		String str = sb.toString();
+		assertEquals(sha1(str), DiagUtils.getSha1(str));
+	}
+}
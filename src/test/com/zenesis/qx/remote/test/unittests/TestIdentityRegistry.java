@@ -0,0 +1,101 @@
+package com.zenesis.qx.remote.test.unittests;
+
+import java.util.ArrayList;
+
+import com.zenesis.qx.utils.IdentityRegistry;
+
+import junit.framework.TestCase;
+
+public class TestIdentityRegistry extends TestCase {
+	
+	public void testBasics() {
+		IdentityRegistry<String> reg = new IdentityRegistry<String>();
+		String a = new String("abc");
+		String b = new String("abc");
+		
+		reg.put(a, 0);
+		assertEquals(0, reg.getId(a));
+		assertTrue(reg.contains(a));
+		assertFalse(reg.contains(b));
+		assertEquals(IdentityRegistry.NO_ID, reg.getId(b));
+		assertSame(a, reg.get(0));
+		
+		reg.put(b, 1);
+		assertEquals(1, reg.getId(b));
+		assertSame(b, reg.get(1));
+		assertEquals(2, reg.size());
+		
+		try {
+			reg.put(a, 2);
+			fail("Should not be able to register an object twice");
+		} catch(IllegalArgumentException e) {
+			// Nothing
+		}
+		
+		assertEquals(0, reg.remove(a));
+		assertNull(reg.get(0));
+		assertFalse(reg.contains(a));
+		assertSame(b, reg.remove(1));
+		assertEquals(0, reg.size());
+		assertNull(reg.remove(1));
+	}
+	
+	public void testGrowth() {
+		IdentityRegistry<Object> reg = new IdentityRegistry<Object>();
+		ArrayList<Object> objects = new ArrayList<Object>();
+		for (int i = 0; i < 10000; i++) {
+			Object obj = new Object();
+			objects.add(obj);
+			reg.put(obj, i);
+			
+			// Remove some as we go, so that there are deleted slots to skip over
+			if (i % 3 == 0)
+				assertEquals(i / 2, reg.remove(objects.get(i / 2)));
+		}
+		for (int i = 0; i < objects.size(); i++) {
+			Object obj = objects.get(i);
+			int id = reg.getId(obj);
+			if (id == IdentityRegistry.NO_ID)
+				assertNull(reg.get(i));
+			else {
+				assertEquals(i, id);
+				assertSame(obj, reg.get(i));
+			}
+		}
+		reg.clear();
+		assertEquals(0, reg.size());
+		assertNull(reg.get(1));
+	}
+	
+	public void testConcurrentReads() throws Exception {
+		final IdentityRegistry<Object> reg = new IdentityRegistry<Object>();
+		final Object[] objects = new Object[20000];
+		for (int i = 0; i < objects.length; i++)
+			objects[i] = new Object();
+		final boolean[] failed = new boolean[1];
+		
+		Thread reader = new Thread() {
+			@Override
+			public void run() {
+				for (int pass = 0; pass < 50; pass++) {
+					for (int i = 0; i < objects.length; i++) {
+						Object obj = reg.get(i);
+						if (obj != null && obj != objects[i])
+							failed[0] = true;
+						int id = reg.getId(objects[i]);
+						if (id != IdentityRegistry.NO_ID && id != i)
+							failed[0] = true;
+					}
+				}
+			}
+		};
+		reader.start();
+		for (int i = 0; i < objects.length; i++) {
+			reg.put(objects[i], i);
+			if (i % 2 == 0)
+				reg.remove(i / 2);
+		}
+		reader.join();
+		assertFalse(failed[0]);
+	}
+}
@@ -0,0 +1,274 @@
+package com.zenesis.qx.remote.test.unittests;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+import com.zenesis.qx.remote.LongPollChannel;
+import com.zenesis.qx.remote.ProxySessionTracker;
+import com.zenesis.qx.remote.test.simple.MainTests;
+import com.zenesis.qx.remote.test.simple.Pippo;
+
+import junit.framework.TestCase;
+
+public class TestLongPollChannel extends TestCase {
+
+	/*
+	 * Stands in for the container's request, response and AsyncContext
+	 */
+	private static class TestAsync implements InvocationHandler {
+		private final boolean asyncSupported;
+		private final ArrayList<AsyncListener> listeners = new ArrayList<AsyncListener>();
+		private final CountDownLatch completed = new CountDownLatch(1);
+		private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		private final AsyncContext async;
+		private final HttpServletRequest request;
+		private final HttpServletResponse response;
+		private long timeout;
+
+		public TestAsync(boolean asyncSupported) {
+			this.asyncSupported = asyncSupported;
+			ClassLoader loader = getClass().getClassLoader();
+			async = (AsyncContext) Proxy.newProxyInstance(loader, new Class[] { AsyncContext.class }, this);
+			request = (HttpServletRequest) Proxy.newProxyInstance(loader, new Class[] { HttpServletRequest.class }, this);
+			response = (HttpServletResponse) Proxy.newProxyInstance(loader, new Class[] { HttpServletResponse.class }, this);
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.equals("isAsyncSupported"))
+				return asyncSupported;
+			if (name.equals("startAsync"))
+				return async;
+			if (name.equals("getRequest"))
+				return request;
+			if (name.equals("getResponse"))
+				return response;
+			if (name.equals("setTimeout"))
+				timeout = (Long) args[0];
+			else if (name.equals("addListener"))
+				listeners.add((AsyncListener) args[0]);
+			else if (name.equals("start"))
+				new Thread((Runnable) args[0]).start();
+			else if (name.equals("complete")) {
+				completed.countDown();
+				for (AsyncListener listener : listeners)
+					listener.onComplete(new AsyncEvent(async));
+			} else if (name.equals("getOutputStream")) {
+				return new ServletOutputStream() {
+					@Override
+					public void write(int b) throws IOException {
+						body.write(b);
+					}
+
+					@Override
+					public boolean isReady() {
+						return true;
+					}
+
+					@Override
+					public void setWriteListener(WriteListener writeListener) {
+					}
+				};
+			} else if (method.getReturnType() == boolean.class)
+				return false;
+			else if (method.getReturnType() == int.class)
+				return 0;
+			return null;
+		}
+
+		public boolean isCompleted() {
+			return completed.getCount() == 0;
+		}
+
+		public boolean awaitCompleted(long timeout) throws InterruptedException {
+			return completed.await(timeout, TimeUnit.MILLISECONDS);
+		}
+
+		public void timeout() throws IOException {
+			for (AsyncListener listener : new ArrayList<AsyncListener>(listeners))
+				listener.onTimeout(new AsyncEvent(async));
+		}
+
+		public String getBody() throws IOException {
+			return new String(body.toByteArray(), "UTF-8");
+		}
+	}
+
+	/*
+	 * Counts the requests which are completed with the contents of the queue
+	 */
+	private static class TestChannel extends LongPollChannel {
+		private int numCompleted;
+
+		public TestChannel(ProxySessionTracker tracker) {
+			super(tracker);
+		}
+
+		@Override
+		protected void complete(AsyncContext async) {
+			synchronized (this) {
+				numCompleted++;
+			}
+			async.complete();
+		}
+
+		public synchronized int getNumCompleted() {
+			return numCompleted;
+		}
+	}
+
+	private int coalesceDelay;
+	private ProxySessionTracker tracker;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		coalesceDelay = LongPollChannel.getCoalesceDelay();
+		tracker = new ProxySessionTracker(MainTests.class);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		LongPollChannel.setCoalesceDelay(coalesceDelay);
+		tracker = null;
+		super.tearDown();
+	}
+
+	/**
+	 * Tests that only one request is parked at a time
+	 */
+	public void testPark() throws Exception {
+		TestChannel channel = new TestChannel(tracker);
+		try {
+			channel.park(new TestAsync(false).request);
+			fail("Expected a ServletException");
+		} catch (ServletException e) {
+			// Expected
+		}
+		assertFalse(channel.isParked());
+
+		TestAsync first = new TestAsync(true);
+		channel.park(first.request);
+		assertTrue(channel.isParked());
+		assertEquals(LongPollChannel.getTimeout(), first.timeout);
+		assertFalse(first.isCompleted());
+
+		// Parking another request completes the previous one
+		TestAsync second = new TestAsync(true);
+		channel.park(second.request);
+		assertTrue(first.isCompleted());
+		assertFalse(second.isCompleted());
+		assertTrue(channel.isParked());
+
+		channel.close();
+		assertTrue(second.isCompleted());
+		assertFalse(channel.isParked());
+	}
+
+	/**
+	 * Tests that queued data completes the request after the coalescing delay
+	 */
+	public void testDataQueued() throws Exception {
+		LongPollChannel.setCoalesceDelay(100);
+		TestChannel channel = new TestChannel(tracker);
+
+		// Nothing happens if there is no parked request
+		channel.dataQueued(false);
+		channel.dataQueued(true);
+
+		TestAsync async = new TestAsync(true);
+		long start = System.currentTimeMillis();
+		channel.park(async.request);
+		channel.dataQueued(false);
+		assertFalse(async.awaitCompleted(20));
+		assertTrue(async.awaitCompleted(5000));
+		assertTrue(System.currentTimeMillis() - start >= 100);
+		assertFalse(channel.isParked());
+		assertEquals(1, channel.getNumCompleted());
+	}
+
+	/**
+	 * Tests that a burst of changes completes the request once
+	 */
+	public void testCoalesce() throws Exception {
+		LongPollChannel.setCoalesceDelay(100);
+		TestChannel channel = new TestChannel(tracker);
+		TestAsync async = new TestAsync(true);
+		channel.park(async.request);
+		for (int i = 0; i < 10; i++)
+			channel.dataQueued(false);
+		assertTrue(async.awaitCompleted(5000));
+		Thread.sleep(200);
+		assertEquals(1, channel.getNumCompleted());
+	}
+
+	/**
+	 * Tests that IMMEDIATE changes do not wait for the coalescing delay
+	 */
+	public void testImmediate() throws Exception {
+		LongPollChannel.setCoalesceDelay(60 * 1000);
+		TestChannel channel = new TestChannel(tracker);
+		TestAsync async = new TestAsync(true);
+		channel.park(async.request);
+		channel.dataQueued(false);
+		assertFalse(async.awaitCompleted(50));
+		channel.dataQueued(true);
+		assertTrue(async.awaitCompleted(5000));
+		assertEquals(1, channel.getNumCompleted());
+	}
+
+	/**
+	 * Tests that a request which times out is completed with whatever is queued
+	 */
+	public void testTimeout() throws Exception {
+		TestChannel channel = new TestChannel(tracker);
+		TestAsync async = new TestAsync(true);
+		channel.park(async.request);
+		async.timeout();
+		assertTrue(async.isCompleted());
+		assertFalse(channel.isParked());
+		assertEquals(1, channel.getNumCompleted());
+
+		// A request which has already been replaced is left to the container
+		TestAsync first = new TestAsync(true);
+		TestAsync second = new TestAsync(true);
+		channel.park(first.request);
+		channel.park(second.request);
+		first.timeout();
+		assertEquals(2, channel.getNumCompleted());
+		assertTrue(channel.isParked());
+		channel.close();
+	}
+
+	/**
+	 * Tests that the response is the contents of the queue, and that a request is
+	 * completed straight away if there is already something to send
+	 */
+	public void testResponse() throws Exception {
+		LongPollChannel.setCoalesceDelay(10);
+		LongPollChannel channel = new LongPollChannel(tracker);
+		tracker.loadProxyType(Pippo.class);
+		assertTrue(tracker.hasDataToFlush());
+		TestAsync async = new TestAsync(true);
+		channel.park(async.request);
+		assertTrue(async.awaitCompleted(5000));
+		assertTrue(async.getBody().contains(Pippo.class.getName()));
+		assertFalse(tracker.hasDataToFlush());
+	}
+}
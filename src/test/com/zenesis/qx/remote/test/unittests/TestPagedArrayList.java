@@ -0,0 +1,118 @@
+package com.zenesis.qx.remote.test.unittests;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.zenesis.qx.remote.ProxyManager;
+import com.zenesis.qx.remote.ProxySessionTracker;
+import com.zenesis.qx.remote.collections.ChangeData;
+import com.zenesis.qx.remote.collections.PagedArrayList;
+import com.zenesis.qx.remote.collections.PagedArrayList.PagedChangeData;
+import com.zenesis.qx.remote.test.AbstractSyncTestCase.RecordingTracker;
+import com.zenesis.qx.remote.test.simple.TestBootstrap;
+
+import junit.framework.TestCase;
+
+public class TestPagedArrayList extends TestCase {
+
+	/*
+	 * Serialises without any pretty printing
+	 */
+	private static String toJSON(ProxySessionTracker tracker, Object obj) throws Exception {
+		return tracker.toJSON(obj).replaceAll("\\s", "");
+	}
+
+	public void testPages() throws Exception {
+		ProxySessionTracker tracker = new ProxySessionTracker(TestBootstrap.class);
+		ProxyManager.selectTracker(tracker);
+		try {
+			PagedArrayList<String> list = new PagedArrayList<String>(3);
+			for (int i = 0; i < 7; i++)
+				list.add("item" + i);
+
+			// Only the first page is sent with the object
+			String json = toJSON(tracker, list);
+			assertTrue(json, json.contains("\"constructorArgs\":[3,7,[\"item0\",\"item1\",\"item2\"]]"));
+
+			// Elements are only sent for pages which the client has loaded
+			list.add("item7");
+			list.set(1, "x");
+			list.set(5, "y");
+			json = toJSON(tracker, tracker.getQueue());
+			assertTrue(json, json.contains("{\"index\":1,\"value\":\"x\"}"));
+			assertFalse(json, json.contains("item7"));
+			assertFalse(json, json.contains("\"y\""));
+
+			Object[] page = list.getPage(2);
+			assertEquals(2, page.length);
+			assertEquals("item7", page[1]);
+			list.add("item8");
+			json = toJSON(tracker, tracker.getQueue());
+			assertTrue(json, json.contains("{\"index\":8,\"value\":\"item8\"}"));
+
+			// Inserting discards the client's copies from the insertion point on, which
+			// are then not updated until they are loaded again
+			list.add(1, "new");
+			json = toJSON(tracker, tracker.getQueue());
+			assertTrue(json, json.contains("\"size\":10,\"invalidateFrom\":1"));
+			list.set(5, "z");
+			json = toJSON(tracker, tracker.getQueue());
+			assertFalse(json, json.contains("\"z\""));
+			assertEquals(10, list.size());
+			assertEquals("new", list.get(1));
+		} finally {
+			ProxyManager.deselectTracker(tracker);
+		}
+	}
+
+	/**
+	 * Tests that changes made on different threads are queued in the order they
+	 * were made, even if the first is held up after the list has been changed
+	 */
+	public void testOrdering() throws Exception {
+		RecordingTracker tracker = new RecordingTracker(true);
+		final PagedArrayList<String> list = new PagedArrayList<String>(3);
+		ProxyManager.selectTracker(tracker);
+		try {
+			tracker.toJSON(list);
+		} finally {
+			ProxyManager.deselectTracker(tracker);
+		}
+
+		Thread first = new Thread() {
+			@Override
+			public void run() {
+				list.add("first");
+			}
+		};
+		first.start();
+		tracker.awaitEntered();
+
+		final CountDownLatch started = new CountDownLatch(1);
+		Thread second = new Thread() {
+			@Override
+			public void run() {
+				started.countDown();
+				list.add("second");
+			}
+		};
+		second.start();
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+
+		// The second change either waits for the first to be queued, or overtakes it
+		long end = System.currentTimeMillis() + 5000;
+		while (second.isAlive() && second.getState() != Thread.State.BLOCKED && System.currentTimeMillis() < end)
+			Thread.sleep(1);
+		tracker.open();
+		first.join(5000);
+		second.join(5000);
+		assertFalse(first.isAlive());
+		assertFalse(second.isAlive());
+
+		ArrayList<ChangeData> changes = tracker.getChanges();
+		assertEquals(2, changes.size());
+		assertEquals(1, ((PagedChangeData) changes.get(0)).size);
+		assertEquals(2, ((PagedChangeData) changes.get(1)).size);
+	}
+}
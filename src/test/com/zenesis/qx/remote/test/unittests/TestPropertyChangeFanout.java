@@ -0,0 +1,140 @@
+package com.zenesis.qx.remote.test.unittests;
+
+import java.util.ArrayList;
+
+import com.zenesis.qx.remote.PropertyChangeFanout;
+import com.zenesis.qx.remote.test.AbstractSyncTestCase;
+
+public class TestPropertyChangeFanout extends AbstractSyncTestCase {
+
+	private int capacity;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		capacity = PropertyChangeFanout.getCapacity();
+		PropertyChangeFanout.shutdown();
+		PropertyChangeFanout.setCapacity(4);
+		PropertyChangeFanout.setEnabled(true);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		PropertyChangeFanout.shutdown();
+		PropertyChangeFanout.setEnabled(false);
+		PropertyChangeFanout.setCapacity(capacity);
+		super.tearDown();
+	}
+
+	/*
+	 * Creates a synchronised tracker which has sent pippo to its client
+	 */
+	private RecordingTracker createSubscriber(boolean closed) {
+		RecordingTracker tracker = createTracker(closed);
+		tracker.getProxy(pippo);
+		return tracker;
+	}
+
+	/*
+	 * Publishes values on a background thread
+	 */
+	private Thread publish(final int first, final int last) {
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				for (int i = first; i <= last; i++)
+					changeName(i);
+			}
+		};
+		thread.start();
+		return thread;
+	}
+
+	private static void assertIncreasing(ArrayList<Object> values, int last) {
+		for (int i = 1; i < values.size(); i++)
+			assertTrue("Out of order at " + i + ": " + values, (Integer) values.get(i - 1) < (Integer) values.get(i));
+		assertEquals(last, values.get(values.size() - 1));
+	}
+
+	/**
+	 * Tests that changes are delivered in order, even when the ring buffer
+	 * overflows
+	 */
+	public void testOrdering() throws Exception {
+		RecordingTracker tracker = createSubscriber(true);
+		RecordingTracker other = createSubscriber(false);
+		changeName(0);
+		tracker.awaitEntered();
+
+		// The ring buffer fills up, so the publisher has to wait
+		Thread thread = publish(1, 50);
+		thread.join(200);
+		assertTrue(thread.isAlive());
+		tracker.open();
+		thread.join(5000);
+		assertFalse(thread.isAlive());
+
+		for (int i = 51; i <= 500; i++)
+			changeName(i);
+		assertTrue(PropertyChangeFanout.waitForIdle(5000));
+		assertIncreasing(tracker.getValues(), 500);
+		assertIncreasing(other.getValues(), 500);
+	}
+
+	/**
+	 * Tests that changes which are overwritten in the same batch are dropped
+	 */
+	public void testSuperseded() throws Exception {
+		RecordingTracker tracker = createSubscriber(true);
+		changeName(0);
+		tracker.awaitEntered();
+		changeName(1);
+		changeName(2);
+		changeName(3);
+		tracker.open();
+		assertTrue(PropertyChangeFanout.waitForIdle(5000));
+		ArrayList<Object> values = tracker.getValues();
+		assertEquals(2, values.size());
+		assertEquals(0, values.get(0));
+		assertEquals(3, values.get(1));
+	}
+
+	public void testWaitForIdle() throws Exception {
+		assertTrue(PropertyChangeFanout.waitForIdle(0));
+		RecordingTracker tracker = createSubscriber(true);
+		changeName(0);
+		tracker.awaitEntered();
+		changeName(1);
+		assertFalse(PropertyChangeFanout.waitForIdle(50));
+		tracker.open();
+		assertTrue(PropertyChangeFanout.waitForIdle(5000));
+		assertEquals(2, tracker.getValues().size());
+	}
+
+	/**
+	 * Tests that shutdown discards pending changes and releases publishers which
+	 * are waiting for space
+	 */
+	public void testShutdown() throws Exception {
+		RecordingTracker tracker = createSubscriber(true);
+		changeName(0);
+		tracker.awaitEntered();
+		// 1 to 4 fill the ring buffer, so the publisher waits to add 5
+		Thread thread = publish(1, 5);
+		thread.join(200);
+		assertTrue(thread.isAlive());
+
+		PropertyChangeFanout.shutdown();
+		assertTrue(PropertyChangeFanout.waitForIdle(0));
+		thread.join(5000);
+		assertFalse(thread.isAlive());
+		tracker.open();
+		assertTrue(tracker.getValues().isEmpty());
+
+		// Publishing again starts new threads
+		changeName(100);
+		assertTrue(PropertyChangeFanout.waitForIdle(5000));
+		assertEquals(1, tracker.getValues().size());
+		assertEquals(100, tracker.getValues().get(0));
+	}
+}
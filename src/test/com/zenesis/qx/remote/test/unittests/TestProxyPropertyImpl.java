@@ -0,0 +1,305 @@
+package com.zenesis.qx.remote.test.unittests;
+
+import java.lang.reflect.Field;
+
+import com.zenesis.qx.remote.Proxied;
+import com.zenesis.qx.remote.ProxyException;
+import com.zenesis.qx.remote.ProxyProperty;
+import com.zenesis.qx.remote.ProxyPropertyImpl;
+import com.zenesis.qx.remote.ProxyTypeManager;
+import com.zenesis.qx.remote.annotations.Property;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests that ProxyPropertyImpl.setValue checks and widens values in the same way
+ * as reflection, whether the setter is called by a generated lambda, a method
+ * handle, or a field handle
+ */
+public class TestProxyPropertyImpl extends TestCase {
+
+	private static final String[] NAMES = { "shortValue", "charValue", "intValue", "longValue", "floatValue",
+			"doubleValue", "booleanValue" };
+
+	private static final Object[] VALUES = { Byte.valueOf((byte) 3), Short.valueOf((short) 300), Character.valueOf('c'),
+			Integer.valueOf(70000), Long.valueOf(5000000000L), Float.valueOf(1.5f), Double.valueOf(2.25), Boolean.TRUE,
+			"7", null };
+
+	/*
+	 * Public fields, which are written with a field handle; also used to find out
+	 * what reflection accepts
+	 */
+	public static class Fields implements Proxied {
+		@Property
+		public short shortValue;
+		@Property
+		public char charValue;
+		@Property
+		public int intValue;
+		@Property
+		public long longValue;
+		@Property
+		public float floatValue;
+		@Property
+		public double doubleValue;
+		@Property
+		public boolean booleanValue;
+	}
+
+	/*
+	 * Public set methods in a public class, which are called with a lambda
+	 */
+	public static class Methods implements Proxied {
+		private short shortValue;
+		private char charValue;
+		private int intValue;
+		private long longValue;
+		private float floatValue;
+		private double doubleValue;
+		private boolean booleanValue;
+
+		@Property
+		public short getShortValue() {
+			return shortValue;
+		}
+
+		public void setShortValue(short shortValue) {
+			this.shortValue = shortValue;
+		}
+
+		@Property
+		public char getCharValue() {
+			return charValue;
+		}
+
+		public void setCharValue(char charValue) {
+			this.charValue = charValue;
+		}
+
+		@Property
+		public int getIntValue() {
+			return intValue;
+		}
+
+		public void setIntValue(int intValue) {
+			this.intValue = intValue;
+		}
+
+		@Property
+		public long getLongValue() {
+			return longValue;
+		}
+
+		public void setLongValue(long longValue) {
+			this.longValue = longValue;
+		}
+
+		@Property
+		public float getFloatValue() {
+			return floatValue;
+		}
+
+		public void setFloatValue(float floatValue) {
+			this.floatValue = floatValue;
+		}
+
+		@Property
+		public double getDoubleValue() {
+			return doubleValue;
+		}
+
+		public void setDoubleValue(double doubleValue) {
+			this.doubleValue = doubleValue;
+		}
+
+		@Property
+		public boolean getBooleanValue() {
+			return booleanValue;
+		}
+
+		public void setBooleanValue(boolean booleanValue) {
+			this.booleanValue = booleanValue;
+		}
+	}
+
+	/*
+	 * The same as Methods, but the class is not public so the set methods are
+	 * called with a method handle
+	 */
+	static class HiddenMethods implements Proxied {
+		private short shortValue;
+		private char charValue;
+		private int intValue;
+		private long longValue;
+		private float floatValue;
+		private double doubleValue;
+		private boolean booleanValue;
+
+		@Property
+		public short getShortValue() {
+			return shortValue;
+		}
+
+		public void setShortValue(short shortValue) {
+			this.shortValue = shortValue;
+		}
+
+		@Property
+		public char getCharValue() {
+			return charValue;
+		}
+
+		public void setCharValue(char charValue) {
+			this.charValue = charValue;
+		}
+
+		@Property
+		public int getIntValue() {
+			return intValue;
+		}
+
+		public void setIntValue(int intValue) {
+			this.intValue = intValue;
+		}
+
+		@Property
+		public long getLongValue() {
+			return longValue;
+		}
+
+		public void setLongValue(long longValue) {
+			this.longValue = longValue;
+		}
+
+		@Property
+		public float getFloatValue() {
+			return floatValue;
+		}
+
+		public void setFloatValue(float floatValue) {
+			this.floatValue = floatValue;
+		}
+
+		@Property
+		public double getDoubleValue() {
+			return doubleValue;
+		}
+
+		public void setDoubleValue(double doubleValue) {
+			this.doubleValue = doubleValue;
+		}
+
+		@Property
+		public boolean getBooleanValue() {
+			return booleanValue;
+		}
+
+		public void setBooleanValue(boolean booleanValue) {
+			this.booleanValue = booleanValue;
+		}
+	}
+
+	private static ProxyProperty getProperty(Class clazz, String name) {
+		return ProxyTypeManager.INSTANCE.getProxyType(clazz).getProperties().get(name);
+	}
+
+	/*
+	 * Returns the lambda which a property uses to call its set method, if any
+	 */
+	private static Object getSetFunction(Class clazz, String name) throws Exception {
+		ProxyProperty property = getProperty(clazz, name);
+		property.getValue(clazz == HiddenMethods.class ? new HiddenMethods() : new Methods());
+		Field field = ProxyPropertyImpl.class.getDeclaredField("setFunction");
+		field.setAccessible(true);
+		return field.get(property);
+	}
+
+	/*
+	 * Sets a property, returning the new value or the exception
+	 */
+	private static Object setValue(Proxied proxied, String name, Object value) throws Exception {
+		ProxyProperty property = getProperty(proxied.getClass(), name);
+		try {
+			property.setValue(proxied, value);
+		} catch (ProxyException e) {
+			return e;
+		}
+		return property.getValue(proxied);
+	}
+
+	/*
+	 * Checks that setting a value has the same result as Field.set
+	 */
+	private static void assertSetValue(Proxied proxied, String name, Object value) throws Exception {
+		Fields reference = new Fields();
+		Field field = Fields.class.getField(name);
+		Object expected;
+		try {
+			field.set(reference, value);
+			expected = field.get(reference);
+		} catch (IllegalArgumentException e) {
+			expected = null;
+		}
+
+		String msg = proxied.getClass().getSimpleName() + "." + name + " = " +
+				(value == null ? "null" : value.getClass().getSimpleName() + " " + value);
+		Object actual = setValue(proxied, name, value);
+		if (expected == null) {
+			assertTrue(msg + " gave " + actual, actual instanceof ProxyException);
+			assertTrue(msg, ((ProxyException) actual).getCause() instanceof IllegalArgumentException);
+		} else
+			assertEquals(msg, expected, actual);
+	}
+
+	/**
+	 * Tests that the fixtures take the paths which they are meant to
+	 */
+	public void testPaths() throws Exception {
+		for (String name : NAMES) {
+			assertNotNull(name, getSetFunction(Methods.class, name));
+			assertNull(name, getSetFunction(HiddenMethods.class, name));
+		}
+	}
+
+	public void testSetValue() throws Exception {
+		Proxied[] targets = { new Fields(), new Methods(), new HiddenMethods() };
+		for (Proxied target : targets)
+			for (String name : NAMES)
+				for (Object value : VALUES)
+					assertSetValue(target, name, value);
+	}
+
+	public void testWidening() throws Exception {
+		Proxied[] targets = { new Fields(), new Methods(), new HiddenMethods() };
+		for (Proxied target : targets) {
+			assertEquals(Long.valueOf(3), setValue(target, "longValue", Byte.valueOf((byte) 3)));
+			assertEquals(Long.valueOf(300), setValue(target, "longValue", Short.valueOf((short) 300)));
+			assertEquals(Long.valueOf('c'), setValue(target, "longValue", Character.valueOf('c')));
+			assertEquals(Long.valueOf(70000), setValue(target, "longValue", Integer.valueOf(70000)));
+			assertEquals(Float.valueOf(70000), setValue(target, "floatValue", Integer.valueOf(70000)));
+			assertEquals(Float.valueOf(5000000000L), setValue(target, "floatValue", Long.valueOf(5000000000L)));
+			assertEquals(Double.valueOf('c'), setValue(target, "doubleValue", Character.valueOf('c')));
+			assertEquals(Double.valueOf(1.5), setValue(target, "doubleValue", Float.valueOf(1.5f)));
+			assertEquals(Integer.valueOf('c'), setValue(target, "intValue", Character.valueOf('c')));
+		}
+	}
+
+	public void testMismatch() throws Exception {
+		Proxied[] targets = { new Fields(), new Methods(), new HiddenMethods() };
+		for (Proxied target : targets) {
+			// Narrowing
+			assertTrue(setValue(target, "intValue", Long.valueOf(1)) instanceof ProxyException);
+			assertTrue(setValue(target, "floatValue", Double.valueOf(1)) instanceof ProxyException);
+			assertTrue(setValue(target, "shortValue", Character.valueOf('c')) instanceof ProxyException);
+			assertTrue(setValue(target, "charValue", Byte.valueOf((byte) 1)) instanceof ProxyException);
+
+			// Booleans and numbers do not mix
+			assertTrue(setValue(target, "booleanValue", Integer.valueOf(1)) instanceof ProxyException);
+			assertTrue(setValue(target, "intValue", Boolean.TRUE) instanceof ProxyException);
+
+			// Primitives cannot be null
+			assertTrue(setValue(target, "longValue", null) instanceof ProxyException);
+			assertTrue(setValue(target, "booleanValue", null) instanceof ProxyException);
+		}
+	}
+}
@@ -2,15 +2,39 @@ package com.zenesis.qx.remote.test.unittests;
 
 import junit.framework.TestCase;
 
+import com.zenesis.core.HasUuid;
 import com.zenesis.qx.event.Event;
 import com.zenesis.qx.event.EventListener;
 import com.zenesis.qx.event.EventManager;
 import com.zenesis.qx.remote.annotations.Property;
 import com.zenesis.qx.remote.collections.ArrayList;
 import com.zenesis.qx.remote.collections.ArrayList.ArrayChangeData;
+import com.zenesis.qx.remote.collections.ArrayList.MoveEntry;
 
 public class TestQsoArrayList extends TestCase {
 
+	/*
+	 * Element with a UUID; the UUID can be changed to test that a stale index is
+	 * detected
+	 */
+	private static final class Item implements HasUuid {
+		private String uuid;
+
+		public Item(String uuid) {
+			this.uuid = uuid;
+		}
+
+		@Override
+		public String getUuid() {
+			return uuid;
+		}
+
+		@Override
+		public String toString() {
+			return uuid;
+		}
+	}
+
 	@Property
 	private ArrayList<String> array = new ArrayList<String>();
 	private static final class Listener implements EventListener {
@@ -115,4 +139,290 @@ public class TestQsoArrayList extends TestCase {
 		assertEquals("foxtrot", array.get(1));
 	}
 	
+	public void testDetectNulls() {
+		ArrayList<String> tmp = new ArrayList<String>();
+		tmp.add("alpha");
+		tmp.add((String) null);
+		assertTrue(tmp.detectNulls());
+		try {
+			tmp.setDetectNulls(true);
+			fail("Protected an array containing nulls");
+		} catch (IllegalStateException e) {
+			// Nothing
+		}
+		tmp.set(1, "bravo");
+		assertFalse(tmp.detectNulls());
+		tmp.setDetectNulls(true);
+		try {
+			tmp.add((String) null);
+			fail("Added null to a protected array");
+		} catch (IllegalArgumentException e) {
+			// Nothing
+		}
+		try {
+			tmp.set(0, null);
+			fail("Set null in a protected array");
+		} catch (IllegalArgumentException e) {
+			// Nothing
+		}
+		assertEquals(2, tmp.size());
+		assertFalse(tmp.detectNulls());
+
+		tmp.setDetectNulls(false);
+		tmp.add(0, (String) null);
+		assertTrue(tmp.detectNulls());
+		tmp.remove(0);
+		assertFalse(tmp.detectNulls());
+	}
+	
+	public void testBatch() {
+		array.clear();
+		listener.events.clear();
+		
+		array.beginBatch();
+		for (int i = 0; i < 100; i++)
+			array.add("item" + i);
+		array.beginBatch();
+		array.remove(0);
+		array.endBatch();
+		listener.assertEmpty();
+		array.endBatch();
+		
+		// One event with the net change
+		assertEquals(1, listener.events.size());
+		ArrayChangeData data = listener.events.remove(0);
+		assertEquals(99, data.added.size());
+		assertEquals("item1", data.added.get(0));
+		assertNull(data.removed);
+		
+		array.clear();
+		listener.assertRemoved((String[]) data.added.toArray(new String[0]));
+		listener.assertEmpty();
+		
+		try {
+			array.endBatch();
+			fail("endBatch without beginBatch");
+		} catch (IllegalStateException e) {
+			// Nothing
+		}
+	}
+	
+	/*
+	 * Applies a change in the same way as the client
+	 */
+	private static void apply(java.util.List<Object> copy, ArrayChangeData data) {
+		if (data.removed != null)
+			for (Object o : data.removed)
+				copy.remove(o);
+		if (data.added != null)
+			copy.addAll(data.added);
+		if (data.moved != null) {
+			for (Object o : data.moved)
+				copy.remove(((MoveEntry) o).getValue());
+			for (Object o : data.moved)
+				copy.add(((MoveEntry) o).getIndex(), ((MoveEntry) o).getValue());
+		}
+	}
+	
+	public void testReplace() {
+		String[] values = new String[20];
+		for (int i = 0; i < values.length; i++)
+			values[i] = "item" + i;
+		array.clear();
+		array.addAll(java.util.Arrays.asList(values).subList(0, 10));
+		listener.events.clear();
+		java.util.List<Object> copy = new java.util.ArrayList<Object>(array);
+		
+		// Nothing changes
+		array.replace(new java.util.ArrayList<String>(array));
+		listener.assertEmpty();
+		
+		// Remove one, add two, and move one to the front
+		java.util.List<String> next = new java.util.ArrayList<String>(array);
+		next.remove(values[4]);
+		next.add(values[10]);
+		next.add(2, values[11]);
+		next.remove(values[8]);
+		next.add(0, values[8]);
+		array.replace(next);
+		assertEquals(next, array);
+		assertEquals(1, listener.events.size());
+		ArrayChangeData data = listener.events.get(0);
+		assertEquals(1, data.removed.size());
+		assertEquals(2, data.added.size());
+		assertEquals(2, data.moved.size());
+		apply(copy, listener.events.remove(0));
+		assertEquals(next, copy);
+		
+		// Reverse, which moves all but one
+		java.util.Collections.reverse(next);
+		array.replace(next);
+		assertEquals(next, array);
+		data = listener.events.remove(0);
+		assertNull(data.added);
+		assertNull(data.removed);
+		assertEquals(next.size() - 1, data.moved.size());
+		apply(copy, data);
+		assertEquals(next, copy);
+		
+		// matchOrder only moves
+		java.util.List<String> order = new java.util.ArrayList<String>();
+		order.add(values[5]);
+		order.add(values[0]);
+		array.matchOrder(order);
+		assertEquals(values[5], array.get(0));
+		assertEquals(values[0], array.get(1));
+		data = listener.events.remove(0);
+		assertNull(data.added);
+		assertNull(data.removed);
+		assertTrue(data.moved.size() <= 2);
+		apply(copy, data);
+		assertEquals(array, copy);
+		listener.assertEmpty();
+	}
+
+	/*
+	 * Checks that lookups by UUID find the first element with each UUID, the same
+	 * as scanning the list
+	 */
+	private static void assertIndexed(ArrayList<Item> items, String[] uuids) {
+		for (String uuid : uuids) {
+			Item first = null;
+			int pos = -1;
+			for (int i = 0; i < items.size(); i++)
+				if (items.get(i).getUuid().equals(uuid)) {
+					first = items.get(i);
+					pos = i;
+					break;
+				}
+			assertSame(uuid, first, items.findByUuid(uuid));
+			assertEquals(uuid, first != null, items.containsUuid(uuid));
+			if (first != null) {
+				assertEquals(uuid, pos, items.indexOf(first));
+				assertTrue(uuid, items.contains(first));
+			}
+		}
+	}
+
+	public void testIndexUuids() {
+		ArrayList<Item> items = new ArrayList<Item>();
+		assertFalse(items.isIndexUuids());
+		items.setIndexUuids(true);
+		assertTrue(items.isIndexUuids());
+		String[] uuids = { "a", "b", "c", "d", "e", "missing" };
+
+		for (int i = 0; i < 5; i++)
+			items.add(new Item(uuids[i]));
+		assertIndexed(items, uuids);
+
+		// Inserting and removing in the middle moves the elements after it
+		items.add(0, new Item("e"));
+		items.add(3, new Item("f"));
+		assertIndexed(items, uuids);
+		assertEquals(0, items.indexOf(items.findByUuid("e")));
+		assertEquals(4, items.indexOf(items.findByUuid("c")));
+		items.remove(2);
+		items.remove(0);
+		assertIndexed(items, uuids);
+		assertEquals(1, items.indexOf(items.findByUuid("f")));
+
+		// Mixed changes, checked against a scan after each one
+		java.util.Random random = new java.util.Random(1);
+		for (int i = 0; i < 500; i++) {
+			int op = random.nextInt(3);
+			if (op == 0 || items.isEmpty())
+				items.add(random.nextInt(items.size() + 1), new Item(uuids[random.nextInt(5)]));
+			else if (op == 1)
+				items.remove(random.nextInt(items.size()));
+			else
+				items.set(random.nextInt(items.size()), new Item(uuids[random.nextInt(5)]));
+			assertIndexed(items, uuids);
+		}
+
+		items.clear();
+		assertIndexed(items, uuids);
+		items.setIndexUuids(false);
+		assertFalse(items.isIndexUuids());
+	}
+
+	public void testIndexUuidsDuplicates() {
+		ArrayList<Item> items = new ArrayList<Item>();
+		items.setIndexUuids(true);
+		Item first = new Item("a");
+		Item second = new Item("a");
+		items.add(new Item("b"));
+		items.add(first);
+		items.add(new Item("c"));
+		items.add(second);
+		assertTrue(items.detectDuplicates());
+		assertSame(first, items.findByUuid("a"));
+		assertEquals(1, items.indexOf(first));
+
+		// An element which has the same UUID as the first one is found by scanning
+		assertEquals(3, items.indexOf(second));
+
+		// Removing the first one leaves the second one indexed
+		items.remove(1);
+		assertSame(second, items.findByUuid("a"));
+		assertEquals(2, items.indexOf(second));
+		assertFalse(items.detectDuplicates());
+
+		// Inserting a duplicate before it takes over
+		items.add(0, first);
+		assertSame(first, items.findByUuid("a"));
+		assertEquals(3, items.indexOf(second));
+		assertTrue(items.detectDuplicates());
+
+		// Duplicates are detected using the index when adding
+		items.setDetectDuplicates(true);
+		items.add(new Item("c"));
+		assertEquals(5, items.size());
+		assertSame(items.get(2), items.findByUuid("c"));
+	}
+
+	public void testIndexUuidsInvalidated() {
+		ArrayList<Item> items = new ArrayList<Item>();
+		items.setIndexUuids(true);
+		Item a = new Item("a");
+		items.add(a);
+		items.add(new Item("b"));
+		items.add(new Item("c"));
+		assertSame(a, items.findByUuid("a"));
+
+		// Replacing an element with a different UUID
+		Item d = new Item("d");
+		items.set(1, d);
+		assertFalse(items.containsUuid("b"));
+		assertSame(d, items.findByUuid("d"));
+		assertEquals(1, items.indexOf(d));
+
+		// An element whose UUID changes is not found by its old UUID
+		a.uuid = "z";
+		assertNull(items.findByUuid("a"));
+		assertSame(a, items.findByUuid("z"));
+		assertEquals(0, items.indexOf(a));
+
+		// Reordering moves the indexed positions
+		java.util.Collections.reverse(items);
+		assertEquals(2, items.indexOf(a));
+		assertEquals(0, items.indexOf(items.findByUuid("c")));
+		items.sort(new java.util.Comparator<Item>() {
+			@Override
+			public int compare(Item o1, Item o2) {
+				return o1.getUuid().compareTo(o2.getUuid());
+			}
+		});
+		assertEquals(0, items.indexOf(items.findByUuid("c")));
+		assertEquals(1, items.indexOf(d));
+		assertEquals(2, items.indexOf(a));
+
+		java.util.List<Item> next = new java.util.ArrayList<Item>();
+		next.add(d);
+		next.add(new Item("e"));
+		items.replace(next);
+		assertEquals(-1, items.indexOf(a));
+		assertFalse(items.containsUuid("c"));
+		assertEquals(1, items.indexOf(items.findByUuid("e")));
+	}
+	
 }
@@ -0,0 +1,90 @@
+package com.zenesis.qx.remote.test.unittests;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import jakarta.servlet.ServletException;
+
+import com.zenesis.qx.remote.ProxyManager;
+import com.zenesis.qx.remote.ResponseCompression;
+
+import junit.framework.TestCase;
+
+public class TestResponseCompression extends TestCase {
+
+	private static boolean s_notProxiedInitialised;
+
+	/*
+	 * A class which is not Proxied, and records when it is initialised
+	 */
+	public static class NotProxied {
+		static {
+			s_notProxiedInitialised = true;
+		}
+	}
+	
+	public void testNegotiate() {
+		assertEquals(null, ResponseCompression.negotiate(null));
+		assertEquals(null, ResponseCompression.negotiate("identity"));
+		assertEquals("gzip", ResponseCompression.negotiate("gzip, deflate, br"));
+		assertEquals("x-gzip", ResponseCompression.negotiate("x-gzip"));
+		assertEquals("deflate", ResponseCompression.negotiate("deflate, gzip;q=0"));
+		assertEquals("gzip", ResponseCompression.negotiate("deflate;q=0.5, gzip;q=1.0"));
+		assertEquals(null, ResponseCompression.negotiate("gzip;q=0"));
+
+		// The highest q-value wins, and gzip wins a tie
+		assertEquals("deflate", ResponseCompression.negotiate("gzip;q=0.1, deflate"));
+		assertEquals("deflate", ResponseCompression.negotiate("x-gzip;q=0.5, deflate;q=0.6"));
+		assertEquals("gzip", ResponseCompression.negotiate("deflate, gzip"));
+		assertEquals("gzip", ResponseCompression.negotiate("deflate;q=0.5, gzip;q=0.5"));
+		assertEquals("x-gzip", ResponseCompression.negotiate("gzip;q=0.2, x-gzip;q=0.8, deflate;q=0.3"));
+		assertEquals("deflate", ResponseCompression.negotiate("gzip;q=bad, deflate"));
+	}
+
+	/**
+	 * Tests that class definitions are only written for Proxied classes, and that
+	 * other classes are not initialised
+	 */
+	public void testWriteClassCode() throws Exception {
+		try {
+			ProxyManager.writeClassCode(null, null, NotProxied.class.getName());
+			fail("Expected a ServletException");
+		} catch (ServletException e) {
+			// Expected
+		}
+		try {
+			ProxyManager.writeClassCode(null, null, "com.example.NoSuchClass");
+			fail("Expected a ServletException");
+		} catch (ServletException e) {
+			// Expected
+		}
+		assertFalse(s_notProxiedInitialised);
+	}
+	
+	private static byte[] readAll(InputStream is) throws Exception {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		int length;
+		while ((length = is.read(buffer)) > -1)
+			baos.write(buffer, 0, length);
+		return baos.toByteArray();
+	}
+
+	public void testCompress() throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 1000; i++)
+			sb.append("{ \"type\": \"set\", \"object\": " + i + " },\n");
+		byte[] raw = sb.toString().getBytes("UTF-8");
+		
+		byte[] gzip = ResponseCompression.compress(raw, ResponseCompression.ENCODING_GZIP);
+		assertTrue(gzip.length < raw.length);
+		assertEquals(sb.toString(), new String(readAll(new GZIPInputStream(new ByteArrayInputStream(gzip))), "UTF-8"));
+		
+		byte[] deflate = ResponseCompression.compress(raw, ResponseCompression.ENCODING_DEFLATE);
+		assertTrue(deflate.length < raw.length);
+		assertEquals(sb.toString(), new String(readAll(new InflaterInputStream(new ByteArrayInputStream(deflate))), "UTF-8"));
+	}
+}
@@ -0,0 +1,107 @@
+package com.zenesis.qx.remote.test.unittests;
+
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+import com.zenesis.qx.remote.ProxyManager;
+import com.zenesis.qx.remote.ProxySessionTracker;
+import com.zenesis.qx.remote.SessionMailbox;
+import com.zenesis.qx.remote.test.simple.MainTests;
+
+import junit.framework.TestCase;
+
+public class TestSessionMailbox extends TestCase {
+
+	/*
+	 * Executor which only runs tasks when asked to
+	 */
+	private static class ManualExecutor implements Executor {
+		private final ArrayList<Runnable> tasks = new ArrayList<Runnable>();
+
+		@Override
+		public void execute(Runnable command) {
+			tasks.add(command);
+		}
+
+		public void runAll() {
+			while (!tasks.isEmpty())
+				tasks.remove(0).run();
+		}
+	}
+
+	/*
+	 * Records the order that requests are run in
+	 */
+	private static class Recorder implements SessionMailbox.Request {
+		private final ArrayList<Integer> order;
+		private final int requestIndex;
+		private final ProxySessionTracker tracker;
+
+		public Recorder(ArrayList<Integer> order, int requestIndex, ProxySessionTracker tracker) {
+			this.order = order;
+			this.requestIndex = requestIndex;
+			this.tracker = tracker;
+		}
+
+		@Override
+		public void run() throws Exception {
+			assertSame(tracker, ProxyManager.getTracker());
+			order.add(requestIndex);
+		}
+	}
+
+	public void testOrder() throws Exception {
+		Executor oldExecutor = SessionMailbox.getExecutor();
+		ManualExecutor executor = new ManualExecutor();
+		SessionMailbox.setExecutor(executor);
+		try {
+			ProxySessionTracker tracker = new ProxySessionTracker(MainTests.class);
+			SessionMailbox mailbox = tracker.getMailbox();
+			ArrayList<Integer> order = new ArrayList<Integer>();
+
+			CompletableFuture<Void> f3 = mailbox.submit(3, new Recorder(order, 3, tracker));
+			CompletableFuture<Void> f1 = mailbox.submit(1, new Recorder(order, 1, tracker));
+			CompletableFuture<Void> f2 = mailbox.submit(2, new Recorder(order, 2, tracker));
+			CompletableFuture<Void> f4 = mailbox.submit(4, new Recorder(order, 4, tracker));
+			assertEquals(1, executor.tasks.size());
+			assertEquals(4, mailbox.size());
+
+			assertTrue(mailbox.cancel(f4));
+			assertTrue(f4.isCancelled());
+			executor.runAll();
+
+			assertEquals(3, order.size());
+			for (int i = 0; i < 3; i++)
+				assertEquals(i + 1, order.get(i).intValue());
+			assertTrue(f1.isDone() && f2.isDone() && f3.isDone());
+			assertFalse(mailbox.cancel(f1));
+			assertEquals(0, mailbox.size());
+
+			// The next request schedules another drainer
+			mailbox.submit(5, new Recorder(order, 5, tracker));
+			assertEquals(1, executor.tasks.size());
+			executor.runAll();
+			assertEquals(5, order.get(3).intValue());
+		} finally {
+			SessionMailbox.setExecutor(oldExecutor);
+		}
+	}
+
+	public void testException() throws Exception {
+		ProxySessionTracker tracker = new ProxySessionTracker(MainTests.class);
+		CompletableFuture<Void> future = tracker.getMailbox().submit(1, new SessionMailbox.Request() {
+			@Override
+			public void run() throws Exception {
+				throw new IllegalStateException("Expected");
+			}
+		});
+		try {
+			future.get();
+			fail("Should have thrown");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+	}
+}
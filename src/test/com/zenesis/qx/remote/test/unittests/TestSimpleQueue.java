@@ -0,0 +1,53 @@
+package com.zenesis.qx.remote.test.unittests;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.zenesis.qx.remote.CommandId;
+import com.zenesis.qx.remote.CommandId.CommandType;
+import com.zenesis.qx.remote.SimpleQueue;
+
+import junit.framework.TestCase;
+
+public class TestSimpleQueue extends TestCase {
+
+	private String flush(SimpleQueue queue) throws Exception {
+		return new ObjectMapper().writeValueAsString(queue.getDataToFlush());
+	}
+
+	public void testOrderAndCoalescing() throws Exception {
+		SimpleQueue queue = new SimpleQueue();
+		assertFalse(queue.hasDataToFlush());
+		assertNull(queue.getDataToFlush());
+
+		String a = new String("a");
+		String b = new String("a");
+		queue.queueCommand(CommandType.SET_VALUE, a, "x", 1);
+		queue.queueCommand(CommandType.SET_VALUE, b, "x", 2);
+		queue.queueCommand(new CommandId(CommandType.FUNCTION_RETURN, a, null, false), 3);
+		queue.queueCommand(new CommandId(CommandType.FUNCTION_RETURN, a, null, false), 4);
+
+		// Replaces the value in place, because objects are compared by identity
+		queue.queueCommand(CommandType.SET_VALUE, a, "x", 5);
+		assertEquals(5, queue.getCommand(CommandType.SET_VALUE, a, "x"));
+		assertEquals(2, queue.getCommand(CommandType.SET_VALUE, b, "x"));
+		assertNull(queue.getCommand(CommandType.SET_VALUE, a, "y"));
+
+		// Bootstrap always goes first
+		queue.queueCommand(CommandType.BOOTSTRAP, null, null, 0);
+		assertTrue(queue.hasDataToFlush());
+
+		assertEquals("[{\"type\":\"bootstrap\",\"data\":0}," + 
+				"{\"type\":\"set\",\"object\":\"a\",\"name\":\"x\",\"data\":5}," +
+				"{\"type\":\"set\",\"object\":\"a\",\"name\":\"x\",\"data\":2}," + 
+				"{\"type\":\"return\",\"object\":\"a\",\"data\":3}," + 
+				"{\"type\":\"return\",\"object\":\"a\",\"data\":4}]", flush(queue));
+
+		// Flushing starts a new log
+		assertFalse(queue.hasDataToFlush());
+		assertNull(queue.getCommand(CommandType.SET_VALUE, a, "x"));
+		for (int i = 0; i < 100; i++)
+			queue.queueCommand(CommandType.FIRE_EVENT, null, "e" + (i % 50), i);
+		String str = flush(queue);
+		assertTrue(str, str.startsWith("[{\"type\":\"fire\",\"name\":\"e0\",\"data\":50},"));
+		assertTrue(str, str.endsWith("{\"type\":\"fire\",\"name\":\"e49\",\"data\":99}]"));
+	}
+}
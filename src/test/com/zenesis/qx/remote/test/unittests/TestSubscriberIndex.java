@@ -0,0 +1,74 @@
+package com.zenesis.qx.remote.test.unittests;
+
+import com.zenesis.qx.remote.test.AbstractSyncTestCase;
+import com.zenesis.qx.remote.test.simple.Pippo;
+
+/**
+ * Tests that changes to objects are only routed to the synchronised trackers
+ * which have sent the object to their client
+ */
+public class TestSubscriberIndex extends AbstractSyncTestCase {
+
+	private RecordingTracker holder;
+	private RecordingTracker other;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		holder = createTracker(false);
+		other = createTracker(false);
+		other.getProxy(new Pippo());
+	}
+
+	/**
+	 * Tests that only trackers which have sent the object get the change
+	 */
+	public void testGetProxy() throws Exception {
+		changeName("before");
+		assertTrue(holder.getValues().isEmpty());
+
+		holder.getProxy(pippo);
+		changeName("after");
+		assertEquals(1, holder.getValues().size());
+		assertEquals("after", holder.getValues().get(0));
+		assertTrue(other.getValues().isEmpty());
+
+		// Sending the object again does not deliver changes twice
+		holder.getProxy(pippo);
+		changeName("again");
+		assertEquals(2, holder.getValues().size());
+	}
+
+	public void testForget() throws Exception {
+		holder.getProxy(pippo);
+		other.getProxy(pippo);
+		holder.forget(pippo);
+		changeName("forgotten");
+		assertTrue(holder.getValues().isEmpty());
+		assertEquals(1, other.getValues().size());
+
+		holder.getProxy(pippo);
+		changeName("resent");
+		assertEquals(1, holder.getValues().size());
+	}
+
+	public void testDispose() throws Exception {
+		holder.getProxy(pippo);
+		holder.dispose();
+		changeName("disposed");
+		assertTrue(holder.getValues().isEmpty());
+	}
+
+	public void testRemoveSyncTracker() throws Exception {
+		holder.getProxy(pippo);
+		unsync(holder);
+		changeName("removed");
+		assertTrue(holder.getValues().isEmpty());
+
+		// The tracker's objects are indexed again when it is synchronised again
+		sync(holder);
+		changeName("added");
+		assertEquals(1, holder.getValues().size());
+		assertEquals("added", holder.getValues().get(0));
+	}
+}